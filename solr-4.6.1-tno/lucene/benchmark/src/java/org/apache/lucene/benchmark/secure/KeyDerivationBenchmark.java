@@ -0,0 +1,127 @@
+package org.apache.lucene.benchmark.secure;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.util.Random;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+
+import org.apache.lucene.codecs.secure.SecureCipherUtil;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Cost of getting the key of a (field, term) pair from {@link SecureCipherUtil}, for
+ * lookups of random terms out of <code>numTerms</code>:
+ * <ul>
+ *   <li><b>explicit</b>: every term has its own key, added with
+ *       {@link SecureCipherUtil#addKey(String, BytesRef, SecretKey)};</li>
+ *   <li><b>derived</b>: the key is derived from the master key on every lookup with
+ *       {@link SecureCipherUtil#deriveKey(SecretKey, String, BytesRef)};</li>
+ *   <li><b>cachedDerived</b>: {@link SecureCipherUtil#getKey(String, BytesRef)} with a master
+ *       key, which caches derived keys; beyond the size of the cache lookups miss.</li>
+ * </ul>
+ */
+class KeyDerivationBenchmark extends SecureBenchmark {
+  static final String FIELD = "secureField";
+  static final int NUM_LOOKUPS = 100000;
+
+  private String variant;
+  private BytesRef[] terms;
+  private int[] lookups;
+  private SecretKey key;
+  private SecretKey savedMasterKey;
+
+  @Override
+  String name() {
+    return "keyDerivation";
+  }
+
+  @Override
+  String unit() {
+    return "keys";
+  }
+
+  @Override
+  String[] variants() {
+    return new String[] { "explicit", "derived", "cachedDerived" };
+  }
+
+  @Override
+  boolean usesPostingsLength() {
+    return false;
+  }
+
+  @Override
+  void setUp(String variant, int numTerms, int postingsLength, Random random) throws Exception {
+    this.variant = variant;
+    KeyGenerator kg = KeyGenerator.getInstance("AES");
+    kg.init(128);
+    key = kg.generateKey();
+
+    terms = new BytesRef[numTerms];
+    for (int t = 0; t < numTerms; t++) {
+      terms[t] = SecureIndexBenchmark.term(t);
+    }
+    lookups = new int[NUM_LOOKUPS];
+    for (int i = 0; i < NUM_LOOKUPS; i++) {
+      lookups[i] = random.nextInt(numTerms);
+    }
+
+    if ("explicit".equals(variant)) {
+      for (BytesRef term : terms) {
+        SecureCipherUtil.addKey(FIELD, term, key);
+      }
+    } else if ("cachedDerived".equals(variant)) {
+      savedMasterKey = SecureCipherUtil.getKey();
+      SecureCipherUtil.addKey(key);
+    }
+  }
+
+  @Override
+  long run() throws Exception {
+    int check = 0;
+    if ("derived".equals(variant)) {
+      for (int t : lookups) {
+        check += SecureCipherUtil.deriveKey(key, FIELD, terms[t]).hashCode();
+      }
+    } else {
+      for (int t : lookups) {
+        check += SecureCipherUtil.getKey(FIELD, terms[t]).hashCode();
+      }
+    }
+    if (check == 42) {
+      // only there so that the lookups cannot be optimized away
+      System.out.println("check=" + check);
+    }
+    return lookups.length;
+  }
+
+  @Override
+  void tearDown() throws Exception {
+    if ("explicit".equals(variant)) {
+      for (BytesRef term : terms) {
+        SecureCipherUtil.deleteKey(FIELD, term);
+      }
+    } else if ("cachedDerived".equals(variant)) {
+      SecureCipherUtil.getRegistry().setMasterKey(savedMasterKey);
+      SecureCipherUtil.getRegistry().clearDerivedKeys();
+    }
+    terms = null;
+    lookups = null;
+  }
+}
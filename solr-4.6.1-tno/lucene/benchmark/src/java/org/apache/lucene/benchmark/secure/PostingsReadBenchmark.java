@@ -0,0 +1,157 @@
+package org.apache.lucene.benchmark.secure;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.util.Arrays;
+import java.util.Random;
+
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Decode benchmarks on a single segment index:
+ * <ul>
+ *   <li><b>postingsRead</b>: iterates all postings of all terms, postings per second;</li>
+ *   <li><b>docs</b>: seeks to a random term, gets its {@link DocsEnum} and reads the first
+ *       document, the latency of a term lookup;</li>
+ *   <li><b>advance</b>: seeks to a random term and calls {@link DocsEnum#advance} with
+ *       increasing random targets, the latency of an advance as done by conjunctions.</li>
+ * </ul>
+ */
+class PostingsReadBenchmark extends SecureIndexBenchmark {
+  static final int NUM_LOOKUPS = 10000;
+  static final int ADVANCES_PER_LOOKUP = 8;
+
+  enum Mode { POSTINGS_READ, DOCS, ADVANCE }
+
+  private final Mode mode;
+  private RAMDirectory dir;
+  private DirectoryReader reader;
+  private AtomicReader segment;
+  private BytesRef[] lookups;
+  private int[][] targets;
+
+  PostingsReadBenchmark(Mode mode) {
+    this.mode = mode;
+  }
+
+  @Override
+  String name() {
+    switch (mode) {
+      case POSTINGS_READ: return "postingsRead";
+      case DOCS: return "docs";
+      default: return "advance";
+    }
+  }
+
+  @Override
+  String unit() {
+    switch (mode) {
+      case POSTINGS_READ: return "postings";
+      case DOCS: return "lookups";
+      default: return "advances";
+    }
+  }
+
+  @Override
+  void setUp(String variant, int numTerms, int postingsLength, Random random) throws Exception {
+    setUpCodec(variant, FIELD);
+    dir = new RAMDirectory();
+    indexTerms(dir, numTerms, postingsLength, true);
+    reader = DirectoryReader.open(dir);
+    segment = onlySegment(reader);
+
+    lookups = new BytesRef[NUM_LOOKUPS];
+    targets = new int[NUM_LOOKUPS][];
+    final int maxDoc = segment.maxDoc();
+    for (int i = 0; i < NUM_LOOKUPS; i++) {
+      lookups[i] = term(random.nextInt(numTerms));
+      targets[i] = new int[ADVANCES_PER_LOOKUP];
+      for (int j = 0; j < ADVANCES_PER_LOOKUP; j++) {
+        targets[i][j] = random.nextInt(maxDoc);
+      }
+      Arrays.sort(targets[i]);
+    }
+  }
+
+  @Override
+  long run() throws Exception {
+    final TermsEnum te = segment.terms(FIELD).iterator(null);
+    DocsEnum de = null;
+    long ops = 0;
+    switch (mode) {
+      case POSTINGS_READ:
+        while (te.next() != null) {
+          de = te.docs(null, de, DocsEnum.FLAG_NONE);
+          while (de.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+            ops++;
+          }
+        }
+        break;
+      case DOCS:
+        for (BytesRef term : lookups) {
+          if (!te.seekExact(term)) {
+            throw new IllegalStateException("missing term " + term.utf8ToString());
+          }
+          de = te.docs(null, de, DocsEnum.FLAG_NONE);
+          de.nextDoc();
+          ops++;
+        }
+        break;
+      case ADVANCE:
+        for (int i = 0; i < lookups.length; i++) {
+          if (!te.seekExact(lookups[i])) {
+            throw new IllegalStateException("missing term " + lookups[i].utf8ToString());
+          }
+          de = te.docs(null, de, DocsEnum.FLAG_NONE);
+          int doc = -1;
+          for (int target : targets[i]) {
+            if (target > doc) {
+              doc = de.advance(target);
+              ops++;
+              if (doc == DocIdSetIterator.NO_MORE_DOCS) {
+                break;
+              }
+            }
+          }
+        }
+        break;
+    }
+    return ops;
+  }
+
+  @Override
+  void tearDown() throws Exception {
+    if (reader != null) {
+      reader.close();
+      reader = null;
+    }
+    if (dir != null) {
+      dir.close();
+      dir = null;
+    }
+    segment = null;
+    lookups = null;
+    targets = null;
+    tearDownCodec(FIELD);
+  }
+}
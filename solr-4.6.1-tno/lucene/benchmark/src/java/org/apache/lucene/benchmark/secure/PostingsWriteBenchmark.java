@@ -0,0 +1,64 @@
+package org.apache.lucene.benchmark.secure;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.util.Random;
+
+import org.apache.lucene.store.RAMDirectory;
+
+/**
+ * Encode throughput: indexes the documents of the benchmark into a new directory, postings
+ * per second. The cost of the indexing chain is the same for all variants, so differences
+ * come from the postings formats.
+ */
+class PostingsWriteBenchmark extends SecureIndexBenchmark {
+  private int numTerms;
+  private int postingsLength;
+
+  @Override
+  String name() {
+    return "postingsWrite";
+  }
+
+  @Override
+  String unit() {
+    return "postings";
+  }
+
+  @Override
+  void setUp(String variant, int numTerms, int postingsLength, Random random) throws Exception {
+    setUpCodec(variant, FIELD);
+    this.numTerms = numTerms;
+    this.postingsLength = postingsLength;
+  }
+
+  @Override
+  long run() throws Exception {
+    RAMDirectory dir = new RAMDirectory();
+    try {
+      indexTerms(dir, numTerms, postingsLength, false);
+    } finally {
+      dir.close();
+    }
+    return (long) numTerms * postingsLength;
+  }
+
+  @Override
+  void tearDown() throws Exception {
+    tearDownCodec(FIELD);
+  }
+}
@@ -0,0 +1,52 @@
+package org.apache.lucene.benchmark.secure;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.util.Random;
+
+/**
+ * One benchmark of the {@link SecureCodecBenchmark} suite.
+ * <p>
+ * The suite calls {@link #setUp} once for every combination of variant, term cardinality and
+ * postings list length, then {@link #run} for every warmup and measured iteration, and finally
+ * {@link #tearDown}. Only {@link #run} is timed.
+ */
+abstract class SecureBenchmark {
+
+  /** Name of the benchmark, used to select it on the command line and in the report */
+  abstract String name();
+
+  /** What the operations counted by {@link #run} are, e.g. "postings" or "docs" */
+  abstract String unit();
+
+  /** The variants this benchmark compares; the first one is the baseline */
+  abstract String[] variants();
+
+  /** False if the results do not depend on the postings list length, which is then always 1 */
+  boolean usesPostingsLength() {
+    return true;
+  }
+
+  /** Prepares the data for one combination of parameters */
+  abstract void setUp(String variant, int numTerms, int postingsLength, Random random) throws Exception;
+
+  /** Runs one iteration and returns the number of operations it did */
+  abstract long run() throws Exception;
+
+  /** Releases what {@link #setUp} allocated and restores any global state it changed */
+  abstract void tearDown() throws Exception;
+}
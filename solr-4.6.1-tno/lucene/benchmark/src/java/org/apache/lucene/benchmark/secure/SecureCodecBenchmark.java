@@ -0,0 +1,259 @@
+package org.apache.lucene.benchmark.secure;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.io.File;
+import java.io.PrintStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import org.apache.lucene.util.IOUtils;
+
+/**
+ * Benchmark suite for the secure codecs, which compares them to the default codec.
+ * <p>
+ * Every benchmark runs for every term cardinality and postings list length, and for each of
+ * its variants; the first variant is the baseline the other ones are compared to. For every
+ * combination, the benchmark is set up, run for a number of warmup iterations whose results are
+ * discarded, then for a number of measured iterations. The report gives the mean, standard
+ * deviation and minimum of the time per operation over the measured iterations, and the ratio
+ * of the mean to the mean of the baseline.
+ * <p>
+ * On JVMs that can count the bytes allocated by a thread (HotSpot), the report also gives the
+ * bytes allocated per operation during the measured iterations, which shows whether a code
+ * path allocates per posting or per document; -1 when this is not available.
+ * <p>
+ * Benchmarks:
+ * <ul>
+ *   <li><b>postingsWrite</b>: postings encode throughput, see {@link PostingsWriteBenchmark};</li>
+ *   <li><b>postingsRead</b>, <b>docs</b>, <b>advance</b>: postings decode throughput and the
+ *       latency of <code>docs()</code> and <code>advance()</code>, see {@link PostingsReadBenchmark};</li>
+ *   <li><b>storedFields</b>: per document cost of encrypted stored fields, see {@link StoredFieldsBenchmark};</li>
+ *   <li><b>keyDerivation</b>: cost of getting the key of a term, see {@link KeyDerivationBenchmark};</li>
+ *   <li><b>termQuery</b>: latency of a term query over many segments, with and without
+ *       parallel decryption, see {@link TermQueryBenchmark}.</li>
+ * </ul>
+ * Usage: <code>java org.apache.lucene.benchmark.secure.SecureCodecBenchmark [options]</code>
+ * <ul>
+ *   <li><code>-benchmarks name,...</code>: the benchmarks to run, all by default</li>
+ *   <li><code>-terms 10,10K,1M</code>: term cardinalities, K and M suffixes allowed</li>
+ *   <li><code>-postings 1,100</code>: postings list lengths</li>
+ *   <li><code>-maxPostings 10M</code>: skips combinations with more postings than this</li>
+ *   <li><code>-warmup 2</code>, <code>-iterations 5</code>: number of iterations</li>
+ *   <li><code>-seed 42</code>: seed of the random data</li>
+ *   <li><code>-csv file</code>: also writes the results to a CSV file</li>
+ * </ul>
+ * Indexes are held in a {@link org.apache.lucene.store.RAMDirectory}, so the JVM needs enough
+ * heap for the largest combination.
+ */
+public class SecureCodecBenchmark {
+
+  static List<SecureBenchmark> allBenchmarks() {
+    List<SecureBenchmark> benchmarks = new ArrayList<SecureBenchmark>();
+    benchmarks.add(new PostingsWriteBenchmark());
+    benchmarks.add(new PostingsReadBenchmark(PostingsReadBenchmark.Mode.POSTINGS_READ));
+    benchmarks.add(new PostingsReadBenchmark(PostingsReadBenchmark.Mode.DOCS));
+    benchmarks.add(new PostingsReadBenchmark(PostingsReadBenchmark.Mode.ADVANCE));
+    benchmarks.add(new StoredFieldsBenchmark());
+    benchmarks.add(new KeyDerivationBenchmark());
+    benchmarks.add(new TermQueryBenchmark());
+    return benchmarks;
+  }
+
+  /** Time and allocated bytes per operation over the measured iterations of one combination */
+  static final class Result {
+    final double meanNanos;
+    final double stdDevNanos;
+    final double minNanos;
+    final double bytesPerOp;
+
+    Result(double[] nanosPerOp, double bytesPerOp) {
+      this.bytesPerOp = bytesPerOp;
+      double sum = 0, min = Double.MAX_VALUE;
+      for (double nanos : nanosPerOp) {
+        sum += nanos;
+        min = Math.min(min, nanos);
+      }
+      meanNanos = sum / nanosPerOp.length;
+      double squares = 0;
+      for (double nanos : nanosPerOp) {
+        squares += (nanos - meanNanos) * (nanos - meanNanos);
+      }
+      stdDevNanos = Math.sqrt(squares / nanosPerOp.length);
+      minNanos = min;
+    }
+  }
+
+  private final int warmup;
+  private final int iterations;
+  private final long seed;
+
+  SecureCodecBenchmark(int warmup, int iterations, long seed) {
+    this.warmup = warmup;
+    this.iterations = iterations;
+    this.seed = seed;
+  }
+
+  Result measure(SecureBenchmark benchmark, String variant, int numTerms, int postingsLength) throws Exception {
+    benchmark.setUp(variant, numTerms, postingsLength, new Random(seed));
+    try {
+      for (int i = 0; i < warmup; i++) {
+        benchmark.run();
+      }
+      double[] nanosPerOp = new double[iterations];
+      long totalOps = 0;
+      final long startBytes = allocatedBytes();
+      for (int i = 0; i < iterations; i++) {
+        final long start = System.nanoTime();
+        final long ops = benchmark.run();
+        nanosPerOp[i] = (double) (System.nanoTime() - start) / Math.max(1, ops);
+        totalOps += ops;
+      }
+      final long endBytes = allocatedBytes();
+      final double bytesPerOp = startBytes < 0 || endBytes < 0 ? -1 : (double) (endBytes - startBytes) / Math.max(1, totalOps);
+      return new Result(nanosPerOp, bytesPerOp);
+    } finally {
+      benchmark.tearDown();
+    }
+  }
+
+  /** Returns the number of bytes allocated so far by the current thread, or -1 if the JVM cannot tell */
+  static long allocatedBytes() {
+    final ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if (bean instanceof com.sun.management.ThreadMXBean) {
+      final com.sun.management.ThreadMXBean hotspot = (com.sun.management.ThreadMXBean) bean;
+      if (hotspot.isThreadAllocatedMemorySupported() && hotspot.isThreadAllocatedMemoryEnabled()) {
+        return hotspot.getThreadAllocatedBytes(Thread.currentThread().getId());
+      }
+    }
+    return -1;
+  }
+
+  /** Parses a count such as 100, 10K or 10M */
+  static int parseCount(String s) {
+    s = s.trim().toUpperCase(Locale.ROOT);
+    int multiplier = 1;
+    if (s.endsWith("K")) {
+      multiplier = 1000;
+    } else if (s.endsWith("M")) {
+      multiplier = 1000 * 1000;
+    }
+    if (multiplier != 1) {
+      s = s.substring(0, s.length() - 1);
+    }
+    return Integer.parseInt(s) * multiplier;
+  }
+
+  static int[] parseCounts(String s) {
+    String[] parts = s.split(",");
+    int[] counts = new int[parts.length];
+    for (int i = 0; i < parts.length; i++) {
+      counts[i] = parseCount(parts[i]);
+    }
+    return counts;
+  }
+
+  public static void main(String[] args) throws Exception {
+    List<String> names = null;
+    int[] terms = { 10, 1000, 100000 };
+    int[] postings = { 1, 100 };
+    long maxPostings = 10 * 1000 * 1000;
+    int warmup = 2, iterations = 5;
+    long seed = 42;
+    String csv = null;
+    for (int i = 0; i < args.length; i++) {
+      final String arg = args[i];
+      if (i + 1 == args.length) {
+        throw new IllegalArgumentException("missing value for " + arg);
+      }
+      final String value = args[++i];
+      if ("-benchmarks".equals(arg)) {
+        names = Arrays.asList(value.split(","));
+      } else if ("-terms".equals(arg)) {
+        terms = parseCounts(value);
+      } else if ("-postings".equals(arg)) {
+        postings = parseCounts(value);
+      } else if ("-maxPostings".equals(arg)) {
+        maxPostings = parseCount(value);
+      } else if ("-warmup".equals(arg)) {
+        warmup = Integer.parseInt(value);
+      } else if ("-iterations".equals(arg)) {
+        iterations = Integer.parseInt(value);
+      } else if ("-seed".equals(arg)) {
+        seed = Long.parseLong(value);
+      } else if ("-csv".equals(arg)) {
+        csv = value;
+      } else {
+        throw new IllegalArgumentException("unknown option " + arg);
+      }
+    }
+
+    List<SecureBenchmark> benchmarks = new ArrayList<SecureBenchmark>();
+    for (SecureBenchmark benchmark : allBenchmarks()) {
+      if (names == null || names.contains(benchmark.name())) {
+        benchmarks.add(benchmark);
+      }
+    }
+    if (benchmarks.isEmpty()) {
+      throw new IllegalArgumentException("no benchmark matches " + names);
+    }
+
+    SecureCodecBenchmark suite = new SecureCodecBenchmark(warmup, iterations, seed);
+    PrintStream csvOut = csv == null ? null : new PrintStream(new File(csv), IOUtils.UTF_8);
+    try {
+      if (csvOut != null) {
+        csvOut.println("benchmark,variant,terms,postingsLength,unit,meanNsPerOp,stdDevNsPerOp,minNsPerOp,relativeToBaseline,bytesPerOp");
+      }
+      System.out.println(String.format(Locale.ROOT, "%-14s %-18s %10s %8s %-9s %14s %12s %14s %9s %10s",
+          "benchmark", "variant", "terms", "postings", "op", "mean ns/op", "stddev", "min ns/op", "relative", "B/op"));
+      for (SecureBenchmark benchmark : benchmarks) {
+        for (int numTerms : terms) {
+          for (int postingsLength : benchmark.usesPostingsLength() ? postings : new int[] { 1 }) {
+            if ((long) numTerms * postingsLength > maxPostings) {
+              System.out.println(String.format(Locale.ROOT, "%-14s skipped: %d terms * %d postings > maxPostings=%d",
+                  benchmark.name(), numTerms, postingsLength, maxPostings));
+              continue;
+            }
+            double baseline = Double.NaN;
+            for (String variant : benchmark.variants()) {
+              Result result = suite.measure(benchmark, variant, numTerms, postingsLength);
+              if (Double.isNaN(baseline)) {
+                baseline = result.meanNanos;
+              }
+              final double relative = result.meanNanos / baseline;
+              System.out.println(String.format(Locale.ROOT, "%-14s %-18s %10d %8d %-9s %14.1f %12.1f %14.1f %8.2fx %10.1f",
+                  benchmark.name(), variant, numTerms, postingsLength, benchmark.unit(),
+                  result.meanNanos, result.stdDevNanos, result.minNanos, relative, result.bytesPerOp));
+              if (csvOut != null) {
+                csvOut.println(String.format(Locale.ROOT, "%s,%s,%d,%d,%s,%.1f,%.1f,%.1f,%.3f,%.1f",
+                    benchmark.name(), variant, numTerms, postingsLength, benchmark.unit(),
+                    result.meanNanos, result.stdDevNanos, result.minNanos, relative, result.bytesPerOp));
+              }
+            }
+          }
+        }
+      }
+    } finally {
+      IOUtils.close(csvOut);
+    }
+  }
+}
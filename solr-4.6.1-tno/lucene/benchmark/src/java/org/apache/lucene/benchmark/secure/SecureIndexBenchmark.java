@@ -0,0 +1,147 @@
+package org.apache.lucene.benchmark.secure;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.io.IOException;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+
+import org.apache.lucene.analysis.core.KeywordAnalyzer;
+import org.apache.lucene.codecs.lucene46.Lucene46Codec;
+import org.apache.lucene.codecs.secure.SecureCipherBlockPostingsFormat;
+import org.apache.lucene.codecs.secure.SecureCipherCodec;
+import org.apache.lucene.codecs.secure.SecureCipherUtil;
+import org.apache.lucene.codecs.secure.SecureCodec;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.FieldInfo.IndexOptions;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.IndexWriterConfig.OpenMode;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.Version;
+
+/**
+ * Base class of the benchmarks that compare the secure codecs to the default codec on an index
+ * with a single docs only field.
+ * <p>
+ * The index has <code>numTerms * postingsLength</code> documents and document <code>i</code>
+ * has term <code>i % numTerms</code>, so that every term has exactly
+ * <code>postingsLength</code> postings. The variants are:
+ * <ul>
+ *   <li><b>lucene46</b>: the field is not encrypted and uses the default postings format
+ *       of {@link Lucene46Codec} (Lucene41);</li>
+ *   <li><b>secureCipher</b>: the field is encrypted with {@link SecureCipherCodec}'s defaults;</li>
+ *   <li><b>secureCipherBlock</b>: the field is encrypted with
+ *       {@link SecureCipherBlockPostingsFormat} and block encrypted stored fields.</li>
+ * </ul>
+ */
+abstract class SecureIndexBenchmark extends SecureBenchmark {
+  static final String FIELD = "secureField";
+  static final String BASELINE = "lucene46";
+  static final String[] VARIANTS = { BASELINE, "secureCipher", "secureCipherBlock" };
+
+  private SecureCodec savedCodec;
+  protected boolean encrypted;
+  protected FieldType fieldType;
+
+  @Override
+  String[] variants() {
+    return VARIANTS;
+  }
+
+  /** Selects the codec of <code>variant</code> and adds the keys of the encrypted fields */
+  void setUpCodec(String variant, String... fields) throws Exception {
+    savedCodec = SecureCodec.getDefault();
+    encrypted = !BASELINE.equals(variant);
+    if ("secureCipherBlock".equals(variant)) {
+      SecureCodec.setDefault(new SecureCipherCodec(new SecureCipherBlockPostingsFormat(), true));
+    } else {
+      SecureCodec.setDefault(new SecureCipherCodec());
+    }
+    KeyGenerator kg = KeyGenerator.getInstance("AES");
+    kg.init(128);
+    for (String field : fields) {
+      SecretKey key = kg.generateKey();
+      SecureCipherUtil.addKey(field, key);
+    }
+    fieldType = fieldType(StringField.TYPE_NOT_STORED);
+    fieldType.setIndexOptions(IndexOptions.DOCS_ONLY);
+    fieldType.freeze();
+  }
+
+  /** Restores the codec and removes the keys added by {@link #setUpCodec} */
+  void tearDownCodec(String... fields) {
+    if (savedCodec != null) {
+      SecureCodec.setDefault(savedCodec);
+      savedCodec = null;
+    }
+    for (String field : fields) {
+      SecureCipherUtil.deleteKey(field);
+    }
+  }
+
+  /** Returns a copy of <code>type</code> that is encrypted in the secure variants; not frozen */
+  FieldType fieldType(FieldType type) {
+    FieldType ft = new FieldType(type);
+    ft.setEncrypted(encrypted);
+    return ft;
+  }
+
+  static BytesRef term(int t) {
+    return new BytesRef("t" + t);
+  }
+
+  static IndexWriter newWriter(Directory dir) throws IOException {
+    IndexWriterConfig iwc = new IndexWriterConfig(Version.LUCENE_46, new KeywordAnalyzer());
+    iwc.setCodec(new Lucene46Codec());
+    iwc.setOpenMode(OpenMode.CREATE);
+    iwc.setRAMBufferSizeMB(256);
+    return new IndexWriter(dir, iwc);
+  }
+
+  /** Indexes <code>numTerms * postingsLength</code> documents, document <code>i</code> has term <code>i % numTerms</code> */
+  void indexTerms(Directory dir, int numTerms, int postingsLength, boolean forceMerge) throws IOException {
+    IndexWriter iw = newWriter(dir);
+    Document doc = new Document();
+    Field field = new Field(FIELD, "", fieldType);
+    doc.add(field);
+    final long numDocs = (long) numTerms * postingsLength;
+    for (long i = 0; i < numDocs; i++) {
+      field.setStringValue("t" + (i % numTerms));
+      iw.addDocument(doc);
+    }
+    if (forceMerge) {
+      iw.forceMerge(1);
+    }
+    iw.close();
+  }
+
+  /** Returns the only segment of an index written with <code>forceMerge</code> */
+  static AtomicReader onlySegment(DirectoryReader reader) {
+    if (reader.leaves().size() != 1) {
+      throw new IllegalStateException("expected a single segment, got " + reader.leaves().size());
+    }
+    return reader.leaves().get(0).reader();
+  }
+}
@@ -0,0 +1,115 @@
+package org.apache.lucene.benchmark.secure;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.util.Random;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.store.RAMDirectory;
+
+/**
+ * Per document cost of loading stored fields: reads random documents of an index of
+ * <code>numTerms</code> documents with {@link #NUM_FIELDS} stored string fields each, which
+ * are encrypted in the secure variants. This is the cost paid for every hit returned to a user.
+ * <p>
+ * See {@link StoredFieldsDecryptBenchmark} for the cost of the decryption alone.
+ */
+class StoredFieldsBenchmark extends SecureIndexBenchmark {
+  static final int NUM_FIELDS = 5;
+  static final int NUM_READS = 10000;
+  static final String[] FIELDS = new String[NUM_FIELDS];
+  static {
+    for (int f = 0; f < NUM_FIELDS; f++) {
+      FIELDS[f] = "secureStored" + f;
+    }
+  }
+
+  private RAMDirectory dir;
+  private DirectoryReader reader;
+  private int[] docIDs;
+
+  @Override
+  String name() {
+    return "storedFields";
+  }
+
+  @Override
+  String unit() {
+    return "docs";
+  }
+
+  @Override
+  boolean usesPostingsLength() {
+    return false;
+  }
+
+  @Override
+  void setUp(String variant, int numTerms, int postingsLength, Random random) throws Exception {
+    setUpCodec(variant, FIELDS);
+    FieldType type = fieldType(StoredField.TYPE);
+    type.freeze();
+
+    dir = new RAMDirectory();
+    IndexWriter iw = newWriter(dir);
+    for (int i = 0; i < numTerms; i++) {
+      Document doc = new Document();
+      for (int f = 0; f < NUM_FIELDS; f++) {
+        doc.add(new Field(FIELDS[f], "value " + random.nextInt() + " of field " + f + " in document " + i, type));
+      }
+      iw.addDocument(doc);
+    }
+    iw.forceMerge(1);
+    iw.close();
+
+    reader = DirectoryReader.open(dir);
+    docIDs = new int[NUM_READS];
+    for (int i = 0; i < NUM_READS; i++) {
+      docIDs[i] = random.nextInt(numTerms);
+    }
+  }
+
+  @Override
+  long run() throws Exception {
+    long check = 0;
+    for (int docID : docIDs) {
+      check += reader.document(docID).get(FIELDS[0]).length();
+    }
+    if (check == 0) {
+      throw new IllegalStateException("no stored values");
+    }
+    return docIDs.length;
+  }
+
+  @Override
+  void tearDown() throws Exception {
+    if (reader != null) {
+      reader.close();
+      reader = null;
+    }
+    if (dir != null) {
+      dir.close();
+      dir = null;
+    }
+    docIDs = null;
+    tearDownCodec(FIELDS);
+  }
+}
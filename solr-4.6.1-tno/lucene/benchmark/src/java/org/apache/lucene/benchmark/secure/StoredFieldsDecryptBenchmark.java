@@ -0,0 +1,138 @@
+package org.apache.lucene.benchmark.secure;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Random;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+
+import org.apache.lucene.codecs.secure.SecureCipherPool;
+import org.apache.lucene.codecs.secure.SecureCipherStoredFieldsFormat;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.IOUtils;
+
+/**
+ * Measures the per-document cost of decrypting encrypted stored fields.
+ * <p>
+ * Every document has {@link #NUM_FIELDS} string fields, each encrypted with its own key,
+ * in the format written by the secure stored fields writer: IV, then
+ * AES/CBC(type byte, value). Two decode paths are compared:
+ * <ul>
+ *   <li><b>legacy</b>: one cipher per reader, re-initialized with the field key for
+ *       every value, decrypting into a new array and copying it to strip the type byte;</li>
+ *   <li><b>pooled</b>: a cipher per key from {@link SecureCipherPool}, decrypting into
+ *       a reused buffer and parsing the value straight out of it.</li>
+ * </ul>
+ * Usage: <code>java org.apache.lucene.benchmark.secure.StoredFieldsDecryptBenchmark [numDocs] [iterations]</code>
+ */
+public class StoredFieldsDecryptBenchmark {
+  static final int NUM_FIELDS = 5;
+  static final String ALGORITHM = SecureCipherStoredFieldsFormat.EncryptionAlgorithm;
+
+  private final SecretKey[] keys = new SecretKey[NUM_FIELDS];
+  private final byte[][][] values; // [doc][field] -> IV + ciphertext
+  private final Cipher legacyCipher;
+  private byte[] buffer = new byte[64];
+
+  StoredFieldsDecryptBenchmark(int numDocs, Random random) throws Exception {
+    KeyGenerator kg = KeyGenerator.getInstance("AES");
+    kg.init(128);
+    for (int f = 0; f < NUM_FIELDS; f++) {
+      keys[f] = kg.generateKey();
+    }
+    values = new byte[numDocs][NUM_FIELDS][];
+    Cipher cipher = Cipher.getInstance(ALGORITHM);
+    for (int d = 0; d < numDocs; d++) {
+      for (int f = 0; f < NUM_FIELDS; f++) {
+        byte[] utf8 = ("value " + random.nextInt() + " of field " + f).getBytes(IOUtils.CHARSET_UTF_8);
+        byte[] plain = new byte[utf8.length + 1];
+        plain[0] = (byte) SecureCipherStoredFieldsFormat.TYPE_STRING;
+        System.arraycopy(utf8, 0, plain, 1, utf8.length);
+        cipher.init(Cipher.ENCRYPT_MODE, keys[f]);
+        byte[] iv = cipher.getIV();
+        byte[] encrypted = cipher.doFinal(plain);
+        values[d][f] = new byte[iv.length + encrypted.length];
+        System.arraycopy(iv, 0, values[d][f], 0, iv.length);
+        System.arraycopy(encrypted, 0, values[d][f], iv.length, encrypted.length);
+      }
+    }
+    legacyCipher = Cipher.getInstance(ALGORITHM);
+  }
+
+  /** Decrypts every field of every document the way the reader used to; returns a checksum */
+  long legacy() throws Exception {
+    long sum = 0;
+    for (byte[][] doc : values) {
+      for (int f = 0; f < NUM_FIELDS; f++) {
+        byte[] bytes = doc[f];
+        legacyCipher.init(Cipher.DECRYPT_MODE, keys[f], new IvParameterSpec(bytes, 0, 16));
+        byte[] decryptedBytes = legacyCipher.doFinal(bytes, 16, bytes.length - 16);
+        byte[] plainBytes = new byte[decryptedBytes.length - 1];
+        System.arraycopy(decryptedBytes, 1, plainBytes, 0, decryptedBytes.length - 1);
+        sum += new String(plainBytes, IOUtils.CHARSET_UTF_8).length();
+      }
+    }
+    return sum;
+  }
+
+  /** Decrypts every field of every document with pooled ciphers and a reused buffer; returns a checksum */
+  long pooled() throws Exception {
+    long sum = 0;
+    for (byte[][] doc : values) {
+      for (int f = 0; f < NUM_FIELDS; f++) {
+        byte[] bytes = doc[f];
+        Cipher cipher = SecureCipherPool.get(ALGORITHM, keys[f]);
+        cipher.init(Cipher.DECRYPT_MODE, keys[f], new IvParameterSpec(bytes, 0, 16));
+        buffer = ArrayUtil.grow(buffer, cipher.getOutputSize(bytes.length - 16));
+        int length = cipher.doFinal(bytes, 16, bytes.length - 16, buffer, 0);
+        sum += new String(buffer, 1, length - 1, IOUtils.CHARSET_UTF_8).length();
+      }
+    }
+    return sum;
+  }
+
+  public static void main(String[] args) throws Exception {
+    final int numDocs = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+    final int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+    StoredFieldsDecryptBenchmark bench = new StoredFieldsDecryptBenchmark(numDocs, new Random(42));
+
+    // warm up both paths before measuring
+    long check = 0;
+    for (int i = 0; i < iterations / 4 + 1; i++) {
+      check += bench.legacy() + bench.pooled();
+    }
+
+    long legacyNanos = Long.MAX_VALUE, pooledNanos = Long.MAX_VALUE;
+    for (int i = 0; i < iterations; i++) {
+      long start = System.nanoTime();
+      check += bench.legacy();
+      legacyNanos = Math.min(legacyNanos, System.nanoTime() - start);
+      start = System.nanoTime();
+      check += bench.pooled();
+      pooledNanos = Math.min(pooledNanos, System.nanoTime() - start);
+    }
+
+    System.out.println("docs=" + numDocs + " fields/doc=" + NUM_FIELDS + " iterations=" + iterations + " (checksum " + check + ")");
+    System.out.println(String.format("legacy: %8.1f ns/doc", (double) legacyNanos / numDocs));
+    System.out.println(String.format("pooled: %8.1f ns/doc", (double) pooledNanos / numDocs));
+    System.out.println(String.format("speedup: %.2fx", (double) legacyNanos / pooledNanos));
+  }
+}
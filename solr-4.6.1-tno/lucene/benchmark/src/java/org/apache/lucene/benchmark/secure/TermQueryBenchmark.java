@@ -0,0 +1,141 @@
+package org.apache.lucene.benchmark.secure;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.util.Random;
+
+import org.apache.lucene.codecs.secure.SecureCipherPageCache;
+import org.apache.lucene.codecs.secure.SecureCipherPrefetcher;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TotalHitCountCollector;
+import org.apache.lucene.store.RAMDirectory;
+
+/**
+ * <b>termQuery</b>: the latency of a term query on an encrypted field of an index with
+ * {@link #NUM_SEGMENTS} segments, as between merges.
+ * <p>
+ * Both variants use a page cache, which is cleared before every query so that every query
+ * decrypts its postings. The <b>secureCipher</b> variant decrypts the segments one after the
+ * other on the searching thread; <b>securePrefetch</b> decrypts them in parallel with a
+ * {@link SecureCipherPrefetcher} of one thread per available processor, so its speedup
+ * depends on the number of cores.
+ */
+class TermQueryBenchmark extends SecureIndexBenchmark {
+  static final int NUM_SEGMENTS = 30;
+  static final int NUM_QUERIES = 20;
+  static final String[] VARIANTS = { "secureCipher", "securePrefetch" };
+  // large enough for the postings of a query in all segments
+  static final long CACHE_BYTES = 256L * 1024 * 1024;
+
+  private RAMDirectory dir;
+  private DirectoryReader reader;
+  private IndexSearcher searcher;
+  private TermQuery[] queries;
+  private SecureCipherPrefetcher prefetcher;
+  private SecureCipherPageCache savedCache;
+
+  @Override
+  String name() {
+    return "termQuery";
+  }
+
+  @Override
+  String unit() {
+    return "queries";
+  }
+
+  @Override
+  String[] variants() {
+    return VARIANTS;
+  }
+
+  @Override
+  void setUp(String variant, int numTerms, int postingsLength, Random random) throws Exception {
+    setUpCodec(variant, FIELD);
+    dir = new RAMDirectory();
+    IndexWriter iw = newWriter(dir);
+    Document doc = new Document();
+    Field field = new Field(FIELD, "", fieldType);
+    doc.add(field);
+    final long numDocs = (long) numTerms * postingsLength;
+    final long docsPerSegment = Math.max(1, numDocs / NUM_SEGMENTS);
+    for (long i = 0; i < numDocs; i++) {
+      field.setStringValue("t" + (i % numTerms));
+      iw.addDocument(doc);
+      if ((i + 1) % docsPerSegment == 0) {
+        iw.commit();
+      }
+    }
+    iw.close();
+    reader = DirectoryReader.open(dir);
+    searcher = new IndexSearcher(reader);
+
+    savedCache = SecureCipherPageCache.getDefault();
+    SecureCipherPageCache.setDefault(new SecureCipherPageCache(CACHE_BYTES));
+    if ("securePrefetch".equals(variant)) {
+      prefetcher = new SecureCipherPrefetcher(Runtime.getRuntime().availableProcessors());
+      searcher.setEncryptedTermPrefetcher(prefetcher);
+    }
+
+    queries = new TermQuery[NUM_QUERIES];
+    for (int i = 0; i < NUM_QUERIES; i++) {
+      queries[i] = new TermQuery(new Term(FIELD, term(random.nextInt(numTerms))));
+    }
+  }
+
+  @Override
+  long run() throws Exception {
+    long hits = 0;
+    for (TermQuery query : queries) {
+      SecureCipherPageCache.clearDefault();
+      TotalHitCountCollector collector = new TotalHitCountCollector();
+      searcher.search(query, collector);
+      hits += collector.getTotalHits();
+    }
+    if (hits == 0) {
+      throw new IllegalStateException("no hits");
+    }
+    return queries.length;
+  }
+
+  @Override
+  void tearDown() throws Exception {
+    if (prefetcher != null) {
+      prefetcher.close();
+      prefetcher = null;
+    }
+    SecureCipherPageCache.setDefault(savedCache);
+    savedCache = null;
+    if (reader != null) {
+      reader.close();
+      reader = null;
+    }
+    if (dir != null) {
+      dir.close();
+      dir = null;
+    }
+    searcher = null;
+    queries = null;
+    tearDownCodec(FIELD);
+  }
+}
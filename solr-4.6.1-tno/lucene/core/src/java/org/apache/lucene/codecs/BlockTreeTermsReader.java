@@ -87,8 +87,6 @@ import org.apache.lucene.util.fst.Util;
  */
 
 public class BlockTreeTermsReader extends FieldsProducer {
-  private static long StartTime = System.currentTimeMillis();
-  private final String segmentName;
 
   // Open input to the main terms dict file (_X.tib)
   private final IndexInput in;
@@ -116,8 +114,6 @@ public class BlockTreeTermsReader extends FieldsProducer {
                               PostingsReaderBase postingsReader, IOContext ioContext,
                               String segmentSuffix, int indexDivisor)
     throws IOException {
-    segmentName = info.name;
-    //System.out.print("Dbg: " + (System.currentTimeMillis() - StartTime) + " ms: " + segmentName + ": BlockTreeTermsReader: const: start\r\n");
 
     this.postingsReader = postingsReader;
 
@@ -192,7 +188,6 @@ public class BlockTreeTermsReader extends FieldsProducer {
         IOUtils.closeWhileHandlingException(indexIn, this);
       }
     }
-    //System.out.print("Dbg: " + (System.currentTimeMillis() - StartTime) + " ms: " + info.name + ": BlockTreeTermsReader: const: end\r\n");
   }
 
   /** Reads terms file header. */
@@ -250,11 +245,9 @@ public class BlockTreeTermsReader extends FieldsProducer {
 
   @Override
   public Terms terms(String field) throws IOException {
-    //System.out.print("Dbg: " + (System.currentTimeMillis()-StartTime) + " ms: " + segmentName + ": BlockTreeTermsReader: terms: start " + field + "\r\n");
     Terms retVal = null;
     assert field != null;
     retVal = fields.get(field);
-    //System.out.print("Dbg: " + (System.currentTimeMillis()-StartTime) + " ms: " + segmentName + ": BlockTreeTermsReader: terms: end " + field + "\r\n");
     return retVal;
   }
 
@@ -468,7 +461,6 @@ public class BlockTreeTermsReader extends FieldsProducer {
     //private boolean DEBUG;
 
     FieldReader(FieldInfo fieldInfo, long numTerms, BytesRef rootCode, long sumTotalTermFreq, long sumDocFreq, int docCount, long indexStartFP, IndexInput indexIn) throws IOException {
-      //System.out.print("Dbg: " + (System.currentTimeMillis()-StartTime) + " ms: " + segmentName + ": FieldReader: cons: start\r\n");
 
       assert numTerms > 0;
       this.fieldInfo = fieldInfo;
@@ -503,7 +495,17 @@ public class BlockTreeTermsReader extends FieldsProducer {
       } else {
         index = null;
       }
-      //System.out.print("Dbg: " + (System.currentTimeMillis()-StartTime) + " ms: " + segmentName + ": FieldReader: cons: end\r\n");
+    }
+
+    /** Returns the field of these terms. */
+    public FieldInfo getFieldInfo() {
+      return fieldInfo;
+    }
+
+    /** Returns the reader of the postings of these terms.
+     *  @lucene.internal */
+    public PostingsReaderBase getPostingsReader() {
+      return postingsReader;
     }
 
     /** For debugging -- used by CheckIndex too*/
@@ -539,9 +541,7 @@ public class BlockTreeTermsReader extends FieldsProducer {
 
     @Override
     public TermsEnum iterator(TermsEnum reuse) throws IOException {
-      //System.out.print("Dbg: " + (System.currentTimeMillis()-StartTime) + " ms: " + segmentName + ": FieldReader: iterator: start " + reuse + "\r\n");
       TermsEnum retVal = new SegmentTermsEnum();
-      //System.out.print("Dbg: " + (System.currentTimeMillis()-StartTime) + " ms: " + segmentName + ": FieldReader: iterator: end " + reuse + "\r\n");
       return retVal;
     }
 
@@ -841,7 +841,6 @@ public class BlockTreeTermsReader extends FieldsProducer {
       // TODO: in some cases we can filter by length?  eg
       // regexp foo*bar must be at least length 6 bytes
       public IntersectEnum(CompiledAutomaton compiled, BytesRef startTerm) throws IOException {
-        //System.out.print("Dbg: " + (System.currentTimeMillis()-StartTime) + " ms: " + segmentName + ": IntersectEnum: cons: start\r\n");
         // if (DEBUG) {
         //   System.out.println("\nintEnum.init seg=" + segment + " commonSuffix=" + brToString(compiled.commonSuffixRef));
         // }
@@ -889,7 +888,6 @@ public class BlockTreeTermsReader extends FieldsProducer {
         if (startTerm != null) {
           seekToStartTerm(startTerm);
         }
-        //System.out.print("Dbg: " + (System.currentTimeMillis()-StartTime) + " ms: " + segmentName + ": IntersectEnum: cons: end\r\n");
       }
 
       // only for assert:
@@ -985,10 +983,8 @@ public class BlockTreeTermsReader extends FieldsProducer {
 
       @Override
       public DocsEnum docs(Bits skipDocs, DocsEnum reuse, int flags) throws IOException {
-        //System.out.print("Dbg: " + (System.currentTimeMillis()-StartTime) + " ms: " + segmentName + ": IntersectEnum: docs: start " + term().utf8ToString() + "\r\n");
         currentFrame.decodeMetaData();
         DocsEnum retVal = postingsReader.docs(fieldInfo, currentFrame.termState, skipDocs, reuse, flags);
-        //System.out.print("Dbg: " + (System.currentTimeMillis()-StartTime) + " ms: " + segmentName + ": IntersectEnum: docs: end " + term().utf8ToString() + "\r\n");
         return retVal;
       }
 
@@ -999,10 +995,8 @@ public class BlockTreeTermsReader extends FieldsProducer {
           return null;
         }
 
-        //System.out.print("Dbg: " + (System.currentTimeMillis()-StartTime) + " ms: " + segmentName + ": IntersectEnum: docsAndPositions: start\r\n");
         currentFrame.decodeMetaData();
         DocsAndPositionsEnum retVal = postingsReader.docsAndPositions(fieldInfo, currentFrame.termState, skipDocs, reuse, flags);
-        //System.out.print("Dbg: " + (System.currentTimeMillis()-StartTime) + " ms: " + segmentName + ": IntersectEnum: docsAndPositions: start\r\n");
         return retVal;
       }
 
@@ -1096,7 +1090,6 @@ public class BlockTreeTermsReader extends FieldsProducer {
 
       @Override
       public BytesRef next() throws IOException {
-        //System.out.print("Dbg: " + (System.currentTimeMillis()-StartTime) + " ms: " + segmentName + ": IntersectEnum: next: start\r\n");
         BytesRef retVal = null;
 
         // if (DEBUG) {
@@ -1243,7 +1236,6 @@ public class BlockTreeTermsReader extends FieldsProducer {
             //System.out.println("    no s=" + state);
           }
         }
-        //System.out.print("Dbg: " + (System.currentTimeMillis()-StartTime) + " ms: " + segmentName + ": IntersectEnum: next: end\r\n");
         return retVal;
       }
 
@@ -1309,7 +1301,6 @@ public class BlockTreeTermsReader extends FieldsProducer {
           new FST.Arc[1];
 
       public SegmentTermsEnum() throws IOException {
-        //System.out.print("Dbg: " + (System.currentTimeMillis()-StartTime) + " ms: " + segmentName + ": SegmentTermsEnum: cons: start\r\n");
         //if (DEBUG) System.out.println("BTTR.init seg=" + segment);
         stack = new Frame[0];
         
@@ -1348,7 +1339,6 @@ public class BlockTreeTermsReader extends FieldsProducer {
 
         //System.out.println();
         // computeBlockStats().print(System.out);
-        //System.out.print("Dbg: " + (System.currentTimeMillis()-StartTime) + " ms: " + segmentName + ": SegmentTermsEnum: cons: end\r\n");
       }
       
       // Not private to avoid synthetic access$NNN methods
@@ -1543,7 +1533,6 @@ public class BlockTreeTermsReader extends FieldsProducer {
 
       @Override
       public boolean seekExact(final BytesRef target) throws IOException {
-        //System.out.print("Dbg: " + (System.currentTimeMillis()-StartTime) + " ms: " + segmentName + ": SegmentTermsEnum: seekExact: start " + target.utf8ToString() + "\r\n");
 
         if (index == null) {
           throw new IllegalStateException("terms index was not loaded");
@@ -1669,7 +1658,6 @@ public class BlockTreeTermsReader extends FieldsProducer {
               // if (DEBUG) {
               //   System.out.println("  target is same as current; return true");
               // }
-              //System.out.print("Dbg: " + (System.currentTimeMillis()-StartTime) + " ms: " + segmentName + ": SegmentTermsEnum: seekExact: end " + target.utf8ToString() + "\r\n");
               return true;
             } else {
               // if (DEBUG) {
@@ -1732,7 +1720,6 @@ public class BlockTreeTermsReader extends FieldsProducer {
               // if (DEBUG) {
               //   System.out.println("  FAST NOT_FOUND term=" + brToString(term));
               // }
-              //System.out.print("Dbg: " + (System.currentTimeMillis()-StartTime) + " ms: " + segmentName + ": SegmentTermsEnum: seekExact: end " + target.utf8ToString() + "\r\n");
               return false;
             }
 
@@ -1743,13 +1730,11 @@ public class BlockTreeTermsReader extends FieldsProducer {
               // if (DEBUG) {
               //   System.out.println("  return FOUND term=" + term.utf8ToString() + " " + term);
               // }
-              System.out.print("Dbg: " + (System.currentTimeMillis()-StartTime) + " ms: " + segmentName + ": SegmentTermsEnum: seekExact: end " + target.utf8ToString() + "\r\n");
               return true;
             } else {
               // if (DEBUG) {
               //   System.out.println("  got " + result + "; return NOT_FOUND term=" + brToString(term));
               // }
-              //System.out.print("Dbg: " + (System.currentTimeMillis()-StartTime) + " ms: " + segmentName + ": SegmentTermsEnum: seekExact: end " + target.utf8ToString() + "\r\n");
               return false;
             }
           } else {
@@ -1786,7 +1771,6 @@ public class BlockTreeTermsReader extends FieldsProducer {
           // if (DEBUG) {
           //   System.out.println("  FAST NOT_FOUND term=" + brToString(term));
           // }
-          //System.out.print("Dbg: " + (System.currentTimeMillis()-StartTime) + " ms: " + segmentName + ": SegmentTermsEnum: seekExact: end " + target.utf8ToString() + "\r\n");
           return false;
         }
 
@@ -1797,14 +1781,12 @@ public class BlockTreeTermsReader extends FieldsProducer {
           // if (DEBUG) {
           //   System.out.println("  return FOUND term=" + term.utf8ToString() + " " + term);
           // }
-          //System.out.print("Dbg: " + (System.currentTimeMillis()-StartTime) + " ms: " + segmentName + ": SegmentTermsEnum: seekExact: end " + target.utf8ToString() + "\r\n");
           return true;
         } else {
           // if (DEBUG) {
           //   System.out.println("  got result " + result + "; return NOT_FOUND term=" + term.utf8ToString());
           // }
 
-          //System.out.print("Dbg: " + (System.currentTimeMillis()-StartTime) + " ms: " + segmentName + ": SegmentTermsEnum: seekExact: end " + target.utf8ToString() + "\r\n");
           return false;
         }
       }
@@ -1815,7 +1797,6 @@ public class BlockTreeTermsReader extends FieldsProducer {
           throw new IllegalStateException("terms index was not loaded");
         }
 
-        //System.out.print("Dbg: " + (System.currentTimeMillis()-StartTime) + " ms: " + segmentName + ": SegmentTermsEnum: seekCeil: start " + target.utf8ToString() + "\r\n");
         if (term.bytes.length <= target.length) {
           term.bytes = ArrayUtil.grow(term.bytes, 1+target.length);
         }
@@ -1936,7 +1917,6 @@ public class BlockTreeTermsReader extends FieldsProducer {
               //if (DEBUG) {
               //System.out.println("  target is same as current; return FOUND");
               //}
-              //System.out.print("Dbg: " + (System.currentTimeMillis()-StartTime) + " ms: " + segmentName + ": SegmentTermsEnum: seekCeil: end " + target.utf8ToString() + "\r\n");
               return SeekStatus.FOUND;
             } else {
               //if (DEBUG) {
@@ -2000,20 +1980,17 @@ public class BlockTreeTermsReader extends FieldsProducer {
                 //if (DEBUG) {
                 //System.out.println("  return NOT_FOUND term=" + brToString(term) + " " + term);
                 //}
-                //System.out.print("Dbg: " + (System.currentTimeMillis()-StartTime) + " ms: " + segmentName + ": SegmentTermsEnum: seekCeil: end " + target.utf8ToString() + "\r\n");
                 return SeekStatus.NOT_FOUND;
               } else {
                 //if (DEBUG) {
                 //System.out.println("  return END");
                 //}
-                //System.out.print("Dbg: " + (System.currentTimeMillis()-StartTime) + " ms: " + segmentName + ": SegmentTermsEnum: seekCeil: end " + target.utf8ToString() + "\r\n");
                 return SeekStatus.END;
               }
             } else {
               //if (DEBUG) {
               //System.out.println("  return " + result + " term=" + brToString(term) + " " + term);
               //}
-              //System.out.print("Dbg: " + (System.currentTimeMillis()-StartTime) + " ms: " + segmentName + ": SegmentTermsEnum: seekCeil: end " + target.utf8ToString() + "\r\n");
               return result;
             }
           } else {
@@ -2055,17 +2032,14 @@ public class BlockTreeTermsReader extends FieldsProducer {
             //if (DEBUG) {
             //System.out.println("  return NOT_FOUND term=" + term.utf8ToString() + " " + term);
             //}
-            //System.out.print("Dbg: " + (System.currentTimeMillis()-StartTime) + " ms: " + segmentName + ": SegmentTermsEnum: seekCeil: end " + target.utf8ToString() + "\r\n");
             return SeekStatus.NOT_FOUND;
           } else {
             //if (DEBUG) {
             //System.out.println("  return END");
             //}
-            //System.out.print("Dbg: " + (System.currentTimeMillis()-StartTime) + " ms: " + segmentName + ": SegmentTermsEnum: seekCeil: end " + target.utf8ToString() + "\r\n");
             return SeekStatus.END;
           }
         } else {
-          //System.out.print("Dbg: " + (System.currentTimeMillis()-StartTime) + " ms: " + segmentName + ": SegmentTermsEnum: seekCeil: end " + target.utf8ToString() + "\r\n");
           return result;
         }
       }
@@ -2123,7 +2097,6 @@ public class BlockTreeTermsReader extends FieldsProducer {
          decode all metadata up to the current term. */
       @Override
       public BytesRef next() throws IOException {
-        //System.out.print("Dbg: " + (System.currentTimeMillis()-StartTime) + " ms: " + segmentName + ": SegmentTermsEnum: next: start\r\n");
 
         if (in == null) {
           // Fresh TermsEnum; seek to first term:
@@ -2172,7 +2145,6 @@ public class BlockTreeTermsReader extends FieldsProducer {
               validIndexPrefix = 0;
               currentFrame.rewind();
               termExists = false;
-              //System.out.print("Dbg: " + (System.currentTimeMillis()-StartTime) + " ms: " + segmentName + ": SegmentTermsEnum: next: end\r\n");
               return null;
             }
             final long lastFP = currentFrame.fpOrig;
@@ -2208,7 +2180,6 @@ public class BlockTreeTermsReader extends FieldsProducer {
             currentFrame.loadBlock();
           } else {
             //if (DEBUG) System.out.println("  return term=" + term.utf8ToString() + " " + term + " currentFrame.ord=" + currentFrame.ord);
-            //System.out.print("Dbg: " + (System.currentTimeMillis()-StartTime) + " ms: " + segmentName + ": SegmentTermsEnum: next: end\r\n");
             return term;
           }
         }
@@ -2238,7 +2209,6 @@ public class BlockTreeTermsReader extends FieldsProducer {
 
       @Override
       public DocsEnum docs(Bits skipDocs, DocsEnum reuse, int flags) throws IOException {
-        //System.out.print("Dbg: " + (System.currentTimeMillis()-StartTime) + " ms: " + segmentName + ": SegmentTermsEnum: docs: start " + term().utf8ToString() + "\r\n");
         assert !eof;
         //if (DEBUG) {
         //System.out.println("BTTR.docs seg=" + segment);
@@ -2248,7 +2218,6 @@ public class BlockTreeTermsReader extends FieldsProducer {
         //System.out.println("  state=" + currentFrame.state);
         //}
         DocsEnum retVal = postingsReader.docs(fieldInfo, currentFrame.state, skipDocs, reuse, flags);
-        //System.out.print("Dbg: " + (System.currentTimeMillis()-StartTime) + " ms: " + segmentName + ": SegmentTermsEnum: docs: end " + term().utf8ToString() + "\r\n");
         return retVal;
       }
 
@@ -2259,11 +2228,9 @@ public class BlockTreeTermsReader extends FieldsProducer {
           return null;
         }
 
-        //System.out.print("Dbg: " + (System.currentTimeMillis()-StartTime) + " ms: " + segmentName + ": SegmentTermsEnum: docsAndPositions: start " + term().utf8ToString() + "\r\n");
         assert !eof;
         currentFrame.decodeMetaData();
         DocsAndPositionsEnum retVal = postingsReader.docsAndPositions(fieldInfo, currentFrame.state, skipDocs, reuse, flags);
-        //System.out.print("Dbg: " + (System.currentTimeMillis()-StartTime) + " ms: " + segmentName + ": SegmentTermsEnum: docsAndPositions: end " + term().utf8ToString() + "\r\n");
         return retVal;
       }
 
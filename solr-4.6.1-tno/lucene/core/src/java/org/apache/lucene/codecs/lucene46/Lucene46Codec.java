@@ -60,7 +60,7 @@ public class Lucene46Codec extends Codec {
     @Override
     public PostingsFormat getPostingsFormatForField(FieldInfo field) {
       if (field.isEncrypted())
-        return SecureCodec.getDefault().postingsFormat();
+        return SecureCodec.getDefault().postingsFormat(field);
       else
         return getPostingsFormatForField(field.name);
     }
@@ -72,6 +72,14 @@ public class Lucene46Codec extends Codec {
   };
   
   private final DocValuesFormat docValuesFormat = new PerFieldDocValuesFormat() {
+    @Override
+    public DocValuesFormat getDocValuesFormatForField(FieldInfo field) {
+      if (field.isEncrypted())
+        return SecureCodec.getDefault().secureDocValuesFormat();
+      else
+        return getDocValuesFormatForField(field.name);
+    }
+
     @Override
     public DocValuesFormat getDocValuesFormatForField(String field) {
       return Lucene46Codec.this.getDocValuesFormatForField(field);
@@ -131,7 +131,7 @@ public abstract class PerFieldDocValuesFormat extends DocValuesFormat {
         }
       }
       if (format == null) {
-        format = getDocValuesFormatForField(field.name);
+        format = getDocValuesFormatForField(field);
       }
       if (format == null) {
         throw new IllegalStateException("invalid null DocValuesFormat for field=\"" + field.name + "\"");
@@ -317,6 +317,16 @@ public abstract class PerFieldDocValuesFormat extends DocValuesFormat {
     return new FieldsReader(state);
   }
 
+  /**
+   * Returns the doc values format that should be used for writing
+   * new segments of <code>field</code>.
+   * <p>
+   * The field to format mapping is written to the index, so
+   * this method is only invoked when writing, not when reading. */
+  public DocValuesFormat getDocValuesFormatForField(FieldInfo field) {
+    return getDocValuesFormatForField(field.name);
+  }
+
   /** 
    * Returns the doc values format that should be used for writing 
    * new segments of <code>field</code>.
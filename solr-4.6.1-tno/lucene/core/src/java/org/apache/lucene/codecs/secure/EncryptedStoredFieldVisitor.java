@@ -17,28 +17,26 @@ package org.apache.lucene.codecs.secure;
  * limitations under the License.
  */
 
-import org.apache.lucene.index.FieldInfos;
-import org.apache.lucene.index.SegmentInfo;
-import org.apache.lucene.store.Directory;
-import org.apache.lucene.store.IOContext;
-
 import java.io.IOException;
 
+import org.apache.lucene.index.StoredFieldVisitor;
+
 /**
- * plain text stored fields format.
+ * A {@link StoredFieldVisitor} that receives encrypted fields still encrypted.
  * <p>
- * <b><font color="red">FOR RECREATIONAL USE ONLY</font></B>
+ * Secure stored fields readers that support it call {@link #encryptedField} for every
+ * encrypted field the visitor {@link #needsField needs}, instead of decrypting the field
+ * and calling the typed methods. Readers that do not support it decrypt as usual, so a
+ * visitor must not assume that it never receives the plaintext of an encrypted field.
+ *
  * @lucene.experimental
  */
-public class SecureSimpleTextCipherStoredFieldsFormat extends SecureStoredFieldsFormat {
-
-  @Override
-  public SecureStoredFieldsReader fieldsReader(Directory directory, SegmentInfo si, FieldInfos fn, IOContext context) throws IOException {;
-    return new SecureSimpleTextCipherStoredFieldsReader(directory, si, fn, context);
+public abstract class EncryptedStoredFieldVisitor extends StoredFieldVisitor {
+  /** Sole constructor. (For invocation by subclass
+   *  constructors, typically implicit.) */
+  protected EncryptedStoredFieldVisitor() {
   }
 
-  @Override
-  public SecureStoredFieldsWriter fieldsWriter(Directory directory, SegmentInfo si, IOContext context) throws IOException {
-    return new SecureSimpleTextCipherStoredFieldsWriter(directory, si.name, context);
-  }
+  /** Process the still encrypted values of an encrypted field */
+  public abstract void encryptedField(EncryptedStoredValue value) throws IOException;
 }
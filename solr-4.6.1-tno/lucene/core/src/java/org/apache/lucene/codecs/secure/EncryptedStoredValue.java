@@ -0,0 +1,61 @@
+package org.apache.lucene.codecs.secure;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+
+import javax.crypto.SecretKey;
+
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.StoredFieldVisitor;
+
+/**
+ * The values of an encrypted stored field of one document, as read from the index and
+ * not decrypted yet.
+ * <p>
+ * Secure stored fields readers hand these to an {@link EncryptedStoredFieldVisitor}
+ * instead of decrypting, so that a caller can keep the ciphertext around, for instance
+ * in a document cache, and only decrypt it later with the key that is in use then.
+ * Values are immutable and can be decrypted any number of times, by any thread.
+ *
+ * @lucene.experimental
+ */
+public abstract class EncryptedStoredValue {
+  private final FieldInfo fieldInfo;
+
+  /** Sole constructor. (For invocation by subclass
+   *  constructors, typically implicit.) */
+  protected EncryptedStoredValue(FieldInfo fieldInfo) {
+    this.fieldInfo = fieldInfo;
+  }
+
+  /** Returns the field the values belong to */
+  public FieldInfo getFieldInfo() {
+    return fieldInfo;
+  }
+
+  /**
+   * Decrypts the values with <code>key</code> and visits them, the way the reader that
+   * created this value visits the field when it decrypts it itself. A <code>null</code>
+   * key is handled like a missing key by that reader.
+   */
+  public abstract void decrypt(SecretKey key, StoredFieldVisitor visitor) throws IOException;
+
+  /** Returns approximate RAM bytes used */
+  public abstract long ramBytesUsed();
+}
@@ -0,0 +1,101 @@
+package org.apache.lucene.codecs.secure;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.lucene.codecs.Codec;
+import org.apache.lucene.index.FieldInfos;
+import org.apache.lucene.index.IndexFileNames;
+import org.apache.lucene.index.SegmentInfo;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+
+import java.io.IOException;
+
+/**
+ * Binary format for encrypted stored fields, with an index of document start pointers.
+ * <p>
+ * Non encrypted fields are written by the stored fields format of the wrapped codec.
+ * Every value is encrypted on its own, exactly like {@link SecureCipherStoredFieldsFormat}
+ * does: AES/CBC under the field key and a fresh IV, over the type byte followed by the
+ * value. Values are framed with vInts, and an index file holds the start pointer of
+ * every document, so loading a document is a single seek rather than a scan of the
+ * file.
+ * <p>
+ * File format of the <code>.sfd.enc</code> file:
+ * <ul>
+ *   <li>File: Header, Document<sup>NumDocs</sup></li>
+ *   <li>Header: {@link org.apache.lucene.codecs.CodecUtil#writeHeader CodecHeader}</li>
+ *   <li>Document: NumFields (vInt), Field<sup>NumFields</sup></li>
+ *   <li>Field: FieldNumber (vInt), Length (vInt), IV (16 bytes) and Ciphertext (Length bytes together)</li>
+ *   <li>Ciphertext decrypts to: Type (byte), then the UTF-8 bytes of strings, the bytes of
+ *       binary values, an int for ints and floats, a long for longs and doubles</li>
+ * </ul>
+ * File format of the <code>.sfx.enc</code> file:
+ * <ul>
+ *   <li>File: Header, StartPointer (long)<sup>NumDocs</sup></li>
+ * </ul>
+ * Segments written by {@link SecureCipherStoredFieldsFormat} or {@link SecureCipherBlockStoredFieldsFormat}
+ * have no <code>.sfd.enc</code> file; the formats detect which one wrote a segment and open
+ * its reader, so they can be used on the same index.
+ *
+ * @lucene.experimental
+ */
+public class SecureCipherBinaryStoredFieldsFormat extends SecureStoredFieldsFormat {
+  public static final String EncryptionAlgorithm = SecureCipherStoredFieldsFormat.EncryptionAlgorithm;
+
+  /** Extension of the encrypted values file */
+  public static final String FIELDS_EXTENSION = "sfd.enc";
+  /** Extension of the document start pointers file */
+  public static final String FIELDS_INDEX_EXTENSION = "sfx.enc";
+
+  static final String CODEC_NAME_DAT = "SecureCipherBinaryStoredFieldsData";
+  static final String CODEC_NAME_IDX = "SecureCipherBinaryStoredFieldsIndex";
+  static final int VERSION_START = 0;
+  static final int VERSION_CURRENT = VERSION_START;
+
+  static final int IV_LENGTH = 16;
+
+  private final Codec codec;
+
+  public SecureCipherBinaryStoredFieldsFormat(Codec codec) {
+    this.codec = codec;
+  }
+
+  static String getFieldsFileName(String segment) {
+    return IndexFileNames.segmentFileName(segment, "", FIELDS_EXTENSION);
+  }
+
+  static String getFieldsIndexFileName(String segment) {
+    return IndexFileNames.segmentFileName(segment, "", FIELDS_INDEX_EXTENSION);
+  }
+
+  /** Returns true if the encrypted stored fields of <code>si</code> were written by this format */
+  static boolean hasBinaryFields(Directory directory, SegmentInfo si) throws IOException {
+    return directory.fileExists(getFieldsFileName(si.name));
+  }
+
+  @Override
+  public SecureStoredFieldsReader fieldsReader(Directory directory, SegmentInfo si, FieldInfos fn, IOContext context) throws IOException {
+    return SecureCipherStoredFieldsFormat.openReader(codec, directory, si, fn, context);
+  }
+
+  @Override
+  public SecureStoredFieldsWriter fieldsWriter(Directory directory, SegmentInfo si, IOContext context) throws IOException {
+    return new SecureCipherBinaryStoredFieldsWriter(codec, directory, si, context);
+  }
+}
@@ -0,0 +1,162 @@
+package org.apache.lucene.codecs.secure;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.lucene.codecs.Codec;
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.codecs.StoredFieldsReader;
+import org.apache.lucene.index.CorruptIndexException;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.FieldInfos;
+import org.apache.lucene.index.SegmentInfo;
+import org.apache.lucene.index.StoredFieldVisitor;
+import org.apache.lucene.store.AlreadyClosedException;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.util.IOUtils;
+
+import java.io.IOException;
+
+import static org.apache.lucene.codecs.secure.SecureCipherBinaryStoredFieldsFormat.CODEC_NAME_DAT;
+import static org.apache.lucene.codecs.secure.SecureCipherBinaryStoredFieldsFormat.CODEC_NAME_IDX;
+import static org.apache.lucene.codecs.secure.SecureCipherBinaryStoredFieldsFormat.VERSION_CURRENT;
+import static org.apache.lucene.codecs.secure.SecureCipherBinaryStoredFieldsFormat.VERSION_START;
+
+/**
+ * Reads encrypted stored fields, see {@link SecureCipherBinaryStoredFieldsFormat}.
+ * <p>
+ * The non encrypted fields of a document are visited first, by the reader of the wrapped
+ * codec, then its encrypted fields.
+ * @lucene.experimental
+ */
+public class SecureCipherBinaryStoredFieldsReader extends SecureStoredFieldsReader {
+  private final FieldInfos fieldInfos;
+  private final StoredFieldsReader reader;
+  private final IndexInput fieldsStream;
+  private final IndexInput indexStream;
+  private final long indexStart;
+  private final int numDocs;
+  private boolean closed;
+
+  // plaintext of the last decrypted field; readers are cloned per thread, so this is not shared
+  private byte[] decrypted = new byte[64];
+
+  public SecureCipherBinaryStoredFieldsReader(Codec codec, Directory directory, SegmentInfo si, FieldInfos fn, IOContext context) throws IOException {
+    this.fieldInfos = fn;
+    this.numDocs = si.getDocCount();
+    boolean success = false;
+    StoredFieldsReader reader = null;
+    IndexInput fieldsStream = null;
+    IndexInput indexStream = null;
+    try {
+      reader = codec.storedFieldsFormat().fieldsReader(directory, si, fn, context);
+      fieldsStream = directory.openInput(SecureCipherBinaryStoredFieldsFormat.getFieldsFileName(si.name), context);
+      indexStream = directory.openInput(SecureCipherBinaryStoredFieldsFormat.getFieldsIndexFileName(si.name), context);
+      CodecUtil.checkHeader(fieldsStream, CODEC_NAME_DAT, VERSION_START, VERSION_CURRENT);
+      CodecUtil.checkHeader(indexStream, CODEC_NAME_IDX, VERSION_START, VERSION_CURRENT);
+      indexStart = indexStream.getFilePointer();
+      final long indexLength = indexStream.length() - indexStart;
+      if (indexLength != 8L * numDocs) {
+        throw new CorruptIndexException("doc counts differ for segment " + si.name + ": index has " + indexLength / 8
+            + " but segmentInfo shows " + numDocs + " (resource=" + indexStream + ")");
+      }
+      this.reader = reader;
+      this.fieldsStream = fieldsStream;
+      this.indexStream = indexStream;
+      success = true;
+    } finally {
+      if (!success) {
+        IOUtils.closeWhileHandlingException(reader, fieldsStream, indexStream);
+      }
+    }
+  }
+
+  // used by clone
+  private SecureCipherBinaryStoredFieldsReader(SecureCipherBinaryStoredFieldsReader other) {
+    this.fieldInfos = other.fieldInfos;
+    this.reader = other.reader.clone();
+    this.fieldsStream = other.fieldsStream.clone();
+    this.indexStream = other.indexStream.clone();
+    this.indexStart = other.indexStart;
+    this.numDocs = other.numDocs;
+  }
+
+  /** Returns the reader of the non encrypted fields */
+  public StoredFieldsReader getStoredFieldsReader() { return reader; }
+
+  private void ensureOpen() throws AlreadyClosedException {
+    if (closed) {
+      throw new AlreadyClosedException("this SecureCipherBinaryStoredFieldsReader is closed");
+    }
+  }
+
+  @Override
+  public void visitDocument(int n, StoredFieldVisitor visitor) throws IOException {
+    ensureOpen();
+    final SecureCipherBlockStoredFieldsReader.StopTrackingVisitor tracking = new SecureCipherBlockStoredFieldsReader.StopTrackingVisitor(visitor);
+    reader.visitDocument(n, tracking);
+    if (tracking.stopped) {
+      return;
+    }
+
+    indexStream.seek(indexStart + 8L * n);
+    fieldsStream.seek(indexStream.readLong());
+
+    final int numFields = fieldsStream.readVInt();
+    for (int i = 0; i < numFields; i++) {
+      final FieldInfo fieldInfo = fieldInfos.fieldInfo(fieldsStream.readVInt());
+      final int length = fieldsStream.readVInt();
+      switch (visitor.needsField(fieldInfo)) {
+        case YES:
+          final byte[] bytes = new byte[length];
+          fieldsStream.readBytes(bytes, 0, length);
+          if (visitor instanceof EncryptedStoredFieldVisitor) {
+            ((EncryptedStoredFieldVisitor) visitor).encryptedField(new SecureCipherStoredFieldsReader.EncryptedValue(fieldInfo, bytes));
+          } else {
+            decrypted = SecureCipherStoredFieldsReader.decryptField(bytes, fieldInfo, SecureCipherUtil.getKey(fieldInfo), visitor, decrypted);
+          }
+          break;
+        case NO:
+          fieldsStream.seek(fieldsStream.getFilePointer() + length);
+          break;
+        case STOP:
+          return;
+      }
+    }
+  }
+
+  @Override
+  public StoredFieldsReader clone() {
+    ensureOpen();
+    return new SecureCipherBinaryStoredFieldsReader(this);
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (!closed) {
+      IOUtils.close(reader, fieldsStream, indexStream);
+      closed = true;
+    }
+  }
+
+  @Override
+  public long ramBytesUsed() {
+    return reader.ramBytesUsed();
+  }
+}
@@ -0,0 +1,161 @@
+package org.apache.lucene.codecs.secure;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.lucene.codecs.Codec;
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.codecs.StoredFieldsWriter;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.FieldInfos;
+import org.apache.lucene.index.SegmentInfo;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.index.MergeState;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.GrowableByteArrayDataOutput;
+import org.apache.lucene.util.IOUtils;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.apache.lucene.codecs.secure.SecureCipherBinaryStoredFieldsFormat.CODEC_NAME_DAT;
+import static org.apache.lucene.codecs.secure.SecureCipherBinaryStoredFieldsFormat.CODEC_NAME_IDX;
+import static org.apache.lucene.codecs.secure.SecureCipherBinaryStoredFieldsFormat.VERSION_CURRENT;
+
+/**
+ * Writes encrypted stored fields, see {@link SecureCipherBinaryStoredFieldsFormat}.
+ * @lucene.experimental
+ */
+public class SecureCipherBinaryStoredFieldsWriter extends SecureStoredFieldsWriter {
+  private final Directory directory;
+  private final String segment;
+  private final SegmentInfo segmentInfo;
+  private final StoredFieldsWriter writer;
+  private IndexOutput fieldsStream;
+  private IndexOutput indexStream;
+
+  // the non encrypted fields of the current document, for the wrapped writer
+  private final List<FieldInfo> plainInfos = new ArrayList<FieldInfo>();
+  private final List<IndexableField> plainFields = new ArrayList<IndexableField>();
+  // the encrypted fields of the current document
+  private final GrowableByteArrayDataOutput buffer = new GrowableByteArrayDataOutput(1024);
+  private int numBufferedFields;
+  private int numDocsWritten;
+
+  public SecureCipherBinaryStoredFieldsWriter(Codec codec, Directory directory, SegmentInfo si, IOContext context) throws IOException {
+    assert directory != null;
+    this.directory = directory;
+    this.segment = si.name;
+    this.segmentInfo = si;
+    this.writer = codec.storedFieldsFormat().fieldsWriter(directory, si, context);
+
+    boolean success = false;
+    try {
+      fieldsStream = directory.createOutput(SecureCipherBinaryStoredFieldsFormat.getFieldsFileName(segment), context);
+      indexStream = directory.createOutput(SecureCipherBinaryStoredFieldsFormat.getFieldsIndexFileName(segment), context);
+      CodecUtil.writeHeader(fieldsStream, CODEC_NAME_DAT, VERSION_CURRENT);
+      CodecUtil.writeHeader(indexStream, CODEC_NAME_IDX, VERSION_CURRENT);
+      success = true;
+    } finally {
+      if (!success) {
+        abort();
+      }
+    }
+  }
+
+  @Override
+  public void startDocument(int numStoredFields) throws IOException {
+    // the wrapped writer needs the number of non encrypted fields, which is only known
+    // once all fields of the document were written
+    assert plainFields.isEmpty();
+    buffer.length = 0;
+    numBufferedFields = 0;
+  }
+
+  @Override
+  public void writeField(FieldInfo info, IndexableField field) throws IOException {
+    if (!info.isEncrypted()) {
+      plainInfos.add(info);
+      plainFields.add(field);
+      return;
+    }
+    final BytesRef encrypted = SecureCipherStoredFieldsWriter.encryptValue(field, SecureCipherUtil.getWriteKey(segmentInfo, info));
+    buffer.writeVInt(info.number);
+    buffer.writeVInt(encrypted.length);
+    buffer.writeBytes(encrypted.bytes, encrypted.offset, encrypted.length);
+    numBufferedFields++;
+  }
+
+  @Override
+  public void finishDocument() throws IOException {
+    writer.startDocument(plainFields.size());
+    for (int i = 0; i < plainFields.size(); i++) {
+      writer.writeField(plainInfos.get(i), plainFields.get(i));
+    }
+    writer.finishDocument();
+    plainInfos.clear();
+    plainFields.clear();
+
+    indexStream.writeLong(fieldsStream.getFilePointer());
+    fieldsStream.writeVInt(numBufferedFields);
+    fieldsStream.writeBytes(buffer.bytes, 0, buffer.length);
+    numDocsWritten++;
+  }
+
+  @Override
+  public void abort() {
+    IOUtils.closeWhileHandlingException(fieldsStream, indexStream);
+    fieldsStream = indexStream = null;
+    IOUtils.deleteFilesIgnoringExceptions(directory,
+        SecureCipherBinaryStoredFieldsFormat.getFieldsFileName(segment),
+        SecureCipherBinaryStoredFieldsFormat.getFieldsIndexFileName(segment));
+    writer.abort();
+  }
+
+  @Override
+  public void finish(FieldInfos fis, int numDocs) throws IOException {
+    if (numDocsWritten != numDocs) {
+      throw new RuntimeException("mergeFields produced an invalid result: docCount is " + numDocs
+          + " but only saw " + numDocsWritten + " file=" + fieldsStream.toString() + "; now aborting this merge to prevent index corruption");
+    }
+    writer.finish(fis, numDocs);
+  }
+
+  @Override
+  public int merge(MergeState mergeState) throws IOException {
+    // values are re-encrypted, so the keys of all encrypted fields must be available
+    for (FieldInfo fi : mergeState.fieldInfos) {
+      if (fi.isEncrypted() && !SecureCipherUtil.hasKey(fi.name)) {
+        throw new IllegalStateException("cannot merge encrypted stored field " + fi.name + " without its key");
+      }
+    }
+    return super.merge(mergeState);
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      IOUtils.close(fieldsStream, indexStream, writer);
+    } finally {
+      fieldsStream = indexStream = null;
+    }
+  }
+}
@@ -0,0 +1,150 @@
+package org.apache.lucene.codecs.secure;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.lucene.codecs.BlockTreeTermsReader;
+import org.apache.lucene.codecs.BlockTreeTermsWriter;
+import org.apache.lucene.codecs.FieldsConsumer;
+import org.apache.lucene.codecs.FieldsProducer;
+import org.apache.lucene.codecs.PostingsReaderBase;
+import org.apache.lucene.codecs.PostingsWriterBase;
+import org.apache.lucene.index.IndexFileNames;
+import org.apache.lucene.index.SegmentReadState;
+import org.apache.lucene.index.SegmentWriteState;
+import org.apache.lucene.util.IOUtils;
+
+import java.io.IOException;
+
+/**
+ * Block encrypted postings format.
+ * <p>
+ * Like {@link org.apache.lucene.codecs.lucene41.Lucene41PostingsFormat}, the docIDs of
+ * each term are delta coded and packed into blocks of {@link #BLOCK_SIZE} docs, with the
+ * last (partial) block written as vInts. Unlike {@link SecureCipherPostingsFormat}, which
+ * encrypts a whole postings list as a single blob, every block is encrypted on its own
+ * (AES/CBC with a fresh IV) so that a block can be decrypted without touching its neighbours.
+ * <p>
+ * Terms with more than {@link #BLOCK_SIZE} docs also get an encrypted skip table holding,
+ * for each full block, the last docID of the block and the file pointer of the next one.
+ * {@link org.apache.lucene.index.DocsEnum#advance(int)} decrypts the skip table once and then
+ * only decrypts the blocks it lands on.
+ * <p>
+ * Freqs are stored in the doc chunks, next to the docIDs. Like Lucene41's .doc/.pos split,
+ * positions are stored in a separate file, one encrypted chunk per block of docs, so that
+ * a {@link org.apache.lucene.search.PhraseQuery} only decrypts the positions of the blocks
+ * that hold a doc matching all its terms. Offsets and payloads are dropped.
+ * <p>
+ * Doc file (.doc.enc):
+ * <ul>
+ *   <li>DocFile --&gt; Header, PackedBlockSize, &lt;TermPostings&gt;<sup>TermCount</sup></li>
+ *   <li>TermPostings --&gt; &lt;Chunk&gt;<sup>PackedDocBlockNum</sup>, TailChunk?, SkipChunk?</li>
+ *   <li>Chunk --&gt; CipherLength (vInt), IV (16 bytes), Ciphertext</li>
+ * </ul>
+ * The plaintext of a packed chunk is a {@link SecureForUtil} block of doc deltas, followed
+ * by a block of freqs and the length of the block's pos chunk (vLong) if the field has them.
+ * The plaintext of the tail chunk is &lt;DocDelta (vInt), Freq (vInt)?&gt; per doc and the
+ * plaintext of the skip chunk is &lt;LastDocDelta (vInt), NextBlockFPDelta (vLong),
+ * NextPosBlockFPDelta (vLong)?&gt; per full block.
+ * <p>
+ * Pos file (.pos.enc):
+ * <ul>
+ *   <li>PosFile --&gt; Header, &lt;TermPositions&gt;<sup>TermCount</sup></li>
+ *   <li>TermPositions --&gt; &lt;Chunk&gt;<sup>PackedDocBlockNum</sup>, TailChunk?</li>
+ * </ul>
+ * The plaintext of a pos chunk is the position deltas (vInt) of all docs of the block,
+ * starting from 0 for every doc.
+ * <p>
+ * Term metadata (in the terms dictionary) is DocFPDelta (vLong), PosFPDelta (vLong) if the
+ * field has positions and, for terms with more than {@link #BLOCK_SIZE} docs, SkipFPDelta
+ * (vLong) relative to the term's DocFP.
+ *
+ * @lucene.experimental */
+public final class SecureCipherBlockPostingsFormat extends SecurePostingsFormat {
+
+  /**
+   * Fixed packed block size, number of integers encoded in
+   * a single encrypted block.
+   */
+  public final static int BLOCK_SIZE = 128;
+
+  /** Length of the IV that prefixes every encrypted chunk. */
+  final static int IV_LENGTH = 16;
+
+  final static String EncryptionAlgorithm = "AES/CBC/PKCS5Padding";
+
+  /** Extension of the block encrypted doc file */
+  static final String DOC_EXTENSION = "doc.enc";
+
+  /** Extension of the block encrypted pos file */
+  static final String POS_EXTENSION = "pos.enc";
+
+  public SecureCipherBlockPostingsFormat() {
+    super("SecureCipherBlockPostingsFormat");
+  }
+
+  @Override
+  public FieldsConsumer fieldsConsumer(SegmentWriteState state) throws IOException {
+    PostingsWriterBase postingsWriter = new SecureCipherBlockPostingsWriter(state);
+    boolean success = false;
+    try {
+      FieldsConsumer ret = new BlockTreeTermsWriter(state,
+          postingsWriter,
+          BlockTreeTermsWriter.DEFAULT_MIN_BLOCK_SIZE,
+          BlockTreeTermsWriter.DEFAULT_MAX_BLOCK_SIZE);
+      success = true;
+      return ret;
+    } finally {
+      if (!success) {
+        IOUtils.closeWhileHandlingException(postingsWriter);
+      }
+    }
+  }
+
+  @Override
+  public FieldsProducer fieldsProducer(SegmentReadState state) throws IOException {
+    PostingsReaderBase postingsReader = new SecureCipherBlockPostingsReader(state.directory,
+        state.fieldInfos,
+        state.segmentInfo,
+        state.context,
+        state.segmentSuffix);
+    boolean success = false;
+    try {
+      FieldsProducer ret = new BlockTreeTermsReader(state.directory,
+          state.fieldInfos,
+          state.segmentInfo,
+          postingsReader,
+          state.context,
+          state.segmentSuffix,
+          state.termsIndexDivisor);
+      success = true;
+      return ret;
+    } finally {
+      if (!success) {
+        IOUtils.closeWhileHandlingException(postingsReader);
+      }
+    }
+  }
+
+  static String getDocFileName(String segment, String segmentSuffix) {
+    return IndexFileNames.segmentFileName(segment, segmentSuffix, DOC_EXTENSION);
+  }
+
+  static String getPosFileName(String segment, String segmentSuffix) {
+    return IndexFileNames.segmentFileName(segment, segmentSuffix, POS_EXTENSION);
+  }
+}
@@ -0,0 +1,626 @@
+package org.apache.lucene.codecs.secure;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static org.apache.lucene.codecs.secure.SecureCipherBlockPostingsFormat.BLOCK_SIZE;
+import static org.apache.lucene.codecs.secure.SecureForUtil.MAX_DATA_SIZE;
+import static org.apache.lucene.codecs.secure.SecureForUtil.MAX_ENCODED_SIZE;
+
+import org.apache.lucene.codecs.BlockTermState;
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.codecs.PostingsReaderBase;
+import org.apache.lucene.index.CorruptIndexException;
+import org.apache.lucene.index.DocsAndPositionsEnum;
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.FieldInfo.IndexOptions;
+import org.apache.lucene.index.FieldInfos;
+import org.apache.lucene.index.SegmentInfo;
+import org.apache.lucene.index.TermState;
+import org.apache.lucene.store.ByteArrayDataInput;
+import org.apache.lucene.store.DataInput;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.IOUtils;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+
+/**
+ * Concrete class that reads block encrypted docId lists, with freqs and positions.
+ * <p>
+ * Blocks are decrypted lazily, one at a time, as the enum moves forward. When
+ * {@link DocsEnum#advance(int)} is called on a term with more than
+ * {@link SecureCipherBlockPostingsFormat#BLOCK_SIZE} docs the term's skip table is
+ * decrypted (once) and used to jump straight to the block that may contain the target.
+ * The positions of a block are only decrypted when {@link DocsAndPositionsEnum#nextPosition()}
+ * is first called for one of its docs.
+ *
+ * @see SecureCipherBlockPostingsFormat for the file layout
+ * @lucene.experimental
+ */
+public final class SecureCipherBlockPostingsReader extends PostingsReaderBase {
+
+  private final IndexInput docIn;
+  private final IndexInput posIn;
+  private final SecureForUtil forUtil;
+  // segments written before VERSION_POSITIONS only have docIDs, whatever their index options
+  private final int version;
+
+  /** Sole constructor. */
+  public SecureCipherBlockPostingsReader(Directory dir, FieldInfos fieldInfos, SegmentInfo segmentInfo, IOContext ioContext, String segmentSuffix) throws IOException {
+    boolean success = false;
+    IndexInput docIn = null;
+    IndexInput posIn = null;
+    try {
+      docIn = dir.openInput(SecureCipherBlockPostingsFormat.getDocFileName(segmentInfo.name, segmentSuffix), ioContext);
+      version = CodecUtil.checkHeader(docIn,
+          SecureCipherBlockPostingsWriter.DOC_CODEC,
+          SecureCipherBlockPostingsWriter.VERSION_START,
+          SecureCipherBlockPostingsWriter.VERSION_CURRENT);
+      forUtil = new SecureForUtil(docIn);
+      if (version >= SecureCipherBlockPostingsWriter.VERSION_POSITIONS && fieldInfos.hasProx()) {
+        posIn = dir.openInput(SecureCipherBlockPostingsFormat.getPosFileName(segmentInfo.name, segmentSuffix), ioContext);
+        CodecUtil.checkHeader(posIn,
+            SecureCipherBlockPostingsWriter.POS_CODEC,
+            version,
+            version);
+      }
+      this.docIn = docIn;
+      this.posIn = posIn;
+      success = true;
+    } finally {
+      if (!success) {
+        IOUtils.closeWhileHandlingException(docIn, posIn);
+      }
+    }
+  }
+
+  private boolean hasFreqs(FieldInfo fieldInfo) {
+    return version >= SecureCipherBlockPostingsWriter.VERSION_POSITIONS
+        && fieldInfo.getIndexOptions().compareTo(IndexOptions.DOCS_AND_FREQS) >= 0;
+  }
+
+  private boolean hasPositions(FieldInfo fieldInfo) {
+    return version >= SecureCipherBlockPostingsWriter.VERSION_POSITIONS
+        && fieldInfo.getIndexOptions().compareTo(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS) >= 0;
+  }
+
+  @Override
+  public void init(IndexInput termsIn) throws IOException {
+    // Make sure we are talking to the matching postings writer
+    CodecUtil.checkHeader(termsIn,
+                          SecureCipherBlockPostingsWriter.TERMS_CODEC,
+                          SecureCipherBlockPostingsWriter.VERSION_START,
+                          SecureCipherBlockPostingsWriter.VERSION_CURRENT);
+  }
+
+  // Must keep final because we do non-standard clone
+  private final static class IntBlockTermState extends BlockTermState {
+    long docStartFP;
+    long posStartFP;
+    long skipOffset;
+
+    // Only used by the "primary" TermState -- clones don't
+    // copy this (basically they are "transient"):
+    ByteArrayDataInput bytesReader;  // TODO: should this NOT be in the TermState...?
+    byte[] bytes;
+
+    @Override
+    public IntBlockTermState clone() {
+      IntBlockTermState other = new IntBlockTermState();
+      other.copyFrom(this);
+      return other;
+    }
+
+    @Override
+    public void copyFrom(TermState _other) {
+      super.copyFrom(_other);
+      IntBlockTermState other = (IntBlockTermState) _other;
+      docStartFP = other.docStartFP;
+      posStartFP = other.posStartFP;
+      skipOffset = other.skipOffset;
+
+      // Do not copy bytes, bytesReader (else TermState is
+      // very heavy, ie drags around the entire block's
+      // byte[]).  On seek back, if next() is in fact used
+      // (rare!), they will be re-read from disk.
+    }
+
+    @Override
+    public String toString() {
+      return super.toString() + " docStartFP=" + docStartFP + " posStartFP=" + posStartFP + " skipOffset=" + skipOffset;
+    }
+  }
+
+  @Override
+  public IntBlockTermState newTermState() {
+    return new IntBlockTermState();
+  }
+
+  @Override
+  public void close() throws IOException {
+    IOUtils.close(docIn, posIn);
+  }
+
+  /* Reads but does not decode the byte[] blob holding
+     metadata for the current terms block */
+  @Override
+  public void readTermsBlock(IndexInput termsIn, FieldInfo fieldInfo, BlockTermState _termState) throws IOException {
+    final IntBlockTermState termState = (IntBlockTermState) _termState;
+
+    final int numBytes = termsIn.readVInt();
+
+    if (termState.bytes == null) {
+      termState.bytes = new byte[ArrayUtil.oversize(numBytes, 1)];
+      termState.bytesReader = new ByteArrayDataInput();
+    } else if (termState.bytes.length < numBytes) {
+      termState.bytes = new byte[ArrayUtil.oversize(numBytes, 1)];
+    }
+
+    termsIn.readBytes(termState.bytes, 0, numBytes);
+    termState.bytesReader.reset(termState.bytes, 0, numBytes);
+  }
+
+  @Override
+  public void nextTerm(FieldInfo fieldInfo, BlockTermState _termState)
+    throws IOException {
+    final IntBlockTermState termState = (IntBlockTermState) _termState;
+    final boolean isFirstTerm = termState.termBlockOrd == 0;
+
+    final DataInput in = termState.bytesReader;
+    final boolean fieldHasPositions = hasPositions(fieldInfo);
+    if (isFirstTerm) {
+      termState.docStartFP = in.readVLong();
+      if (fieldHasPositions) {
+        termState.posStartFP = in.readVLong();
+      }
+    } else {
+      termState.docStartFP += in.readVLong();
+      if (fieldHasPositions) {
+        termState.posStartFP += in.readVLong();
+      }
+    }
+
+    if (termState.docFreq > BLOCK_SIZE) {
+      termState.skipOffset = in.readVLong();
+    } else {
+      termState.skipOffset = -1;
+    }
+  }
+
+  @Override
+  public DocsEnum docs(FieldInfo fieldInfo, BlockTermState termState, Bits liveDocs, DocsEnum reuse, int flags) throws IOException {
+    SecretKey fieldKey = SecureCipherUtil.getKey(fieldInfo);
+    if (fieldKey == null) {
+      return null;
+    }
+
+    BlockDocsEnum docsEnum;
+    if (reuse instanceof BlockDocsEnum && ((BlockDocsEnum) reuse).canReuse(docIn)) {
+      docsEnum = (BlockDocsEnum) reuse;
+    } else {
+      docsEnum = new BlockDocsEnum();
+    }
+    return docsEnum.reset(liveDocs, (IntBlockTermState) termState, fieldKey, hasFreqs(fieldInfo), false);
+  }
+
+  /** Returns null for fields without positions; payloads and offsets are not stored by this format */
+  @Override
+  public DocsAndPositionsEnum docsAndPositions(FieldInfo fieldInfo, BlockTermState termState, Bits liveDocs,
+                                               DocsAndPositionsEnum reuse, int flags)
+      throws IOException {
+    if (!hasPositions(fieldInfo)) {
+      return null;
+    }
+    SecretKey fieldKey = SecureCipherUtil.getKey(fieldInfo);
+    if (fieldKey == null) {
+      return null;
+    }
+
+    BlockDocsAndPositionsEnum docsAndPositionsEnum;
+    if (reuse instanceof BlockDocsAndPositionsEnum && ((BlockDocsAndPositionsEnum) reuse).canReuse(docIn)) {
+      docsAndPositionsEnum = (BlockDocsAndPositionsEnum) reuse;
+    } else {
+      docsAndPositionsEnum = new BlockDocsAndPositionsEnum();
+    }
+    return docsAndPositionsEnum.reset(liveDocs, (IntBlockTermState) termState, fieldKey);
+  }
+
+  final class BlockDocsEnum extends DocsEnum {
+    private final byte[] encoded;
+    private final int[] docDeltaBuffer = new int[MAX_DATA_SIZE];
+    private final int[] freqBuffer = new int[MAX_DATA_SIZE];
+
+    private final IndexInput startDocIn;
+    private IndexInput docIn;
+
+    private final Cipher cipher;
+    private SecretKey fieldKey;
+    private final byte[] iv = new byte[SecureCipherBlockPostingsFormat.IV_LENGTH];
+    private byte[] cipherBytes = new byte[0];
+    private byte[] plainBytes = new byte[0];
+    private final ByteArrayDataInput plainIn = new ByteArrayDataInput();
+
+    private Bits liveDocs;
+
+    private int docFreq;          // number of docs in this posting list
+    private int docUpto;          // how many docs we've read
+    private int doc;              // doc we last read
+    private int accum;            // accumulator for doc deltas
+    private int docBufferUpto;
+
+    private boolean indexHasFreqs;
+    private boolean indexHasPositions;
+
+    private long docTermStartFP;  // file pointer to the start of the doc list of this term
+    private long nextBlockFP;     // file pointer of the next block to decrypt
+    private long skipOffset;      // where the encrypted skip table starts, relative to docTermStartFP
+
+    // file pointers of the pos chunk of the current block, and of the next one
+    private long termPosStartFP;
+    private long blockPosFP;
+    private long nextPosFP;
+
+    // Decrypted skip table: last docID of block i, and file pointers of block i+1
+    private boolean skipped;
+    private int numSkipEntries;
+    private int skipUpto;
+    private int[] skipDocs = new int[0];
+    private long[] skipFPs = new long[0];
+    private long[] skipPosFPs = new long[0];
+
+    public BlockDocsEnum() throws IOException {
+      this.startDocIn = SecureCipherBlockPostingsReader.this.docIn;
+      this.docIn = null;
+      encoded = new byte[MAX_ENCODED_SIZE];
+      try {
+        cipher = Cipher.getInstance(SecureCipherBlockPostingsFormat.EncryptionAlgorithm);
+      } catch (GeneralSecurityException ex) {
+        throw new IOException("cannot create cipher " + SecureCipherBlockPostingsFormat.EncryptionAlgorithm, ex);
+      }
+    }
+
+    public boolean canReuse(IndexInput docIn) {
+      return docIn == startDocIn;
+    }
+
+    public BlockDocsEnum reset(Bits liveDocs, IntBlockTermState termState, SecretKey fieldKey,
+                               boolean indexHasFreqs, boolean indexHasPositions) throws IOException {
+      this.liveDocs = liveDocs;
+      this.fieldKey = fieldKey;
+      this.indexHasFreqs = indexHasFreqs;
+      this.indexHasPositions = indexHasPositions;
+
+      docFreq = termState.docFreq;
+      docTermStartFP = termState.docStartFP;
+      skipOffset = termState.skipOffset;
+      if (docIn == null) {
+        // lazy init
+        docIn = startDocIn.clone();
+      }
+      nextBlockFP = docTermStartFP;
+      termPosStartFP = nextPosFP = termState.posStartFP;
+
+      doc = -1;
+      accum = 0;
+      docUpto = 0;
+      docBufferUpto = BLOCK_SIZE;
+      skipped = false;
+      numSkipEntries = 0;
+      skipUpto = 0;
+      return this;
+    }
+
+    @Override
+    public int freq() throws IOException {
+      return indexHasFreqs ? freqBuffer[docBufferUpto - 1] : 1;
+    }
+
+    @Override
+    public int docID() {
+      return doc;
+    }
+
+    /** Reads and decrypts the chunk at the current position of docIn into plainIn */
+    private void decryptChunk() throws IOException {
+      plainBytes = decryptChunk(docIn, plainBytes, plainIn);
+    }
+
+    /**
+     * Reads and decrypts the chunk at the current position of <code>in</code> into
+     * <code>plainBytes</code>, or a larger array that is returned, and resets <code>plainIn</code> to it
+     */
+    byte[] decryptChunk(IndexInput in, byte[] plainBytes, ByteArrayDataInput plainIn) throws IOException {
+      long stageStart = SecureCodecMetrics.start();
+      final int cipherLength = in.readVInt();
+      in.readBytes(iv, 0, iv.length);
+      if (cipherBytes.length < cipherLength) {
+        cipherBytes = new byte[ArrayUtil.oversize(cipherLength, 1)];
+      }
+      in.readBytes(cipherBytes, 0, cipherLength);
+      SecureCodecMetrics.stop(SecureCodecMetrics.Stage.CIPHERTEXT_READ, stageStart);
+
+      stageStart = SecureCodecMetrics.start();
+      try {
+        cipher.init(Cipher.DECRYPT_MODE, fieldKey, new IvParameterSpec(iv));
+        final int maxPlainLength = cipher.getOutputSize(cipherLength);
+        if (plainBytes.length < maxPlainLength) {
+          plainBytes = new byte[ArrayUtil.oversize(maxPlainLength, 1)];
+        }
+        final int plainLength = cipher.doFinal(cipherBytes, 0, cipherLength, plainBytes, 0);
+        plainIn.reset(plainBytes, 0, plainLength);
+      } catch (GeneralSecurityException ex) {
+        throw new CorruptIndexException("cannot decrypt postings block (resource: " + in + "): " + ex);
+      }
+      SecureCodecMetrics.stop(SecureCodecMetrics.Stage.DECRYPT, stageStart);
+      return plainBytes;
+    }
+
+    private void refillDocs() throws IOException {
+      final int left = docFreq - docUpto;
+      assert left > 0;
+
+      docIn.seek(nextBlockFP);
+      decryptChunk();
+      final long decodeStart = SecureCodecMetrics.start();
+      blockPosFP = nextPosFP;
+      if (left >= BLOCK_SIZE) {
+        forUtil.readBlock(plainIn, encoded, docDeltaBuffer);
+        if (indexHasFreqs) {
+          forUtil.readBlock(plainIn, encoded, freqBuffer);
+        }
+        if (indexHasPositions) {
+          nextPosFP += plainIn.readVLong();
+        }
+      } else {
+        for (int i = 0; i < left; i++) {
+          docDeltaBuffer[i] = plainIn.readVInt();
+          if (indexHasFreqs) {
+            freqBuffer[i] = plainIn.readVInt();
+          }
+        }
+      }
+      SecureCodecMetrics.stop(SecureCodecMetrics.Stage.POSTINGS_DECODE, decodeStart);
+      nextBlockFP = docIn.getFilePointer();
+      docBufferUpto = 0;
+    }
+
+    /** Decrypts the skip table of the current term. Entries that would
+     *  skip past the last doc are not kept. */
+    private void loadSkipData() throws IOException {
+      assert skipOffset != -1;
+      docIn.seek(docTermStartFP + skipOffset);
+      decryptChunk();
+
+      numSkipEntries = (docFreq - 1) / BLOCK_SIZE;
+      if (skipDocs.length < numSkipEntries) {
+        skipDocs = new int[ArrayUtil.oversize(numSkipEntries, 4)];
+        skipFPs = new long[ArrayUtil.oversize(numSkipEntries, 8)];
+        skipPosFPs = new long[ArrayUtil.oversize(numSkipEntries, 8)];
+      }
+      int lastDoc = 0;
+      long lastFP = docTermStartFP;
+      long lastPosFP = termPosStartFP;
+      for (int i = 0; i < numSkipEntries; i++) {
+        lastDoc += plainIn.readVInt();
+        lastFP += plainIn.readVLong();
+        skipDocs[i] = lastDoc;
+        skipFPs[i] = lastFP;
+        if (indexHasPositions) {
+          lastPosFP += plainIn.readVLong();
+          skipPosFPs[i] = lastPosFP;
+        }
+      }
+      skipped = true;
+    }
+
+    @Override
+    public int nextDoc() throws IOException {
+      while (true) {
+        if (docUpto == docFreq) {
+          return doc = NO_MORE_DOCS;
+        }
+        if (docBufferUpto == BLOCK_SIZE) {
+          refillDocs();
+        }
+
+        accum += docDeltaBuffer[docBufferUpto];
+        docUpto++;
+        docBufferUpto++;
+
+        if (liveDocs == null || liveDocs.get(accum)) {
+          return doc = accum;
+        }
+      }
+    }
+
+    @Override
+    public int advance(int target) throws IOException {
+      if (docFreq > BLOCK_SIZE) {
+        if (!skipped) {
+          loadSkipData();
+        }
+
+        // Find the last block whose last doc is before the target:
+        while (skipUpto < numSkipEntries && skipDocs[skipUpto] < target) {
+          skipUpto++;
+        }
+
+        // ... and jump right past it, unless we already are further
+        final int newDocUpto = skipUpto * BLOCK_SIZE;
+        if (newDocUpto > docUpto) {
+          docUpto = newDocUpto;
+          accum = skipDocs[skipUpto-1];
+          nextBlockFP = skipFPs[skipUpto-1];
+          nextPosFP = skipPosFPs[skipUpto-1];
+          docBufferUpto = BLOCK_SIZE;
+        }
+      }
+
+      // Now scan within the block:
+      while (true) {
+        if (docUpto == docFreq) {
+          return doc = NO_MORE_DOCS;
+        }
+        if (docBufferUpto == BLOCK_SIZE) {
+          refillDocs();
+        }
+
+        accum += docDeltaBuffer[docBufferUpto];
+        docUpto++;
+        docBufferUpto++;
+
+        if (accum >= target && (liveDocs == null || liveDocs.get(accum))) {
+          return doc = accum;
+        }
+      }
+    }
+
+    @Override
+    public long cost() {
+      return docFreq;
+    }
+  }
+
+  /**
+   * Reads the positions of the docs of a {@link BlockDocsEnum}. The pos chunk of a block is
+   * decrypted when the positions of one of its docs are first asked for, and the positions
+   * of the docs before it in the block are skipped using their freqs.
+   */
+  final class BlockDocsAndPositionsEnum extends DocsAndPositionsEnum {
+    private final BlockDocsEnum docsEnum;
+    private IndexInput posIn;
+
+    private byte[] posPlainBytes = new byte[0];
+    private final ByteArrayDataInput posPlainIn = new ByteArrayDataInput();
+    private long posPlainFP;   // pos chunk in posPlainIn, -1 if none
+    private int posDocUpto;    // index in the block of the doc whose positions come next in posPlainIn
+    private int posPending;    // positions of doc posDocUpto-1 not read yet
+
+    private int posLeft;       // positions of the current doc not read yet, -1 before they are located
+    private int position;
+
+    public BlockDocsAndPositionsEnum() throws IOException {
+      docsEnum = new BlockDocsEnum();
+    }
+
+    public boolean canReuse(IndexInput docIn) {
+      return docsEnum.canReuse(docIn);
+    }
+
+    public DocsAndPositionsEnum reset(Bits liveDocs, IntBlockTermState termState, SecretKey fieldKey) throws IOException {
+      docsEnum.reset(liveDocs, termState, fieldKey, true, true);
+      if (posIn == null) {
+        // lazy init
+        posIn = SecureCipherBlockPostingsReader.this.posIn.clone();
+      }
+      posPlainFP = -1;
+      posLeft = -1;
+      return this;
+    }
+
+    @Override
+    public int freq() throws IOException {
+      return docsEnum.freq();
+    }
+
+    @Override
+    public int docID() {
+      return docsEnum.docID();
+    }
+
+    @Override
+    public int nextDoc() throws IOException {
+      posLeft = -1;
+      return docsEnum.nextDoc();
+    }
+
+    @Override
+    public int advance(int target) throws IOException {
+      posLeft = -1;
+      return docsEnum.advance(target);
+    }
+
+    /** Moves posPlainIn to the positions of the current doc, decrypting its block if needed */
+    private void locatePositions() throws IOException {
+      final int docIndex = docsEnum.docBufferUpto - 1;
+      if (posPlainFP != docsEnum.blockPosFP || posDocUpto > docIndex) {
+        posIn.seek(docsEnum.blockPosFP);
+        posPlainBytes = docsEnum.decryptChunk(posIn, posPlainBytes, posPlainIn);
+        posPlainFP = docsEnum.blockPosFP;
+        posDocUpto = 0;
+        posPending = 0;
+      }
+      int toSkip = posPending;
+      for (int i = posDocUpto; i < docIndex; i++) {
+        toSkip += docsEnum.freqBuffer[i];
+      }
+      for (int i = 0; i < toSkip; i++) {
+        posPlainIn.readVInt();
+      }
+      posDocUpto = docIndex + 1;
+      posPending = posLeft = docsEnum.freqBuffer[docIndex];
+      position = 0;
+    }
+
+    @Override
+    public int nextPosition() throws IOException {
+      if (posLeft == -1) {
+        locatePositions();
+      }
+      assert posLeft > 0;
+      posLeft--;
+      posPending--;
+      position += posPlainIn.readVInt();
+      return position;
+    }
+
+    @Override
+    public int startOffset() {
+      return -1;
+    }
+
+    @Override
+    public int endOffset() {
+      return -1;
+    }
+
+    @Override
+    public BytesRef getPayload() {
+      return null;
+    }
+
+    @Override
+    public long cost() {
+      return docsEnum.cost();
+    }
+  }
+
+  @Override
+  public long ramBytesUsed() {
+    return 0;
+  }
+}
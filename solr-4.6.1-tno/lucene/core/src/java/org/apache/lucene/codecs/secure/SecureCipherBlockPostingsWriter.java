@@ -0,0 +1,359 @@
+package org.apache.lucene.codecs.secure;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import static org.apache.lucene.codecs.secure.SecureCipherBlockPostingsFormat.BLOCK_SIZE;
+import static org.apache.lucene.codecs.secure.SecureForUtil.MAX_DATA_SIZE;
+import static org.apache.lucene.codecs.secure.SecureForUtil.MAX_ENCODED_SIZE;
+
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.codecs.PostingsWriterBase;
+import org.apache.lucene.codecs.TermStats;
+import org.apache.lucene.index.CorruptIndexException;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.FieldInfo.IndexOptions;
+import org.apache.lucene.index.SegmentInfo;
+import org.apache.lucene.index.SegmentWriteState;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.store.RAMOutputStream;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.IOUtils;
+import org.apache.lucene.util.packed.PackedInts;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Concrete class that writes block encrypted docId lists, with freqs and positions.
+ * <p>
+ * Doc deltas (and freqs) are buffered per term; each time {@link SecureCipherBlockPostingsFormat#BLOCK_SIZE}
+ * docs have been seen they are packed with {@link SecureForUtil}, encrypted and written as one
+ * chunk. The positions of the same docs are encrypted as one chunk of the pos file, written
+ * just before. The remaining docs are written as vInts in a final chunk and, for long postings
+ * lists, the skip table follows as a last chunk.
+ *
+ * @see SecureCipherBlockPostingsFormat for the file layout
+ * @lucene.experimental
+ */
+public final class SecureCipherBlockPostingsWriter extends PostingsWriterBase {
+
+  final static String TERMS_CODEC = "SecureCipherBlockPostingsWriterTerms";
+  final static String DOC_CODEC = "SecureCipherBlockPostingsWriterDoc";
+  final static String POS_CODEC = "SecureCipherBlockPostingsWriterPos";
+
+  // Increment version to change it
+  final static int VERSION_START = 0;
+  /** Freqs in the doc chunks, and positions in the pos file */
+  final static int VERSION_POSITIONS = 1;
+  final static int VERSION_CURRENT = VERSION_POSITIONS;
+
+  final IndexOutput docOut;
+  final IndexOutput posOut;
+  private IndexOutput termsOut;
+
+  private final SecureForUtil forUtil;
+  private final Cipher cipher;
+
+  private String fieldName;
+  private final SegmentInfo segmentInfo;
+  private SecretKey fieldKey;
+  private boolean fieldHasFreqs;
+  private boolean fieldHasPositions;
+
+  // Holds starting file pointers for the current term:
+  private long docTermStartFP;
+  private long posTermStartFP;
+
+  private int docCount;
+  private int lastDocID;
+  private int docBufferUpto;
+  private final int[] docDeltaBuffer;
+  private final int[] freqBuffer;
+  private final byte[] encoded;
+
+  // Position deltas of the docs of the current block
+  private final RAMOutputStream posPlainOut = new RAMOutputStream();
+  private int lastPosition;
+
+  // Skip table of the current term: per full block, lastDoc delta, next block FP delta
+  // and, with positions, next pos block FP delta
+  private final RAMOutputStream skipOut = new RAMOutputStream();
+  private int lastSkipDoc;
+  private long lastSkipFP;
+  private long lastSkipPosFP;
+
+  // Plaintext of the chunk being built, and scratch for its encryption
+  private final RAMOutputStream plainOut = new RAMOutputStream();
+  private byte[] plainBytes = new byte[0];
+  private byte[] cipherBytes = new byte[0];
+
+  public SecureCipherBlockPostingsWriter(SegmentWriteState state) throws IOException {
+    this(state, PackedInts.COMPACT);
+  }
+
+  public SecureCipherBlockPostingsWriter(SegmentWriteState state, float acceptableOverheadRatio) throws IOException {
+    super();
+    segmentInfo = state.segmentInfo;
+
+    try {
+      cipher = Cipher.getInstance(SecureCipherBlockPostingsFormat.EncryptionAlgorithm);
+    } catch (GeneralSecurityException ex) {
+      throw new IOException("cannot create cipher " + SecureCipherBlockPostingsFormat.EncryptionAlgorithm, ex);
+    }
+
+    final String fileName = SecureCipherBlockPostingsFormat.getDocFileName(state.segmentInfo.name, state.segmentSuffix);
+    docOut = state.directory.createOutput(fileName, state.context);
+    IndexOutput posOut = null;
+    boolean success = false;
+    try {
+      CodecUtil.writeHeader(docOut, DOC_CODEC, VERSION_CURRENT);
+      forUtil = new SecureForUtil(acceptableOverheadRatio, docOut);
+      if (state.fieldInfos.hasProx()) {
+        posOut = state.directory.createOutput(SecureCipherBlockPostingsFormat.getPosFileName(state.segmentInfo.name, state.segmentSuffix),
+                                              state.context);
+        CodecUtil.writeHeader(posOut, POS_CODEC, VERSION_CURRENT);
+      }
+      this.posOut = posOut;
+      success = true;
+    } finally {
+      if (!success) {
+        IOUtils.closeWhileHandlingException(docOut, posOut);
+      }
+    }
+
+    docDeltaBuffer = new int[MAX_DATA_SIZE];
+    freqBuffer = new int[MAX_DATA_SIZE];
+    encoded = new byte[MAX_ENCODED_SIZE];
+  }
+
+  @Override
+  public void start(IndexOutput termsOut) throws IOException {
+    this.termsOut = termsOut;
+    CodecUtil.writeHeader(termsOut, TERMS_CODEC, VERSION_CURRENT);
+  }
+
+  @Override
+  public void setField(FieldInfo fieldInfo) {
+    fieldName = fieldInfo.name;
+    fieldKey = SecureCipherUtil.getWriteKey(segmentInfo, fieldInfo);
+    final IndexOptions indexOptions = fieldInfo.getIndexOptions();
+    fieldHasFreqs = indexOptions.compareTo(IndexOptions.DOCS_AND_FREQS) >= 0;
+    fieldHasPositions = indexOptions.compareTo(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS) >= 0;
+  }
+
+  @Override
+  public void startTerm() {
+    docTermStartFP = docOut.getFilePointer();
+    docCount = 0;
+    lastDocID = 0;
+    docBufferUpto = 0;
+    skipOut.reset();
+    lastSkipDoc = 0;
+    lastSkipFP = docTermStartFP;
+    if (fieldHasPositions) {
+      posTermStartFP = posOut.getFilePointer();
+      lastSkipPosFP = posTermStartFP;
+      posPlainOut.reset();
+    }
+  }
+
+  @Override
+  public void startDoc(int docID, int termDocFreq) throws IOException {
+    final int docDelta = docID - lastDocID;
+
+    if (docID < 0 || (docCount > 0 && docDelta <= 0)) {
+      throw new CorruptIndexException("docs out of order (" + docID + " <= " + lastDocID + " ) (docOut: " + docOut + ")");
+    }
+
+    docDeltaBuffer[docBufferUpto] = docDelta;
+    freqBuffer[docBufferUpto] = termDocFreq;
+    docBufferUpto++;
+    docCount++;
+    lastDocID = docID;
+    lastPosition = 0;
+  }
+
+  /** Payloads and offsets are not stored by this format */
+  @Override
+  public void addPosition(int position, BytesRef payload, int startOffset, int endOffset) throws IOException {
+    assert fieldHasPositions;
+    posPlainOut.writeVInt(position - lastPosition);
+    lastPosition = position;
+  }
+
+  @Override
+  public void finishDoc() throws IOException {
+    // the block is written once the positions of its last doc are known
+    if (docBufferUpto == BLOCK_SIZE) {
+      long posBlockLength = 0;
+      if (fieldHasPositions) {
+        final long posBlockFP = posOut.getFilePointer();
+        writeChunk(posPlainOut, posOut);
+        posPlainOut.reset();
+        posBlockLength = posOut.getFilePointer() - posBlockFP;
+      }
+
+      plainOut.reset();
+      forUtil.writeBlock(docDeltaBuffer, encoded, plainOut);
+      if (fieldHasFreqs) {
+        forUtil.writeBlock(freqBuffer, encoded, plainOut);
+      }
+      if (fieldHasPositions) {
+        plainOut.writeVLong(posBlockLength);
+      }
+      writeChunk(plainOut, docOut);
+
+      skipOut.writeVInt(lastDocID - lastSkipDoc);
+      skipOut.writeVLong(docOut.getFilePointer() - lastSkipFP);
+      lastSkipDoc = lastDocID;
+      lastSkipFP = docOut.getFilePointer();
+      if (fieldHasPositions) {
+        skipOut.writeVLong(posOut.getFilePointer() - lastSkipPosFP);
+        lastSkipPosFP = posOut.getFilePointer();
+      }
+      docBufferUpto = 0;
+    }
+  }
+
+  private static class PendingTerm {
+    public final long docStartFP;
+    public final long posStartFP;
+    public final long skipOffset;
+
+    public PendingTerm(long docStartFP, long posStartFP, long skipOffset) {
+      this.docStartFP = docStartFP;
+      this.posStartFP = posStartFP;
+      this.skipOffset = skipOffset;
+    }
+  }
+
+  private final List<PendingTerm> pendingTerms = new ArrayList<PendingTerm>();
+
+  /** Called when we are done adding docs to this term */
+  @Override
+  public void finishTerm(TermStats stats) throws IOException {
+    assert stats.docFreq > 0;
+    assert stats.docFreq == docCount: stats.docFreq + " vs " + docCount;
+
+    // vInt encode the remaining doc deltas and freqs
+    if (docBufferUpto > 0) {
+      if (fieldHasPositions) {
+        writeChunk(posPlainOut, posOut);
+        posPlainOut.reset();
+      }
+      plainOut.reset();
+      for (int i = 0; i < docBufferUpto; i++) {
+        plainOut.writeVInt(docDeltaBuffer[i]);
+        if (fieldHasFreqs) {
+          plainOut.writeVInt(freqBuffer[i]);
+        }
+      }
+      writeChunk(plainOut, docOut);
+    }
+
+    final long skipOffset;
+    if (docCount > BLOCK_SIZE) {
+      skipOffset = docOut.getFilePointer() - docTermStartFP;
+      writeChunk(skipOut, docOut);
+    } else {
+      skipOffset = -1;
+    }
+
+    pendingTerms.add(new PendingTerm(docTermStartFP, fieldHasPositions ? posTermStartFP : -1, skipOffset));
+    docBufferUpto = 0;
+    docCount = 0;
+  }
+
+  /** Encrypts what was written to <code>plain</code> and appends it to <code>out</code> as a single chunk */
+  private void writeChunk(RAMOutputStream plain, IndexOutput out) throws IOException {
+    if (fieldKey == null) {
+      throw new IllegalStateException("no key for encrypted field \"" + fieldName + "\"");
+    }
+
+    final int length = (int) plain.getFilePointer();
+    if (plainBytes.length < length) {
+      plainBytes = new byte[ArrayUtil.oversize(length, 1)];
+    }
+    plain.writeTo(plainBytes, 0);
+
+    try {
+      cipher.init(Cipher.ENCRYPT_MODE, fieldKey);
+      final byte[] iv = cipher.getIV();
+      assert iv.length == SecureCipherBlockPostingsFormat.IV_LENGTH;
+      final int maxCipherLength = cipher.getOutputSize(length);
+      if (cipherBytes.length < maxCipherLength) {
+        cipherBytes = new byte[ArrayUtil.oversize(maxCipherLength, 1)];
+      }
+      final int cipherLength = cipher.doFinal(plainBytes, 0, length, cipherBytes, 0);
+
+      out.writeVInt(cipherLength);
+      out.writeBytes(iv, 0, iv.length);
+      out.writeBytes(cipherBytes, 0, cipherLength);
+    } catch (GeneralSecurityException ex) {
+      throw new IOException("cannot encrypt postings of field \"" + fieldName + "\"", ex);
+    }
+  }
+
+  private final RAMOutputStream bytesWriter = new RAMOutputStream();
+
+  @Override
+  public void flushTermsBlock(int start, int count) throws IOException {
+
+    if (count == 0) {
+      termsOut.writeByte((byte) 0);
+      return;
+    }
+
+    assert start <= pendingTerms.size();
+    assert count <= start;
+
+    final int limit = pendingTerms.size() - start + count;
+
+    long lastDocStartFP = 0;
+    long lastPosStartFP = 0;
+    for(int idx=limit-count; idx<limit; idx++) {
+      PendingTerm term = pendingTerms.get(idx);
+      bytesWriter.writeVLong(term.docStartFP - lastDocStartFP);
+      lastDocStartFP = term.docStartFP;
+      if (fieldHasPositions) {
+        bytesWriter.writeVLong(term.posStartFP - lastPosStartFP);
+        lastPosStartFP = term.posStartFP;
+      }
+      if (term.skipOffset != -1) {
+        bytesWriter.writeVLong(term.skipOffset);
+      }
+    }
+
+    termsOut.writeVInt((int) bytesWriter.getFilePointer());
+    bytesWriter.writeTo(termsOut);
+    bytesWriter.reset();
+
+    // Remove the terms we just wrote:
+    pendingTerms.subList(limit-count, limit).clear();
+  }
+
+  @Override
+  public void close() throws IOException {
+    IOUtils.close(docOut, posOut);
+  }
+}
@@ -0,0 +1,127 @@
+package org.apache.lucene.codecs.secure;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.lucene.codecs.Codec;
+import org.apache.lucene.codecs.compressing.CompressionMode;
+import org.apache.lucene.index.FieldInfos;
+import org.apache.lucene.index.IndexFileNames;
+import org.apache.lucene.index.SegmentInfo;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+
+/**
+ * Encrypted stored fields format that encrypts the values of a chunk of documents
+ * together instead of every value on its own.
+ * <p>
+ * Non encrypted fields are written by the stored fields format of the wrapped codec.
+ * The values of encrypted fields are buffered until a chunk of {@link #CHUNK_SIZE} bytes
+ * or {@link #MAX_DOCS_PER_CHUNK} documents is full. The chunk is then written as one
+ * section per field: the values of that field for all documents of the chunk, compressed
+ * with LZ4 and encrypted with AES/CBC under the field key and a fresh IV. Small values
+ * therefore no longer pay for an IV and padding each, and a reader decrypts a field once
+ * per chunk rather than once per value. Keeping one section per field preserves per field
+ * keys: a reader only decrypts the sections of the fields it has a key for.
+ * <p>
+ * Created with a flush executor, the format only compresses full chunks while documents
+ * are added, and encrypts them when the segment is flushed, in parallel on the executor.
+ * This takes the cipher off the path of {@link org.apache.lucene.index.IndexWriter#addDocument}
+ * at the cost of keeping compressed plaintext in memory per indexing thread. These bytes
+ * count towards {@link org.apache.lucene.index.IndexWriterConfig#setRAMBufferSizeMB}, so
+ * a segment is flushed once they fill the RAM buffer, and they never exceed
+ * {@link #MAX_PENDING_BYTES}, which bounds them when the buffer is unlimited. The file
+ * written is the same.
+ * <p>
+ * File format of the <code>.sfe</code> file:
+ * <ul>
+ *   <li>File: Header, Chunk<sup>NumChunks</sup>, ChunkIndex, IndexStart</li>
+ *   <li>Header: {@link org.apache.lucene.codecs.CodecUtil#writeHeader CodecHeader}</li>
+ *   <li>Chunk: ChunkDocs (vInt), NumSections (vInt), Section<sup>NumSections</sup></li>
+ *   <li>Section: FieldNumber (vInt), Length (vInt), IV (16 bytes), Ciphertext (Length bytes)</li>
+ *   <li>Ciphertext decrypts to: PlaintextLength (vInt), LZ4(Plaintext)</li>
+ *   <li>Plaintext: DocLength (vInt)<sup>ChunkDocs</sup>, Value<sup>*</sup></li>
+ *   <li>Value: Type (byte), then a vInt length and the bytes for strings and binary values,
+ *       an int for ints and floats, a long for longs and doubles</li>
+ *   <li>ChunkIndex: NumChunks (vInt), &lt;DocBaseDelta (vInt), StartPointerDelta (vLong)&gt;<sup>NumChunks</sup></li>
+ *   <li>IndexStart: file pointer of the ChunkIndex (long)</li>
+ * </ul>
+ * Segments written by {@link SecureCipherStoredFieldsFormat} or {@link SecureCipherBinaryStoredFieldsFormat}
+ * have no <code>.sfe</code> file; the formats detect which one wrote a segment and open
+ * its reader, so they can be used on the same index.
+ *
+ * @lucene.experimental
+ */
+public class SecureCipherBlockStoredFieldsFormat extends SecureStoredFieldsFormat {
+  public static final String EncryptionAlgorithm = SecureCipherStoredFieldsFormat.EncryptionAlgorithm;
+
+  /** Extension of the encrypted blocks file */
+  public static final String FIELDS_EXTENSION = "sfe";
+
+  static final String CODEC_NAME = "SecureCipherBlockStoredFields";
+  static final int VERSION_START = 0;
+  static final int VERSION_CURRENT = VERSION_START;
+
+  static final int IV_LENGTH = 16;
+  /** Number of plaintext bytes after which a chunk is written */
+  public static final int CHUNK_SIZE = 1 << 14;
+  /** Maximum number of documents in a chunk */
+  public static final int MAX_DOCS_PER_CHUNK = 128;
+  /** Compressed bytes of full chunks a writer with a flush executor keeps before encrypting them */
+  public static final int MAX_PENDING_BYTES = 1 << 24;
+
+  static final CompressionMode COMPRESSION_MODE = CompressionMode.FAST;
+
+  private final Codec codec;
+  private final ExecutorService flushExecutor;
+
+  public SecureCipherBlockStoredFieldsFormat(Codec codec) {
+    this(codec, null);
+  }
+
+  /**
+   * Creates the format that encrypts the chunks of a segment when it is flushed, on
+   * <code>flushExecutor</code>, which it does not shut down; a <code>null</code> executor
+   * encrypts every chunk as soon as it is full.
+   */
+  public SecureCipherBlockStoredFieldsFormat(Codec codec, ExecutorService flushExecutor) {
+    this.codec = codec;
+    this.flushExecutor = flushExecutor;
+  }
+
+  static String getFieldsFileName(String segment) {
+    return IndexFileNames.segmentFileName(segment, "", FIELDS_EXTENSION);
+  }
+
+  /** Returns true if the encrypted stored fields of <code>si</code> were written by this format */
+  static boolean hasBlocks(Directory directory, SegmentInfo si) throws IOException {
+    return directory.fileExists(getFieldsFileName(si.name));
+  }
+
+  @Override
+  public SecureStoredFieldsReader fieldsReader(Directory directory, SegmentInfo si, FieldInfos fn, IOContext context) throws IOException {
+    return SecureCipherStoredFieldsFormat.openReader(codec, directory, si, fn, context);
+  }
+
+  @Override
+  public SecureStoredFieldsWriter fieldsWriter(Directory directory, SegmentInfo si, IOContext context) throws IOException {
+    return new SecureCipherBlockStoredFieldsWriter(codec, directory, si, context, flushExecutor);
+  }
+}
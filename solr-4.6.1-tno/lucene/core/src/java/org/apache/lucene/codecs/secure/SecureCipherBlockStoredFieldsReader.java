@@ -0,0 +1,452 @@
+package org.apache.lucene.codecs.secure;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.lucene.codecs.Codec;
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.codecs.StoredFieldsReader;
+import org.apache.lucene.codecs.compressing.Decompressor;
+import org.apache.lucene.index.CorruptIndexException;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.FieldInfos;
+import org.apache.lucene.index.SegmentInfo;
+import org.apache.lucene.index.StoredFieldVisitor;
+import org.apache.lucene.store.AlreadyClosedException;
+import org.apache.lucene.store.ByteArrayDataInput;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.IOUtils;
+import org.apache.lucene.util.RamUsageEstimator;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+
+import static org.apache.lucene.codecs.secure.SecureCipherBlockStoredFieldsFormat.CODEC_NAME;
+import static org.apache.lucene.codecs.secure.SecureCipherBlockStoredFieldsFormat.COMPRESSION_MODE;
+import static org.apache.lucene.codecs.secure.SecureCipherBlockStoredFieldsFormat.EncryptionAlgorithm;
+import static org.apache.lucene.codecs.secure.SecureCipherBlockStoredFieldsFormat.IV_LENGTH;
+import static org.apache.lucene.codecs.secure.SecureCipherBlockStoredFieldsFormat.VERSION_CURRENT;
+import static org.apache.lucene.codecs.secure.SecureCipherBlockStoredFieldsFormat.VERSION_START;
+
+/**
+ * Reads encrypted stored fields written in chunks, see {@link SecureCipherBlockStoredFieldsFormat}.
+ * <p>
+ * The sections of the last chunk that was visited are kept decrypted, so documents that
+ * are read in doc ID order only decrypt each section once. Fields the caller has no key
+ * for are not visited.
+ * <p>
+ * An {@link EncryptedStoredFieldVisitor} gets the still encrypted section of each field
+ * instead, whether or not there is a key for it; documents of the same chunk share the
+ * section. Decrypting the value decrypts the whole section, and visits the values of
+ * the document.
+ * @lucene.experimental
+ */
+public class SecureCipherBlockStoredFieldsReader extends SecureStoredFieldsReader {
+
+  /** One encrypted section of the current chunk */
+  private static final class Section {
+    int fieldNumber;
+    long startPointer;   // file pointer of the IV
+    int length;          // length of the ciphertext
+    boolean decoded;
+    final BytesRef plain = new BytesRef();
+    int[] docStarts = new int[16];  // start of the values of each document in plain
+    byte[] raw;          // IV and ciphertext, once handed out in an EncryptedValue
+  }
+
+  /** Decrypts sections and visits their values, with buffers that are reused */
+  private static final class SectionDecoder {
+    private final String resource;
+    private final Decompressor decompressor = COMPRESSION_MODE.newDecompressor();
+    private byte[] decrypted = new byte[64];
+    private final ByteArrayDataInput bytesInput = new ByteArrayDataInput();
+
+    SectionDecoder(String resource) {
+      this.resource = resource;
+    }
+
+    /** Decrypts and decompresses a section from <code>raw</code>, which holds the IV followed by
+     *  <code>section.length</code> bytes of ciphertext, and computes where the values of each
+     *  of the <code>chunkDocs</code> documents start */
+    void decode(Section section, int chunkDocs, FieldInfo fieldInfo, SecretKey key, byte[] raw) throws IOException {
+      final long decodeStart = SecureCodecMetrics.start();
+      final int length;
+      try {
+        final Cipher cipher = SecureCipherPool.get(EncryptionAlgorithm, key);
+        cipher.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(raw, 0, IV_LENGTH));
+        decrypted = ArrayUtil.grow(decrypted, cipher.getOutputSize(section.length));
+        length = cipher.doFinal(raw, IV_LENGTH, section.length, decrypted, 0);
+      } catch (GeneralSecurityException ex) {
+        throw new CorruptIndexException("cannot decrypt field " + fieldInfo.name + ": " + ex + " (resource=" + resource + ")");
+      }
+
+      bytesInput.reset(decrypted, 0, length);
+      final int plainLength = bytesInput.readVInt();
+      decompressor.decompress(bytesInput, plainLength, 0, plainLength, section.plain);
+      SecureCodecMetrics.stop(SecureCodecMetrics.Stage.STORED_FIELD_DECRYPT, decodeStart);
+
+      bytesInput.reset(section.plain.bytes, section.plain.offset, section.plain.length);
+      if (section.docStarts.length < chunkDocs + 1) {
+        section.docStarts = new int[ArrayUtil.oversize(chunkDocs + 1, RamUsageEstimator.NUM_BYTES_INT)];
+      }
+      final int[] docLengths = section.docStarts;
+      for (int i = 0; i < chunkDocs; i++) {
+        docLengths[i] = bytesInput.readVInt();
+      }
+      // turn lengths into start offsets
+      int start = bytesInput.getPosition();
+      for (int i = 0; i < chunkDocs; i++) {
+        final int docLength = docLengths[i];
+        docLengths[i] = start;
+        start += docLength;
+      }
+      docLengths[chunkDocs] = start;
+      if (start != section.plain.offset + section.plain.length) {
+        throw new CorruptIndexException("section length mismatch: " + start + " != " + (section.plain.offset + section.plain.length) + " (resource=" + resource + ")");
+      }
+      section.decoded = true;
+    }
+
+    void visitValues(Section section, int doc, FieldInfo fieldInfo, StoredFieldVisitor visitor) throws IOException {
+      final int end = section.docStarts[doc + 1];
+      bytesInput.reset(section.plain.bytes, section.docStarts[doc], end - section.docStarts[doc]);
+      while (bytesInput.getPosition() < end) {
+        final int type = bytesInput.readByte();
+        switch (type) {
+          case SecureCipherStoredFieldsFormat.TYPE_STRING: {
+            final int length = bytesInput.readVInt();
+            final int offset = bytesInput.getPosition();
+            visitor.stringField(fieldInfo, new String(section.plain.bytes, offset, length, IOUtils.CHARSET_UTF_8));
+            bytesInput.skipBytes(length);
+            break;
+          }
+          case SecureCipherStoredFieldsFormat.TYPE_BINARY: {
+            final byte[] value = new byte[bytesInput.readVInt()];
+            bytesInput.readBytes(value, 0, value.length);
+            visitor.binaryField(fieldInfo, value);
+            break;
+          }
+          case SecureCipherStoredFieldsFormat.TYPE_INT:
+            visitor.intField(fieldInfo, bytesInput.readInt());
+            break;
+          case SecureCipherStoredFieldsFormat.TYPE_FLOAT:
+            visitor.floatField(fieldInfo, Float.intBitsToFloat(bytesInput.readInt()));
+            break;
+          case SecureCipherStoredFieldsFormat.TYPE_LONG:
+            visitor.longField(fieldInfo, bytesInput.readLong());
+            break;
+          case SecureCipherStoredFieldsFormat.TYPE_DOUBLE:
+            visitor.doubleField(fieldInfo, Double.longBitsToDouble(bytesInput.readLong()));
+            break;
+          default:
+            throw new CorruptIndexException("unknown value type " + type + " for field " + fieldInfo.name + " (resource=" + resource + ")");
+        }
+      }
+    }
+  }
+
+  /** The still encrypted section of a field, for one document of the chunk */
+  private static final class EncryptedValue extends EncryptedStoredValue {
+    private final byte[] raw;
+    private final int length;
+    private final int chunkDocs;
+    private final int doc;
+    private final String resource;
+
+    EncryptedValue(FieldInfo fieldInfo, byte[] raw, int length, int chunkDocs, int doc, String resource) {
+      super(fieldInfo);
+      this.raw = raw;
+      this.length = length;
+      this.chunkDocs = chunkDocs;
+      this.doc = doc;
+      this.resource = resource;
+    }
+
+    @Override
+    public void decrypt(SecretKey key, StoredFieldVisitor visitor) throws IOException {
+      if (key == null) {
+        return;
+      }
+      final Section section = new Section();
+      section.length = length;
+      final SectionDecoder decoder = new SectionDecoder(resource);
+      decoder.decode(section, chunkDocs, getFieldInfo(), key, raw);
+      decoder.visitValues(section, doc, getFieldInfo(), visitor);
+    }
+
+    @Override
+    public long ramBytesUsed() {
+      // the section is shared by the documents of the chunk
+      return RamUsageEstimator.NUM_BYTES_OBJECT_HEADER + 3 * RamUsageEstimator.NUM_BYTES_OBJECT_REF
+          + 3 * RamUsageEstimator.NUM_BYTES_INT + RamUsageEstimator.sizeOf(raw) / Math.max(1, chunkDocs);
+    }
+  }
+
+  private final FieldInfos fieldInfos;
+  private final StoredFieldsReader reader;
+  private final IndexInput in;
+  private final int[] chunkDocBases;
+  private final long[] chunkStartPointers;
+  private final int numDocs;
+  private boolean closed;
+
+  private final SectionDecoder decoder;
+  private byte[] encrypted = new byte[64];
+
+  // current chunk
+  private int chunk = -1;
+  private int chunkDocs;
+  private int numSections;
+  private Section[] sections = new Section[0];
+
+  public SecureCipherBlockStoredFieldsReader(Codec codec, Directory directory, SegmentInfo si, FieldInfos fn, IOContext context) throws IOException {
+    this.fieldInfos = fn;
+    this.numDocs = si.getDocCount();
+    boolean success = false;
+    StoredFieldsReader reader = null;
+    IndexInput in = null;
+    try {
+      reader = codec.storedFieldsFormat().fieldsReader(directory, si, fn, context);
+      in = directory.openInput(SecureCipherBlockStoredFieldsFormat.getFieldsFileName(si.name), context);
+      CodecUtil.checkHeader(in, CODEC_NAME, VERSION_START, VERSION_CURRENT);
+
+      in.seek(in.length() - 8);
+      in.seek(in.readLong());
+      final int numChunks = in.readVInt();
+      chunkDocBases = new int[numChunks];
+      chunkStartPointers = new long[numChunks];
+      int docBase = 0;
+      long startPointer = 0;
+      for (int i = 0; i < numChunks; i++) {
+        docBase += in.readVInt();
+        startPointer += in.readVLong();
+        chunkDocBases[i] = docBase;
+        chunkStartPointers[i] = startPointer;
+      }
+      this.reader = reader;
+      this.in = in;
+      this.decoder = new SectionDecoder(in.toString());
+      success = true;
+    } finally {
+      if (!success) {
+        IOUtils.closeWhileHandlingException(reader, in);
+      }
+    }
+  }
+
+  // used by clone
+  private SecureCipherBlockStoredFieldsReader(SecureCipherBlockStoredFieldsReader other) {
+    this.fieldInfos = other.fieldInfos;
+    this.reader = other.reader.clone();
+    this.in = other.in.clone();
+    this.chunkDocBases = other.chunkDocBases;
+    this.chunkStartPointers = other.chunkStartPointers;
+    this.numDocs = other.numDocs;
+    this.decoder = new SectionDecoder(other.decoder.resource);
+  }
+
+  /** Returns the reader of the non encrypted fields */
+  public StoredFieldsReader getStoredFieldsReader() { return reader; }
+
+  private void ensureOpen() throws AlreadyClosedException {
+    if (closed) {
+      throw new AlreadyClosedException("this SecureCipherBlockStoredFieldsReader is closed");
+    }
+  }
+
+  /** Remembers whether the visitor asked to stop while visiting the non encrypted fields */
+  static final class StopTrackingVisitor extends StoredFieldVisitor {
+    private final StoredFieldVisitor visitor;
+    boolean stopped;
+
+    StopTrackingVisitor(StoredFieldVisitor visitor) {
+      this.visitor = visitor;
+    }
+
+    @Override
+    public void binaryField(FieldInfo fieldInfo, byte[] value) throws IOException {
+      visitor.binaryField(fieldInfo, value);
+    }
+
+    @Override
+    public void stringField(FieldInfo fieldInfo, String value) throws IOException {
+      visitor.stringField(fieldInfo, value);
+    }
+
+    @Override
+    public void intField(FieldInfo fieldInfo, int value) throws IOException {
+      visitor.intField(fieldInfo, value);
+    }
+
+    @Override
+    public void longField(FieldInfo fieldInfo, long value) throws IOException {
+      visitor.longField(fieldInfo, value);
+    }
+
+    @Override
+    public void floatField(FieldInfo fieldInfo, float value) throws IOException {
+      visitor.floatField(fieldInfo, value);
+    }
+
+    @Override
+    public void doubleField(FieldInfo fieldInfo, double value) throws IOException {
+      visitor.doubleField(fieldInfo, value);
+    }
+
+    @Override
+    public Status needsField(FieldInfo fieldInfo) throws IOException {
+      final Status status = visitor.needsField(fieldInfo);
+      if (status == Status.STOP) {
+        stopped = true;
+      }
+      return status;
+    }
+  }
+
+  @Override
+  public void visitDocument(int docID, StoredFieldVisitor visitor) throws IOException {
+    ensureOpen();
+    final StopTrackingVisitor tracking = new StopTrackingVisitor(visitor);
+    reader.visitDocument(docID, tracking);
+    if (tracking.stopped) {
+      return;
+    }
+    if (docID < 0 || docID >= numDocs) {
+      throw new IllegalArgumentException("docID=" + docID + " is out of bounds [0:" + numDocs + "]");
+    }
+
+    loadChunk(docID);
+    final int doc = docID - chunkDocBases[chunk];
+    for (int i = 0; i < numSections; i++) {
+      final Section section = sections[i];
+      final FieldInfo fieldInfo = fieldInfos.fieldInfo(section.fieldNumber);
+      if (section.decoded && section.docStarts[doc] == section.docStarts[doc + 1]) {
+        continue; // no values for this document
+      }
+      if (visitor instanceof EncryptedStoredFieldVisitor) {
+        switch (visitor.needsField(fieldInfo)) {
+          case YES:
+            if (section.raw == null) {
+              in.seek(section.startPointer);
+              section.raw = new byte[IV_LENGTH + section.length];
+              in.readBytes(section.raw, 0, section.raw.length);
+            }
+            ((EncryptedStoredFieldVisitor) visitor).encryptedField(
+                new EncryptedValue(fieldInfo, section.raw, section.length, chunkDocs, doc, decoder.resource));
+            break;
+          case NO:
+            break;
+          case STOP:
+            return;
+        }
+        continue;
+      }
+      final SecretKey key = SecureCipherUtil.getKey(fieldInfo);
+      if (key == null) {
+        continue;
+      }
+      switch (visitor.needsField(fieldInfo)) {
+        case YES:
+          if (!section.decoded) {
+            decode(section, fieldInfo, key);
+          }
+          decoder.visitValues(section, doc, fieldInfo, visitor);
+          break;
+        case NO:
+          break;
+        case STOP:
+          return;
+      }
+    }
+  }
+
+  /** Reads the section headers of the chunk holding <code>docID</code>, if it is not the current chunk */
+  private void loadChunk(int docID) throws IOException {
+    if (chunk >= 0 && docID >= chunkDocBases[chunk] && docID < chunkDocBases[chunk] + chunkDocs) {
+      return;
+    }
+    int index = Arrays.binarySearch(chunkDocBases, docID);
+    if (index < 0) {
+      index = -2 - index;
+    }
+    in.seek(chunkStartPointers[index]);
+    chunkDocs = in.readVInt();
+    numSections = in.readVInt();
+    if (docID >= chunkDocBases[index] + chunkDocs) {
+      throw new CorruptIndexException("docID=" + docID + " is not in chunk " + index + " (resource=" + in + ")");
+    }
+    if (sections.length < numSections) {
+      final Section[] newSections = new Section[ArrayUtil.oversize(numSections, RamUsageEstimator.NUM_BYTES_OBJECT_REF)];
+      System.arraycopy(sections, 0, newSections, 0, sections.length);
+      for (int i = sections.length; i < newSections.length; i++) {
+        newSections[i] = new Section();
+      }
+      sections = newSections;
+    }
+    for (int i = 0; i < numSections; i++) {
+      final Section section = sections[i];
+      section.fieldNumber = in.readVInt();
+      section.length = in.readVInt();
+      section.startPointer = in.getFilePointer();
+      section.decoded = false;
+      section.raw = null;
+      in.seek(section.startPointer + IV_LENGTH + section.length);
+    }
+    chunk = index;
+  }
+
+  /** Decrypts and decompresses a section of the current chunk */
+  private void decode(Section section, FieldInfo fieldInfo, SecretKey key) throws IOException {
+    byte[] raw = section.raw;
+    if (raw == null) {
+      in.seek(section.startPointer);
+      encrypted = ArrayUtil.grow(encrypted, IV_LENGTH + section.length);
+      in.readBytes(encrypted, 0, IV_LENGTH + section.length);
+      raw = encrypted;
+    }
+    decoder.decode(section, chunkDocs, fieldInfo, key, raw);
+  }
+
+  @Override
+  public StoredFieldsReader clone() {
+    ensureOpen();
+    return new SecureCipherBlockStoredFieldsReader(this);
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (!closed) {
+      IOUtils.close(reader, in);
+      closed = true;
+    }
+  }
+
+  @Override
+  public long ramBytesUsed() {
+    return reader.ramBytesUsed()
+        + RamUsageEstimator.sizeOf(chunkDocBases)
+        + RamUsageEstimator.sizeOf(chunkStartPointers);
+  }
+}
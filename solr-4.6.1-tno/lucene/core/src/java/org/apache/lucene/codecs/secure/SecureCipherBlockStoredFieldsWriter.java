@@ -0,0 +1,496 @@
+package org.apache.lucene.codecs.secure;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.lucene.codecs.Codec;
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.codecs.StoredFieldsWriter;
+import org.apache.lucene.codecs.compressing.Compressor;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.FieldInfos;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.index.MergeState;
+import org.apache.lucene.index.SegmentInfo;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.GrowableByteArrayDataOutput;
+import org.apache.lucene.util.IOUtils;
+import org.apache.lucene.util.RamUsageEstimator;
+import org.apache.lucene.util.ThreadInterruptedException;
+import org.apache.lucene.util.UnicodeUtil;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import static org.apache.lucene.codecs.secure.SecureCipherBlockStoredFieldsFormat.CHUNK_SIZE;
+import static org.apache.lucene.codecs.secure.SecureCipherBlockStoredFieldsFormat.CODEC_NAME;
+import static org.apache.lucene.codecs.secure.SecureCipherBlockStoredFieldsFormat.COMPRESSION_MODE;
+import static org.apache.lucene.codecs.secure.SecureCipherBlockStoredFieldsFormat.EncryptionAlgorithm;
+import static org.apache.lucene.codecs.secure.SecureCipherBlockStoredFieldsFormat.IV_LENGTH;
+import static org.apache.lucene.codecs.secure.SecureCipherBlockStoredFieldsFormat.MAX_DOCS_PER_CHUNK;
+import static org.apache.lucene.codecs.secure.SecureCipherBlockStoredFieldsFormat.MAX_PENDING_BYTES;
+import static org.apache.lucene.codecs.secure.SecureCipherBlockStoredFieldsFormat.VERSION_CURRENT;
+
+/**
+ * Writes encrypted stored fields in chunks, see {@link SecureCipherBlockStoredFieldsFormat}.
+ * <p>
+ * With a flush executor, full chunks are only compressed while documents are added, and
+ * kept in memory until the segment is flushed, or {@link SecureCipherBlockStoredFieldsFormat#MAX_PENDING_BYTES}
+ * of them are pending. Their sections are then encrypted in parallel on the executor and
+ * written in order. The pending bytes are reported by {@link #ramBytesUsed()}, so that
+ * IndexWriter flushes the segment when they fill its RAM buffer. The plaintext of a pending section is zeroed as soon as it is
+ * encrypted, or when the writer is aborted.
+ * @lucene.experimental
+ */
+public class SecureCipherBlockStoredFieldsWriter extends SecureStoredFieldsWriter {
+
+  /** Buffered values of one encrypted field for the current chunk */
+  private static final class Section {
+    final FieldInfo fieldInfo;
+    final GrowableByteArrayDataOutput values = new GrowableByteArrayDataOutput(256);
+    int[] docLengths = new int[16];  // bytes of values per document of the chunk
+    boolean used;                   // has values in the current chunk
+
+    Section(FieldInfo fieldInfo) {
+      this.fieldInfo = fieldInfo;
+    }
+  }
+
+  /** A compressed section of a full chunk, waiting to be encrypted */
+  private static final class PendingSection {
+    final FieldInfo fieldInfo;
+    final SecretKey key;
+    final byte[] compressed;
+    byte[] iv;
+    byte[] encrypted;
+    int length;
+
+    PendingSection(FieldInfo fieldInfo, SecretKey key, byte[] compressed) {
+      this.fieldInfo = fieldInfo;
+      this.key = key;
+      this.compressed = compressed;
+    }
+
+    void encrypt() throws IOException {
+      try {
+        final Cipher cipher = SecureCipherPool.get(EncryptionAlgorithm, key);
+        cipher.init(Cipher.ENCRYPT_MODE, key);
+        iv = cipher.getIV();
+        encrypted = new byte[cipher.getOutputSize(compressed.length)];
+        length = cipher.doFinal(compressed, 0, compressed.length, encrypted, 0);
+      } catch (GeneralSecurityException ex) {
+        throw new IOException("cannot encrypt field " + fieldInfo.name, ex);
+      } finally {
+        Arrays.fill(compressed, (byte) 0);
+      }
+      assert iv.length == IV_LENGTH;
+    }
+  }
+
+  /** A full chunk whose sections are not encrypted yet */
+  private static final class PendingChunk implements Callable<Void> {
+    final int ord;
+    final int numDocs;
+    final List<PendingSection> sections = new ArrayList<PendingSection>();
+
+    PendingChunk(int ord, int numDocs) {
+      this.ord = ord;
+      this.numDocs = numDocs;
+    }
+
+    @Override
+    public Void call() throws IOException {
+      for (PendingSection section : sections) {
+        section.encrypt();
+      }
+      return null;
+    }
+
+    void clear() {
+      for (PendingSection section : sections) {
+        Arrays.fill(section.compressed, (byte) 0);
+      }
+      sections.clear();
+    }
+  }
+
+  private final Directory directory;
+  private final String segment;
+  private final SegmentInfo segmentInfo;
+  private final StoredFieldsWriter writer;
+  private IndexOutput out;
+  private final Compressor compressor = COMPRESSION_MODE.newCompressor();
+  private final ExecutorService flushExecutor;  // null to encrypt chunks as they are full
+
+  // non encrypted fields of the current document, written when the document is finished
+  private final List<FieldInfo> plainInfos = new ArrayList<FieldInfo>();
+  private final List<IndexableField> plainFields = new ArrayList<IndexableField>();
+
+  private Section[] sections = new Section[8]; // by field number
+  private final List<Section> usedSections = new ArrayList<Section>();
+  private int docBase;           // doc ID at the beginning of the chunk
+  private int numBufferedDocs;   // docBase + numBufferedDocs == current doc ID
+  private int bufferedBytes;
+
+  // chunk index
+  private int numChunks;
+  private int[] chunkDocBases = new int[16];
+  private long[] chunkStartPointers = new long[16];
+
+  // full chunks waiting to be encrypted on the flush executor
+  private final List<PendingChunk> pendingChunks = new ArrayList<PendingChunk>();
+  private long pendingBytes;
+
+  // scratch buffers for writing a section
+  private final GrowableByteArrayDataOutput plain = new GrowableByteArrayDataOutput(CHUNK_SIZE);
+  private final GrowableByteArrayDataOutput compressed = new GrowableByteArrayDataOutput(CHUNK_SIZE);
+  private byte[] encrypted = new byte[CHUNK_SIZE];
+  private final BytesRef scratch = new BytesRef(16);
+
+  public SecureCipherBlockStoredFieldsWriter(Codec codec, Directory directory, SegmentInfo si, IOContext context) throws IOException {
+    this(codec, directory, si, context, null);
+  }
+
+  /**
+   * Creates a writer that defers the encryption of full chunks to the flush of the segment,
+   * where they are encrypted on <code>flushExecutor</code>; a <code>null</code> executor
+   * encrypts every chunk as soon as it is full.
+   */
+  public SecureCipherBlockStoredFieldsWriter(Codec codec, Directory directory, SegmentInfo si, IOContext context,
+                                             ExecutorService flushExecutor) throws IOException {
+    this.flushExecutor = flushExecutor;
+    this.directory = directory;
+    this.segment = si.name;
+    this.segmentInfo = si;
+    this.writer = codec.storedFieldsFormat().fieldsWriter(directory, si, context);
+    boolean success = false;
+    try {
+      out = directory.createOutput(SecureCipherBlockStoredFieldsFormat.getFieldsFileName(segment), context);
+      CodecUtil.writeHeader(out, CODEC_NAME, VERSION_CURRENT);
+      success = true;
+    } finally {
+      if (!success) {
+        abort();
+      }
+    }
+  }
+
+  @Override
+  public void startDocument(int numStoredFields) throws IOException {
+    // the wrapped writer needs the number of non encrypted fields, which is only known
+    // once all fields of the document were written
+    assert plainFields.isEmpty();
+  }
+
+  @Override
+  public void writeField(FieldInfo info, IndexableField field) throws IOException {
+    if (!info.isEncrypted()) {
+      plainInfos.add(info);
+      plainFields.add(field);
+      return;
+    }
+
+    final Section section = getSection(info);
+    final GrowableByteArrayDataOutput values = section.values;
+    final int start = values.length;
+    final Number n = field.numericValue();
+    if (n != null) {
+      if (n instanceof Byte || n instanceof Short || n instanceof Integer) {
+        values.writeByte((byte) SecureCipherStoredFieldsFormat.TYPE_INT);
+        values.writeInt(n.intValue());
+      } else if (n instanceof Long) {
+        values.writeByte((byte) SecureCipherStoredFieldsFormat.TYPE_LONG);
+        values.writeLong(n.longValue());
+      } else if (n instanceof Float) {
+        values.writeByte((byte) SecureCipherStoredFieldsFormat.TYPE_FLOAT);
+        values.writeInt(Float.floatToIntBits(n.floatValue()));
+      } else if (n instanceof Double) {
+        values.writeByte((byte) SecureCipherStoredFieldsFormat.TYPE_DOUBLE);
+        values.writeLong(Double.doubleToLongBits(n.doubleValue()));
+      } else {
+        throw new IllegalArgumentException("cannot store numeric type " + n.getClass());
+      }
+    } else {
+      BytesRef bytes = field.binaryValue();
+      if (bytes != null) {
+        values.writeByte((byte) SecureCipherStoredFieldsFormat.TYPE_BINARY);
+      } else if (field.stringValue() == null) {
+        throw new IllegalArgumentException("field " + field.name() + " is stored but does not have binaryValue, stringValue nor numericValue");
+      } else {
+        values.writeByte((byte) SecureCipherStoredFieldsFormat.TYPE_STRING);
+        final String s = field.stringValue();
+        UnicodeUtil.UTF16toUTF8(s, 0, s.length(), scratch);
+        bytes = scratch;
+      }
+      values.writeVInt(bytes.length);
+      values.writeBytes(bytes.bytes, bytes.offset, bytes.length);
+    }
+
+    section.docLengths[numBufferedDocs] += values.length - start;
+    bufferedBytes += values.length - start;
+  }
+
+  private Section getSection(FieldInfo info) {
+    if (info.number >= sections.length) {
+      sections = Arrays.copyOf(sections, ArrayUtil.oversize(info.number + 1, RamUsageEstimator.NUM_BYTES_OBJECT_REF));
+    }
+    Section section = sections[info.number];
+    if (section == null) {
+      section = sections[info.number] = new Section(info);
+    }
+    if (!section.used) {
+      section.used = true;
+      usedSections.add(section);
+    }
+    if (section.docLengths.length <= numBufferedDocs) {
+      section.docLengths = ArrayUtil.grow(section.docLengths, numBufferedDocs + 1);
+    }
+    return section;
+  }
+
+  @Override
+  public void finishDocument() throws IOException {
+    writer.startDocument(plainFields.size());
+    for (int i = 0; i < plainFields.size(); i++) {
+      writer.writeField(plainInfos.get(i), plainFields.get(i));
+    }
+    writer.finishDocument();
+    plainInfos.clear();
+    plainFields.clear();
+
+    ++numBufferedDocs;
+    if (bufferedBytes >= CHUNK_SIZE || numBufferedDocs >= MAX_DOCS_PER_CHUNK) {
+      flushChunk();
+    }
+  }
+
+  private void flushChunk() throws IOException {
+    // ints and longs do not grow to the same sizes
+    chunkDocBases = ArrayUtil.grow(chunkDocBases, numChunks + 1);
+    chunkStartPointers = ArrayUtil.grow(chunkStartPointers, numChunks + 1);
+    chunkDocBases[numChunks] = docBase;
+
+    PendingChunk pending = null;
+    if (flushExecutor == null) {
+      chunkStartPointers[numChunks] = out.getFilePointer();
+      out.writeVInt(numBufferedDocs);
+      out.writeVInt(usedSections.size());
+    } else {
+      pending = new PendingChunk(numChunks, numBufferedDocs);
+      pendingChunks.add(pending);
+    }
+    numChunks++;
+
+    for (Section section : usedSections) {
+      // the last documents of the chunk may not have this field
+      section.docLengths = ArrayUtil.grow(section.docLengths, numBufferedDocs);
+      compressSection(section);
+      if (pending == null) {
+        writeSection(section.fieldInfo);
+      } else {
+        pending.sections.add(new PendingSection(section.fieldInfo, getKey(section.fieldInfo), Arrays.copyOf(compressed.bytes, compressed.length)));
+        pendingBytes += compressed.length;
+      }
+      Arrays.fill(section.values.bytes, 0, section.values.length, (byte) 0);
+      section.values.length = 0;
+      Arrays.fill(section.docLengths, 0, numBufferedDocs, 0);
+      section.used = false;
+    }
+    usedSections.clear();
+    Arrays.fill(plain.bytes, 0, plain.length, (byte) 0);
+    Arrays.fill(compressed.bytes, 0, compressed.length, (byte) 0);
+
+    docBase += numBufferedDocs;
+    numBufferedDocs = 0;
+    bufferedBytes = 0;
+
+    if (pendingBytes >= MAX_PENDING_BYTES) {
+      writePendingChunks();
+    }
+  }
+
+  @Override
+  public long ramBytesUsed() {
+    return pendingBytes;
+  }
+
+  /** Compresses the buffered values of <code>section</code> into {@link #compressed} */
+  private void compressSection(Section section) throws IOException {
+    plain.length = 0;
+    for (int i = 0; i < numBufferedDocs; i++) {
+      plain.writeVInt(section.docLengths[i]);
+    }
+    plain.writeBytes(section.values.bytes, 0, section.values.length);
+
+    compressed.length = 0;
+    compressed.writeVInt(plain.length);
+    compressor.compress(plain.bytes, 0, plain.length, compressed);
+  }
+
+  private SecretKey getKey(FieldInfo fieldInfo) {
+    final SecretKey key = SecureCipherUtil.getWriteKey(segmentInfo, fieldInfo);
+    if (key == null) {
+      throw new IllegalStateException("no key for encrypted field " + fieldInfo.name);
+    }
+    return key;
+  }
+
+  /** Encrypts the section in {@link #compressed} and writes it */
+  private void writeSection(FieldInfo fieldInfo) throws IOException {
+    final SecretKey key = getKey(fieldInfo);
+    final byte[] iv;
+    final int length;
+    try {
+      final Cipher cipher = SecureCipherPool.get(EncryptionAlgorithm, key);
+      cipher.init(Cipher.ENCRYPT_MODE, key);
+      iv = cipher.getIV();
+      encrypted = ArrayUtil.grow(encrypted, cipher.getOutputSize(compressed.length));
+      length = cipher.doFinal(compressed.bytes, 0, compressed.length, encrypted, 0);
+    } catch (GeneralSecurityException ex) {
+      throw new IOException("cannot encrypt field " + fieldInfo.name, ex);
+    }
+    assert iv.length == IV_LENGTH;
+
+    out.writeVInt(fieldInfo.number);
+    out.writeVInt(length);
+    out.writeBytes(iv, 0, IV_LENGTH);
+    out.writeBytes(encrypted, 0, length);
+  }
+
+  /** Encrypts the pending chunks in parallel, and writes them in order */
+  private void writePendingChunks() throws IOException {
+    if (pendingChunks.isEmpty()) {
+      return;
+    }
+    try {
+      final List<Future<Void>> futures;
+      try {
+        futures = flushExecutor.invokeAll(pendingChunks);
+      } catch (InterruptedException e) {
+        throw new ThreadInterruptedException(e);
+      }
+      for (Future<Void> future : futures) {
+        try {
+          future.get();
+        } catch (InterruptedException e) {
+          throw new ThreadInterruptedException(e);
+        } catch (ExecutionException e) {
+          final Throwable cause = e.getCause();
+          if (cause instanceof IOException) {
+            throw (IOException) cause;
+          } else if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+          } else if (cause instanceof Error) {
+            throw (Error) cause;
+          }
+          throw new RuntimeException(cause);
+        }
+      }
+
+      for (PendingChunk chunk : pendingChunks) {
+        chunkStartPointers[chunk.ord] = out.getFilePointer();
+        out.writeVInt(chunk.numDocs);
+        out.writeVInt(chunk.sections.size());
+        for (PendingSection section : chunk.sections) {
+          out.writeVInt(section.fieldInfo.number);
+          out.writeVInt(section.length);
+          out.writeBytes(section.iv, 0, IV_LENGTH);
+          out.writeBytes(section.encrypted, 0, section.length);
+        }
+      }
+    } finally {
+      clearPendingChunks();
+    }
+  }
+
+  private void clearPendingChunks() {
+    for (PendingChunk chunk : pendingChunks) {
+      chunk.clear();
+    }
+    pendingChunks.clear();
+    pendingBytes = 0;
+  }
+
+  @Override
+  public void finish(FieldInfos fis, int numDocs) throws IOException {
+    if (numBufferedDocs > 0) {
+      flushChunk();
+    }
+    if (flushExecutor != null) {
+      writePendingChunks();
+    }
+    if (docBase != numDocs) {
+      throw new RuntimeException("Wrote " + docBase + " docs, finish called with numDocs=" + numDocs);
+    }
+
+    final long indexStart = out.getFilePointer();
+    out.writeVInt(numChunks);
+    int previousDocBase = 0;
+    long previousStartPointer = 0;
+    for (int i = 0; i < numChunks; i++) {
+      out.writeVInt(chunkDocBases[i] - previousDocBase);
+      out.writeVLong(chunkStartPointers[i] - previousStartPointer);
+      previousDocBase = chunkDocBases[i];
+      previousStartPointer = chunkStartPointers[i];
+    }
+    out.writeLong(indexStart);
+
+    writer.finish(fis, numDocs);
+  }
+
+  @Override
+  public int merge(MergeState mergeState) throws IOException {
+    // values are re-encrypted, so the keys of all encrypted fields must be available
+    for (FieldInfo fi : mergeState.fieldInfos) {
+      if (fi.isEncrypted() && !SecureCipherUtil.hasKey(fi.name)) {
+        throw new IllegalStateException("cannot merge encrypted stored field " + fi.name + " without its key");
+      }
+    }
+    return super.merge(mergeState);
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      IOUtils.close(out, writer);
+    } finally {
+      out = null;
+    }
+  }
+
+  @Override
+  public void abort() {
+    clearPendingChunks();
+    IOUtils.closeWhileHandlingException(out);
+    out = null;
+    IOUtils.deleteFilesIgnoringExceptions(directory, SecureCipherBlockStoredFieldsFormat.getFieldsFileName(segment));
+    writer.abort();
+  }
+}
@@ -0,0 +1,734 @@
+package org.apache.lucene.codecs.secure;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.codecs.FieldsConsumer;
+import org.apache.lucene.codecs.FieldsProducer;
+import org.apache.lucene.codecs.PostingsConsumer;
+import org.apache.lucene.codecs.PostingsFormat;
+import org.apache.lucene.codecs.TermStats;
+import org.apache.lucene.codecs.TermsConsumer;
+import org.apache.lucene.index.DocsAndPositionsEnum;
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.FieldInfos;
+import org.apache.lucene.index.IndexFileNames;
+import org.apache.lucene.index.SegmentReadState;
+import org.apache.lucene.index.SegmentWriteState;
+import org.apache.lucene.index.TermState;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.AttributeSource;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.IOUtils;
+import org.apache.lucene.util.RamUsageEstimator;
+import org.apache.lucene.util.automaton.CompiledAutomaton;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/**
+ * Wraps a secure postings format with a Bloom filter per segment and field over keyed
+ * hashes of the terms, so that a lookup of a term that a segment does not hold is answered
+ * without touching its terms dictionary or any ciphertext.
+ * <p>
+ * Similar in spirit to the <code>BloomFilteringPostingsFormat</code> of the codecs module,
+ * except that the term hashes are an HMAC-SHA256 under a key derived from the key of the
+ * field, HMAC(key, "bloom"), so that the key itself is only used to encrypt. The filter
+ * tells nothing about the terms to whoever does not hold the key, and is only used while
+ * the field has the key the filter was written with. It is checked with a keyed check
+ * value stored next to it; with another key, or none, lookups go straight to the wrapped
+ * format. Only {@link TermsEnum#seekExact(BytesRef)} is filtered, which is how term
+ * queries and point lookups find their terms; enumerations and ceiling seeks are not.
+ * <p>
+ * Filters are sized at {@link #BITS_PER_TERM} bits per term with {@link #NUM_HASHES}
+ * hash functions, derived from one HMAC by double hashing, which gives about 1% false
+ * positives. They are held in memory for the life of the segment. The hashers, which
+ * hold the derived keys, are kept per thread and key, like the ciphers of
+ * {@link SecureCipherPool}, and dropped whenever a key changes.
+ * <p>
+ * File format of the <code>.blm.enc</code> file:
+ * <ul>
+ *   <li>File: Header, DelegateName (String), NumFields (vInt), Filter<sup>NumFields</sup></li>
+ *   <li>Header: {@link org.apache.lucene.codecs.CodecUtil#writeHeader CodecHeader}</li>
+ *   <li>Filter: FieldNumber (vInt), KeyCheck (long), NumHashes (byte), NumBits (vInt), Bits (long<sup>NumBits/64</sup>)</li>
+ * </ul>
+ *
+ * @lucene.experimental
+ */
+public final class SecureCipherBloomPostingsFormat extends SecurePostingsFormat {
+  /** Extension of the Bloom filters file */
+  public static final String BLOOM_EXTENSION = "blm.enc";
+
+  static final String CODEC_NAME = "SecureCipherBloomPostingsFormat";
+  static final int VERSION_START = 0;
+  /** Terms are hashed under a key derived from the key of the field; older filters are not used */
+  static final int VERSION_DERIVED_KEY = 1;
+  static final int VERSION_CURRENT = VERSION_DERIVED_KEY;
+
+  /** {@link FieldInfo} attribute with the name of the wrapped format */
+  public static final String DELEGATE_FORMAT_KEY = SecureCipherBloomPostingsFormat.class.getSimpleName() + ".delegate";
+
+  static final String HASH_ALGORITHM = "HmacSHA256";
+  /** Bits of a filter per term of the field */
+  public static final int BITS_PER_TERM = 10;
+  /** Number of bits set per term */
+  public static final int NUM_HASHES = 7;
+
+  /** Maximum number of term hashers kept per thread */
+  static final int MAX_HASHERS_PER_THREAD = 64;
+
+  // what the key check value is the hash of
+  private static final BytesRef KEY_CHECK = new BytesRef("SecureCipherBloomPostingsFormat key check");
+  // what the MAC key is derived from, under the key of the field
+  private static final byte[] MAC_KEY_LABEL = new byte[] {'b', 'l', 'o', 'o', 'm'};
+
+  private final SecurePostingsFormat delegate;
+
+  /** Wraps <code>delegate</code>, which writes the terms and postings */
+  public SecureCipherBloomPostingsFormat(SecurePostingsFormat delegate) {
+    super(CODEC_NAME);
+    this.delegate = delegate;
+  }
+
+  /** Used by SPI to read segments; the wrapped format is read from the segment */
+  public SecureCipherBloomPostingsFormat() {
+    this(null);
+  }
+
+  @Override
+  public boolean usesPageCache() {
+    return delegate != null && delegate.usesPageCache();
+  }
+
+  @Override
+  public boolean usesPageCache(FieldInfo field) {
+    if (delegate != null) {
+      return delegate.usesPageCache(field);
+    }
+    // created by SPI: the wrapped format is the one the segment was written with
+    final String delegateName = field.getAttribute(DELEGATE_FORMAT_KEY);
+    if (delegateName == null) {
+      return false;
+    }
+    final PostingsFormat format = PostingsFormat.forName(delegateName);
+    return format instanceof SecurePostingsFormat && ((SecurePostingsFormat) format).usesPageCache(field);
+  }
+
+  static String getBloomFileName(String segment, String segmentSuffix) {
+    return IndexFileNames.segmentFileName(segment, segmentSuffix, BLOOM_EXTENSION);
+  }
+
+  @Override
+  public FieldsConsumer fieldsConsumer(SegmentWriteState state) throws IOException {
+    if (delegate == null) {
+      throw new UnsupportedOperationException(getClass().getName() + " was created without a postings format to wrap");
+    }
+    return new BloomFieldsConsumer(delegate.fieldsConsumer(state), state, delegate.getName());
+  }
+
+  @Override
+  public FieldsProducer fieldsProducer(SegmentReadState state) throws IOException {
+    return new BloomFieldsProducer(state);
+  }
+
+  /** Computes the keyed hashes of terms; not thread safe */
+  static final class TermHasher {
+    private final Mac mac;
+    private final byte[] hash;
+
+    TermHasher(SecretKey key) {
+      try {
+        mac = Mac.getInstance(HASH_ALGORITHM);
+        mac.init(new SecretKeySpec(key.getEncoded(), HASH_ALGORITHM));
+        // the MAC key is HMAC(key, "bloom")
+        mac.init(new SecretKeySpec(mac.doFinal(MAC_KEY_LABEL), HASH_ALGORITHM));
+      } catch (GeneralSecurityException e) {
+        throw new IllegalStateException("cannot create " + HASH_ALGORITHM, e);
+      }
+      hash = new byte[mac.getMacLength()];
+    }
+
+    /**
+     * Returns this thread's hasher for <code>key</code>, which it may use until its next
+     * call for the same key. Creating a hasher derives the MAC key and initializes a Mac,
+     * which the lookups of a term would otherwise pay for every time.
+     */
+    static TermHasher get(SecretKey key) {
+      final ThreadHashers pool = hashers.get();
+      // only contended while another thread empties the pool
+      synchronized (pool) {
+        TermHasher hasher = pool.get(new HasherKey(key));
+        if (hasher == null) {
+          hasher = new TermHasher(key);
+          pool.put(new HasherKey(key), hasher);
+        }
+        return hasher;
+      }
+    }
+
+    /** Hashes <code>term</code>; {@link #h1()} and {@link #h2()} then return two independent halves of the hash */
+    void hash(BytesRef term) {
+      mac.update(term.bytes, term.offset, term.length);
+      try {
+        mac.doFinal(hash, 0);
+      } catch (GeneralSecurityException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+
+    long h1() {
+      return SecureCipherStoredFieldsReader.readLong(hash, 0);
+    }
+
+    long h2() {
+      return SecureCipherStoredFieldsReader.readLong(hash, 8);
+    }
+
+    long keyCheck() {
+      hash(KEY_CHECK);
+      return h1();
+    }
+  }
+
+  /** A key of the hasher pools, compared by identity like the keys of {@link SecureCipherPool} */
+  private static final class HasherKey {
+    final SecretKey key;
+
+    HasherKey(SecretKey key) {
+      this.key = key;
+    }
+
+    @Override
+    public int hashCode() {
+      return System.identityHashCode(key);
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      return other instanceof HasherKey && ((HasherKey) other).key == key;
+    }
+  }
+
+  /** The hashers of one thread, least recently used first */
+  private static final class ThreadHashers extends LinkedHashMap<HasherKey,TermHasher> {
+    private static final long serialVersionUID = 1L;
+
+    ThreadHashers() {
+      super(16, 0.75f, true);
+    }
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<HasherKey,TermHasher> eldest) {
+      return size() > MAX_HASHERS_PER_THREAD;
+    }
+
+    // pools are tracked by identity, not by their hashers
+    @Override
+    public boolean equals(Object other) {
+      return this == other;
+    }
+
+    @Override
+    public int hashCode() {
+      return System.identityHashCode(this);
+    }
+  }
+
+  // the hasher pools of all live threads, so that a key change can empty them
+  private static final Set<ThreadHashers> hasherPools =
+      Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<ThreadHashers,Boolean>()));
+
+  private static final ThreadLocal<ThreadHashers> hashers = new ThreadLocal<ThreadHashers>() {
+    @Override
+    protected ThreadHashers initialValue() {
+      final ThreadHashers pool = new ThreadHashers();
+      hasherPools.add(pool);
+      return pool;
+    }
+  };
+
+  static {
+    // the hashers hold MAC keys derived from the keys
+    SecureCipherUtil.addKeyChangeListener(new SecureCipherUtil.KeyChangeListener() {
+      @Override
+      public void keyChanged(String field) {
+        synchronized (hasherPools) {
+          for (ThreadHashers pool : hasherPools) {
+            synchronized (pool) {
+              pool.clear();
+            }
+          }
+        }
+      }
+    });
+  }
+
+  /** The bit to set or test for the i-th hash of a term hashed to h1 and h2 */
+  static int bit(long h1, long h2, int i, int numBits) {
+    return (int) (((h1 + i * h2) & Long.MAX_VALUE) % numBits);
+  }
+
+  /** The filter of one field in a segment */
+  static final class Filter {
+    final long keyCheck;
+    final int numHashes;
+    final FixedBitSet bits;
+    // the last key that was found to match keyCheck
+    private volatile SecretKey checkedKey;
+
+    Filter(long keyCheck, int numHashes, FixedBitSet bits) {
+      this.keyCheck = keyCheck;
+      this.numHashes = numHashes;
+      this.bits = bits;
+    }
+
+    /** Returns true if the filter was written with <code>key</code> */
+    boolean accepts(SecretKey key) {
+      if (key == null) {
+        return false;
+      }
+      if (key.equals(checkedKey)) {
+        return true;
+      }
+      if (TermHasher.get(key).keyCheck() == keyCheck) {
+        checkedKey = key;
+        return true;
+      }
+      return false;
+    }
+
+    /** Returns false if the term last hashed by <code>hasher</code> is certainly absent */
+    boolean mayContain(TermHasher hasher) {
+      final long h1 = hasher.h1();
+      final long h2 = hasher.h2();
+      for (int i = 0; i < numHashes; i++) {
+        if (!bits.get(bit(h1, h2, i, bits.length()))) {
+          return false;
+        }
+      }
+      return true;
+    }
+  }
+
+  private static final class BloomFieldsConsumer extends FieldsConsumer {
+    private final FieldsConsumer delegateConsumer;
+    private final SegmentWriteState state;
+    private final String delegateName;
+    private final List<BloomTermsConsumer> fields = new ArrayList<BloomTermsConsumer>();
+
+    BloomFieldsConsumer(FieldsConsumer delegateConsumer, SegmentWriteState state, String delegateName) {
+      this.delegateConsumer = delegateConsumer;
+      this.state = state;
+      this.delegateName = delegateName;
+    }
+
+    @Override
+    public TermsConsumer addField(FieldInfo field) throws IOException {
+      final TermsConsumer termsConsumer = delegateConsumer.addField(field);
+      field.putAttribute(DELEGATE_FORMAT_KEY, delegateName);
+      final SecretKey key = field.isEncrypted() ? SecureCipherUtil.getWriteKey(state.segmentInfo, field) : null;
+      if (key == null) {
+        return termsConsumer;
+      }
+      final BloomTermsConsumer bloomConsumer = new BloomTermsConsumer(termsConsumer, field, key);
+      fields.add(bloomConsumer);
+      return bloomConsumer;
+    }
+
+    @Override
+    public void close() throws IOException {
+      IndexOutput out = null;
+      boolean success = false;
+      try {
+        delegateConsumer.close();
+        out = state.directory.createOutput(getBloomFileName(state.segmentInfo.name, state.segmentSuffix), state.context);
+        CodecUtil.writeHeader(out, CODEC_NAME, VERSION_CURRENT);
+        out.writeString(delegateName);
+        int numFilters = 0;
+        for (BloomTermsConsumer field : fields) {
+          if (field.bits != null) {
+            numFilters++;
+          }
+        }
+        out.writeVInt(numFilters);
+        for (BloomTermsConsumer field : fields) {
+          if (field.bits == null) {
+            continue;
+          }
+          out.writeVInt(field.field.number);
+          out.writeLong(field.keyCheck);
+          out.writeByte((byte) NUM_HASHES);
+          out.writeVInt(field.bits.length());
+          for (long word : field.bits.getBits()) {
+            out.writeLong(word);
+          }
+        }
+        success = true;
+      } finally {
+        if (success) {
+          IOUtils.close(out);
+        } else {
+          IOUtils.closeWhileHandlingException(out);
+        }
+        fields.clear();
+      }
+    }
+  }
+
+  private static final class BloomTermsConsumer extends TermsConsumer {
+    private final TermsConsumer delegateConsumer;
+    final FieldInfo field;
+    private final TermHasher hasher;
+    final long keyCheck;
+    // the two hash halves of every term, until the number of terms is known
+    private long[] hashes = new long[64];
+    private int numTerms;
+    FixedBitSet bits;
+
+    BloomTermsConsumer(TermsConsumer delegateConsumer, FieldInfo field, SecretKey key) {
+      this.delegateConsumer = delegateConsumer;
+      this.field = field;
+      this.hasher = new TermHasher(key);
+      this.keyCheck = hasher.keyCheck();
+    }
+
+    @Override
+    public PostingsConsumer startTerm(BytesRef text) throws IOException {
+      return delegateConsumer.startTerm(text);
+    }
+
+    @Override
+    public void finishTerm(BytesRef text, TermStats stats) throws IOException {
+      if (stats.docFreq > 0) {
+        hasher.hash(text);
+        hashes = ArrayUtil.grow(hashes, 2 * numTerms + 2);
+        hashes[2 * numTerms] = hasher.h1();
+        hashes[2 * numTerms + 1] = hasher.h2();
+        numTerms++;
+      }
+      delegateConsumer.finishTerm(text, stats);
+    }
+
+    @Override
+    public void finish(long sumTotalTermFreq, long sumDocFreq, int docCount) throws IOException {
+      delegateConsumer.finish(sumTotalTermFreq, sumDocFreq, docCount);
+      if (numTerms > 0) {
+        // a multiple of 64, so that every bit of the words is used
+        final int numBits = (int) Math.min(Integer.MAX_VALUE - 63, (long) numTerms * BITS_PER_TERM + 63) & ~63;
+        bits = new FixedBitSet(numBits);
+        for (int t = 0; t < numTerms; t++) {
+          for (int i = 0; i < NUM_HASHES; i++) {
+            bits.set(bit(hashes[2 * t], hashes[2 * t + 1], i, numBits));
+          }
+        }
+      }
+      hashes = null;
+    }
+
+    @Override
+    public Comparator<BytesRef> getComparator() throws IOException {
+      return delegateConsumer.getComparator();
+    }
+  }
+
+  private static final class BloomFieldsProducer extends FieldsProducer {
+    private final FieldsProducer delegateProducer;
+    private final FieldInfos fieldInfos;
+    private final Map<String,Filter> filters = new HashMap<String,Filter>();
+
+    BloomFieldsProducer(SegmentReadState state) throws IOException {
+      this.fieldInfos = state.fieldInfos;
+      IndexInput in = null;
+      FieldsProducer delegateProducer = null;
+      boolean success = false;
+      try {
+        in = state.directory.openInput(getBloomFileName(state.segmentInfo.name, state.segmentSuffix), state.context);
+        final int version = CodecUtil.checkHeader(in, CODEC_NAME, VERSION_START, VERSION_CURRENT);
+        delegateProducer = PostingsFormat.forName(in.readString()).fieldsProducer(state);
+        final int numFilters = in.readVInt();
+        for (int i = 0; i < numFilters; i++) {
+          final FieldInfo fieldInfo = state.fieldInfos.fieldInfo(in.readVInt());
+          final long keyCheck = in.readLong();
+          final int numHashes = in.readByte();
+          final int numBits = in.readVInt();
+          final long[] words = new long[FixedBitSet.bits2words(numBits)];
+          for (int j = 0; j < words.length; j++) {
+            words[j] = in.readLong();
+          }
+          if (version >= VERSION_DERIVED_KEY) {
+            filters.put(fieldInfo.name, new Filter(keyCheck, numHashes, new FixedBitSet(words, numBits)));
+          }
+        }
+        this.delegateProducer = delegateProducer;
+        success = true;
+      } finally {
+        if (success) {
+          IOUtils.close(in);
+        } else {
+          IOUtils.closeWhileHandlingException(in, delegateProducer);
+        }
+      }
+    }
+
+    @Override
+    public Iterator<String> iterator() {
+      return delegateProducer.iterator();
+    }
+
+    @Override
+    public Terms terms(String field) throws IOException {
+      final Terms terms = delegateProducer.terms(field);
+      final Filter filter = filters.get(field);
+      if (terms == null || filter == null) {
+        return terms;
+      }
+      return new BloomTerms(terms, fieldInfos.fieldInfo(field), filter);
+    }
+
+    @Override
+    public int size() {
+      return delegateProducer.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+      delegateProducer.close();
+    }
+
+    @Override
+    public long ramBytesUsed() {
+      long bytes = delegateProducer.ramBytesUsed();
+      for (Filter filter : filters.values()) {
+        bytes += RamUsageEstimator.sizeOf(filter.bits.getBits()) + RamUsageEstimator.NUM_BYTES_OBJECT_HEADER;
+      }
+      return bytes;
+    }
+  }
+
+  static final class BloomTerms extends Terms {
+    final Terms delegateTerms;
+    private final FieldInfo fieldInfo;
+    final Filter filter;
+
+    BloomTerms(Terms delegateTerms, FieldInfo fieldInfo, Filter filter) {
+      this.delegateTerms = delegateTerms;
+      this.fieldInfo = fieldInfo;
+      this.filter = filter;
+    }
+
+    @Override
+    public TermsEnum iterator(TermsEnum reuse) throws IOException {
+      final SecretKey key = SecureCipherUtil.getKey(fieldInfo);
+      if (!filter.accepts(key)) {
+        // written with another key: the filter cannot tell
+        return delegateTerms.iterator(reuse instanceof BloomTermsEnum ? ((BloomTermsEnum) reuse).delegateEnum : reuse);
+      }
+      if (reuse instanceof BloomTermsEnum) {
+        final BloomTermsEnum bloomEnum = (BloomTermsEnum) reuse;
+        if (bloomEnum.filter == filter && bloomEnum.key.equals(key)) {
+          bloomEnum.reset(delegateTerms);
+          return bloomEnum;
+        }
+        reuse = bloomEnum.delegateEnum;
+      }
+      return new BloomTermsEnum(delegateTerms, reuse, filter, key);
+    }
+
+    @Override
+    public TermsEnum intersect(CompiledAutomaton compiled, BytesRef startTerm) throws IOException {
+      return delegateTerms.intersect(compiled, startTerm);
+    }
+
+    @Override
+    public Comparator<BytesRef> getComparator() {
+      return delegateTerms.getComparator();
+    }
+
+    @Override
+    public long size() throws IOException {
+      return delegateTerms.size();
+    }
+
+    @Override
+    public long getSumTotalTermFreq() throws IOException {
+      return delegateTerms.getSumTotalTermFreq();
+    }
+
+    @Override
+    public long getSumDocFreq() throws IOException {
+      return delegateTerms.getSumDocFreq();
+    }
+
+    @Override
+    public int getDocCount() throws IOException {
+      return delegateTerms.getDocCount();
+    }
+
+    @Override
+    public boolean hasFreqs() {
+      return delegateTerms.hasFreqs();
+    }
+
+    @Override
+    public boolean hasOffsets() {
+      return delegateTerms.hasOffsets();
+    }
+
+    @Override
+    public boolean hasPositions() {
+      return delegateTerms.hasPositions();
+    }
+
+    @Override
+    public boolean hasPayloads() {
+      return delegateTerms.hasPayloads();
+    }
+  }
+
+  /** Answers exact seeks for terms the filter rules out without pulling the wrapped enum */
+  static final class BloomTermsEnum extends TermsEnum {
+    private Terms delegateTerms;
+    private TermsEnum reuseDelegate;
+    TermsEnum delegateEnum;
+    final Filter filter;
+    final SecretKey key;
+
+    BloomTermsEnum(Terms delegateTerms, TermsEnum reuseDelegate, Filter filter, SecretKey key) {
+      this.delegateTerms = delegateTerms;
+      this.reuseDelegate = reuseDelegate;
+      this.filter = filter;
+      this.key = key;
+    }
+
+    void reset(Terms delegateTerms) {
+      this.delegateTerms = delegateTerms;
+      if (delegateEnum != null) {
+        reuseDelegate = delegateEnum;
+        delegateEnum = null;
+      }
+    }
+
+    private TermsEnum delegate() throws IOException {
+      if (delegateEnum == null) {
+        // only pulled when needed: opening it reads the terms index
+        delegateEnum = delegateTerms.iterator(reuseDelegate);
+        reuseDelegate = null;
+      }
+      return delegateEnum;
+    }
+
+    @Override
+    public boolean seekExact(BytesRef text) throws IOException {
+      final TermHasher hasher = TermHasher.get(key);
+      hasher.hash(text);
+      if (!filter.mayContain(hasher)) {
+        return false;
+      }
+      return delegate().seekExact(text);
+    }
+
+    @Override
+    public void seekExact(BytesRef term, TermState state) throws IOException {
+      delegate().seekExact(term, state);
+    }
+
+    @Override
+    public TermState termState() throws IOException {
+      return delegate().termState();
+    }
+
+    @Override
+    public AttributeSource attributes() {
+      try {
+        return delegate().attributes();
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+    }
+
+    @Override
+    public SeekStatus seekCeil(BytesRef text) throws IOException {
+      return delegate().seekCeil(text);
+    }
+
+    @Override
+    public void seekExact(long ord) throws IOException {
+      delegate().seekExact(ord);
+    }
+
+    @Override
+    public BytesRef next() throws IOException {
+      return delegate().next();
+    }
+
+    @Override
+    public BytesRef term() throws IOException {
+      return delegate().term();
+    }
+
+    @Override
+    public long ord() throws IOException {
+      return delegate().ord();
+    }
+
+    @Override
+    public int docFreq() throws IOException {
+      return delegate().docFreq();
+    }
+
+    @Override
+    public long totalTermFreq() throws IOException {
+      return delegate().totalTermFreq();
+    }
+
+    @Override
+    public DocsEnum docs(Bits liveDocs, DocsEnum reuse, int flags) throws IOException {
+      return delegate().docs(liveDocs, reuse, flags);
+    }
+
+    @Override
+    public DocsAndPositionsEnum docsAndPositions(Bits liveDocs, DocsAndPositionsEnum reuse, int flags) throws IOException {
+      return delegate().docsAndPositions(liveDocs, reuse, flags);
+    }
+
+    @Override
+    public Comparator<BytesRef> getComparator() {
+      return delegateTerms.getComparator();
+    }
+  }
+}
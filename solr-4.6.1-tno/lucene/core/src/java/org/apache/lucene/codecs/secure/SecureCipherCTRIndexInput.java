@@ -0,0 +1,323 @@
+package org.apache.lucene.codecs.secure;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.lucene.index.CorruptIndexException;
+import org.apache.lucene.store.IndexInput;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import java.io.EOFException;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+
+/**
+ * Seekable, lazily decrypting view of one AES/CTR encrypted region.
+ * <p>
+ * The region is laid out as IV (16 bytes) followed by the ciphertext cut into
+ * {@link #PAGE_SIZE} pages: every full page is written as FRAME_FULL (byte), Ciphertext,
+ * and the region ends with FRAME_LAST (byte), Length (int), Ciphertext for the remaining
+ * (possibly zero) bytes. Pages are at fixed offsets and every AES block of a CTR stream can
+ * be decrypted on its own, so a page is only decrypted when a read lands on it.
+ * {@link #seek(long)} is therefore random access, and {@link #clone()} copies the current
+ * plaintext page instead of decrypting it again. Since the length is only known at the
+ * end of the region, a writer can stream pages out as they fill up.
+ * <p>
+ * Pages are decrypted with {@link Cipher#update(byte[], int, int, byte[], int)} into a page
+ * buffer that is allocated once. The cipher is only re-initialized on random access: when
+ * pages are read in order, the counter left by the previous page is the one of the next page.
+ * <p>
+ * An input opened with a file identifier looks pages up in the
+ * {@link SecureCipherPageCache#getDefault() default page cache}, if there is one, before
+ * decrypting them, and adds the pages it decrypted.
+ * <p>
+ * File pointers are the same as the ones the writer saw: the file pointer of the
+ * first plaintext byte is the file pointer just after the IV, and plaintext byte
+ * <code>i</code> is at that file pointer plus <code>i</code>.
+ *
+ * @see SecureCipherIndexOutput
+ * @lucene.experimental
+ */
+public class SecureCipherCTRIndexInput extends IndexInput {
+  static final String EncryptionAlgorithm = "AES/CTR/NoPadding";
+  static final int IV_LENGTH = 16;
+  static final int PAGE_SIZE = 4096;
+  static final byte FRAME_FULL = 0;
+  static final byte FRAME_LAST = 1;
+  private static final int AES_BLOCK_SIZE = 16;
+
+  private final IndexInput origin;
+  private final IndexInput in;
+  // identifies the file in the page cache, -1 if pages are not cached
+  private final long fileId;
+  private Cipher cipher;
+  private SecretKey key;
+
+  private final byte[] iv = new byte[IV_LENGTH];
+  private final byte[] counter = new byte[IV_LENGTH];
+  private long cipherStartFP;
+  private long cipherLength;    // -1 until the last page was seen
+
+  // Current plaintext page: [pageStart, pageStart + pageLength) relative to cipherStartFP
+  private byte[] page;
+  private byte[] encryptedPage;
+  // Index of the page the counter of the cipher points at, -1 if it must be initialized
+  private long cipherPage = -1;
+  private long pageStart;
+  private int pageLength;
+  private int pageUpto;
+
+  private SecureCipherCTRIndexInput(SecureCipherCTRIndexInput clone) {
+    super("SecureCipherCTRIndexInput(" + clone.in + ")");
+    origin = clone.origin;
+    in = clone.in.clone();
+    fileId = clone.fileId;
+    key = clone.key;
+    System.arraycopy(clone.iv, 0, iv, 0, IV_LENGTH);
+    cipherStartFP = clone.cipherStartFP;
+    cipherLength = clone.cipherLength;
+    pageStart = clone.pageStart;
+    pageLength = clone.pageLength;
+    pageUpto = clone.pageUpto;
+    if (pageLength > 0) {
+      page = new byte[PAGE_SIZE];
+      System.arraycopy(clone.page, 0, page, 0, pageLength);
+    }
+    // the clone gets its own cipher on its first refill
+  }
+
+  /** Reads the region header at the current position of <code>in</code>, which is left
+   *  positioned on the first page. Nothing is decrypted yet. */
+  public SecureCipherCTRIndexInput(IndexInput in, SecretKey key) throws IOException {
+    this(in, key, -1);
+  }
+
+  /** Like {@link #SecureCipherCTRIndexInput(IndexInput, SecretKey)}, caching pages in the
+   *  {@link SecureCipherPageCache#getDefault() default page cache} under <code>fileId</code>
+   *  unless it is -1. */
+  SecureCipherCTRIndexInput(IndexInput in, SecretKey key, long fileId) throws IOException {
+    super("SecureCipherCTRIndexInput(" + in + ")");
+    this.origin = in;
+    this.in = in.clone();
+    this.fileId = fileId;
+    reset(in, key);
+  }
+
+  /** Returns true if this input can be {@link #reset} to a region of <code>in</code>. */
+  boolean canReuse(IndexInput in) {
+    return origin == in;
+  }
+
+  /** Points this input at the region starting at the current position of <code>in</code>,
+   *  keeping the already allocated cipher and page. */
+  SecureCipherCTRIndexInput reset(IndexInput in, SecretKey key) throws IOException {
+    assert canReuse(in);
+    in.readBytes(iv, 0, IV_LENGTH);
+    cipherStartFP = in.getFilePointer();
+    cipherLength = -1;
+    this.key = key;
+    cipherPage = -1;
+    pageStart = 0;
+    pageLength = 0;
+    pageUpto = 0;
+    return this;
+  }
+
+  /** Reads the frame header of page <code>pageIndex</code> and returns the number of bytes in that page */
+  private int readFrameHeader(long pageIndex) throws IOException {
+    in.seek(cipherStartFP + pageIndex * (PAGE_SIZE + 1));
+    final byte frame = in.readByte();
+    if (frame == FRAME_FULL) {
+      return PAGE_SIZE;
+    } else if (frame == FRAME_LAST) {
+      final int length = in.readInt();
+      if (length < 0 || length >= PAGE_SIZE) {
+        throw new CorruptIndexException("invalid last page length=" + length + " (resource: " + this + ")");
+      }
+      cipherLength = pageIndex * PAGE_SIZE + length;
+      return length;
+    } else {
+      throw new CorruptIndexException("invalid page frame=" + frame + " (resource: " + this + ")");
+    }
+  }
+
+  /** Decrypts the page holding the current position */
+  private void refill() throws IOException {
+    final long pos = pageStart + pageUpto;
+    if (cipherLength >= 0 && pos >= cipherLength) {
+      throw new EOFException("read past EOF: " + this);
+    }
+    final long pageIndex = pos / PAGE_SIZE;
+    final long start = pageIndex * PAGE_SIZE;
+    if (page == null) {
+      page = new byte[PAGE_SIZE];
+    }
+
+    final SecureCipherPageCache cache = fileId == -1 ? null : SecureCipherPageCache.getDefault();
+    if (cache != null) {
+      final int cached = cache.get(fileId, cipherStartFP, pageIndex, key, page);
+      if (cached >= 0) {
+        if (cached < PAGE_SIZE) {
+          // only the last page is short, see SecureCipherIndexOutput
+          cipherLength = start + cached;
+        }
+        if (pos >= start + cached) {
+          throw new EOFException("read past EOF: " + this);
+        }
+        pageStart = start;
+        pageLength = cached;
+        pageUpto = (int) (pos - start);
+        return;
+      }
+    }
+
+    long stageStart = SecureCodecMetrics.start();
+    final int length = readFrameHeader(pageIndex);
+    if (pos >= start + length) {
+      throw new EOFException("read past EOF: " + this);
+    }
+    if (encryptedPage == null) {
+      encryptedPage = new byte[PAGE_SIZE];
+    }
+    in.readBytes(encryptedPage, 0, length);
+    SecureCodecMetrics.stop(SecureCodecMetrics.Stage.CIPHERTEXT_READ, stageStart);
+
+    stageStart = SecureCodecMetrics.start();
+    try {
+      if (cipherPage != pageIndex) {
+        // counter of the first block of the page is IV + start / 16, big endian
+        long carry = start / AES_BLOCK_SIZE;
+        for (int i = IV_LENGTH - 1; i >= 0; i--) {
+          carry += iv[i] & 0xFF;
+          counter[i] = (byte) carry;
+          carry >>>= 8;
+        }
+        if (cipher == null) {
+          cipher = Cipher.getInstance(EncryptionAlgorithm);
+        }
+        cipher.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(counter));
+      }
+      int decrypted = cipher.update(encryptedPage, 0, length, page, 0);
+      if (decrypted == length && length == PAGE_SIZE) {
+        // a full page is a whole number of AES blocks: the counter is the one of the next page
+        cipherPage = pageIndex + 1;
+      } else {
+        decrypted += cipher.doFinal(page, decrypted);
+        cipherPage = -1;
+      }
+      assert decrypted == length;
+    } catch (GeneralSecurityException ex) {
+      cipherPage = -1;
+      throw new IOException("cannot decrypt " + this, ex);
+    }
+    SecureCodecMetrics.stop(SecureCodecMetrics.Stage.DECRYPT, stageStart);
+    if (cache != null) {
+      cache.put(fileId, cipherStartFP, pageIndex, key, page, length);
+    }
+
+    pageStart = start;
+    pageLength = length;
+    pageUpto = (int) (pos - start);
+  }
+
+  @Override
+  public byte readByte() throws IOException {
+    if (pageUpto >= pageLength) {
+      refill();
+    }
+    return page[pageUpto++];
+  }
+
+  @Override
+  public int readInt() throws IOException {
+    if (pageLength - pageUpto >= 4) {
+      final int i = pageUpto;
+      pageUpto += 4;
+      return ((page[i] & 0xFF) << 24) | ((page[i + 1] & 0xFF) << 16)
+          | ((page[i + 2] & 0xFF) << 8) | (page[i + 3] & 0xFF);
+    }
+    return super.readInt();
+  }
+
+  @Override
+  public void readBytes(byte[] b, int offset, int length) throws IOException {
+    while (length > 0) {
+      if (pageUpto >= pageLength) {
+        refill();
+      }
+      final int bytesToCopy = Math.min(pageLength - pageUpto, length);
+      System.arraycopy(page, pageUpto, b, offset, bytesToCopy);
+      pageUpto += bytesToCopy;
+      offset += bytesToCopy;
+      length -= bytesToCopy;
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    // we only hold a clone of the underlying input
+    page = null;
+    encryptedPage = null;
+    cipherPage = -1;
+    pageLength = 0;
+    pageUpto = 0;
+  }
+
+  /** Returns the file pointer just past the last plaintext byte of the region. This walks
+   *  the frame headers (without decrypting) if the last page has not been read yet. */
+  @Override
+  public long length() {
+    if (cipherLength < 0) {
+      try {
+        for (long pageIndex = 0; cipherLength < 0; pageIndex++) {
+          readFrameHeader(pageIndex);
+        }
+      } catch (IOException ex) {
+        throw new RuntimeException(ex);
+      }
+    }
+    return cipherStartFP + cipherLength;
+  }
+
+  @Override
+  public long getFilePointer() {
+    return cipherStartFP + pageStart + pageUpto;
+  }
+
+  @Override
+  public void seek(long pos) throws IOException {
+    final long rel = pos - cipherStartFP;
+    if (rel < 0 || (cipherLength >= 0 && rel > cipherLength)) {
+      throw new EOFException("seek outside of encrypted region: pos=" + pos + " (resource: " + this + ")");
+    }
+    if (pageLength > 0 && rel >= pageStart && rel <= pageStart + pageLength) {
+      pageUpto = (int) (rel - pageStart);
+    } else {
+      // decrypt lazily, on the next read
+      pageStart = rel;
+      pageLength = 0;
+      pageUpto = 0;
+    }
+  }
+
+  @Override
+  public SecureCipherCTRIndexInput clone() {
+    return new SecureCipherCTRIndexInput(this);
+  }
+}
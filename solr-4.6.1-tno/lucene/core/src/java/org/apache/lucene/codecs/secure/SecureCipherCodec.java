@@ -18,7 +18,12 @@ package org.apache.lucene.codecs.secure;
  */
 
 import org.apache.lucene.codecs.Codec;
+import org.apache.lucene.codecs.DocValuesFormat;
 import org.apache.lucene.codecs.PostingsFormat;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.FieldInfo.IndexOptions;
+
+import java.util.concurrent.ExecutorService;
 
 /**
  * plain text index format.
@@ -27,8 +32,24 @@ import org.apache.lucene.codecs.PostingsFormat;
  * @lucene.experimental
  */
 public final class SecureCipherCodec extends SecureCodec {
-  private final SecurePostingsFormat postings = new SecureCipherPostingsFormat();
-  private final SecureStoredFieldsFormat storedFields = new SecureSimpleTextCipherStoredFieldsFormat();
+
+  /** Formats of the encrypted stored fields written by the codec; segments of any of them can be read */
+  public static enum StoredFields {
+    /** {@link SecureCipherStoredFieldsFormat}: every value encrypted on its own, inside the wrapped codec's stored fields */
+    PER_VALUE,
+    /** {@link SecureCipherBinaryStoredFieldsFormat}: every value encrypted on its own, in files of their own */
+    BINARY,
+    /** {@link SecureCipherBlockStoredFieldsFormat}: the values of a chunk of documents encrypted together */
+    BLOCK
+  }
+
+  private final SecurePostingsFormat postings;
+  // for fields with freqs or positions, which only the block format stores
+  private final SecurePostingsFormat positionalPostings =
+      new SecureCipherBloomPostingsFormat(new SecureCipherBlockPostingsFormat());
+  private final StoredFields storedFields;
+  private final ExecutorService storedFieldsFlushExecutor;
+  private final DocValuesFormat docValues = new SecureCipherDocValuesFormat();
 
 //  private final SegmentInfoFormat segmentInfos = new SimpleTextSegmentInfoFormat();
 //  private final FieldInfosFormat fieldInfosFormat = new SimpleTextFieldInfosFormat();
@@ -37,20 +58,76 @@ public final class SecureCipherCodec extends SecureCodec {
 //  private final LiveDocsFormat liveDocs = new SimpleTextLiveDocsFormat();
 //  private final DocValuesFormat dvFormat = new SimpleTextDocValuesFormat();
 
+  /** Creates the codec with {@link SecureCipherPostingsFormat}, behind the Bloom filters
+   *  of {@link SecureCipherBloomPostingsFormat}, for encrypted fields. */
   public SecureCipherCodec() {
+    this(new SecureCipherBloomPostingsFormat(new SecureCipherPostingsFormat()));
+  }
+
+  /** Creates the codec with the given postings format for encrypted fields,
+   *  e.g. {@link SecureCipherBlockPostingsFormat}. */
+  public SecureCipherCodec(SecurePostingsFormat postings) {
+    this(postings, false);
+  }
+
+  /** Creates the codec with the given postings format for encrypted fields, and
+   *  {@link SecureCipherBlockStoredFieldsFormat} for encrypted stored fields if
+   *  <code>blockStoredFields</code> is true. */
+  public SecureCipherCodec(SecurePostingsFormat postings, boolean blockStoredFields) {
+    this(postings, blockStoredFields ? StoredFields.BLOCK : StoredFields.PER_VALUE);
+  }
+
+  /** Creates the codec with the given postings format for encrypted fields, and the
+   *  given format for encrypted stored fields. */
+  public SecureCipherCodec(SecurePostingsFormat postings, StoredFields storedFields) {
+    this(postings, storedFields, null);
+  }
+
+  /** Creates the codec with the given postings format for encrypted fields, and
+   *  {@link SecureCipherBlockStoredFieldsFormat} for encrypted stored fields, which
+   *  encrypts the chunks of a segment when it is flushed, on <code>storedFieldsFlushExecutor</code>. */
+  public SecureCipherCodec(SecurePostingsFormat postings, ExecutorService storedFieldsFlushExecutor) {
+    this(postings, StoredFields.BLOCK, storedFieldsFlushExecutor);
+  }
+
+  private SecureCipherCodec(SecurePostingsFormat postings, StoredFields storedFields, ExecutorService storedFieldsFlushExecutor) {
     super("SecureCipher");
+    this.postings = postings;
+    this.storedFields = storedFields;
+    this.storedFieldsFlushExecutor = storedFieldsFlushExecutor;
   }
   
+  /** Returns the encrypted stored fields format, wrapping the default codec */
   @Override
   public SecureStoredFieldsFormat secureStoredFieldsFormat() {
-    return storedFields;
+    return secureStoredFieldsFormat(Codec.getDefault());
   }
 
   @Override
   public SecureStoredFieldsFormat secureStoredFieldsFormat(Codec codec) {
-    return new SecureCipherStoredFieldsFormat(codec);
+    switch (storedFields) {
+      case BINARY:
+        return new SecureCipherBinaryStoredFieldsFormat(codec);
+      case BLOCK:
+        return new SecureCipherBlockStoredFieldsFormat(codec, storedFieldsFlushExecutor);
+      default:
+        return new SecureCipherStoredFieldsFormat(codec);
+    }
   }
 
   @Override
   public PostingsFormat postingsFormat() { return postings;}
+
+  /** Returns {@link SecureCipherBlockPostingsFormat}, behind Bloom filters, for fields that
+   *  index freqs or positions, and the postings format of the codec for the others. */
+  @Override
+  public PostingsFormat postingsFormat(FieldInfo field) {
+    if (field.getIndexOptions() != null && field.getIndexOptions().compareTo(IndexOptions.DOCS_AND_FREQS) >= 0) {
+      return positionalPostings;
+    }
+    return postings;
+  }
+
+  @Override
+  public DocValuesFormat secureDocValuesFormat() { return docValues; }
 }
@@ -0,0 +1,277 @@
+package org.apache.lucene.codecs.secure;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.codecs.DocValuesConsumer;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.SegmentInfo;
+import org.apache.lucene.index.SegmentWriteState;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.GrowableByteArrayDataOutput;
+import org.apache.lucene.util.IOUtils;
+import org.apache.lucene.util.packed.PackedInts;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.apache.lucene.codecs.secure.SecureCipherDocValuesFormat.CODEC_NAME;
+import static org.apache.lucene.codecs.secure.SecureCipherDocValuesFormat.EncryptionAlgorithm;
+import static org.apache.lucene.codecs.secure.SecureCipherDocValuesFormat.IV_LENGTH;
+import static org.apache.lucene.codecs.secure.SecureCipherDocValuesFormat.NUMERIC;
+import static org.apache.lucene.codecs.secure.SecureCipherDocValuesFormat.NUMERIC_BLOCK_SIZE;
+import static org.apache.lucene.codecs.secure.SecureCipherDocValuesFormat.SORTED;
+import static org.apache.lucene.codecs.secure.SecureCipherDocValuesFormat.TERMS_BLOCK_SIZE;
+import static org.apache.lucene.codecs.secure.SecureCipherDocValuesFormat.VERSION_CURRENT;
+
+/**
+ * Writes encrypted DocValues, see {@link SecureCipherDocValuesFormat}.
+ * @lucene.experimental
+ */
+class SecureCipherDocValuesConsumer extends DocValuesConsumer {
+
+  /** Where the blocks of one field start, written in the directory */
+  private static final class FieldEntry {
+    final int number;
+    final byte type;
+    long[] numericBlocks;
+    int valueCount;
+    long[] termsBlocks;
+
+    FieldEntry(int number, byte type) {
+      this.number = number;
+      this.type = type;
+    }
+  }
+
+  private IndexOutput data;
+  private final SegmentInfo segmentInfo;
+  private final List<FieldEntry> entries = new ArrayList<FieldEntry>();
+
+  // scratch buffers for writing a block
+  private final long[] values = new long[NUMERIC_BLOCK_SIZE];
+  private final FixedBitSet missing = new FixedBitSet(NUMERIC_BLOCK_SIZE);
+  private final GrowableByteArrayDataOutput plain = new GrowableByteArrayDataOutput(1024);
+  private byte[] encrypted = new byte[1024];
+
+  SecureCipherDocValuesConsumer(SegmentWriteState state) throws IOException {
+    segmentInfo = state.segmentInfo;
+    boolean success = false;
+    try {
+      data = state.directory.createOutput(SecureCipherDocValuesFormat.getDataFileName(state.segmentInfo.name, state.segmentSuffix), state.context);
+      CodecUtil.writeHeader(data, CODEC_NAME, VERSION_CURRENT);
+      success = true;
+    } finally {
+      if (!success) {
+        IOUtils.closeWhileHandlingException(data);
+      }
+    }
+  }
+
+  @Override
+  public void addNumericField(FieldInfo field, Iterable<Number> values) throws IOException {
+    final FieldEntry entry = new FieldEntry(field.number, NUMERIC);
+    entry.numericBlocks = writeNumeric(field, values);
+    entries.add(entry);
+  }
+
+  @Override
+  public void addSortedField(FieldInfo field, Iterable<BytesRef> values, Iterable<Number> docToOrd) throws IOException {
+    final FieldEntry entry = new FieldEntry(field.number, SORTED);
+    entry.numericBlocks = writeNumeric(field, docToOrd);
+    final SecretKey key = getKey(field);
+    long[] blocks = new long[8];
+    int numBlocks = 0;
+    int count = 0;
+    final GrowableByteArrayDataOutput bytes = new GrowableByteArrayDataOutput(1024);
+    final int[] lengths = new int[TERMS_BLOCK_SIZE];
+    for (BytesRef term : values) {
+      lengths[count++] = term.length;
+      bytes.writeBytes(term.bytes, term.offset, term.length);
+      entry.valueCount++;
+      if (count == TERMS_BLOCK_SIZE) {
+        blocks = ArrayUtil.grow(blocks, numBlocks + 1);
+        blocks[numBlocks++] = writeTermsBlock(field, key, lengths, count, bytes);
+        count = 0;
+        bytes.length = 0;
+      }
+    }
+    if (count > 0) {
+      blocks = ArrayUtil.grow(blocks, numBlocks + 1);
+      blocks[numBlocks++] = writeTermsBlock(field, key, lengths, count, bytes);
+    }
+    entry.termsBlocks = Arrays.copyOf(blocks, numBlocks);
+    entries.add(entry);
+  }
+
+  @Override
+  public void addBinaryField(FieldInfo field, Iterable<BytesRef> values) throws IOException {
+    throw new UnsupportedOperationException("binary DocValues can not be encrypted: field=" + field.name);
+  }
+
+  @Override
+  public void addSortedSetField(FieldInfo field, Iterable<BytesRef> values, Iterable<Number> docToOrdCount, Iterable<Number> ords) throws IOException {
+    throw new UnsupportedOperationException("sorted set DocValues can not be encrypted: field=" + field.name);
+  }
+
+  private SecretKey getKey(FieldInfo field) {
+    final SecretKey key = SecureCipherUtil.getWriteKey(segmentInfo, field);
+    if (key == null) {
+      throw new IllegalStateException("no key for encrypted DocValues field " + field.name);
+    }
+    return key;
+  }
+
+  /** Writes the numeric blocks of <code>values</code> and returns where each starts */
+  private long[] writeNumeric(FieldInfo field, Iterable<Number> values) throws IOException {
+    final SecretKey key = getKey(field);
+    long[] blocks = new long[8];
+    int numBlocks = 0;
+    int count = 0;
+    for (Number n : values) {
+      if (n == null) {
+        missing.set(count);
+        this.values[count] = 0;
+      } else {
+        this.values[count] = n.longValue();
+      }
+      if (++count == NUMERIC_BLOCK_SIZE) {
+        blocks = ArrayUtil.grow(blocks, numBlocks + 1);
+        blocks[numBlocks++] = writeNumericBlock(field, key, count);
+        count = 0;
+      }
+    }
+    if (count > 0) {
+      blocks = ArrayUtil.grow(blocks, numBlocks + 1);
+      blocks[numBlocks++] = writeNumericBlock(field, key, count);
+    }
+    return Arrays.copyOf(blocks, numBlocks);
+  }
+
+  private long writeNumericBlock(FieldInfo field, SecretKey key, int count) throws IOException {
+    plain.length = 0;
+    plain.writeVInt(count);
+    final boolean hasMissing = missing.nextSetBit(0) != -1;
+    plain.writeByte((byte) (hasMissing ? 1 : 0));
+    if (hasMissing) {
+      final long[] bits = missing.getBits();
+      for (int i = 0; i < FixedBitSet.bits2words(count); i++) {
+        plain.writeLong(bits[i]);
+      }
+      missing.clear(0, NUMERIC_BLOCK_SIZE);
+    }
+
+    long min = Long.MAX_VALUE;
+    long max = Long.MIN_VALUE;
+    for (int i = 0; i < count; i++) {
+      min = Math.min(min, values[i]);
+      max = Math.max(max, values[i]);
+    }
+    final long delta = max - min;
+    final int bitsPerValue = delta == 0 ? 0 : delta < 0 ? 64 : PackedInts.bitsRequired(delta);
+    plain.writeLong(min);
+    plain.writeByte((byte) bitsPerValue);
+    if (bitsPerValue > 0) {
+      final PackedInts.Writer writer = PackedInts.getWriterNoHeader(plain, PackedInts.Format.PACKED, count, bitsPerValue, PackedInts.DEFAULT_BUFFER_SIZE);
+      for (int i = 0; i < count; i++) {
+        writer.add(values[i] - min);
+      }
+      writer.finish();
+    }
+    return writeBlock(field, key);
+  }
+
+  private long writeTermsBlock(FieldInfo field, SecretKey key, int[] lengths, int count, GrowableByteArrayDataOutput bytes) throws IOException {
+    plain.length = 0;
+    plain.writeVInt(count);
+    for (int i = 0; i < count; i++) {
+      plain.writeVInt(lengths[i]);
+    }
+    plain.writeBytes(bytes.bytes, 0, bytes.length);
+    return writeBlock(field, key);
+  }
+
+  /** Encrypts the block in <code>plain</code> and returns where it starts */
+  private long writeBlock(FieldInfo field, SecretKey key) throws IOException {
+    final byte[] iv;
+    final int length;
+    try {
+      final Cipher cipher = SecureCipherPool.get(EncryptionAlgorithm, key);
+      cipher.init(Cipher.ENCRYPT_MODE, key);
+      iv = cipher.getIV();
+      encrypted = ArrayUtil.grow(encrypted, cipher.getOutputSize(plain.length));
+      length = cipher.doFinal(plain.bytes, 0, plain.length, encrypted, 0);
+    } catch (GeneralSecurityException ex) {
+      throw new IOException("cannot encrypt DocValues of field " + field.name, ex);
+    }
+    assert iv.length == IV_LENGTH;
+
+    final long fp = data.getFilePointer();
+    data.writeVInt(length);
+    data.writeBytes(iv, 0, IV_LENGTH);
+    data.writeBytes(encrypted, 0, length);
+    return fp;
+  }
+
+  private void writeBlockPointers(long[] blocks) throws IOException {
+    data.writeVInt(blocks.length);
+    long previous = 0;
+    for (long fp : blocks) {
+      data.writeVLong(fp - previous);
+      previous = fp;
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (data == null) {
+      return;
+    }
+    boolean success = false;
+    try {
+      final long directoryStart = data.getFilePointer();
+      data.writeVInt(entries.size());
+      for (FieldEntry entry : entries) {
+        data.writeVInt(entry.number);
+        data.writeByte(entry.type);
+        writeBlockPointers(entry.numericBlocks);
+        if (entry.type == SORTED) {
+          data.writeVInt(entry.valueCount);
+          writeBlockPointers(entry.termsBlocks);
+        }
+      }
+      data.writeLong(directoryStart);
+      success = true;
+    } finally {
+      if (success) {
+        IOUtils.close(data);
+      } else {
+        IOUtils.closeWhileHandlingException(data);
+      }
+      data = null;
+    }
+  }
+}
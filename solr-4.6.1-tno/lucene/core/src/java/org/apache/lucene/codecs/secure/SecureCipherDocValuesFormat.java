@@ -0,0 +1,102 @@
+package org.apache.lucene.codecs.secure;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.lucene.codecs.DocValuesConsumer;
+import org.apache.lucene.codecs.DocValuesFormat;
+import org.apache.lucene.codecs.DocValuesProducer;
+import org.apache.lucene.index.IndexFileNames;
+import org.apache.lucene.index.SegmentReadState;
+import org.apache.lucene.index.SegmentWriteState;
+
+import java.io.IOException;
+
+/**
+ * DocValues format for encrypted fields, which stores numeric and sorted DocValues as
+ * independently encrypted blocks.
+ * <p>
+ * Numeric values are cut in blocks of {@link #NUMERIC_BLOCK_SIZE} documents. Each block is
+ * packed on its own, with the minimum value of the block and just enough bits per value
+ * for the rest, and encrypted with AES/CBC under the field key and a fresh IV. Sorted
+ * DocValues are written as the numeric block of their ordinals, and the sorted values in
+ * blocks of {@link #TERMS_BLOCK_SIZE} terms encrypted the same way. Nothing but the
+ * number of blocks and where they start is written in the clear.
+ * <p>
+ * A reader decrypts a block the first time one of its values is read, with the key the
+ * field has at that time, and keeps it decrypted for the life of the segment. Blocks are
+ * dropped again as soon as the key of the field is removed or replaced, see
+ * {@link SecureCipherUtil#addKeyChangeListener}. Reading a field without its key throws an
+ * {@link IllegalStateException}, as does merging it.
+ * <p>
+ * File format of the <code>.dv.enc</code> file:
+ * <ul>
+ *   <li>File: Header, Block<sup>*</sup>, Directory, DirectoryStart</li>
+ *   <li>Header: {@link org.apache.lucene.codecs.CodecUtil#writeHeader CodecHeader}</li>
+ *   <li>Block: Length (vInt), IV (16 bytes), Ciphertext (Length bytes)</li>
+ *   <li>Numeric block decrypts to: Count (vInt), HasMissing (byte), MissingBits (long<sup>Count/64</sup>, if HasMissing),
+ *       Min (long), BitsPerValue (byte), {@link org.apache.lucene.util.packed.PackedInts packed} deltas from Min</li>
+ *   <li>Terms block decrypts to: Count (vInt), TermLength (vInt)<sup>Count</sup>, TermBytes</li>
+ *   <li>Directory: NumFields (vInt), &lt;FieldNumber (vInt), Type (byte), NumericBlocks,
+ *       ValueCount (vInt) and TermsBlocks for sorted fields&gt;<sup>NumFields</sup></li>
+ *   <li>NumericBlocks, TermsBlocks: NumBlocks (vInt), StartPointerDelta (vLong)<sup>NumBlocks</sup></li>
+ *   <li>DirectoryStart: file pointer of the Directory (long)</li>
+ * </ul>
+ * Binary and sorted set DocValues are not supported, which Solr does not use for
+ * single valued fields, the only ones that can be encrypted.
+ *
+ * @lucene.experimental
+ */
+public final class SecureCipherDocValuesFormat extends DocValuesFormat {
+  public static final String EncryptionAlgorithm = SecureCipherStoredFieldsFormat.EncryptionAlgorithm;
+
+  /** Extension of the encrypted DocValues file */
+  public static final String DATA_EXTENSION = "dv.enc";
+
+  static final String CODEC_NAME = "SecureCipherDocValues";
+  static final int VERSION_START = 0;
+  static final int VERSION_CURRENT = VERSION_START;
+
+  static final int IV_LENGTH = 16;
+  static final byte NUMERIC = 0;
+  static final byte SORTED = 1;
+
+  static final int NUMERIC_BLOCK_SHIFT = 12;
+  /** Number of documents per numeric block */
+  public static final int NUMERIC_BLOCK_SIZE = 1 << NUMERIC_BLOCK_SHIFT;
+  static final int TERMS_BLOCK_SHIFT = 6;
+  /** Number of terms per block of sorted values */
+  public static final int TERMS_BLOCK_SIZE = 1 << TERMS_BLOCK_SHIFT;
+
+  public SecureCipherDocValuesFormat() {
+    super("SecureCipherDocValues");
+  }
+
+  static String getDataFileName(String segment, String segmentSuffix) {
+    return IndexFileNames.segmentFileName(segment, segmentSuffix, DATA_EXTENSION);
+  }
+
+  @Override
+  public DocValuesConsumer fieldsConsumer(SegmentWriteState state) throws IOException {
+    return new SecureCipherDocValuesConsumer(state);
+  }
+
+  @Override
+  public DocValuesProducer fieldsProducer(SegmentReadState state) throws IOException {
+    return new SecureCipherDocValuesProducer(state);
+  }
+}
@@ -0,0 +1,410 @@
+package org.apache.lucene.codecs.secure;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.codecs.DocValuesProducer;
+import org.apache.lucene.index.BinaryDocValues;
+import org.apache.lucene.index.CorruptIndexException;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.SegmentReadState;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.index.SortedSetDocValues;
+import org.apache.lucene.store.ByteArrayDataInput;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.IOUtils;
+import org.apache.lucene.util.RamUsageEstimator;
+import org.apache.lucene.util.packed.PackedInts;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import static org.apache.lucene.codecs.secure.SecureCipherDocValuesFormat.CODEC_NAME;
+import static org.apache.lucene.codecs.secure.SecureCipherDocValuesFormat.EncryptionAlgorithm;
+import static org.apache.lucene.codecs.secure.SecureCipherDocValuesFormat.IV_LENGTH;
+import static org.apache.lucene.codecs.secure.SecureCipherDocValuesFormat.NUMERIC;
+import static org.apache.lucene.codecs.secure.SecureCipherDocValuesFormat.NUMERIC_BLOCK_SHIFT;
+import static org.apache.lucene.codecs.secure.SecureCipherDocValuesFormat.NUMERIC_BLOCK_SIZE;
+import static org.apache.lucene.codecs.secure.SecureCipherDocValuesFormat.SORTED;
+import static org.apache.lucene.codecs.secure.SecureCipherDocValuesFormat.TERMS_BLOCK_SHIFT;
+import static org.apache.lucene.codecs.secure.SecureCipherDocValuesFormat.TERMS_BLOCK_SIZE;
+import static org.apache.lucene.codecs.secure.SecureCipherDocValuesFormat.VERSION_CURRENT;
+import static org.apache.lucene.codecs.secure.SecureCipherDocValuesFormat.VERSION_START;
+
+/**
+ * Reads encrypted DocValues, see {@link SecureCipherDocValuesFormat}.
+ * <p>
+ * Blocks are decrypted on first use and cached per field, together with the key they
+ * were decrypted with. A block is only handed to readers that see that same key: a
+ * reader with another key, e.g. one given to its thread only by
+ * {@link SecureCipherUtil#setThreadKeys}, decrypts the block again with its own, and a
+ * reader without a key gets nothing. The cache of a field is also cleared when its key
+ * changes. Concurrent readers may decrypt the same block twice, in which case one of the
+ * copies wins.
+ * @lucene.experimental
+ */
+class SecureCipherDocValuesProducer extends DocValuesProducer implements SecureCipherUtil.KeyChangeListener {
+
+  /** A decrypted numeric block */
+  private static final class NumericBlock {
+    final SecretKey key;  // the key the block was decrypted with
+    final FixedBitSet missing;  // null if all documents of the block have a value
+    final long min;
+    final PackedInts.Reader deltas;  // null if all values are min
+
+    NumericBlock(SecretKey key, FixedBitSet missing, long min, PackedInts.Reader deltas) {
+      this.key = key;
+      this.missing = missing;
+      this.min = min;
+      this.deltas = deltas;
+    }
+
+    long get(int index) {
+      return deltas == null ? min : min + deltas.get(index);
+    }
+
+    long ramBytesUsed() {
+      return RamUsageEstimator.NUM_BYTES_OBJECT_HEADER + 4 * RamUsageEstimator.NUM_BYTES_OBJECT_REF
+          + (missing == null ? 0 : RamUsageEstimator.sizeOf(missing.getBits()))
+          + (deltas == null ? 0 : deltas.ramBytesUsed());
+    }
+  }
+
+  /** A decrypted block of sorted values */
+  private static final class TermsBlock {
+    final SecretKey key;  // the key the block was decrypted with
+    final byte[] bytes;
+    final int[] starts;  // starts of the terms in bytes, and the end of the last one
+
+    TermsBlock(SecretKey key, byte[] bytes, int[] starts) {
+      this.key = key;
+      this.bytes = bytes;
+      this.starts = starts;
+    }
+
+    long ramBytesUsed() {
+      return RamUsageEstimator.sizeOf(bytes) + RamUsageEstimator.sizeOf(starts);
+    }
+  }
+
+  /** The blocks of one field */
+  private static final class FieldEntry {
+    final FieldInfo info;
+    final byte type;
+    final long[] numericBlocks;
+    final AtomicReferenceArray<NumericBlock> numerics;
+    int valueCount;
+    long[] termsBlocks;
+    AtomicReferenceArray<TermsBlock> terms;
+
+    FieldEntry(FieldInfo info, byte type, long[] numericBlocks) {
+      this.info = info;
+      this.type = type;
+      this.numericBlocks = numericBlocks;
+      this.numerics = new AtomicReferenceArray<NumericBlock>(numericBlocks.length);
+    }
+
+    void clear() {
+      for (int i = 0; i < numerics.length(); i++) {
+        numerics.set(i, null);
+      }
+      if (terms != null) {
+        for (int i = 0; i < terms.length(); i++) {
+          terms.set(i, null);
+        }
+      }
+    }
+  }
+
+  private final IndexInput data;
+  private final String resource;
+  private final int maxDoc;
+  private final Map<Integer,FieldEntry> fields = new HashMap<Integer,FieldEntry>();
+
+  SecureCipherDocValuesProducer(SegmentReadState state) throws IOException {
+    resource = SecureCipherDocValuesFormat.getDataFileName(state.segmentInfo.name, state.segmentSuffix);
+    maxDoc = state.segmentInfo.getDocCount();
+    data = state.directory.openInput(resource, state.context);
+    boolean success = false;
+    try {
+      CodecUtil.checkHeader(data, CODEC_NAME, VERSION_START, VERSION_CURRENT);
+      data.seek(data.length() - 8);
+      data.seek(data.readLong());
+      final int numFields = data.readVInt();
+      for (int i = 0; i < numFields; i++) {
+        final int number = data.readVInt();
+        final FieldInfo info = state.fieldInfos.fieldInfo(number);
+        if (info == null) {
+          throw new CorruptIndexException("invalid field number: " + number + " (resource=" + resource + ")");
+        }
+        final byte type = data.readByte();
+        if (type != NUMERIC && type != SORTED) {
+          throw new CorruptIndexException("invalid DocValues type: " + type + " (resource=" + resource + ")");
+        }
+        final FieldEntry entry = new FieldEntry(info, type, readBlockPointers());
+        if (type == SORTED) {
+          entry.valueCount = data.readVInt();
+          entry.termsBlocks = readBlockPointers();
+          entry.terms = new AtomicReferenceArray<TermsBlock>(entry.termsBlocks.length);
+        }
+        fields.put(number, entry);
+      }
+      success = true;
+    } finally {
+      if (!success) {
+        IOUtils.closeWhileHandlingException(data);
+      }
+    }
+    SecureCipherUtil.addKeyChangeListener(this);
+  }
+
+  private long[] readBlockPointers() throws IOException {
+    final long[] blocks = new long[data.readVInt()];
+    long fp = 0;
+    for (int i = 0; i < blocks.length; i++) {
+      fp += data.readVLong();
+      blocks[i] = fp;
+    }
+    return blocks;
+  }
+
+  @Override
+  public void keyChanged(String field) {
+    // decrypted blocks must not outlive the key they were decrypted with
+    for (FieldEntry entry : fields.values()) {
+      if (field == null || field.equals(entry.info.name)) {
+        entry.clear();
+      }
+    }
+  }
+
+  /** Returns the key of <code>info</code> as seen by the current thread */
+  private static SecretKey getKey(FieldInfo info) {
+    final SecretKey key = SecureCipherUtil.getKey(info);
+    if (key == null) {
+      throw new IllegalStateException("no key for encrypted DocValues field " + info.name);
+    }
+    return key;
+  }
+
+  /** Returns true if a block decrypted with <code>cached</code> can be handed to a reader with <code>key</code> */
+  private static boolean sameKey(SecretKey cached, SecretKey key) {
+    return cached == key || cached.equals(key);
+  }
+
+  /** Reads and decrypts the block at <code>fp</code> with <code>key</code> */
+  private ByteArrayDataInput decrypt(FieldInfo info, SecretKey key, long fp) throws IOException {
+    long stageStart = SecureCodecMetrics.start();
+    final IndexInput in = data.clone();
+    in.seek(fp);
+    final int length = in.readVInt();
+    final byte[] raw = new byte[IV_LENGTH + length];
+    in.readBytes(raw, 0, raw.length);
+    SecureCodecMetrics.stop(SecureCodecMetrics.Stage.CIPHERTEXT_READ, stageStart);
+    stageStart = SecureCodecMetrics.start();
+    final byte[] plain;
+    final int plainLength;
+    try {
+      final Cipher cipher = SecureCipherPool.get(EncryptionAlgorithm, key);
+      cipher.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(raw, 0, IV_LENGTH));
+      plain = new byte[cipher.getOutputSize(length)];
+      plainLength = cipher.doFinal(raw, IV_LENGTH, length, plain, 0);
+    } catch (GeneralSecurityException ex) {
+      throw new CorruptIndexException("cannot decrypt DocValues of field " + info.name + ": " + ex + " (resource=" + resource + ")");
+    }
+    SecureCodecMetrics.stop(SecureCodecMetrics.Stage.DECRYPT, stageStart);
+    return new ByteArrayDataInput(plain, 0, plainLength);
+  }
+
+  private NumericBlock numericBlock(FieldEntry entry, int block) throws IOException {
+    final SecretKey key = getKey(entry.info);
+    NumericBlock b = entry.numerics.get(block);
+    if (b != null && sameKey(b.key, key)) {
+      return b;
+    }
+    final ByteArrayDataInput in = decrypt(entry.info, key, entry.numericBlocks[block]);
+    final int count = in.readVInt();
+    FixedBitSet missing = null;
+    if (in.readByte() != 0) {
+      final long[] bits = new long[(count + 63) >>> 6];
+      for (int i = 0; i < bits.length; i++) {
+        bits[i] = in.readLong();
+      }
+      missing = new FixedBitSet(bits, count);
+    }
+    final long min = in.readLong();
+    final int bitsPerValue = in.readByte();
+    final PackedInts.Reader deltas = bitsPerValue == 0 ? null
+        : PackedInts.getReaderNoHeader(in, PackedInts.Format.PACKED, PackedInts.VERSION_CURRENT, count, bitsPerValue);
+    b = new NumericBlock(key, missing, min, deltas);
+    entry.numerics.set(block, b);
+    return b;
+  }
+
+  private TermsBlock termsBlock(FieldEntry entry, int block) throws IOException {
+    final SecretKey key = getKey(entry.info);
+    TermsBlock b = entry.terms.get(block);
+    if (b != null && sameKey(b.key, key)) {
+      return b;
+    }
+    final ByteArrayDataInput in = decrypt(entry.info, key, entry.termsBlocks[block]);
+    final int count = in.readVInt();
+    final int[] starts = new int[count + 1];
+    for (int i = 0; i < count; i++) {
+      starts[i + 1] = starts[i] + in.readVInt();
+    }
+    final byte[] bytes = new byte[starts[count]];
+    in.readBytes(bytes, 0, bytes.length);
+    b = new TermsBlock(key, bytes, starts);
+    entry.terms.set(block, b);
+    return b;
+  }
+
+  private FieldEntry getEntry(FieldInfo field, byte type) {
+    final FieldEntry entry = fields.get(field.number);
+    if (entry == null || entry.type != type) {
+      throw new IllegalArgumentException("field " + field.name + " has no " + (type == NUMERIC ? "numeric" : "sorted") + " encrypted DocValues");
+    }
+    return entry;
+  }
+
+  private long getValue(FieldEntry entry, int docID) {
+    try {
+      return numericBlock(entry, docID >>> NUMERIC_BLOCK_SHIFT).get(docID & (NUMERIC_BLOCK_SIZE - 1));
+    } catch (IOException ioe) {
+      throw new RuntimeException(ioe);
+    }
+  }
+
+  @Override
+  public NumericDocValues getNumeric(FieldInfo field) throws IOException {
+    final FieldEntry entry = getEntry(field, NUMERIC);
+    return new NumericDocValues() {
+      @Override
+      public long get(int docID) {
+        return getValue(entry, docID);
+      }
+    };
+  }
+
+  @Override
+  public SortedDocValues getSorted(FieldInfo field) throws IOException {
+    final FieldEntry entry = getEntry(field, SORTED);
+    return new SortedDocValues() {
+      @Override
+      public int getOrd(int docID) {
+        return (int) getValue(entry, docID);
+      }
+
+      @Override
+      public void lookupOrd(int ord, BytesRef result) {
+        final TermsBlock block;
+        try {
+          block = termsBlock(entry, ord >>> TERMS_BLOCK_SHIFT);
+        } catch (IOException ioe) {
+          throw new RuntimeException(ioe);
+        }
+        final int index = ord & (TERMS_BLOCK_SIZE - 1);
+        result.bytes = block.bytes;
+        result.offset = block.starts[index];
+        result.length = block.starts[index + 1] - block.starts[index];
+      }
+
+      @Override
+      public int getValueCount() {
+        return entry.valueCount;
+      }
+    };
+  }
+
+  @Override
+  public Bits getDocsWithField(FieldInfo field) throws IOException {
+    if (field.getDocValuesType() == FieldInfo.DocValuesType.SORTED) {
+      return new SortedDocsWithField(getSorted(field), maxDoc);
+    }
+    final FieldEntry entry = getEntry(field, NUMERIC);
+    return new Bits() {
+      @Override
+      public boolean get(int index) {
+        final NumericBlock block;
+        try {
+          block = numericBlock(entry, index >>> NUMERIC_BLOCK_SHIFT);
+        } catch (IOException ioe) {
+          throw new RuntimeException(ioe);
+        }
+        return block.missing == null || !block.missing.get(index & (NUMERIC_BLOCK_SIZE - 1));
+      }
+
+      @Override
+      public int length() {
+        return maxDoc;
+      }
+    };
+  }
+
+  @Override
+  public BinaryDocValues getBinary(FieldInfo field) throws IOException {
+    throw new UnsupportedOperationException("binary DocValues can not be encrypted: field=" + field.name);
+  }
+
+  @Override
+  public SortedSetDocValues getSortedSet(FieldInfo field) throws IOException {
+    throw new UnsupportedOperationException("sorted set DocValues can not be encrypted: field=" + field.name);
+  }
+
+  @Override
+  public long ramBytesUsed() {
+    long bytes = 0;
+    for (FieldEntry entry : fields.values()) {
+      for (int i = 0; i < entry.numerics.length(); i++) {
+        final NumericBlock b = entry.numerics.get(i);
+        if (b != null) {
+          bytes += b.ramBytesUsed();
+        }
+      }
+      if (entry.terms != null) {
+        for (int i = 0; i < entry.terms.length(); i++) {
+          final TermsBlock b = entry.terms.get(i);
+          if (b != null) {
+            bytes += b.ramBytesUsed();
+          }
+        }
+      }
+    }
+    return bytes;
+  }
+
+  @Override
+  public void close() throws IOException {
+    SecureCipherUtil.removeKeyChangeListener(this);
+    for (FieldEntry entry : fields.values()) {
+      entry.clear();
+    }
+    data.close();
+  }
+}
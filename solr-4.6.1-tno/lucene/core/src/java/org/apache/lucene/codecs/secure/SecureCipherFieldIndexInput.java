@@ -18,6 +18,7 @@ package org.apache.lucene.codecs.secure;
  */
 
 import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.util.ArrayUtil;
 import sun.reflect.generics.reflectiveObjects.NotImplementedException;
 
 import javax.crypto.Cipher;
@@ -25,12 +26,25 @@ import javax.crypto.SecretKey;
 import java.io.EOFException;
 import java.io.IOException;
 import java.nio.BufferUnderflowException;
+import java.security.GeneralSecurityException;
 
+/**
+ * Decrypted view of one region of the legacy format: a long with the length of the
+ * ciphertext, then the whole region encrypted at once with AES.
+ * <p>
+ * The region is decrypted as a whole when the input is created or {@link #reset}; the
+ * ciphertext and plaintext buffers are kept and grown to the largest region seen, so
+ * reusing an input does not allocate.
+ */
 public class SecureCipherFieldIndexInput extends IndexInput {
+  private static final String EncryptionAlgorithm = "AES";
+
+  private final IndexInput origin;
+  private byte[] encrypted;
   private byte[] buffer;
+  private int length;
   private int currentPos;
 
-  private Cipher cipher;
   private long cipherLength;
   private long cipherStartFP;
   private long cipherEndFP;
@@ -38,7 +52,11 @@ public class SecureCipherFieldIndexInput extends IndexInput {
   private SecureCipherFieldIndexInput(SecureCipherFieldIndexInput clone)
   {
     super("SecureCipherFieldIndexInput");
-    buffer = clone.buffer;
+    origin = null;
+    // the original may be reset to another region, so the clone gets its own copy
+    buffer = new byte[clone.length];
+    System.arraycopy(clone.buffer, 0, buffer, 0, clone.length);
+    length = clone.length;
     cipherLength = clone.cipherLength;
     cipherStartFP = clone.cipherStartFP;
     cipherEndFP = clone.cipherEndFP;
@@ -47,38 +65,59 @@ public class SecureCipherFieldIndexInput extends IndexInput {
 
   public SecureCipherFieldIndexInput(IndexInput in, SecretKey key) throws Exception {
     super("SecureCipherFieldIndexInput");
+    origin = in;
+    reset(in, key);
+  }
 
-    //byte[] iv = SecureCipherUtil.readIV(in);
+  /** Returns true if this input can be {@link #reset} to a region of <code>in</code>. */
+  boolean canReuse(IndexInput in) {
+    return origin == in;
+  }
+
+  /** Decrypts the region at the current position of <code>in</code>, which is left
+   *  positioned at the start of the ciphertext, into the buffers of this input. */
+  SecureCipherFieldIndexInput reset(IndexInput in, SecretKey key) throws IOException {
     cipherLength = in.readLong();
-    long startPos = in.getFilePointer();
-    byte[] encryptedBuf = new byte[(int)cipherLength];
-    in.readBytes(encryptedBuf, 0, encryptedBuf.length);
+    final long startPos = in.getFilePointer();
+    final int encryptedLength = (int) cipherLength;
+    if (encrypted == null || encrypted.length < encryptedLength) {
+      encrypted = new byte[ArrayUtil.oversize(encryptedLength, 1)];
+    }
+    long stageStart = SecureCodecMetrics.start();
+    in.readBytes(encrypted, 0, encryptedLength);
+    SecureCodecMetrics.stop(SecureCodecMetrics.Stage.CIPHERTEXT_READ, stageStart);
+    stageStart = SecureCodecMetrics.start();
     try {
-      if (cipher == null) cipher = Cipher.getInstance("AES");
+      final Cipher cipher = SecureCipherPool.get(EncryptionAlgorithm, key);
       cipher.init(Cipher.DECRYPT_MODE, key);
-      buffer = cipher.doFinal(encryptedBuf);
-      currentPos = 0;
-      cipherLength = buffer.length;
-      cipherEndFP = in.getFilePointer();
-      cipherStartFP = startPos;
-    } catch (Exception ex) {
-      //throw new Error(ex.toString());
-      throw ex;
+      final int maxLength = cipher.getOutputSize(encryptedLength);
+      if (buffer == null || buffer.length < maxLength) {
+        buffer = new byte[ArrayUtil.oversize(maxLength, 1)];
+      }
+      length = cipher.doFinal(encrypted, 0, encryptedLength, buffer, 0);
+    } catch (GeneralSecurityException ex) {
+      throw new IOException("cannot decrypt region at fp=" + startPos + " (resource: " + in + ")", ex);
     }
+    SecureCodecMetrics.stop(SecureCodecMetrics.Stage.DECRYPT, stageStart);
+    currentPos = 0;
+    cipherLength = length;
+    cipherEndFP = in.getFilePointer();
+    cipherStartFP = startPos;
     in.seek(startPos);
+    return this;
   }
 
   @Override
   public byte readByte() throws IOException {
     assert buffer != null;
-    if (currentPos >= buffer.length) throw new EOFException();
+    if (currentPos >= length) throw new EOFException();
     return buffer[currentPos++];
   }
 
   @Override
   public void readBytes(byte[] b, int offset, int length) throws IOException {
     assert buffer != null;
-    if (currentPos + length > buffer.length) {
+    if (currentPos + length > this.length) {
       throw new EOFException();
     }
     System.arraycopy(buffer, currentPos, b, offset, length);
@@ -88,6 +127,8 @@ public class SecureCipherFieldIndexInput extends IndexInput {
   @Override
   public void close() throws IOException {
     buffer = null;
+    encrypted = null;
+    length = 0;
   }
 
   @Override
@@ -104,7 +145,7 @@ public class SecureCipherFieldIndexInput extends IndexInput {
     if (pos < 0) {
       throw new BufferUnderflowException();
     }
-    if (pos >= buffer.length) {
+    if (pos >= length) {
       throw new EOFException();
     }
     currentPos = (int) pos;
@@ -49,10 +49,9 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
 
 class SecureCipherFieldsReader extends FieldsProducer {
-  private static long StartTime = System.currentTimeMillis();
-  private final String segmentName;
 
   private final TreeMap<String,Long> fields;
   private TreeMap<String, SecureCipherFieldsWriter.FieldHeader> fieldHeaders;
@@ -64,42 +63,37 @@ class SecureCipherFieldsReader extends FieldsProducer {
   final static byte[] TERM         = SecureCipherFieldsWriter.TERM;
 
   public SecureCipherFieldsReader(SegmentReadState state) throws IOException {
-    segmentName = state.segmentInfo.name;
-    System.out.print("Dbg: " + (System.currentTimeMillis()-StartTime) + " ms: " + segmentName + ": SecureCipherFieldsReader: const: start\r\n");
     fieldInfos = state.fieldInfos;
-    String fileName = SecureSimpleTextPostingsFormat.getPostingsFileName(state.segmentInfo.name, state.segmentSuffix);
+    String fileName = SecureCipherPostingsFormat.getPostingsFileName(state.segmentInfo.name, state.segmentSuffix);
     IndexInput inner_in = state.directory.openInput(fileName, state.context);
     boolean success = false;
     try {
-      in = new SecureCipherIndexInput(inner_in.clone());
+      SecureCipherFieldsWriter.CollectionHeader header = new SecureCipherFieldsWriter.CollectionHeader(inner_in);
+      in = new SecureCipherIndexInput(inner_in, header.counterMode);
 
       //this.in = inner_in;
-      SecureCipherFieldsWriter.CollectionHeader header = new SecureCipherFieldsWriter.CollectionHeader(in);
-      fields = readFields(in, header.fieldCount, header.fieldsFP);
+      fields = readFields(in, header.fieldCount, header.fieldsFP, header.hasFST);
       success = true;
     } finally {
       if (!success) {
-        IOUtils.closeWhileHandlingException(this);
+        IOUtils.closeWhileHandlingException(inner_in);
       }
     }
-    System.out.print("Dbg: " + (System.currentTimeMillis()-StartTime) + " ms: " + segmentName + ": SecureCipherFieldsReader: const: end\r\n");
   }
 
-  private TreeMap<String,Long> readFields(IndexInput in, int fieldCount, long fieldStart) throws IOException {
-    System.out.print("Dbg: " + (System.currentTimeMillis()-StartTime) + " ms: " + segmentName + ": SecureCipherFieldsReader: readFields: start\r\n");
+  private TreeMap<String,Long> readFields(IndexInput in, int fieldCount, long fieldStart, boolean hasFST) throws IOException {
 
     TreeMap<String,Long> fields = new TreeMap<String,Long>();
     TreeMap<String,SecureCipherFieldsWriter.FieldHeader> fieldHeaders = new TreeMap<String,SecureCipherFieldsWriter.FieldHeader>();
 
     in.seek(fieldStart);
     for (int f = 0; f < fieldCount; ++f) {
-      SecureCipherFieldsWriter.FieldHeader fieldHeader = new SecureCipherFieldsWriter.FieldHeader(in);
+      SecureCipherFieldsWriter.FieldHeader fieldHeader = new SecureCipherFieldsWriter.FieldHeader(in, hasFST);
       //fields.put(fieldHeader.name, in.getFilePointer());
       fieldHeaders.put(fieldHeader.name, fieldHeader);
       fields.put(fieldHeader.name, fieldHeader.termsFP);
     }
     this.fieldHeaders = fieldHeaders;
-    System.out.print("Dbg: " + (System.currentTimeMillis()-StartTime) + " ms: " + segmentName + ": SecureCipherFieldsReader: readFields: end\r\n");
     return fields;
   }
 
@@ -117,17 +111,14 @@ class SecureCipherFieldsReader extends FieldsProducer {
     private final SecretKey fieldKey;
 
     public SecureCipherTermsEnum(FST<PairOutputs.Pair<Long, PairOutputs.Pair<Long, Long>>> fst, IndexOptions indexOptions, IndexInput in, SecretKey fieldKey) {
-      System.out.print("Dbg: " + (System.currentTimeMillis()-StartTime) + " ms: " + segmentName + ": SecureCipherTermsEnum: cons: start\r\n");
       this.indexOptions = indexOptions;
       fstEnum = new BytesRefFSTEnum<PairOutputs.Pair<Long,PairOutputs.Pair<Long,Long>>>(fst);
       this.in = in;
       this.fieldKey = fieldKey;
-      System.out.print("Dbg: " + (System.currentTimeMillis()-StartTime) + " ms: " + segmentName + ": SecureCipherTermsEnum: cons: end\r\n");
     }
 
     @Override
     public boolean seekExact(BytesRef text) throws IOException {
-      System.out.print("Dbg: " + (System.currentTimeMillis()-StartTime) + " ms: " + segmentName + ": SecureCipherTermsEnum: seekExact: start " + text.utf8ToString() + "\r\n");
 
       boolean retVal = false;
       if (fstEnum != null) {
@@ -143,13 +134,11 @@ class SecureCipherFieldsReader extends FieldsProducer {
           retVal = false;
         }
       }
-      System.out.print("Dbg: " + (System.currentTimeMillis()-StartTime) + " ms: " + segmentName + ": SecureCipherTermsEnum: seekExact: end " + text.utf8ToString() + "\r\n");
       return retVal;
     }
 
     @Override
     public SeekStatus seekCeil(BytesRef text) throws IOException {
-      System.out.print("Dbg: " + (System.currentTimeMillis()-StartTime) + " ms: " + segmentName + ": SecureCipherTermsEnum: seekCeil: start " + text.utf8ToString() + "\r\n");
 
       SeekStatus retVal = SeekStatus.END;
       if (fstEnum != null) {
@@ -173,13 +162,11 @@ class SecureCipherFieldsReader extends FieldsProducer {
       } else {
         throw new NotImplementedException();
       }
-      System.out.print("Dbg: " + (System.currentTimeMillis()-StartTime) + " ms: " + segmentName + ": SecureCipherTermsEnum: seekCeil: end " + text.utf8ToString() + "\r\n");
       return retVal;
     }
 
     @Override
     public BytesRef next() throws IOException {
-      System.out.print("Dbg: " + (System.currentTimeMillis()-StartTime) + " ms: " + segmentName + ": SecureCipherTermsEnum: next: start\r\n");
 
       BytesRef retVal = null;
       if (fstEnum != null) {
@@ -198,7 +185,6 @@ class SecureCipherFieldsReader extends FieldsProducer {
       } else {
         throw new NotImplementedException();
       }
-      System.out.print("Dbg: " + (System.currentTimeMillis()-StartTime) + " ms: " + segmentName + ": SecureCipherTermsEnum: next: end\r\n");
       return retVal;
     }
 
@@ -233,7 +219,6 @@ class SecureCipherFieldsReader extends FieldsProducer {
  
     @Override
     public DocsEnum docs(Bits liveDocs, DocsEnum reuse, int flags) throws IOException {
-      System.out.print("Dbg: " + (System.currentTimeMillis()-StartTime) + " ms: " + segmentName + ": SecureCipherTermsEnum: docs: start " + term().utf8ToString() + " " + docFreq + " " + totalTermFreq + "\r\n");
       SecureCipherDocsEnum docsEnum;
       if (reuse != null && reuse instanceof SecureCipherDocsEnum && ((SecureCipherDocsEnum) reuse).canReuse(SecureCipherFieldsReader.this.in)) {
         docsEnum = (SecureCipherDocsEnum) reuse;
@@ -241,7 +226,6 @@ class SecureCipherFieldsReader extends FieldsProducer {
         docsEnum = new SecureCipherDocsEnum(in);
       }
       docsEnum = docsEnum.reset(docsStart, liveDocs, indexOptions == IndexOptions.DOCS_ONLY, docFreq, fieldKey);
-      System.out.print("Dbg: " + (System.currentTimeMillis()-StartTime) + " ms: " + segmentName + ": SecureCipherTermsEnum: docs: end " + term().utf8ToString() + " " + docFreq + " " + totalTermFreq + "\r\n");
       return docsEnum;
     }
 
@@ -253,7 +237,6 @@ class SecureCipherFieldsReader extends FieldsProducer {
         return null;
       }
 
-      System.out.print("Dbg: " + (System.currentTimeMillis()-StartTime) + " ms: " + segmentName + ": SecureCipherTermsEnum: docsAndPositions: start\r\n");
       SecureCipherDocsAndPositionsEnum docsAndPositionsEnum;
       if (reuse != null && reuse instanceof SecureCipherDocsAndPositionsEnum && ((SecureCipherDocsAndPositionsEnum) reuse).canReuse(SecureCipherFieldsReader.this.in)) {
         docsAndPositionsEnum = (SecureCipherDocsAndPositionsEnum) reuse;
@@ -261,7 +244,6 @@ class SecureCipherFieldsReader extends FieldsProducer {
         docsAndPositionsEnum = new SecureCipherDocsAndPositionsEnum(in);
       }
       docsAndPositionsEnum = docsAndPositionsEnum.reset(docsStart, liveDocs, indexOptions, docFreq, fieldKey);
-      System.out.print("Dbg: " + (System.currentTimeMillis()-StartTime) + " ms: " + segmentName + ": SecureCipherTermsEnum: docsAndPositions: end\r\n");
       return docsAndPositionsEnum;
     }
     
@@ -299,7 +281,7 @@ class SecureCipherFieldsReader extends FieldsProducer {
       insecureIn.seek(fp);
       IndexInput secureIn = null;
       try {
-        secureIn = ((SecureCipherIndexInput)(insecureIn)).startDecryption(fieldKey);
+        secureIn = ((SecureCipherIndexInput)(insecureIn)).startDecryption(fieldKey, this.in);
         //secureIn = this.insecureIn;
       } catch (Exception ex) {}
       this.in = secureIn;
@@ -328,13 +310,10 @@ class SecureCipherFieldsReader extends FieldsProducer {
     @Override
     public int nextDoc() throws IOException {
       while (current < docCount) {
-        if (omitTF) {
-          SecureCipherFieldsWriter.DocsOnlyTermValue termValue = new SecureCipherFieldsWriter.DocsOnlyTermValue(in);
-          docID = termValue.docID;
-        } else {
-          SecureCipherFieldsWriter.DocsAndFreqsTermValue termValue = new SecureCipherFieldsWriter.DocsAndFreqsTermValue(in);
-          docID = termValue.docID;
-          tf = termValue.termDocFreq;
+        // read in place of SecureCipherFieldsWriter.DocsOnlyTermValue/DocsAndFreqsTermValue, to not allocate per posting
+        docID = in.readInt();
+        if (!omitTF) {
+          tf = in.readInt();
         }
         ++current;
 
@@ -396,7 +375,7 @@ class SecureCipherFieldsReader extends FieldsProducer {
       insecureIn.seek(fp);
       IndexInput secureIn = null;
       try {
-        secureIn = ((SecureCipherIndexInput)(insecureIn)).startDecryption(fieldKey);
+        secureIn = ((SecureCipherIndexInput)(insecureIn)).startDecryption(fieldKey, this.in);
         //secureIn = this.insecureIn;
       } catch (Exception ex) {}
       this.in = secureIn;
@@ -433,11 +412,11 @@ class SecureCipherFieldsReader extends FieldsProducer {
 
       while (current < docCount) {
         in.seek(nextDocStart);
-        SecureCipherFieldsWriter.DocsAndFreqsAndPositionsTermValue termValue = new SecureCipherFieldsWriter.DocsAndFreqsAndPositionsTermValue(in);
-        docID = termValue.docID;
-        tf = termValue.termDocFreq;
+        // read in place of SecureCipherFieldsWriter.DocsAndFreqsAndPositionsTermValue
+        docID = in.readInt();
+        tf = in.readInt();
 
-        nextDocStart = termValue.next;
+        nextDocStart = in.readLong();
         ++current;
 
         if ((liveDocs == null || liveDocs.get(docID))) {
@@ -528,7 +507,6 @@ class SecureCipherFieldsReader extends FieldsProducer {
     private final SecretKey fieldKey;
 
     public SecureCipherTerms(SecureCipherFieldsWriter.FieldHeader fieldHeader, long termsStart) throws Exception {
-      System.out.print("Dbg: " + (System.currentTimeMillis()-StartTime) + " ms: " + segmentName + ": SecureCipherTerms: cons: start\r\n");
 
       //this.termsEnd = fieldHeader.next;
       this.docCount = fieldHeader.docCount;
@@ -546,17 +524,27 @@ class SecureCipherFieldsReader extends FieldsProducer {
         in = secureCipherIndexInput;
         //this.termsStart = in.getFilePointer();
         this.termsStart = fieldHeader.termsFP;
-        loadTerms(fieldHeader.termCount);
+        if (fieldHeader.fstFP != -1) {
+          loadFST(fieldHeader);
+        } else {
+          loadTerms(fieldHeader.termCount);
+        }
       } catch (Exception ex) {
         secureCipherIndexInput.close();
         if (in != null) in.close();
         throw ex;
       }
-      System.out.print("Dbg: " + (System.currentTimeMillis()-StartTime) + " ms: " + segmentName + ": SecureCipherTerms: cons: end\r\n");
+    }
+
+    /** Loads the FST persisted at flush time, instead of building it from the term headers */
+    private void loadFST(SecureCipherFieldsWriter.FieldHeader fieldHeader) throws IOException {
+      in.seek(fieldHeader.fstFP);
+      fst = new FST<PairOutputs.Pair<Long,PairOutputs.Pair<Long,Long>>>(in,
+          SecureCipherFieldsWriter.fstOutputs(SecureCipherFieldsWriter.fstOutputsInner()));
+      termCount = fieldHeader.termCount;
     }
 
     private void loadTerms(int nTerms) throws IOException {
-      System.out.print("Dbg: " + (System.currentTimeMillis()-StartTime) + " ms: " + segmentName + ": SecureCipherTerms: loadTerms: start " + nTerms + "\r\n");
 
       PositiveIntOutputs posIntOutputs = PositiveIntOutputs.getSingleton();
       final Builder<PairOutputs.Pair<Long,PairOutputs.Pair<Long,Long>>> b;
@@ -570,7 +558,6 @@ class SecureCipherFieldsReader extends FieldsProducer {
       long sumTotalTermFreq = 0;
       final IntsRef scratchIntsRef = new IntsRef();
       in.seek(termsStart);
-      System.out.print("Dbg: " + (System.currentTimeMillis()-StartTime) + " ms: " + segmentName + ": SecureCipherTerms: loadTerms: sought " + in.getFilePointer() + "\r\n");
       for (int t = 0; t < nTerms; ++t) {
         SecureCipherFieldsWriter.TermHeader termHeader = new SecureCipherFieldsWriter.TermHeader(in);
         //docsStart = in.getFilePointer();
@@ -585,7 +572,6 @@ class SecureCipherFieldsReader extends FieldsProducer {
         sumTotalTermFreq += termHeader.totalTermFreq;
         termCount++;
       }
-      System.out.print("Dbg: " + (System.currentTimeMillis()-StartTime) + " ms: " + segmentName + ": SecureCipherTerms: loadTerms: iterated " + in.getFilePointer() + "\r\n");
       fst = b.finish();
 
       assert this.sumDocFreq == sumDocFreq;
@@ -597,7 +583,6 @@ class SecureCipherFieldsReader extends FieldsProducer {
       System.out.println("SAVED out.dot");
       */
       //System.out.println("FST " + fst.sizeInBytes());
-      System.out.print("Dbg: " + (System.currentTimeMillis()-StartTime) + " ms: " + segmentName + ": SecureCipherTerms: loadTerms: end " + nTerms + "\r\n");
     }
     
     /** Returns approximate RAM bytes used */
@@ -607,7 +592,6 @@ class SecureCipherFieldsReader extends FieldsProducer {
 
     @Override
     public TermsEnum iterator(TermsEnum reuse) throws IOException {
-      System.out.print("Dbg: " + (System.currentTimeMillis()-StartTime) + " ms: " + segmentName + ": SecureCipherTerms: iterator: start " + reuse + "\r\n");
       TermsEnum termsEnum;
       if (fst != null) {
         //return new SecureCipherTermsEnum(fst, fieldInfo.getIndexOptions(), in);
@@ -618,7 +602,6 @@ class SecureCipherFieldsReader extends FieldsProducer {
       } else {
         termsEnum = TermsEnum.EMPTY;
       }
-      System.out.print("Dbg: " + (System.currentTimeMillis()-StartTime) + " ms: " + segmentName + ": SecureCipherTerms: iterator: end " + reuse + "\r\n");
       return termsEnum;
     }
 
@@ -673,11 +656,15 @@ class SecureCipherFieldsReader extends FieldsProducer {
     return Collections.unmodifiableSet(fields.keySet()).iterator();
   }
 
-  private final Map<String,SecureCipherTerms> termsCache = new HashMap<String,SecureCipherTerms>();
+  private final Map<String,SecureCipherTerms> termsCache = new ConcurrentHashMap<String,SecureCipherTerms>();
 
+  /**
+   * Fields are loaded on first use, under a lock of their own: loading a field does not
+   * block the threads that use other fields, and fields already loaded are found without
+   * locking.
+   */
   @Override
-  synchronized public Terms terms(String field) throws IOException {
-    System.out.print("Dbg: " + (System.currentTimeMillis()-StartTime) + " ms: " + segmentName + ": SecureCipherFieldsReader: terms: start " + field + "\r\n");
+  public Terms terms(String field) throws IOException {
     //Terms terms = null;
     Terms terms = termsCache.get(field);
     if (terms == null) {
@@ -685,17 +672,19 @@ class SecureCipherFieldsReader extends FieldsProducer {
       SecureCipherFieldsWriter.FieldHeader fh = fieldHeaders.get(field);
       if (fp == null) {
         return null;
-      } else {
-        try {
-          terms = new SecureCipherTerms(fh, fp);
-          termsCache.put(field, (SecureCipherTerms) terms);
-        } catch (Exception ex) {
-          System.out.print("Err: " + (System.currentTimeMillis()-StartTime) + " ms: " + segmentName + ": SecureCipherFieldsReader: terms: fail " + field + "" + ex.toString() + "\r\n");
-          return null;
+      }
+      synchronized (fh) {
+        terms = termsCache.get(field);
+        if (terms == null) {
+          try {
+            terms = new SecureCipherTerms(fh, fp);
+            termsCache.put(field, (SecureCipherTerms) terms);
+          } catch (Exception ex) {
+            return null;
+          }
         }
       }
     }
-    System.out.print("Dbg: " + (System.currentTimeMillis()-StartTime) + " ms: " + segmentName + ": SecureCipherFieldsReader: terms: end " + field + "\r\n");
     return terms;
   }
 
@@ -27,6 +27,12 @@ import org.apache.lucene.index.SegmentWriteState;
 import org.apache.lucene.store.IndexInput;
 import org.apache.lucene.store.IndexOutput;
 import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.IntsRef;
+import org.apache.lucene.util.fst.Builder;
+import org.apache.lucene.util.fst.FST;
+import org.apache.lucene.util.fst.PairOutputs;
+import org.apache.lucene.util.fst.PositiveIntOutputs;
+import org.apache.lucene.util.fst.Util;
 
 import javax.crypto.SecretKey;
 import java.io.IOException;
@@ -45,11 +51,20 @@ class SecureCipherFieldsWriter extends FieldsConsumer {
   public ArrayList<FieldHeader> fieldHeaders = new ArrayList<FieldHeader>();
 
   final static byte[] COLLECTION   = "Collection".getBytes();
+  /** Preamble of files whose postings are AES/CTR encrypted, same length as {@link #COLLECTION} */
+  final static byte[] COLLECTION_CTR = "CollectCTR".getBytes();
+  /**
+   * Preamble of files like {@link #COLLECTION_CTR} that also hold the terms FST of each
+   * field, same length as {@link #COLLECTION}
+   */
+  final static byte[] COLLECTION_FST = "CollectFST".getBytes();
   final static byte[] FIELD        = "Field".getBytes();
   final static byte[] TERM         = "Term".getBytes();
 
   final static class CollectionHeader {
-    byte[] preamble = COLLECTION;
+    byte[] preamble = COLLECTION_FST;
+    boolean counterMode = true;
+    boolean hasFST = true;
     int fieldCount = 0;
     long startFP = -1;
     long fieldsFP = -1;
@@ -64,7 +79,10 @@ class SecureCipherFieldsWriter extends FieldsConsumer {
     void read(IndexInput in) throws IOException {
       byte[] buf = new byte[this.preamble.length];
       in.readBytes(buf, 0, this.preamble.length);
-      assert Arrays.equals(buf, this.preamble);
+      hasFST = Arrays.equals(buf, COLLECTION_FST);
+      counterMode = hasFST || Arrays.equals(buf, COLLECTION_CTR);
+      assert counterMode || Arrays.equals(buf, COLLECTION);
+      this.preamble = buf;
 
       fieldCount = in.readInt();
       fieldsFP = in.readLong();
@@ -95,13 +113,15 @@ class SecureCipherFieldsWriter extends FieldsConsumer {
     long sumDocFreq = 0;
     long sumTotalTermFreq = 0;
     long termsFP = -1;
+    /** Start of the terms FST, or -1 if the file has none */
+    long fstFP = -1;
 
     FieldHeader (String name) {
       this.name = name;
     }
 
-    FieldHeader (IndexInput in) throws IOException {
-      this.readHeader(in);
+    FieldHeader (IndexInput in, boolean hasFST) throws IOException {
+      this.readHeader(in, hasFST);
     }
 
     void read(IndexInput in) throws IOException {
@@ -114,15 +134,16 @@ class SecureCipherFieldsWriter extends FieldsConsumer {
       //out.writeBytes(preamble, preamble.length);
     }
 
-    void finish(IndexOutput out, int termCount, int docCount, long sumDocFreq, long sumTotalTermFreq, long termsFP) throws IOException {
+    void finish(IndexOutput out, int termCount, int docCount, long sumDocFreq, long sumTotalTermFreq, long termsFP, long fstFP) throws IOException {
       this.termCount = termCount;
       this.docCount = docCount;
       this.sumDocFreq = sumDocFreq;
       this.sumTotalTermFreq = sumTotalTermFreq;
       this.termsFP = termsFP;
+      this.fstFP = fstFP;
     }
 
-    void readHeader(IndexInput in) throws IOException {
+    void readHeader(IndexInput in, boolean hasFST) throws IOException {
       int len = in.readInt();
       byte[] buf = new byte[len];
       in.readBytes(buf, 0, len);
@@ -132,6 +153,9 @@ class SecureCipherFieldsWriter extends FieldsConsumer {
       this.sumDocFreq = in.readLong();
       this.sumTotalTermFreq = in.readLong();
       this.termsFP = in.readLong();
+      if (hasFST) {
+        this.fstFP = in.readLong();
+      }
     }
 
     void writeHeader(IndexOutput out) throws IOException {
@@ -143,6 +167,7 @@ class SecureCipherFieldsWriter extends FieldsConsumer {
       out.writeLong(sumDocFreq);
       out.writeLong(sumTotalTermFreq);
       out.writeLong(termsFP);
+      out.writeLong(fstFP);
     }
   }
 
@@ -278,7 +303,7 @@ class SecureCipherFieldsWriter extends FieldsConsumer {
   }
 
   public SecureCipherFieldsWriter(SegmentWriteState state) throws IOException {
-    final String fileName = SecureSimpleTextPostingsFormat.getPostingsFileName(state.segmentInfo.name, state.segmentSuffix);
+    final String fileName = SecureCipherPostingsFormat.getPostingsFileName(state.segmentInfo.name, state.segmentSuffix);
     IndexOutput inner_out = state.directory.createOutput(fileName, state.context);
     //out = inner_out;
     out = new SecureCipherIndexOutput(inner_out);
@@ -313,6 +338,34 @@ class SecureCipherFieldsWriter extends FieldsConsumer {
     }
   }
 
+  /** Outputs of the terms FST, the docFreq and the totalTermFreq */
+  static PairOutputs<Long,Long> fstOutputsInner() {
+    PositiveIntOutputs posIntOutputs = PositiveIntOutputs.getSingleton();
+    return new PairOutputs<Long,Long>(posIntOutputs, posIntOutputs);
+  }
+
+  /** Outputs of the terms FST: the start of the postings, and {@link #fstOutputsInner} */
+  static PairOutputs<Long,PairOutputs.Pair<Long,Long>> fstOutputs(PairOutputs<Long,Long> outputsInner) {
+    return new PairOutputs<Long,PairOutputs.Pair<Long,Long>>(PositiveIntOutputs.getSingleton(), outputsInner);
+  }
+
+  /** Builds the terms FST of a field from its (sorted) term headers, null if there are none */
+  static FST<PairOutputs.Pair<Long,PairOutputs.Pair<Long,Long>>> buildFST(Iterable<TermHeader> termHeaders) throws IOException {
+    final PairOutputs<Long,Long> outputsInner = fstOutputsInner();
+    final PairOutputs<Long,PairOutputs.Pair<Long,Long>> outputs = fstOutputs(outputsInner);
+    final Builder<PairOutputs.Pair<Long,PairOutputs.Pair<Long,Long>>> b =
+        new Builder<PairOutputs.Pair<Long,PairOutputs.Pair<Long,Long>>>(FST.INPUT_TYPE.BYTE1, outputs);
+    final IntsRef scratchIntsRef = new IntsRef();
+    for (TermHeader termHeader : termHeaders) {
+      assert termHeader.startFP > 0;
+      assert termHeader.docFreq > 0;
+      b.add(Util.toIntsRef(new BytesRef(termHeader.name), scratchIntsRef),
+          outputs.newPair(termHeader.startFP,
+              outputsInner.newPair((long) termHeader.docFreq, termHeader.totalTermFreq)));
+    }
+    return b.finish();
+  }
+
   private class SecureCipherTermsWriter extends TermsConsumer {
     private final SecureCipherPostingsWriter postingsWriter;
     private FieldHeader fieldHeader;
@@ -343,7 +396,15 @@ class SecureCipherFieldsWriter extends FieldsConsumer {
       for (TermHeader term : postingsWriter.termHeaders) {
         term.writeHeader(out);
       }
-      fieldHeader.finish(out, termCount, docCount, sumDocFreq, sumTotalTermFreq < 0 ? 0 : sumTotalTermFreq, termsFP);
+      // the FST only holds what the term headers hold in plaintext already, and saves
+      // readers from building it from them
+      long fstFP = -1;
+      FST<PairOutputs.Pair<Long,PairOutputs.Pair<Long,Long>>> fst = buildFST(postingsWriter.termHeaders);
+      if (fst != null) {
+        fstFP = out.getFilePointer();
+        fst.save(out);
+      }
+      fieldHeader.finish(out, termCount, docCount, sumDocFreq, sumTotalTermFreq < 0 ? 0 : sumTotalTermFreq, termsFP, fstFP);
       fieldHeaders.add(fieldHeader);
       //out.endEncryption();
     }
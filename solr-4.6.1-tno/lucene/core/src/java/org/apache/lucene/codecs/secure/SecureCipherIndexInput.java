@@ -37,11 +37,15 @@ public class SecureCipherIndexInput extends IndexInput {
   private boolean cipherStarted = false;
 
   private IndexInput in;
+  private final boolean counterMode;
+  private final long fileId;
 
   private SecureCipherIndexInput(SecureCipherIndexInput clone)
   {
     super("SecureCipherIndexInput");
     this.in = clone.in.clone();
+    this.counterMode = clone.counterMode;
+    this.fileId = clone.fileId;
     buffer = null;
     currentPos = 0;
     cipherLength = 0;
@@ -50,9 +54,28 @@ public class SecureCipherIndexInput extends IndexInput {
   }
 
   public SecureCipherIndexInput(IndexInput in) throws IOException {
+    this(in, false);
+  }
+
+  /**
+   * @param counterMode true if the encrypted regions were written in AES/CTR mode
+   *                    (see {@link SecureCipherCTRIndexInput}), false for the legacy
+   *                    whole-blob format (see {@link SecureCipherFieldIndexInput}).
+   */
+  public SecureCipherIndexInput(IndexInput in, boolean counterMode) throws IOException {
+    this(in, counterMode, -1);
+  }
+
+  /**
+   * @param fileId      identifies the file in the {@link SecureCipherPageCache}, or -1 to
+   *                    never cache the decrypted pages of AES/CTR regions.
+   */
+  SecureCipherIndexInput(IndexInput in, boolean counterMode, long fileId) throws IOException {
     super("SecureCipherIndexInput");
 
     this.in = in;
+    this.counterMode = counterMode;
+    this.fileId = fileId;
     buffer = null;
     currentPos = 0;
     cipherLength = 0;
@@ -61,7 +84,23 @@ public class SecureCipherIndexInput extends IndexInput {
   }
 
   public IndexInput startDecryption(SecretKey key) throws Exception {
-    return new SecureCipherFieldIndexInput(in, key);
+    return startDecryption(key, null);
+  }
+
+  /** Returns a decrypting view of the encrypted region at the current position.
+   *  <code>reuse</code>, and its buffers, are recycled when it was returned by a
+   *  previous call on this input. */
+  public IndexInput startDecryption(SecretKey key, IndexInput reuse) throws Exception {
+    if (!counterMode) {
+      if (reuse instanceof SecureCipherFieldIndexInput && ((SecureCipherFieldIndexInput) reuse).canReuse(in)) {
+        return ((SecureCipherFieldIndexInput) reuse).reset(in, key);
+      }
+      return new SecureCipherFieldIndexInput(in, key);
+    }
+    if (reuse instanceof SecureCipherCTRIndexInput && ((SecureCipherCTRIndexInput) reuse).canReuse(in)) {
+      return ((SecureCipherCTRIndexInput) reuse).reset(in, key);
+    }
+    return new SecureCipherCTRIndexInput(in, key, fileId);
   }
 
   @Override
@@ -84,4 +123,9 @@ public class SecureCipherIndexInput extends IndexInput {
 
   @Override
   public SecureCipherIndexInput clone() { return new SecureCipherIndexInput(this); }
+
+  /** Returns a clone whose decrypted pages do not go through the page cache */
+  SecureCipherIndexInput cloneUncached() throws IOException {
+    return new SecureCipherIndexInput(in.clone(), counterMode, -1);
+  }
 }
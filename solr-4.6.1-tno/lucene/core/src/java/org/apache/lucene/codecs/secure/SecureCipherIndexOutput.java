@@ -17,131 +17,189 @@ package org.apache.lucene.codecs.secure;
  * limitations under the License.
  */
 
-import org.apache.lucene.store.DataInput;
-import org.apache.lucene.store.DataOutput;
-import org.apache.lucene.util.BytesRef;
-import org.apache.lucene.util.UnicodeUtil;
-
-import java.io.EOFException;
-import java.io.IOException;
-
+import org.apache.lucene.index.CorruptIndexException;
+import org.apache.lucene.store.IndexInput;
 import org.apache.lucene.store.IndexOutput;
-import sun.reflect.generics.reflectiveObjects.NotImplementedException;
 
-import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.nio.BufferOverflowException;
 import java.nio.BufferUnderflowException;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
 import javax.crypto.Cipher;
-import javax.crypto.CipherOutputStream;
 import javax.crypto.SecretKey;
-
+import javax.crypto.spec.IvParameterSpec;
+
+/**
+ * IndexOutput that encrypts the bytes written between {@link #startEncryption(SecretKey)}
+ * and {@link #endEncryption()} in AES/CTR mode, in the format read by {@link SecureCipherCTRIndexInput}.
+ * <p>
+ * Only one page of plaintext is held in memory: as soon as a page is full it is
+ * encrypted and pushed to the underlying output, so memory use does not depend on the
+ * size of the encrypted region. Bytes written outside of an encrypted region go straight
+ * to the underlying output. While encrypting, {@link #seek(long)} may only move within the
+ * page that has not been flushed yet.
+ * <p>
+ * The counter of every page only depends on the IV and the offset of the page in its
+ * region, so an encrypted region can be moved to another file as is, see
+ * {@link #copyEncryptedRegion(IndexInput)}.
+ */
 public class SecureCipherIndexOutput extends IndexOutput {
-  private static final int BufSize = 4096;
-  private byte[][] buffer;
-  private int currentBuf;
-  private int currentPos;
+  private static final int PAGE_SIZE = SecureCipherCTRIndexInput.PAGE_SIZE;
+
+  private final IndexOutput out;
 
   private Cipher cipher;
-  private long cipherStartFP = 0;
-  private long cipherLength = 0;
+  private SecureRandom random;
+  private final byte[] iv = new byte[SecureCipherCTRIndexInput.IV_LENGTH];
   private boolean cipherStarted = false;
+  private long cipherStartFP = 0;
 
-  private IndexOutput out;
+  // Plaintext of the page being written: [pageStart, pageStart + pageLength) relative to cipherStartFP
+  private final byte[] page = new byte[PAGE_SIZE];
+  private final byte[] encryptedPage = new byte[PAGE_SIZE];
+  private long pageStart;
+  private int pageLength;
+  private int pageUpto;
 
   public SecureCipherIndexOutput(IndexOutput out) {
     this.out = out;
-    buffer = null;
-    currentBuf = 0;
-    currentPos = 0;
-    cipherStartFP = 0;
-    cipherLength = 0;
   }
 
   public void startEncryption(SecretKey key) throws IOException {
     assert !cipherStarted;
     try {
-      if (cipher == null) cipher = Cipher.getInstance("AES");
-      cipher.init(Cipher.ENCRYPT_MODE, key);
-      if (buffer == null) buffer = new byte[1][BufSize];
-      currentBuf = 0;
-      currentPos = 0;
-      cipherLength = 0;
-      cipherStarted = true;
-    } catch (Exception ex) {
-      throw new Error(ex.toString());
+      if (cipher == null) cipher = Cipher.getInstance(SecureCipherCTRIndexInput.EncryptionAlgorithm);
+      if (random == null) random = new SecureRandom();
+      random.nextBytes(iv);
+      cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(iv));
+    } catch (GeneralSecurityException ex) {
+      throw new IOException("cannot start encryption", ex);
     }
-    //SecureCipherUtil.writeIV(out, cipher.getIV());
-    out.writeLong(0);
+    out.writeBytes(iv, 0, iv.length);
     cipherStartFP = out.getFilePointer();
-    assert buffer[currentBuf] != null;
+    pageStart = 0;
+    pageLength = 0;
+    pageUpto = 0;
+    cipherStarted = true;
   }
 
   public void endEncryption() throws IOException {
+    assert cipherStarted;
+    if (pageLength == PAGE_SIZE) {
+      flushPage();
+    }
+    try {
+      final int length = cipher.doFinal(page, 0, pageLength, encryptedPage, 0);
+      assert length == pageLength;
+    } catch (GeneralSecurityException ex) {
+      throw new IOException("cannot end encryption", ex);
+    }
+    out.writeByte(SecureCipherCTRIndexInput.FRAME_LAST);
+    out.writeInt(pageLength);
+    out.writeBytes(encryptedPage, 0, pageLength);
+
+    cipherStarted = false;
+    pageStart = 0;
+    pageLength = 0;
+    pageUpto = 0;
+    cipherStartFP = 0;
+  }
+
+  /**
+   * Copies an encrypted region verbatim from <code>in</code>, which must be positioned
+   * at the start (the IV) of a region written by this class. The region is neither
+   * decrypted nor re-encrypted; on return <code>in</code> is positioned after it.
+   */
+  public void copyEncryptedRegion(IndexInput in) throws IOException {
+    assert !cipherStarted;
+    out.copyBytes(in, SecureCipherCTRIndexInput.IV_LENGTH);
+    while (true) {
+      final byte frame = in.readByte();
+      out.writeByte(frame);
+      if (frame == SecureCipherCTRIndexInput.FRAME_FULL) {
+        out.copyBytes(in, PAGE_SIZE);
+      } else if (frame == SecureCipherCTRIndexInput.FRAME_LAST) {
+        final int length = in.readInt();
+        if (length < 0 || length >= PAGE_SIZE) {
+          throw new CorruptIndexException("invalid last page length=" + length + " (resource: " + in + ")");
+        }
+        out.writeInt(length);
+        out.copyBytes(in, length);
+        return;
+      } else {
+        throw new CorruptIndexException("invalid page frame=" + frame + " (resource: " + in + ")");
+      }
+    }
+  }
+
+  /** Encrypts the current, full, page and writes it out */
+  private void flushPage() throws IOException {
+    assert pageLength == PAGE_SIZE;
     try {
-      assert cipherStarted;
-      assert cipherLength == (long)currentBuf * (long) BufSize + currentPos;
-
-      byte[] Buf = new byte[currentBuf*BufSize + currentPos];
-      for (int b = 0; b < currentBuf; ++b)
-        System.arraycopy(buffer[b], 0, Buf, b*BufSize, BufSize);
-        //cipher.update(buffer[b]);
-      //cipher.update(buffer[currentBuf], 0, currentPos);
-      System.arraycopy(buffer[currentBuf], 0, Buf, currentBuf*BufSize, currentPos);
-      byte[] encryptedBuf = cipher.doFinal(Buf);
-      assert encryptedBuf.length == cipherLength;
-      assert cipherStartFP == out.getFilePointer();
-
-      out.seek(out.getFilePointer() - 8);
-      out.writeLong(encryptedBuf.length);
-      out.writeBytes(encryptedBuf, 0, encryptedBuf.length);
-
-      cipherStarted = false;
-      currentBuf = 0;
-      currentPos = 0;
-      cipherStartFP = 0;
-    } catch (Exception ex) {
-      throw new Error(ex.toString());
+      final int length = cipher.update(page, 0, PAGE_SIZE, encryptedPage, 0);
+      assert length == PAGE_SIZE;
+    } catch (GeneralSecurityException ex) {
+      throw new IOException("cannot encrypt page", ex);
     }
+    out.writeByte(SecureCipherCTRIndexInput.FRAME_FULL);
+    out.writeBytes(encryptedPage, 0, PAGE_SIZE);
+    pageStart += PAGE_SIZE;
+    pageLength = 0;
+    pageUpto = 0;
   }
 
   @Override
   public void writeByte(byte b) throws IOException {
-    byte[] buf = new byte[1];
-    buf[0] = b;
-    writeBytes(buf, 0, 1);
+    if (cipherStarted) {
+      if (pageUpto == PAGE_SIZE) {
+        flushPage();
+      }
+      page[pageUpto++] = b;
+      if (pageUpto > pageLength) {
+        pageLength = pageUpto;
+      }
+    } else {
+      out.writeByte(b);
+    }
   }
 
-
   @Override
   public void writeBytes(byte[] b, int offset, int length) throws IOException {
     if (cipherStarted) {
       while (length > 0) {
-        if (currentPos == buffer[currentBuf].length) {
-          ++currentBuf;
-          currentPos = 0;
-          if (currentBuf >= buffer.length) {
-            byte[][] newBuffer = new byte[buffer.length * 2][];
-            System.arraycopy(buffer, 0, newBuffer, 0, buffer.length);
-            buffer = newBuffer;
-          }
-          assert currentBuf < buffer.length;
-          if (buffer[currentBuf] == null) buffer[currentBuf] = new byte[BufSize];
+        if (pageUpto == PAGE_SIZE) {
+          flushPage();
         }
-
-        assert buffer[currentBuf] != null;
-        int bytesToCopy = Math.min(buffer[currentBuf].length - currentPos, length);
-        System.arraycopy(b, offset, buffer[currentBuf], currentPos, bytesToCopy);
+        final int bytesToCopy = Math.min(PAGE_SIZE - pageUpto, length);
+        System.arraycopy(b, offset, page, pageUpto, bytesToCopy);
+        pageUpto += bytesToCopy;
         offset += bytesToCopy;
-        currentPos += bytesToCopy;
         length -= bytesToCopy;
-
-        if ((long)currentBuf*(long)BufSize + currentPos > cipherLength) cipherLength = (long)currentBuf*(long)BufSize + currentPos;
+        if (pageUpto > pageLength) {
+          pageLength = pageUpto;
+        }
       }
     } else {
       out.writeBytes(b, offset, length);
     }
   }
 
+  @Override
+  public void writeInt(int i) throws IOException {
+    if (cipherStarted && pageUpto <= PAGE_SIZE - 4) {
+      page[pageUpto++] = (byte) (i >> 24);
+      page[pageUpto++] = (byte) (i >> 16);
+      page[pageUpto++] = (byte) (i >>  8);
+      page[pageUpto++] = (byte) i;
+      if (pageUpto > pageLength) {
+        pageLength = pageUpto;
+      }
+    } else {
+      super.writeInt(i);
+    }
+  }
+
   @Override
   public void flush() throws IOException {
     out.flush();
@@ -156,48 +214,28 @@ public class SecureCipherIndexOutput extends IndexOutput {
 
   @Override
   public long length() throws IOException {
-    return out.length() + cipherLength;
+    return cipherStarted ? cipherStartFP + pageStart + pageLength : out.length();
   }
 
   @Override
   public long getFilePointer() {
-    if (cipherStarted) assert cipherStartFP == out.getFilePointer();
-    else assert (long)currentBuf * (long)BufSize + currentPos == 0;
-    return out.getFilePointer() + (long)currentBuf * (long)BufSize + currentPos;
+    return cipherStarted ? cipherStartFP + pageStart + pageUpto : out.getFilePointer();
   }
 
   @Override
   public void seek(long pos) throws IOException {
     if (cipherStarted) {
-      pos -= out.getFilePointer();
+      pos -= cipherStartFP + pageStart;
       if (pos < 0) {
+        // already encrypted and written
         throw new BufferUnderflowException();
       }
-      if (pos > cipherLength) {
+      if (pos > pageLength) {
         throw new BufferOverflowException();
       }
-
-      currentBuf = (int)(pos / BufSize);
-      currentPos = (int)(pos % BufSize);
-
-      // If pos == 0 the corresponding buffer might not have been allocated already
-      // So we reset currentPos and currentBuf to point to the end of the previous buffer
-      // If required writeBytes will do the allocation.
-      // Note that: allocating a buffer might require the array of buffers to be expanded as well
-      // Since this is complex (and could potentially allocate 2x unncessary space) we do it in writeBytes.
-      if (pos == cipherLength && buffer[currentBuf] == null) {
-        if (currentPos != 0 || currentBuf == 0) {
-          System.out.println("FATAL: SecureCipherIndexOutput: seek: wrong state at eof");
-          assert false;
-        }
-
-        currentPos += BufSize;
-        --currentBuf;
-      }
-      assert buffer[currentBuf] != null;
-    }
-    else {
+      pageUpto = (int) pos;
+    } else {
       out.seek(pos);
     }
   }
-}
\ No newline at end of file
+}
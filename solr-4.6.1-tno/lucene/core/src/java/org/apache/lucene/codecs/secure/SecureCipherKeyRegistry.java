@@ -0,0 +1,405 @@
+package org.apache.lucene.codecs.secure;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.security.GeneralSecurityException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.lucene.util.BytesRef;
+
+/**
+ * Thread-safe registry of the keys used by the secure codecs.
+ * <p>
+ * Keys are looked up by identity, the bytes of a field name optionally followed by the
+ * bytes of a term. A key that was {@link #addKey(BytesRef, SecretKey) added} explicitly
+ * wins; otherwise the key is derived from the master key with HMAC-SHA256. Derived keys
+ * are kept in a bounded cache so that each identity is normally derived only once, and
+ * the oldest entries are evicted first once the cache is full. Lookups never block: the
+ * maps are concurrent, and every thread derives keys with its own {@link Mac}.
+ * <p>
+ * Master keys have a generation. {@link #rotateMasterKey(SecretKey)} makes a new master
+ * key current under the next generation, while the master keys of older generations are
+ * kept, so that the keys of data written under them can still be derived with
+ * {@link #getKey(BytesRef, int)}, until they are {@link #removeMasterKey(int) removed}.
+ * <p>
+ * Nothing is printed or written to disk; {@link #getStats()} exposes hit, miss and
+ * derivation counters instead.
+ *
+ * @see SecureCipherUtil
+ * @lucene.experimental
+ */
+public final class SecureCipherKeyRegistry {
+  static final String EncryptionAlgorithm = "AES";
+  static final String KeyDerivationAlgorithm = "HmacSHA256";
+  static final int KEY_LENGTH = 128 / 8;
+
+  /** Default maximum number of derived keys kept in the cache */
+  public static final int DEFAULT_MAX_DERIVED_KEYS = 4096;
+
+  /** A derived key, together with the master key it was derived from */
+  private static final class DerivedKey {
+    final SecretKey master;
+    final SecretKey key;
+
+    DerivedKey(SecretKey master, SecretKey key) {
+      this.master = master;
+      this.key = key;
+    }
+  }
+
+  /** Per-thread Mac, together with the master key it was initialized with */
+  private static final class KeyDerivation {
+    final Mac mac;
+    SecretKey master;
+
+    KeyDerivation() {
+      try {
+        mac = Mac.getInstance(KeyDerivationAlgorithm);
+      } catch (GeneralSecurityException ex) {
+        throw new IllegalStateException("cannot create " + KeyDerivationAlgorithm, ex);
+      }
+    }
+  }
+
+  private final ThreadLocal<KeyDerivation> derivations = new ThreadLocal<KeyDerivation>() {
+    @Override
+    protected KeyDerivation initialValue() {
+      return new KeyDerivation();
+    }
+  };
+
+  private final int maxDerivedKeys;
+  private volatile SecretKey masterKey;
+  private volatile int generation;
+  // the master keys of all generations, the current one included
+  private final ConcurrentHashMap<Integer,SecretKey> masterKeys = new ConcurrentHashMap<Integer,SecretKey>();
+  // keys derived from master keys of older generations, dropped as a whole once full
+  private final ConcurrentHashMap<BytesRef,DerivedKey> olderDerivedKeys = new ConcurrentHashMap<BytesRef,DerivedKey>();
+  private final ConcurrentHashMap<BytesRef,SecretKey> keys = new ConcurrentHashMap<BytesRef,SecretKey>();
+  private final ConcurrentHashMap<BytesRef,DerivedKey> derivedKeys = new ConcurrentHashMap<BytesRef,DerivedKey>();
+  // insertion order of derivedKeys, for eviction
+  private final ConcurrentLinkedQueue<BytesRef> derivedOrder = new ConcurrentLinkedQueue<BytesRef>();
+
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong derivationCount = new AtomicLong();
+  private final AtomicLong derivationNanos = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  public SecureCipherKeyRegistry() {
+    this(DEFAULT_MAX_DERIVED_KEYS);
+  }
+
+  public SecureCipherKeyRegistry(int maxDerivedKeys) {
+    if (maxDerivedKeys < 1) {
+      throw new IllegalArgumentException("maxDerivedKeys must be >= 1 (got " + maxDerivedKeys + ")");
+    }
+    this.maxDerivedKeys = maxDerivedKeys;
+  }
+
+  /**
+   * Sets the master key of the current generation. Keys derived from a previous, different,
+   * master key are dropped.
+   */
+  public synchronized void setMasterKey(SecretKey key) {
+    final SecretKey previous = masterKey;
+    if (key == null) {
+      masterKeys.remove(generation);
+    } else {
+      masterKeys.put(generation, key);
+    }
+    masterKey = key;
+    if (previous != null && !previous.equals(key)) {
+      clearDerivedKeys();
+    }
+  }
+
+  /**
+   * Makes <code>key</code> the master key of the next generation, and returns that
+   * generation. The master key it replaces is kept under its own generation.
+   */
+  public synchronized int rotateMasterKey(SecretKey key) {
+    if (key == null) {
+      throw new IllegalArgumentException("key must not be null");
+    }
+    final int next = generation + 1;
+    masterKeys.put(next, key);
+    masterKey = key;
+    generation = next;
+    return next;
+  }
+
+  /**
+   * Registers the master key of <code>generation</code>, e.g. one read back from disk. It
+   * becomes the current master key if there is none yet, or if its generation is newer.
+   */
+  public synchronized void addMasterKey(int generation, SecretKey key) {
+    if (generation < 0) {
+      throw new IllegalArgumentException("generation must be >= 0 (got " + generation + ")");
+    }
+    final SecretKey previous = masterKeys.put(generation, key);
+    if (previous != null && !previous.equals(key)) {
+      olderDerivedKeys.clear();
+    }
+    if (masterKey == null || generation >= this.generation) {
+      setCurrent(generation, key);
+    }
+  }
+
+  private void setCurrent(int generation, SecretKey key) {
+    final SecretKey previous = masterKey;
+    masterKey = key;
+    this.generation = generation;
+    if (previous != null && !previous.equals(key)) {
+      clearDerivedKeys();
+    }
+  }
+
+  /**
+   * Removes the master key of an older <code>generation</code>, once no data written under
+   * it is left. The current generation cannot be removed.
+   */
+  public synchronized void removeMasterKey(int generation) {
+    if (generation == this.generation) {
+      throw new IllegalArgumentException("cannot remove the current key generation " + generation);
+    }
+    if (masterKeys.remove(generation) != null) {
+      olderDerivedKeys.clear();
+    }
+  }
+
+  public SecretKey getMasterKey() {
+    return masterKey;
+  }
+
+  /** Returns the master key of <code>generation</code>, or null if there is none. */
+  public SecretKey getMasterKey(int generation) {
+    return masterKeys.get(generation);
+  }
+
+  /** Returns the generation of the current master key; 0 until the key is first rotated. */
+  public int getKeyGeneration() {
+    return generation;
+  }
+
+  /** Returns the generations that have a master key, in increasing order. */
+  public int[] getKeyGenerations() {
+    final Integer[] generations = masterKeys.keySet().toArray(new Integer[0]);
+    final int[] result = new int[generations.length];
+    for (int i = 0; i < generations.length; i++) {
+      result[i] = generations[i];
+    }
+    Arrays.sort(result);
+    return result;
+  }
+
+  public boolean hasMasterKey() {
+    return masterKey != null;
+  }
+
+  /**
+   * Registers an explicit key for <code>identity</code>; the bytes are copied. Returns the
+   * explicit key it replaces, if any.
+   */
+  public SecretKey addKey(BytesRef identity, SecretKey key) {
+    return keys.put(BytesRef.deepCopyOf(identity), key);
+  }
+
+  /** Removes the explicit key for <code>identity</code>, as well as the key derived for it. */
+  public void removeKey(BytesRef identity) {
+    keys.remove(identity);
+    if (derivedKeys.remove(identity) != null) {
+      derivedOrder.remove(identity);
+    }
+  }
+
+  /** Returns true if there is an explicit key for <code>identity</code>, or a master key to derive it from. */
+  public boolean hasKey(BytesRef identity) {
+    return masterKey != null || keys.containsKey(identity);
+  }
+
+  /**
+   * Returns true if there is an explicit key for <code>identity</code>, or a master key of
+   * <code>generation</code> to derive it from.
+   */
+  public boolean hasKey(BytesRef identity, int generation) {
+    return masterKeys.containsKey(generation) || keys.containsKey(identity);
+  }
+
+  /** Returns the key for <code>identity</code>, or null if there is no explicit key and no master key. */
+  public SecretKey getKey(BytesRef identity) {
+    final SecretKey explicit = keys.get(identity);
+    if (explicit != null) {
+      hits.incrementAndGet();
+      return explicit;
+    }
+    final SecretKey master = masterKey;
+    if (master == null) {
+      return null;
+    }
+    final DerivedKey cached = derivedKeys.get(identity);
+    if (cached != null && cached.master == master) {
+      hits.incrementAndGet();
+      return cached.key;
+    }
+    misses.incrementAndGet();
+
+    final SecretKey derived = deriveKey(master, identity);
+    final BytesRef copy = BytesRef.deepCopyOf(identity);
+    if (cached == null) {
+      if (derivedKeys.putIfAbsent(copy, new DerivedKey(master, derived)) == null) {
+        derivedOrder.add(copy);
+        evict();
+      }
+    } else {
+      // derived from a master key that has since been replaced
+      derivedKeys.replace(copy, cached, new DerivedKey(master, derived));
+    }
+    return derived;
+  }
+
+  /**
+   * Returns the key for <code>identity</code> that data written under key
+   * <code>generation</code> was encrypted with: the explicit key if there is one, else the
+   * key derived from the master key of that generation. Returns null if there is neither.
+   */
+  public SecretKey getKey(BytesRef identity, int generation) {
+    final SecretKey master = masterKeys.get(generation);
+    if (master != null && master == masterKey) {
+      return getKey(identity);
+    }
+    final SecretKey explicit = keys.get(identity);
+    if (explicit != null) {
+      hits.incrementAndGet();
+      return explicit;
+    }
+    if (master == null) {
+      return null;
+    }
+    final DerivedKey cached = olderDerivedKeys.get(identity);
+    if (cached != null && cached.master == master) {
+      hits.incrementAndGet();
+      return cached.key;
+    }
+    misses.incrementAndGet();
+    final SecretKey derived = deriveKey(master, identity);
+    if (olderDerivedKeys.size() >= maxDerivedKeys) {
+      evictions.addAndGet(olderDerivedKeys.size());
+      olderDerivedKeys.clear();
+    }
+    olderDerivedKeys.put(BytesRef.deepCopyOf(identity), new DerivedKey(master, derived));
+    return derived;
+  }
+
+  /** Derives the key for <code>identity</code> from <code>master</code>, without caching it. */
+  public SecretKey deriveKey(SecretKey master, BytesRef identity) {
+    final long start = System.nanoTime();
+    final KeyDerivation derivation = derivations.get();
+    final byte[] digest;
+    try {
+      if (derivation.master != master) {
+        derivation.mac.init(new SecretKeySpec(master.getEncoded(), KeyDerivationAlgorithm));
+        derivation.master = master;
+      }
+      derivation.mac.update(identity.bytes, identity.offset, identity.length);
+      digest = derivation.mac.doFinal();
+    } catch (GeneralSecurityException ex) {
+      derivation.master = null;
+      throw new IllegalStateException("cannot derive key", ex);
+    }
+    derivationCount.incrementAndGet();
+    derivationNanos.addAndGet(System.nanoTime() - start);
+    return new SecretKeySpec(digest, 0, KEY_LENGTH, EncryptionAlgorithm);
+  }
+
+  private void evict() {
+    while (derivedKeys.size() > maxDerivedKeys) {
+      final BytesRef eldest = derivedOrder.poll();
+      if (eldest == null) {
+        break;
+      }
+      if (derivedKeys.remove(eldest) != null) {
+        evictions.incrementAndGet();
+      }
+    }
+  }
+
+  /** Drops all derived keys; explicit keys and the master keys are kept. */
+  public void clearDerivedKeys() {
+    derivedKeys.clear();
+    derivedOrder.clear();
+    olderDerivedKeys.clear();
+  }
+
+  /** Drops all keys, including the master keys of all generations. */
+  public synchronized void clear() {
+    masterKey = null;
+    generation = 0;
+    masterKeys.clear();
+    keys.clear();
+    clearDerivedKeys();
+  }
+
+  /** Returns the number of derived keys currently cached. */
+  public int derivedKeyCount() {
+    return derivedKeys.size();
+  }
+
+  public Stats getStats() {
+    return new Stats(hits.get(), misses.get(), derivationCount.get(), derivationNanos.get(), evictions.get(), derivedKeys.size());
+  }
+
+  /** Point-in-time snapshot of the registry counters. */
+  public static final class Stats {
+    /** Lookups answered by an explicit or cached derived key */
+    public final long hits;
+    /** Lookups that had to derive a key */
+    public final long misses;
+    /** Number of keys derived */
+    public final long derivations;
+    /** Total time spent deriving keys, in nanoseconds */
+    public final long derivationNanos;
+    /** Number of derived keys evicted from the cache */
+    public final long evictions;
+    /** Number of derived keys currently cached */
+    public final int cachedDerivedKeys;
+
+    Stats(long hits, long misses, long derivations, long derivationNanos, long evictions, int cachedDerivedKeys) {
+      this.hits = hits;
+      this.misses = misses;
+      this.derivations = derivations;
+      this.derivationNanos = derivationNanos;
+      this.evictions = evictions;
+      this.cachedDerivedKeys = cachedDerivedKeys;
+    }
+
+    @Override
+    public String toString() {
+      return "hits=" + hits + " misses=" + misses + " derivations=" + derivations
+          + " derivationNanos=" + derivationNanos + " evictions=" + evictions
+          + " cachedDerivedKeys=" + cachedDerivedKeys;
+    }
+  }
+}
@@ -51,8 +51,6 @@ import java.util.Map;
 import java.util.TreeMap;
 
 class SecureCipherOldFieldsReader extends FieldsProducer {
-  private static long StartTime = System.currentTimeMillis();
-  private final String segmentName;
 
   private final TreeMap<String,Long> fields;
   private TreeMap<String, SecureCipherOldFieldsWriter.FieldHeader> fieldHeaders;
@@ -64,17 +62,15 @@ class SecureCipherOldFieldsReader extends FieldsProducer {
   final static byte[] TERM         = SecureCipherOldFieldsWriter.TERM;
 
   public SecureCipherOldFieldsReader(SegmentReadState state) throws IOException {
-    segmentName = state.segmentInfo.name;
-    System.out.print("Dbg: " + (System.currentTimeMillis()-StartTime) + " ms: " + segmentName + ": SecureCipherFieldsReader: const: start\r\n");
     fieldInfos = state.fieldInfos;
-    String fileName = SecureSimpleTextPostingsFormat.getPostingsFileName(state.segmentInfo.name, state.segmentSuffix);
+    String fileName = SecureCipherPostingsFormat.getPostingsFileName(state.segmentInfo.name, state.segmentSuffix);
     IndexInput inner_in = state.directory.openInput(fileName, state.context);
     boolean success = false;
     try {
-      in = new SecureCipherIndexInput(inner_in.clone());
+      SecureCipherOldFieldsWriter.CollectionHeader header = new SecureCipherOldFieldsWriter.CollectionHeader(inner_in);
+      in = new SecureCipherIndexInput(inner_in.clone(), header.counterMode);
 
       //this.in = inner_in;
-      SecureCipherOldFieldsWriter.CollectionHeader header = new SecureCipherOldFieldsWriter.CollectionHeader(in);
       fields = readFields(in, header.fieldCount);
       success = true;
     } finally {
@@ -82,11 +78,9 @@ class SecureCipherOldFieldsReader extends FieldsProducer {
         IOUtils.closeWhileHandlingException(this);
       }
     }
-    System.out.print("Dbg: " + (System.currentTimeMillis()-StartTime) + " ms: " + segmentName + ": SecureCipherFieldsReader: const: end\r\n");
   }
 
   private TreeMap<String,Long> readFields(IndexInput in, int fieldCount) throws IOException {
-    System.out.print("Dbg: " + (System.currentTimeMillis()-StartTime) + " ms: " + segmentName + ": SecureCipherFieldsReader: readFields: start\r\n");
 
     TreeMap<String,Long> fields = new TreeMap<String,Long>();
     TreeMap<String,SecureCipherOldFieldsWriter.FieldHeader> fieldHeaders = new TreeMap<String,SecureCipherOldFieldsWriter.FieldHeader>();
@@ -100,7 +94,6 @@ class SecureCipherOldFieldsReader extends FieldsProducer {
       fieldStart = fieldHeader.next;
     }
     this.fieldHeaders = fieldHeaders;
-    System.out.print("Dbg: " + (System.currentTimeMillis()-StartTime) + " ms: " + segmentName + ": SecureCipherFieldsReader: readFields: end\r\n");
     return fields;
   }
 
@@ -118,12 +111,10 @@ class SecureCipherOldFieldsReader extends FieldsProducer {
     private final SecretKey fieldKey;
 
     public SecureCipherTermsEnum(FST<PairOutputs.Pair<Long, PairOutputs.Pair<Long, Long>>> fst, IndexOptions indexOptions, IndexInput in, SecretKey fieldKey) {
-      System.out.print("Dbg: " + (System.currentTimeMillis()-StartTime) + " ms: " + segmentName + ": SecureCipherTermsEnum: cons: start\r\n");
       this.indexOptions = indexOptions;
       fstEnum = new BytesRefFSTEnum<PairOutputs.Pair<Long,PairOutputs.Pair<Long,Long>>>(fst);
       this.in = in;
       this.fieldKey = fieldKey;
-      System.out.print("Dbg: " + (System.currentTimeMillis()-StartTime) + " ms: " + segmentName + ": SecureCipherTermsEnum: cons: end\r\n");
     }
 
 //    public SecureCipherTermsEnum(HashMap<BytesRef, SecureCipherOldFieldsWriter.TermHeader> map, IndexOptions indexOptions, IndexInput in, SecretKey fieldKey) {
@@ -135,7 +126,6 @@ class SecureCipherOldFieldsReader extends FieldsProducer {
 //
     @Override
     public boolean seekExact(BytesRef text) throws IOException {
-      System.out.print("Dbg: " + (System.currentTimeMillis()-StartTime) + " ms: " + segmentName + ": SecureCipherTermsEnum: seekExact: start " + text.utf8ToString() + "\r\n");
 
       boolean retVal = false;
       if (fstEnum != null) {
@@ -162,13 +152,11 @@ class SecureCipherOldFieldsReader extends FieldsProducer {
           retVal = false;
         }
       }
-      System.out.print("Dbg: " + (System.currentTimeMillis()-StartTime) + " ms: " + segmentName + ": SecureCipherTermsEnum: seekExact: end " + text.utf8ToString() + "\r\n");
       return retVal;
     }
 
     @Override
     public SeekStatus seekCeil(BytesRef text) throws IOException {
-      System.out.print("Dbg: " + (System.currentTimeMillis()-StartTime) + " ms: " + segmentName + ": SecureCipherTermsEnum: seekCeil: start " + text.utf8ToString() + "\r\n");
 
       SeekStatus retVal = SeekStatus.END;
       if (fstEnum != null) {
@@ -192,13 +180,11 @@ class SecureCipherOldFieldsReader extends FieldsProducer {
       } else {
         throw new NotImplementedException();
       }
-      System.out.print("Dbg: " + (System.currentTimeMillis()-StartTime) + " ms: " + segmentName + ": SecureCipherTermsEnum: seekCeil: end " + text.utf8ToString() + "\r\n");
       return retVal;
     }
 
     @Override
     public BytesRef next() throws IOException {
-      //System.out.print("Dbg: " + (System.currentTimeMillis()-StartTime) + " ms: " + segmentName + ": SecureCipherTermsEnum: next: start\r\n");
 
       BytesRef retVal = null;
       if (fstEnum != null) {
@@ -217,7 +203,6 @@ class SecureCipherOldFieldsReader extends FieldsProducer {
       } else {
         throw new NotImplementedException();
       }
-      //System.out.print("Dbg: " + (System.currentTimeMillis()-StartTime) + " ms: " + segmentName + ": SecureCipherTermsEnum: next: end\r\n");
       return retVal;
     }
 
@@ -252,7 +237,6 @@ class SecureCipherOldFieldsReader extends FieldsProducer {
  
     @Override
     public DocsEnum docs(Bits liveDocs, DocsEnum reuse, int flags) throws IOException {
-      //System.out.print("Dbg: " + (System.currentTimeMillis()-StartTime) + " ms: " + segmentName + ": SecureCipherTermsEnum: docs: start " + term().utf8ToString() + " " + docFreq + " " + totalTermFreq + "\r\n");
       SecureCipherDocsEnum docsEnum;
       if (reuse != null && reuse instanceof SecureCipherDocsEnum && ((SecureCipherDocsEnum) reuse).canReuse(SecureCipherOldFieldsReader.this.in)) {
         docsEnum = (SecureCipherDocsEnum) reuse;
@@ -260,7 +244,6 @@ class SecureCipherOldFieldsReader extends FieldsProducer {
         docsEnum = new SecureCipherDocsEnum(in);
       }
       docsEnum = docsEnum.reset(docsStart, liveDocs, indexOptions == IndexOptions.DOCS_ONLY, docFreq, fieldKey);
-      //System.out.print("Dbg: " + (System.currentTimeMillis()-StartTime) + " ms: " + segmentName + ": SecureCipherTermsEnum: docs: end " + term().utf8ToString() + " " + docFreq + " " + totalTermFreq + "\r\n");
       return docsEnum;
     }
 
@@ -272,7 +255,6 @@ class SecureCipherOldFieldsReader extends FieldsProducer {
         return null;
       }
 
-      System.out.print("Dbg: " + (System.currentTimeMillis()-StartTime) + " ms: " + segmentName + ": SecureCipherTermsEnum: docsAndPositions: start\r\n");
       SecureCipherDocsAndPositionsEnum docsAndPositionsEnum;
       if (reuse != null && reuse instanceof SecureCipherDocsAndPositionsEnum && ((SecureCipherDocsAndPositionsEnum) reuse).canReuse(SecureCipherOldFieldsReader.this.in)) {
         docsAndPositionsEnum = (SecureCipherDocsAndPositionsEnum) reuse;
@@ -280,7 +262,6 @@ class SecureCipherOldFieldsReader extends FieldsProducer {
         docsAndPositionsEnum = new SecureCipherDocsAndPositionsEnum(in);
       }
       docsAndPositionsEnum = docsAndPositionsEnum.reset(docsStart, liveDocs, indexOptions, docFreq, fieldKey);
-      System.out.print("Dbg: " + (System.currentTimeMillis()-StartTime) + " ms: " + segmentName + ": SecureCipherTermsEnum: docsAndPositions: end\r\n");
       return docsAndPositionsEnum;
     }
     
@@ -318,7 +299,7 @@ class SecureCipherOldFieldsReader extends FieldsProducer {
       insecureIn.seek(fp);
       IndexInput secureIn = null;
       try {
-        secureIn = ((SecureCipherIndexInput)(insecureIn)).startDecryption(fieldKey);
+        secureIn = ((SecureCipherIndexInput)(insecureIn)).startDecryption(fieldKey, this.in);
         //secureIn = this.insecureIn;
       } catch (Exception ex) {}
       this.in = secureIn;
@@ -347,13 +328,10 @@ class SecureCipherOldFieldsReader extends FieldsProducer {
     @Override
     public int nextDoc() throws IOException {
       while (current < docCount) {
-        if (omitTF) {
-          SecureCipherOldFieldsWriter.DocsOnlyTermValue termValue = new SecureCipherOldFieldsWriter.DocsOnlyTermValue(in);
-          docID = termValue.docID;
-        } else {
-          SecureCipherOldFieldsWriter.DocsAndFreqsTermValue termValue = new SecureCipherOldFieldsWriter.DocsAndFreqsTermValue(in);
-          docID = termValue.docID;
-          tf = termValue.termDocFreq;
+        // read in place of SecureCipherOldFieldsWriter.DocsOnlyTermValue/DocsAndFreqsTermValue, to not allocate per posting
+        docID = in.readInt();
+        if (!omitTF) {
+          tf = in.readInt();
         }
         ++current;
 
@@ -415,7 +393,7 @@ class SecureCipherOldFieldsReader extends FieldsProducer {
       insecureIn.seek(fp);
       IndexInput secureIn = null;
       try {
-        secureIn = ((SecureCipherIndexInput)(insecureIn)).startDecryption(fieldKey);
+        secureIn = ((SecureCipherIndexInput)(insecureIn)).startDecryption(fieldKey, this.in);
         //secureIn = this.insecureIn;
       } catch (Exception ex) {}
       this.in = secureIn;
@@ -452,11 +430,11 @@ class SecureCipherOldFieldsReader extends FieldsProducer {
 
       while (current < docCount) {
         in.seek(nextDocStart);
-        SecureCipherOldFieldsWriter.DocsAndFreqsAndPositionsTermValue termValue = new SecureCipherOldFieldsWriter.DocsAndFreqsAndPositionsTermValue(in);
-        docID = termValue.docID;
-        tf = termValue.termDocFreq;
+        // read in place of SecureCipherOldFieldsWriter.DocsAndFreqsAndPositionsTermValue
+        docID = in.readInt();
+        tf = in.readInt();
 
-        nextDocStart = termValue.next;
+        nextDocStart = in.readLong();
         ++current;
 
         if ((liveDocs == null || liveDocs.get(docID))) {
@@ -547,7 +525,6 @@ class SecureCipherOldFieldsReader extends FieldsProducer {
     private final SecretKey fieldKey;
 
     public SecureCipherTerms(SecureCipherOldFieldsWriter.FieldHeader fieldHeader, long termsStart) throws Exception {
-      System.out.print("Dbg: " + (System.currentTimeMillis()-StartTime) + " ms: " + segmentName + ": SecureCipherTerms: cons: start\r\n");
 
       this.termsEnd = fieldHeader.next;
       this.docCount = fieldHeader.docCount;
@@ -570,11 +547,9 @@ class SecureCipherOldFieldsReader extends FieldsProducer {
         if (in != null) in.close();
         throw ex;
       }
-      System.out.print("Dbg: " + (System.currentTimeMillis()-StartTime) + " ms: " + segmentName + ": SecureCipherTerms: cons: end\r\n");
     }
 
     private void loadTerms(int nTerms) throws IOException {
-      System.out.print("Dbg: " + (System.currentTimeMillis()-StartTime) + " ms: " + segmentName + ": SecureCipherTerms: loadTerms: start " + nTerms + "\r\n");
 
       PositiveIntOutputs posIntOutputs = PositiveIntOutputs.getSingleton();
       final Builder<PairOutputs.Pair<Long,PairOutputs.Pair<Long,Long>>> b;
@@ -614,7 +589,6 @@ class SecureCipherOldFieldsReader extends FieldsProducer {
       System.out.println("SAVED out.dot");
       */
       //System.out.println("FST " + fst.sizeInBytes());
-      System.out.print("Dbg: " + (System.currentTimeMillis()-StartTime) + " ms: " + segmentName + ": SecureCipherTerms: loadTerms: end " + nTerms + "\r\n");
     }
     
     /** Returns approximate RAM bytes used */
@@ -624,7 +598,6 @@ class SecureCipherOldFieldsReader extends FieldsProducer {
 
     @Override
     public TermsEnum iterator(TermsEnum reuse) throws IOException {
-      System.out.print("Dbg: " + (System.currentTimeMillis()-StartTime) + " ms: " + segmentName + ": SecureCipherTerms: iterator: start " + reuse + "\r\n");
       TermsEnum termsEnum;
       if (fst != null) {
         //return new SecureCipherTermsEnum(fst, fieldInfo.getIndexOptions(), in);
@@ -635,7 +608,6 @@ class SecureCipherOldFieldsReader extends FieldsProducer {
       } else {
         termsEnum = TermsEnum.EMPTY;
       }
-      System.out.print("Dbg: " + (System.currentTimeMillis()-StartTime) + " ms: " + segmentName + ": SecureCipherTerms: iterator: end " + reuse + "\r\n");
       return termsEnum;
     }
 
@@ -694,7 +666,6 @@ class SecureCipherOldFieldsReader extends FieldsProducer {
 
   @Override
   synchronized public Terms terms(String field) throws IOException {
-    System.out.print("Dbg: " + (System.currentTimeMillis()-StartTime) + " ms: " + segmentName + ": SecureCipherFieldsReader: terms: start " + field + "\r\n");
     //Terms terms = null;
     Terms terms = termsCache.get(field);
     if (terms == null) {
@@ -707,12 +678,10 @@ class SecureCipherOldFieldsReader extends FieldsProducer {
           terms = new SecureCipherTerms(fh, fp);
           termsCache.put(field, (SecureCipherTerms) terms);
         } catch (Exception ex) {
-          System.out.print("Err: " + (System.currentTimeMillis()-StartTime) + " ms: " + segmentName + ": SecureCipherFieldsReader: terms: fail " + field + "" + ex.toString() + "\r\n");
           return null;
         }
       }
     }
-    System.out.print("Dbg: " + (System.currentTimeMillis()-StartTime) + " ms: " + segmentName + ": SecureCipherFieldsReader: terms: end " + field + "\r\n");
     return terms;
   }
 
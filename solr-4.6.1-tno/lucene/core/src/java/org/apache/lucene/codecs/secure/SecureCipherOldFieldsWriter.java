@@ -42,11 +42,14 @@ class SecureCipherOldFieldsWriter extends FieldsConsumer {
   private int fieldCount = 0;
 
   final static byte[] COLLECTION   = "Collection".getBytes();
+  /** Preamble of files whose postings are AES/CTR encrypted, same length as {@link #COLLECTION} */
+  final static byte[] COLLECTION_CTR = "CollectCTR".getBytes();
   final static byte[] FIELD        = "Field".getBytes();
   final static byte[] TERM         = "Term".getBytes();
 
   final static class CollectionHeader {
-    byte[] preamble = COLLECTION;
+    byte[] preamble = COLLECTION_CTR;
+    boolean counterMode = true;
     int fieldCount = 0;
     long finishFP = 0;
 
@@ -60,7 +63,9 @@ class SecureCipherOldFieldsWriter extends FieldsConsumer {
     void read(IndexInput in) throws IOException {
       byte[] buf = new byte[this.preamble.length];
       in.readBytes(buf, 0, this.preamble.length);
-      assert Arrays.equals(buf, this.preamble);
+      counterMode = Arrays.equals(buf, COLLECTION_CTR);
+      assert counterMode || Arrays.equals(buf, COLLECTION);
+      this.preamble = buf;
 
       fieldCount = in.readInt();
     }
@@ -273,7 +278,7 @@ class SecureCipherOldFieldsWriter extends FieldsConsumer {
   }
 
   public SecureCipherOldFieldsWriter(SegmentWriteState state) throws IOException {
-    final String fileName = SecureSimpleTextPostingsFormat.getPostingsFileName(state.segmentInfo.name, state.segmentSuffix);
+    final String fileName = SecureCipherPostingsFormat.getPostingsFileName(state.segmentInfo.name, state.segmentSuffix);
     IndexOutput inner_out = state.directory.createOutput(fileName, state.context);
     //out = inner_out;
     out = new SecureCipherIndexOutput(inner_out);
@@ -0,0 +1,327 @@
+package org.apache.lucene.codecs.secure;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.SecretKey;
+
+/**
+ * Bounded, off-heap LRU cache of decrypted {@link SecureCipherCTRIndexInput} pages.
+ * <p>
+ * Encrypted postings are decrypted page by page; a frequent term that is queried over and
+ * over would otherwise be decrypted again by every query. This cache keeps the plaintext of
+ * recently used pages in direct {@link ByteBuffer}s, outside of the Java heap, so that the
+ * cache neither adds to garbage collection pauses nor competes with the heap sized for the
+ * Solr caches. When the index directory is a {@link org.apache.lucene.store.MMapDirectory},
+ * the ciphertext is mapped as well, and a hit costs a lookup and one page copy.
+ * <p>
+ * A page is identified by the file it was read from, the start of its encrypted region,
+ * its index in that region and the key it was decrypted with. A page is therefore only
+ * handed out to a reader presenting an equal key: the cache never lets a caller read
+ * plaintext it could not have decrypted itself.
+ * <p>
+ * The cache is split in segments, each with its own lock, LRU order and slice of the
+ * off-heap memory, so that concurrent queries do not contend on a single lock. The
+ * maximum size and the number of segments are set at construction; once a segment is
+ * full, its least recently used page is evicted.
+ * <p>
+ * There is a single, JVM wide {@link #getDefault() default cache}, which is disabled
+ * (<code>null</code>) unless {@link #setDefault(SecureCipherPageCache) set}.
+ *
+ * @lucene.experimental
+ */
+public final class SecureCipherPageCache {
+  /** Size of a cached page, in bytes */
+  public static final int PAGE_SIZE = SecureCipherCTRIndexInput.PAGE_SIZE;
+
+  /** Default number of segments */
+  public static final int DEFAULT_SEGMENTS = 16;
+
+  private static volatile SecureCipherPageCache defaultCache;
+  private static final AtomicLong nextFileId = new AtomicLong();
+
+  /** Returns the cache used by the secure postings readers, or null if caching is disabled. */
+  public static SecureCipherPageCache getDefault() {
+    return defaultCache;
+  }
+
+  /** Sets the cache used by the secure postings readers; null disables caching. The
+   *  pages of the previous cache are dropped. */
+  public static synchronized void setDefault(SecureCipherPageCache cache) {
+    final SecureCipherPageCache previous = defaultCache;
+    defaultCache = cache;
+    if (previous != null && previous != cache) {
+      previous.clear();
+    }
+  }
+
+  /** Drops all pages of the default cache, if any. */
+  public static void clearDefault() {
+    final SecureCipherPageCache cache = defaultCache;
+    if (cache != null) {
+      cache.clear();
+    }
+  }
+
+  /** Returns a new identifier for an opened file; pages of different files never collide. */
+  static long newFileId() {
+    return nextFileId.getAndIncrement();
+  }
+
+  private static final class PageKey {
+    final long fileId;
+    final long regionFP;
+    final long pageIndex;
+    final SecretKey key;
+    final int hash;
+
+    PageKey(long fileId, long regionFP, long pageIndex, SecretKey key) {
+      this.fileId = fileId;
+      this.regionFP = regionFP;
+      this.pageIndex = pageIndex;
+      this.key = key;
+      int h = (int) (fileId ^ (fileId >>> 32));
+      h = 31 * h + (int) (regionFP ^ (regionFP >>> 32));
+      h = 31 * h + (int) (pageIndex ^ (pageIndex >>> 32));
+      this.hash = h;
+    }
+
+    @Override
+    public int hashCode() {
+      return hash;
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof PageKey)) {
+        return false;
+      }
+      final PageKey other = (PageKey) obj;
+      return fileId == other.fileId && regionFP == other.regionFP && pageIndex == other.pageIndex
+          && (key == other.key || key.equals(other.key));
+    }
+  }
+
+  /** Slot in the off-heap slab of a segment, and number of bytes of the page */
+  private static final class Slot {
+    final int offset;
+    int length;
+
+    Slot(int offset) {
+      this.offset = offset;
+    }
+  }
+
+  private static final class Segment {
+    final ByteBuffer slab;
+    final int maxPages;
+    final LinkedHashMap<PageKey,Slot> pages;
+    // slots that hold no page
+    final Slot[] free;
+    int numFree;
+
+    long hits;
+    long misses;
+    long inserts;
+    long evictions;
+
+    Segment(int maxPages) {
+      this.maxPages = maxPages;
+      slab = ByteBuffer.allocateDirect(maxPages * PAGE_SIZE);
+      pages = new LinkedHashMap<PageKey,Slot>(16, 0.75f, true);
+      free = new Slot[maxPages];
+      for (int i = maxPages - 1; i >= 0; i--) {
+        free[numFree++] = new Slot(i * PAGE_SIZE);
+      }
+    }
+  }
+
+  private final Segment[] segments;
+  private final long maxBytes;
+
+  /** Creates a cache of at most <code>maxBytes</code> bytes of pages, with {@link #DEFAULT_SEGMENTS} segments. */
+  public SecureCipherPageCache(long maxBytes) {
+    this(maxBytes, DEFAULT_SEGMENTS);
+  }
+
+  /** Creates a cache of at most <code>maxBytes</code> bytes of pages, split in
+   *  <code>numSegments</code> segments. Fewer segments are used if the cache cannot
+   *  hold a page per segment. */
+  public SecureCipherPageCache(long maxBytes, int numSegments) {
+    if (maxBytes < PAGE_SIZE) {
+      throw new IllegalArgumentException("maxBytes must be at least " + PAGE_SIZE + ", got " + maxBytes);
+    }
+    if (numSegments < 1) {
+      throw new IllegalArgumentException("numSegments must be positive, got " + numSegments);
+    }
+    final long maxPages = maxBytes / PAGE_SIZE;
+    numSegments = (int) Math.min(numSegments, maxPages);
+    final long pagesPerSegment = maxPages / numSegments;
+    if (pagesPerSegment * PAGE_SIZE > Integer.MAX_VALUE) {
+      throw new IllegalArgumentException("segments of more than 2 GB are not supported, use more segments");
+    }
+    segments = new Segment[numSegments];
+    for (int i = 0; i < numSegments; i++) {
+      segments[i] = new Segment((int) pagesPerSegment);
+    }
+    this.maxBytes = pagesPerSegment * numSegments * PAGE_SIZE;
+  }
+
+  private Segment segment(PageKey key) {
+    // spread the hash: page indexes of one region are consecutive
+    int h = key.hash;
+    h ^= (h >>> 20) ^ (h >>> 12);
+    h ^= (h >>> 7) ^ (h >>> 4);
+    return segments[(h & 0x7FFFFFFF) % segments.length];
+  }
+
+  /**
+   * Copies the cached plaintext of a page into <code>page</code>.
+   *
+   * @return the number of bytes of the page, or -1 if it is not cached
+   */
+  public int get(long fileId, long regionFP, long pageIndex, SecretKey key, byte[] page) {
+    final PageKey pageKey = new PageKey(fileId, regionFP, pageIndex, key);
+    final Segment segment = segment(pageKey);
+    synchronized (segment) {
+      final Slot slot = segment.pages.get(pageKey);
+      if (slot == null) {
+        segment.misses++;
+        return -1;
+      }
+      segment.hits++;
+      segment.slab.position(slot.offset);
+      segment.slab.get(page, 0, slot.length);
+      return slot.length;
+    }
+  }
+
+  /** Caches the first <code>length</code> bytes of <code>page</code> as the plaintext of a page. */
+  public void put(long fileId, long regionFP, long pageIndex, SecretKey key, byte[] page, int length) {
+    assert length >= 0 && length <= PAGE_SIZE;
+    final PageKey pageKey = new PageKey(fileId, regionFP, pageIndex, key);
+    final Segment segment = segment(pageKey);
+    synchronized (segment) {
+      if (segment.pages.containsKey(pageKey)) {
+        // another reader decrypted the same page concurrently
+        return;
+      }
+      final Slot slot;
+      if (segment.numFree > 0) {
+        slot = segment.free[--segment.numFree];
+        segment.free[segment.numFree] = null;
+      } else {
+        final Iterator<Map.Entry<PageKey,Slot>> eldest = segment.pages.entrySet().iterator();
+        slot = eldest.next().getValue();
+        eldest.remove();
+        segment.evictions++;
+      }
+      segment.slab.position(slot.offset);
+      segment.slab.put(page, 0, length);
+      slot.length = length;
+      segment.pages.put(pageKey, slot);
+      segment.inserts++;
+    }
+  }
+
+  /** Drops all cached pages; the off-heap memory is kept for reuse. */
+  public void clear() {
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        for (Slot slot : segment.pages.values()) {
+          segment.free[segment.numFree++] = slot;
+        }
+        segment.pages.clear();
+        // do not leave plaintext behind in the slab
+        final ByteBuffer slab = segment.slab;
+        slab.clear();
+        while (slab.remaining() >= 8) {
+          slab.putLong(0L);
+        }
+        slab.clear();
+      }
+    }
+  }
+
+  /** Returns the maximum number of bytes of pages this cache holds. */
+  public long getMaxBytes() {
+    return maxBytes;
+  }
+
+  /** Returns the number of segments of this cache. */
+  public int getNumSegments() {
+    return segments.length;
+  }
+
+  public Stats getStats() {
+    long hits = 0, misses = 0, inserts = 0, evictions = 0;
+    int pages = 0;
+    for (Segment segment : segments) {
+      synchronized (segment) {
+        hits += segment.hits;
+        misses += segment.misses;
+        inserts += segment.inserts;
+        evictions += segment.evictions;
+        pages += segment.pages.size();
+      }
+    }
+    return new Stats(hits, misses, inserts, evictions, pages, maxBytes);
+  }
+
+  /** Point-in-time snapshot of the cache counters. */
+  public static final class Stats {
+    /** Lookups answered from the cache */
+    public final long hits;
+    /** Lookups of pages that were not cached */
+    public final long misses;
+    /** Number of pages added to the cache */
+    public final long inserts;
+    /** Number of pages evicted to make room for others */
+    public final long evictions;
+    /** Number of pages currently cached */
+    public final int pages;
+    /** Maximum size of the cache, in bytes */
+    public final long maxBytes;
+
+    Stats(long hits, long misses, long inserts, long evictions, int pages, long maxBytes) {
+      this.hits = hits;
+      this.misses = misses;
+      this.inserts = inserts;
+      this.evictions = evictions;
+      this.pages = pages;
+      this.maxBytes = maxBytes;
+    }
+
+    /** Returns the fraction of lookups answered from the cache, 0 if there were none */
+    public float hitRatio() {
+      final long lookups = hits + misses;
+      return lookups == 0 ? 0f : (float) hits / lookups;
+    }
+
+    @Override
+    public String toString() {
+      return "hits=" + hits + " misses=" + misses + " inserts=" + inserts
+          + " evictions=" + evictions + " pages=" + pages + " maxBytes=" + maxBytes;
+    }
+  }
+}
@@ -0,0 +1,162 @@
+package org.apache.lucene.codecs.secure;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.security.GeneralSecurityException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+
+/**
+ * Per-thread pool of {@link Cipher} instances, one per (algorithm, key).
+ * <p>
+ * Initializing a cipher with a new key computes the key schedule, while re-initializing
+ * it with the key it already holds and only a new IV is cheap. Handing out the same
+ * cipher for the same key, on the same thread, therefore pays for the key schedule once
+ * instead of once per value. Each thread keeps at most {@link #MAX_CIPHERS_PER_THREAD}
+ * ciphers, least recently used ones are dropped.
+ * <p>
+ * A cipher obtained from {@link #get} must only be used by the calling thread, and
+ * only until the next call to {@link #get} for the same key on that thread.
+ * <p>
+ * The ciphers hold the key schedules of their keys, so the pools of all threads are
+ * emptied whenever {@link SecureCipherUtil} removes or replaces a key.
+ *
+ * @lucene.experimental
+ */
+public final class SecureCipherPool {
+  /** Maximum number of ciphers kept per thread */
+  public static final int MAX_CIPHERS_PER_THREAD = 64;
+
+  private static final class PoolKey {
+    final String algorithm;
+    final SecretKey key;
+    final int hashCode;
+
+    PoolKey(String algorithm, SecretKey key) {
+      this.algorithm = algorithm;
+      this.key = key;
+      this.hashCode = 31 * algorithm.hashCode() + System.identityHashCode(key);
+    }
+
+    @Override
+    public int hashCode() {
+      return hashCode;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof PoolKey)) {
+        return false;
+      }
+      final PoolKey o = (PoolKey) other;
+      // keys are compared by identity: the key registry hands out the same instance
+      return key == o.key && algorithm.equals(o.algorithm);
+    }
+  }
+
+  /** The ciphers of one thread, least recently used first */
+  private static final class ThreadCiphers extends LinkedHashMap<PoolKey,Cipher> {
+    private static final long serialVersionUID = 1L;
+
+    ThreadCiphers() {
+      super(16, 0.75f, true);
+    }
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<PoolKey,Cipher> eldest) {
+      return size() > MAX_CIPHERS_PER_THREAD;
+    }
+
+    // pools are tracked by identity, not by their ciphers
+    @Override
+    public boolean equals(Object other) {
+      return this == other;
+    }
+
+    @Override
+    public int hashCode() {
+      return System.identityHashCode(this);
+    }
+  }
+
+  // the pools of all live threads, so that a key change can empty them
+  private static final Set<ThreadCiphers> pools =
+      Collections.synchronizedSet(Collections.newSetFromMap(new WeakHashMap<ThreadCiphers,Boolean>()));
+
+  private static final ThreadLocal<ThreadCiphers> ciphers = new ThreadLocal<ThreadCiphers>() {
+    @Override
+    protected ThreadCiphers initialValue() {
+      final ThreadCiphers pool = new ThreadCiphers();
+      pools.add(pool);
+      return pool;
+    }
+  };
+
+  static {
+    SecureCipherUtil.addKeyChangeListener(new SecureCipherUtil.KeyChangeListener() {
+      @Override
+      public void keyChanged(String field) {
+        clearAll();
+      }
+    });
+  }
+
+  private SecureCipherPool() {} // no instance
+
+  /**
+   * Returns this thread's cipher for <code>algorithm</code> and <code>key</code>. The
+   * caller still has to {@link Cipher#init} it with the key and the IV of the value;
+   * the key schedule is only recomputed the first time.
+   */
+  public static Cipher get(String algorithm, SecretKey key) throws GeneralSecurityException {
+    final ThreadCiphers pool = ciphers.get();
+    final PoolKey poolKey = new PoolKey(algorithm, key);
+    // only contended while another thread empties the pool
+    synchronized (pool) {
+      Cipher cipher = pool.get(poolKey);
+      if (cipher == null) {
+        cipher = Cipher.getInstance(algorithm);
+        pool.put(poolKey, cipher);
+      }
+      return cipher;
+    }
+  }
+
+  /** Drops the ciphers of the calling thread */
+  public static void clear() {
+    pools.remove(ciphers.get());
+    ciphers.remove();
+  }
+
+  /** Drops the ciphers of all threads, e.g. after a key was removed */
+  public static void clearAll() {
+    synchronized (pools) {
+      for (ThreadCiphers pool : pools) {
+        synchronized (pool) {
+          pool.clear();
+        }
+      }
+    }
+  }
+}
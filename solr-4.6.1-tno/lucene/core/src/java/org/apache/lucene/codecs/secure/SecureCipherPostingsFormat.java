@@ -46,6 +46,11 @@ public final class SecureCipherPostingsFormat extends SecurePostingsFormat {
     super("SecureCipherPostingsFormat");
   }
 
+  @Override
+  public boolean usesPageCache() {
+    return true;
+  }
+
   @Override
   public FieldsConsumer fieldsConsumer(SegmentWriteState state) throws IOException {
     //return new SecureCipherFieldsWriter(state);
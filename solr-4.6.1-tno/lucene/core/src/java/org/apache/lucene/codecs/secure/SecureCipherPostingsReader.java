@@ -18,6 +18,7 @@ package org.apache.lucene.codecs.secure;
  */
 
 import org.apache.lucene.codecs.BlockTermState;
+import org.apache.lucene.codecs.BlockTreeTermsReader;
 import org.apache.lucene.codecs.CodecUtil;
 import org.apache.lucene.codecs.PostingsReaderBase;
 import org.apache.lucene.index.DocsAndPositionsEnum;
@@ -28,6 +29,8 @@ import org.apache.lucene.index.FieldInfos;
 import org.apache.lucene.index.IndexFileNames;
 import org.apache.lucene.index.SegmentInfo;
 import org.apache.lucene.index.TermState;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
 import org.apache.lucene.store.ByteArrayDataInput;
 import org.apache.lucene.store.DataInput;
 import org.apache.lucene.store.Directory;
@@ -37,10 +40,14 @@ import org.apache.lucene.util.ArrayUtil;
 import org.apache.lucene.util.Bits;
 import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.CharsRef;
+import org.apache.lucene.util.FixedBitSet;
 import org.apache.lucene.util.IOUtils;
+import org.apache.lucene.util.InPlaceMergeSorter;
 
 import javax.crypto.SecretKey;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Concrete class that reads docId(maybe frq,pos,offset,payloads) list
@@ -50,36 +57,35 @@ import java.io.IOException;
  * @lucene.experimental
  */
 public final class SecureCipherPostingsReader extends PostingsReaderBase {
-  private static long StartTime = System.currentTimeMillis();
-  private final String segmentName;
 
   private SecureCipherIndexInput in;
   private final FieldInfos fieldInfos;
+  private int version;
 
   /** Sole constructor. */
   public SecureCipherPostingsReader(Directory dir, FieldInfos fieldInfos, SegmentInfo segmentInfo, IOContext ioContext, String segmentSuffix) throws IOException {
-    segmentName = segmentInfo.name;
-    System.out.print("Dbg: " + (System.currentTimeMillis()-StartTime) + " ms: " + segmentName + ": SecureCipherPostingsReader: const: start\r\n");
     this.fieldInfos = fieldInfos;
-    String fileName = SecureSimpleTextPostingsFormat.getPostingsFileName(segmentInfo.name, segmentSuffix);
+    String fileName = SecureCipherPostingsFormat.getPostingsFileName(segmentInfo.name, segmentSuffix);
     IndexInput inner_in = dir.openInput(fileName, ioContext);
     boolean success = false;
 
     try {
-      in = new SecureCipherIndexInput(inner_in);
-      CodecUtil.checkHeader(in,
+      version = CodecUtil.checkHeader(inner_in,
           SecureCipherPostingsWriter.DOC_CODEC,
-          SecureCipherPostingsWriter.VERSION_CURRENT,
+          SecureCipherPostingsWriter.VERSION_START,
           SecureCipherPostingsWriter.VERSION_CURRENT);
+      // pages of the reader are cached under an identifier that is never reused, so pages
+      // of a deleted segment simply age out of the cache
+      in = new SecureCipherIndexInput(inner_in, version >= SecureCipherPostingsWriter.VERSION_CTR,
+          SecureCipherPageCache.newFileId());
 
       //this.in = inner_in;
       success = true;
     } finally {
       if (!success) {
-        IOUtils.closeWhileHandlingException(in);
+        IOUtils.closeWhileHandlingException(inner_in);
       }
     }
-    System.out.print("Dbg: " + (System.currentTimeMillis()-StartTime) + " ms: " + segmentName + ": SecureCipherPostingsReader: const: end\r\n");
   }
 
   @Override
@@ -87,13 +93,18 @@ public final class SecureCipherPostingsReader extends PostingsReaderBase {
     // Make sure we are talking to the matching postings writer
     CodecUtil.checkHeader(termsIn,
                           SecureCipherPostingsWriter.TERMS_CODEC,
-                          SecureCipherPostingsWriter.VERSION_CURRENT,
+                          SecureCipherPostingsWriter.VERSION_START,
                           SecureCipherPostingsWriter.VERSION_CURRENT);
   }
 
   // Must keep final because we do non-standard clone
   private final static class IntBlockTermState extends BlockTermState {
     long startFP;
+    int docBase;
+    // Runs of terms with more than one run, null otherwise; never modified once read
+    long[] runStartFPs;
+    int[] runDocBases;
+    int[] runDocCounts;
 
     // Only used by the "primary" TermState -- clones don't
     // copy this (basically they are "transient"):
@@ -112,6 +123,10 @@ public final class SecureCipherPostingsReader extends PostingsReaderBase {
       super.copyFrom(_other);
       IntBlockTermState other = (IntBlockTermState) _other;
       startFP = other.startFP;
+      docBase = other.docBase;
+      runStartFPs = other.runStartFPs;
+      runDocBases = other.runDocBases;
+      runDocCounts = other.runDocCounts;
 
       // Do not copy bytes, bytesReader (else TermState is
       // very heavy, ie drags around the entire block's
@@ -160,12 +175,38 @@ public final class SecureCipherPostingsReader extends PostingsReaderBase {
     final IntBlockTermState termState = (IntBlockTermState) _termState;
 
     final DataInput in = termState.bytesReader;
-    termState.startFP = in.readVLong();
+    termState.runStartFPs = null;
+    termState.runDocBases = null;
+    termState.runDocCounts = null;
+    if (version < SecureCipherPostingsWriter.VERSION_DOC_BASE) {
+      termState.startFP = in.readVLong();
+      termState.docBase = 0;
+      return;
+    }
+
+    final long start = SecureCodecMetrics.start();
+
+    final int numRuns = in.readVInt();
+    if (numRuns == 1) {
+      termState.startFP = in.readVLong();
+      termState.docBase = in.readVInt();
+    } else {
+      termState.runStartFPs = new long[numRuns];
+      termState.runDocBases = new int[numRuns];
+      termState.runDocCounts = new int[numRuns];
+      for (int run = 0; run < numRuns; run++) {
+        termState.runStartFPs[run] = in.readVLong();
+        termState.runDocBases[run] = in.readVInt();
+        termState.runDocCounts[run] = in.readVInt();
+      }
+      termState.startFP = termState.runStartFPs[0];
+      termState.docBase = termState.runDocBases[0];
+    }
+    SecureCodecMetrics.stop(SecureCodecMetrics.Stage.POSTINGS_DECODE, start);
   }
 
   @Override
   public DocsEnum docs(FieldInfo fieldInfo, BlockTermState termState, Bits liveDocs, DocsEnum reuse, int flags) throws IOException {
-    //System.out.print("Dbg: " + (System.currentTimeMillis()-StartTime) + " ms: " + segmentName + ": SecureCipherPostingsReader: docs: start " + termState.docFreq + " " + termState.totalTermFreq + "\r\n");
     SecureCipherDocsEnum docsEnum;
     IndexOptions indexOptions = fieldInfo.getIndexOptions();
     if (reuse != null && reuse instanceof SecureCipherDocsEnum && ((SecureCipherDocsEnum) reuse).canReuse(this.in)) {
@@ -173,13 +214,12 @@ public final class SecureCipherPostingsReader extends PostingsReaderBase {
     } else {
       docsEnum = new SecureCipherDocsEnum(in);
     }
-    SecretKey fieldKey = SecureCipherUtil.getKey(fieldInfo.name);
+    SecretKey fieldKey = SecureCipherUtil.getKey(fieldInfo);
     if (fieldKey != null) {
-      docsEnum = docsEnum.reset(((IntBlockTermState) termState).startFP, liveDocs, indexOptions == IndexOptions.DOCS_ONLY, termState.docFreq, fieldKey);
+      docsEnum = docsEnum.reset((IntBlockTermState) termState, liveDocs, indexOptions == IndexOptions.DOCS_ONLY, fieldKey);
     } else {
       docsEnum = null;
     }
-    //System.out.print("Dbg: " + (System.currentTimeMillis()-StartTime) + " ms: " + segmentName + ": SecureCipherPostingsReader: docs: end " + termState.docFreq + " " + termState.totalTermFreq + "\r\n");
     return docsEnum;
   }
 
@@ -194,24 +234,135 @@ public final class SecureCipherPostingsReader extends PostingsReaderBase {
       return null;
     }
 
-    //System.out.print("Dbg: " + (System.currentTimeMillis()-StartTime) + " ms: " + segmentName + ": SecureCipherTermsEnum: docsAndPositions: start\r\n");
     SecureCipherDocsAndPositionsEnum docsAndPositionsEnum;
     if (reuse != null && reuse instanceof SecureCipherDocsAndPositionsEnum && ((SecureCipherDocsAndPositionsEnum) reuse).canReuse(this.in)) {
       docsAndPositionsEnum = (SecureCipherDocsAndPositionsEnum) reuse;
     } else {
       docsAndPositionsEnum = new SecureCipherDocsAndPositionsEnum(in);
     }
-    SecretKey fieldKey = SecureCipherUtil.getKey(fieldInfo.name);
+    SecretKey fieldKey = SecureCipherUtil.getKey(fieldInfo);
     if (fieldKey != null) {
       docsAndPositionsEnum = docsAndPositionsEnum.reset(((IntBlockTermState)termState).startFP, liveDocs, indexOptions, termState.docFreq, fieldKey);
     } else {
       docsAndPositionsEnum = null;
     }
-    //System.out.print("Dbg: " + (System.currentTimeMillis()-StartTime) + " ms: " + segmentName + ": SecureCipherTermsEnum: docsAndPositions: end\r\n");
     return docsAndPositionsEnum;
   }
 
-  private class SecureCipherDocsEnum extends DocsEnum {
+  /**
+   * Sets the docs of the current and all following terms of <code>termsEnum</code> in
+   * <code>bits</code>, if <code>terms</code> are read by this postings reader, else
+   * returns false without moving <code>termsEnum</code>.
+   * <p>
+   * This is the filter path of {@link org.apache.lucene.search.MultiTermQuery} rewrites on
+   * encrypted fields: instead of a {@link DocsEnum} per matching term, the term states of
+   * all matching terms are gathered first and their postings are then decrypted in one
+   * sweep over the postings file, in file pointer order, straight into <code>bits</code>.
+   * The pages decrypted by the sweep are not added to the {@link SecureCipherPageCache},
+   * since the postings of the terms of a wildcard are rarely read again.
+   */
+  public static boolean addDocs(Terms terms, TermsEnum termsEnum, Bits liveDocs, FixedBitSet bits) throws IOException {
+    if (terms instanceof SecureCipherBloomPostingsFormat.BloomTerms) {
+      terms = ((SecureCipherBloomPostingsFormat.BloomTerms) terms).delegateTerms;
+    }
+    if (!(terms instanceof BlockTreeTermsReader.FieldReader)) {
+      return false;
+    }
+    final BlockTreeTermsReader.FieldReader fieldReader = (BlockTreeTermsReader.FieldReader) terms;
+    if (!(fieldReader.getPostingsReader() instanceof SecureCipherPostingsReader)) {
+      return false;
+    }
+    final SecureCipherPostingsReader postingsReader = (SecureCipherPostingsReader) fieldReader.getPostingsReader();
+    final FieldInfo fieldInfo = fieldReader.getFieldInfo();
+    final SecretKey fieldKey = SecureCipherUtil.getKey(fieldInfo);
+    if (fieldKey == null) {
+      return false;
+    }
+
+    final List<IntBlockTermState> termStates = new ArrayList<IntBlockTermState>();
+    do {
+      termStates.add((IntBlockTermState) termsEnum.termState());
+    } while (termsEnum.next() != null);
+    postingsReader.addDocs(fieldInfo, fieldKey, termStates, liveDocs, bits);
+    return true;
+  }
+
+  /** Decrypts the runs of <code>termStates</code> in file pointer order into <code>bits</code> */
+  private void addDocs(FieldInfo fieldInfo, SecretKey fieldKey, List<IntBlockTermState> termStates,
+                       Bits liveDocs, FixedBitSet bits) throws IOException {
+    int numRuns = 0;
+    for (IntBlockTermState termState : termStates) {
+      numRuns += termState.runStartFPs == null ? 1 : termState.runStartFPs.length;
+    }
+    final long[] startFPs = new long[numRuns];
+    final int[] docBases = new int[numRuns];
+    final int[] docCounts = new int[numRuns];
+    int upto = 0;
+    for (IntBlockTermState termState : termStates) {
+      if (termState.runStartFPs == null) {
+        startFPs[upto] = termState.startFP;
+        docBases[upto] = termState.docBase;
+        docCounts[upto] = termState.docFreq;
+        upto++;
+      } else {
+        for (int run = 0; run < termState.runStartFPs.length; run++) {
+          startFPs[upto] = termState.runStartFPs[run];
+          docBases[upto] = termState.runDocBases[run];
+          docCounts[upto] = termState.runDocCounts[run];
+          upto++;
+        }
+      }
+    }
+
+    // runs are mostly in order already, for which the merge sort is linear
+    new InPlaceMergeSorter() {
+      @Override
+      protected int compare(int i, int j) {
+        return startFPs[i] < startFPs[j] ? -1 : (startFPs[i] == startFPs[j] ? 0 : 1);
+      }
+
+      @Override
+      protected void swap(int i, int j) {
+        final long fp = startFPs[i];
+        startFPs[i] = startFPs[j];
+        startFPs[j] = fp;
+        int tmp = docBases[i];
+        docBases[i] = docBases[j];
+        docBases[j] = tmp;
+        tmp = docCounts[i];
+        docCounts[i] = docCounts[j];
+        docCounts[j] = tmp;
+      }
+    }.sort(0, numRuns);
+
+    final boolean omitTF = fieldInfo.getIndexOptions() == IndexOptions.DOCS_ONLY;
+    // a view of the postings file of its own, which does not go through the page cache
+    final SecureCipherIndexInput sweepIn = in.cloneUncached();
+    IndexInput secureIn = null;
+    for (int run = 0; run < numRuns; run++) {
+      sweepIn.seek(startFPs[run]);
+      try {
+        secureIn = sweepIn.startDecryption(fieldKey, secureIn);
+      } catch (IOException ex) {
+        throw ex;
+      } catch (Exception ex) {
+        throw new IOException("cannot decrypt postings of field " + fieldInfo.name, ex);
+      }
+      final int docBase = docBases[run];
+      for (int i = docCounts[run]; i > 0; i--) {
+        final int docID = docBase + secureIn.readInt();
+        if (!omitTF) {
+          secureIn.readInt();
+        }
+        if (liveDocs == null || liveDocs.get(docID)) {
+          bits.set(docID);
+        }
+      }
+    }
+  }
+
+  /** Reads the runs of a postings list; merges copy these runs through the package private methods. */
+  final class SecureCipherDocsEnum extends DocsEnum {
     private final IndexInput inStart;
     private IndexInput in;
     private boolean omitTF;
@@ -221,6 +372,12 @@ public final class SecureCipherPostingsReader extends PostingsReaderBase {
     private int docCount = 0;
     private int current = 0;
     private int cost;
+    private SecretKey fieldKey;
+
+    private IntBlockTermState termState;
+    private int run;
+    private int runDocBase;
+    private int runEnd;
 
     private final IndexInput insecureIn;
 
@@ -235,26 +392,67 @@ public final class SecureCipherPostingsReader extends PostingsReaderBase {
       return in == inStart;
     }
 
-    public SecureCipherDocsEnum reset(long fp, Bits liveDocs, boolean omitTF, int docFreq, SecretKey fieldKey) throws IOException {
-      insecureIn.seek(fp);
-      IndexInput secureIn = null;
-      try {
-        secureIn = ((SecureCipherIndexInput)(insecureIn)).startDecryption(fieldKey);
-        //secureIn = this.insecureIn;
-      } catch (Exception ex) {}
-      this.in = secureIn;
-
+    public SecureCipherDocsEnum reset(IntBlockTermState termState, Bits liveDocs, boolean omitTF, SecretKey fieldKey) throws IOException {
+      this.termState = termState;
+      this.fieldKey = fieldKey;
       this.liveDocs = liveDocs;
 
       this.omitTF = omitTF;
       docID = -1;
       tf = 1;
-      docCount = docFreq;
+      docCount = termState.docFreq;
       current = 0;
-      cost = docFreq;
+      cost = termState.docFreq;
+      run = -1;
+      runEnd = 0;
       return this;
     }
 
+    /** Starts decrypting the next run of the term */
+    private void nextRun() throws IOException {
+      ++run;
+      insecureIn.seek(runStartFP(run));
+      try {
+        this.in = ((SecureCipherIndexInput)(insecureIn)).startDecryption(fieldKey, this.in);
+      } catch (IOException ex) {
+        throw ex;
+      } catch (Exception ex) {
+        throw new IOException("cannot decrypt postings run " + run + " of " + insecureIn, ex);
+      }
+      runDocBase = runDocBase(run);
+      runEnd += runDocCount(run);
+    }
+
+    /** True if the runs of this enum are encrypted regions that can be copied as is */
+    boolean canCopyRuns() {
+      return version >= SecureCipherPostingsWriter.VERSION_CTR;
+    }
+
+    int docFreq() {
+      return docCount;
+    }
+
+    int numRuns() {
+      return termState.runStartFPs == null ? 1 : termState.runStartFPs.length;
+    }
+
+    long runStartFP(int run) {
+      return termState.runStartFPs == null ? termState.startFP : termState.runStartFPs[run];
+    }
+
+    int runDocBase(int run) {
+      return termState.runDocBases == null ? termState.docBase : termState.runDocBases[run];
+    }
+
+    int runDocCount(int run) {
+      return termState.runDocCounts == null ? docCount : termState.runDocCounts[run];
+    }
+
+    /** The undecrypted postings file */
+    IndexInput rawInput() {
+      return insecureIn;
+    }
+
     @Override
     public int docID() {
       return docID;
@@ -268,13 +466,13 @@ public final class SecureCipherPostingsReader extends PostingsReaderBase {
     @Override
     public int nextDoc() throws IOException {
       while (current < docCount) {
-        if (omitTF) {
-          SecureCipherFieldsWriter.DocsOnlyTermValue termValue = new SecureCipherFieldsWriter.DocsOnlyTermValue(in);
-          docID = termValue.docID;
-        } else {
-          SecureCipherFieldsWriter.DocsAndFreqsTermValue termValue = new SecureCipherFieldsWriter.DocsAndFreqsTermValue(in);
-          docID = termValue.docID;
-          tf = termValue.termDocFreq;
+        if (current == runEnd) {
+          nextRun();
+        }
+        // read in place of SecureCipherFieldsWriter.DocsOnlyTermValue/DocsAndFreqsTermValue, to not allocate per posting
+        docID = runDocBase + in.readInt();
+        if (!omitTF) {
+          tf = in.readInt();
         }
         ++current;
 
@@ -336,7 +534,7 @@ public final class SecureCipherPostingsReader extends PostingsReaderBase {
       insecureIn.seek(fp);
       IndexInput secureIn = null;
       try {
-        secureIn = ((SecureCipherIndexInput)(insecureIn)).startDecryption(fieldKey);
+        secureIn = ((SecureCipherIndexInput)(insecureIn)).startDecryption(fieldKey, this.in);
         //secureIn = this.insecureIn;
       } catch (Exception ex) {}
       this.in = secureIn;
@@ -373,11 +571,11 @@ public final class SecureCipherPostingsReader extends PostingsReaderBase {
 
       while (current < docCount) {
         in.seek(nextDocStart);
-        SecureCipherFieldsWriter.DocsAndFreqsAndPositionsTermValue termValue = new SecureCipherFieldsWriter.DocsAndFreqsAndPositionsTermValue(in);
-        docID = termValue.docID;
-        tf = termValue.termDocFreq;
+        // read in place of SecureCipherFieldsWriter.DocsAndFreqsAndPositionsTermValue
+        docID = in.readInt();
+        tf = in.readInt();
 
-        nextDocStart = termValue.next;
+        nextDocStart = in.readLong();
         ++current;
 
         if ((liveDocs == null || liveDocs.get(docID))) {
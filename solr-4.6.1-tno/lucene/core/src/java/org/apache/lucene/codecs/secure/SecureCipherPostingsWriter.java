@@ -18,25 +18,34 @@ package org.apache.lucene.codecs.secure;
  */
 
 import org.apache.lucene.codecs.CodecUtil;
+import org.apache.lucene.codecs.MappingMultiDocsEnum;
 import org.apache.lucene.codecs.PostingsWriterBase;
 import org.apache.lucene.codecs.TermStats;
 import org.apache.lucene.codecs.lucene41.Lucene41PostingsFormat;
 import org.apache.lucene.index.CorruptIndexException;
+import org.apache.lucene.index.DocsEnum;
 import org.apache.lucene.index.FieldInfo;
 import org.apache.lucene.index.FieldInfo.IndexOptions;
 import org.apache.lucene.index.IndexFileNames;
+import org.apache.lucene.index.MergeState;
+import org.apache.lucene.index.MultiDocsEnum;
+import org.apache.lucene.index.SegmentInfo;
 import org.apache.lucene.index.SegmentWriteState;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.search.DocIdSetIterator;
 import org.apache.lucene.store.IndexInput;
 import org.apache.lucene.store.IndexOutput;
 import org.apache.lucene.store.RAMOutputStream;
 import org.apache.lucene.util.ArrayUtil;
 import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.FixedBitSet;
 import org.apache.lucene.util.IOUtils;
 import org.apache.lucene.util.packed.PackedInts;
 
 import javax.crypto.SecretKey;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 /**
@@ -44,6 +53,14 @@ import java.util.List;
  * with postings format.
  *
  * Postings list for each term will be stored separately. 
+ * <p>
+ * The postings of a term are made of one or more runs. A run is an encrypted region
+ * holding document IDs relative to the DocBase of the run; the start pointer, DocBase
+ * and, for terms with several runs, the document count of every run are kept in the
+ * terms dictionary. Freshly indexed terms have a single run with a DocBase of 0. When
+ * segments without deletions are merged, the runs of their larger postings lists are
+ * copied verbatim, only shifting their DocBase, instead of being decrypted and
+ * re-encrypted document by document.
  *
  * @see org.apache.lucene.codecs.lucene41.Lucene41SkipWriter for details about skipping setting and postings layout.
  * @lucene.experimental
@@ -60,10 +77,21 @@ public final class SecureCipherPostingsWriter extends PostingsWriterBase {
 
   // Increment version to change it
   final static int VERSION_START = 0;
-  final static int VERSION_CURRENT = VERSION_START;
-
-  // Holds starting file pointers for each term:
-  private long startFP;
+  /** Postings lists are AES/CTR encrypted and can be decrypted lazily */
+  final static int VERSION_CTR = 1;
+  /** Postings lists are made of runs with a DocBase, which merges can copy as is */
+  final static int VERSION_DOC_BASE = 2;
+  final static int VERSION_CURRENT = VERSION_DOC_BASE;
+
+  /** Minimum average number of documents per run for the runs of a postings list to be
+   *  copied by merges; smaller lists are re-encrypted so that runs do not fragment. */
+  final static int MIN_COPY_RUN_DOCS = 128;
+
+  // Runs of the current term: start file pointer, DocBase and document count of each run
+  private long[] runStartFPs = new long[1];
+  private int[] runDocBases = new int[1];
+  private int[] runDocCounts = new int[1];
+  private int numRuns;
 
   private int lastStartOffset;
   private int docCount;
@@ -71,9 +99,17 @@ public final class SecureCipherPostingsWriter extends PostingsWriterBase {
   private boolean writeTermDocFreqs = false;
   private boolean writePositions = false;
   private boolean writeOffsets = false;
+  private final SegmentInfo segmentInfo;
   private SecretKey fieldKey = null;
+  private String fieldName = null;
   private boolean wroteTerm = false;
 
+  // Merged segments whose postings of the current field can be copied:
+  // 0 means not checked yet, see canCopyRuns
+  private byte[] copySegments = new byte[0];
+  private static final byte COPY_YES = 1;
+  private static final byte COPY_NO = 2;
+
   private DocsAndFreqsAndPositionsTermValue termValue;
 
   final static class DocsOnlyTermValue {
@@ -159,8 +195,9 @@ public final class SecureCipherPostingsWriter extends PostingsWriterBase {
 
   public SecureCipherPostingsWriter(SegmentWriteState state) throws IOException {
     super();
+    segmentInfo = state.segmentInfo;
 
-    final String fileName = SecureSimpleTextPostingsFormat.getPostingsFileName(state.segmentInfo.name, state.segmentSuffix);
+    final String fileName = SecureCipherPostingsFormat.getPostingsFileName(state.segmentInfo.name, state.segmentSuffix);
     IndexOutput inner_out = state.directory.createOutput(fileName, state.context);
     out = new SecureCipherIndexOutput(inner_out);
 
@@ -188,7 +225,9 @@ public final class SecureCipherPostingsWriter extends PostingsWriterBase {
     writePositions = indexOptions.compareTo(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS) >= 0;
     writeOffsets = indexOptions.compareTo(IndexOptions.DOCS_AND_FREQS_AND_POSITIONS_AND_OFFSETS) >= 0;
 
-    fieldKey = SecureCipherUtil.getKey(fieldInfo.name);
+    fieldKey = SecureCipherUtil.getWriteKey(segmentInfo, fieldInfo);
+    fieldName = fieldInfo.name;
+    Arrays.fill(copySegments, (byte) 0);
 
     assert !writeTermDocFreqs;
     assert !writePositions;
@@ -200,15 +239,38 @@ public final class SecureCipherPostingsWriter extends PostingsWriterBase {
     wroteTerm = false;
     termValue = null;
     docCount = 0;
-    startFP = out.getFilePointer();
+    numRuns = 0;
+  }
+
+  /** Records a new run of the current term, starting at the current file pointer */
+  private void addRun(int docBase) {
+    if (numRuns == runStartFPs.length) {
+      runStartFPs = ArrayUtil.grow(runStartFPs, numRuns + 1);
+      runDocBases = ArrayUtil.grow(runDocBases, numRuns + 1);
+      runDocCounts = ArrayUtil.grow(runDocCounts, numRuns + 1);
+    }
+    runStartFPs[numRuns] = out.getFilePointer();
+    runDocBases[numRuns] = docBase;
+    runDocCounts[numRuns] = 0;
+    ++numRuns;
+  }
+
+  /** Ends the run that startDoc is writing to, if any */
+  private void endRun() throws IOException {
+    if (wroteTerm) {
+      out.endEncryption();
+      wroteTerm = false;
+    }
   }
 
   @Override
   public void startDoc(int docID, int termDocFreq) throws IOException {
     if (!wroteTerm) {
+      addRun(0);
       out.startEncryption(fieldKey);
       wroteTerm = true;
     }
+    ++runDocCounts[numRuns - 1];
 
     if (this.writePositions) {
       termValue = new DocsAndFreqsAndPositionsTermValue(docID, termDocFreq);
@@ -249,11 +311,106 @@ public final class SecureCipherPostingsWriter extends PostingsWriterBase {
   @Override
   public void finishDoc() throws IOException {  }
 
-  private static class PendingTerm {
-    public final long startFP;
+  /**
+   * Merges the postings of a term. The runs of segments without deletions are copied
+   * without decrypting them when they are large enough; everything else goes through
+   * {@link #startDoc} like the default implementation.
+   */
+  @Override
+  public TermStats merge(MergeState mergeState, IndexOptions indexOptions, DocsEnum postings, FixedBitSet visitedDocs) throws IOException {
+    if (indexOptions != IndexOptions.DOCS_ONLY || !(postings instanceof MappingMultiDocsEnum)) {
+      return super.merge(mergeState, indexOptions, postings, visitedDocs);
+    }
+
+    final MappingMultiDocsEnum mappingEnum = (MappingMultiDocsEnum) postings;
+    final MultiDocsEnum.EnumWithSlice[] subs = mappingEnum.getSubs();
+    int df = 0;
+    for (int i = 0; i < mappingEnum.getNumSubs(); i++) {
+      final int readerIndex = subs[i].slice.readerIndex;
+      final int docBase = mergeState.docBase[readerIndex];
+      final MergeState.DocMap docMap = mergeState.docMaps[readerIndex];
+      final DocsEnum sub = subs[i].docsEnum;
+
+      if (canCopyRuns(mergeState, readerIndex, sub, visitedDocs)) {
+        final SecureCipherPostingsReader.SecureCipherDocsEnum docsEnum = (SecureCipherPostingsReader.SecureCipherDocsEnum) sub;
+        if (docsEnum.docFreq() >= MIN_COPY_RUN_DOCS * docsEnum.numRuns()) {
+          endRun();
+          final IndexInput rawIn = docsEnum.rawInput();
+          for (int run = 0; run < docsEnum.numRuns(); run++) {
+            addRun(docsEnum.runDocBase(run) + docBase);
+            runDocCounts[numRuns - 1] = docsEnum.runDocCount(run);
+            rawIn.seek(docsEnum.runStartFP(run));
+            out.copyEncryptedRegion(rawIn);
+          }
+          docCount += docsEnum.docFreq();
+          df += docsEnum.docFreq();
+        } else {
+          // canCopyRuns already counted the documents of this segment
+          int doc;
+          while ((doc = sub.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+            startDoc(docBase + doc, -1);
+            finishDoc();
+            df++;
+          }
+        }
+      } else {
+        int doc;
+        while ((doc = sub.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+          doc = docMap.get(doc);
+          if (doc == -1) {
+            continue;
+          }
+          doc += docBase;
+          visitedDocs.set(doc);
+          startDoc(doc, -1);
+          finishDoc();
+          df++;
+        }
+      }
+    }
+    return new TermStats(df, -1);
+  }
+
+  /**
+   * Returns true if the postings of the current field in merged segment
+   * <code>readerIndex</code> keep their document IDs up to the DocBase of the segment, can
+   * be read as runs, and are encrypted with the key of the merged segment, which is not
+   * the case for segments written under an older key generation. The first time this
+   * returns true for a segment and field, the documents of the segment that have the
+   * field are marked in <code>visitedDocs</code>: the merge only uses it to count these
+   * documents, which copied runs cannot mark one by one without decrypting them.
+   */
+  private boolean canCopyRuns(MergeState mergeState, int readerIndex, DocsEnum sub, FixedBitSet visitedDocs) throws IOException {
+    if (copySegments.length < mergeState.readers.size()) {
+      copySegments = new byte[mergeState.readers.size()];
+    }
+    if (copySegments[readerIndex] == 0) {
+      copySegments[readerIndex] = COPY_NO;
+      if (!mergeState.docMaps[readerIndex].hasDeletions()
+          && sub instanceof SecureCipherPostingsReader.SecureCipherDocsEnum
+          && ((SecureCipherPostingsReader.SecureCipherDocsEnum) sub).canCopyRuns()
+          && fieldKey != null && fieldKey.equals(SecureCipherUtil.getKey(mergeState.readers.get(readerIndex).getFieldInfos().fieldInfo(fieldName)))) {
+        final Terms terms = mergeState.readers.get(readerIndex).terms(fieldName);
+        final int docCount = terms == null ? -1 : terms.getDocCount();
+        if (docCount != -1) {
+          final int docBase = mergeState.docBase[readerIndex];
+          visitedDocs.set(docBase, docBase + docCount);
+          copySegments[readerIndex] = COPY_YES;
+        }
+      }
+    }
+    return copySegments[readerIndex] == COPY_YES;
+  }
 
-    public PendingTerm(long startFP) {
-      this.startFP = startFP;
+  private static class PendingTerm {
+    public final long[] startFPs;
+    public final int[] docBases;
+    public final int[] docCounts;
+
+    public PendingTerm(long[] startFPs, int[] docBases, int[] docCounts) {
+      this.startFPs = startFPs;
+      this.docBases = docBases;
+      this.docCounts = docCounts;
     }
   }
   private final List<PendingTerm> pendingTerms = new ArrayList<PendingTerm>();
@@ -264,14 +421,14 @@ public final class SecureCipherPostingsWriter extends PostingsWriterBase {
     assert stats.docFreq > 0;
     assert stats.docFreq == docCount: stats.docFreq + " vs " + docCount;
 
-    pendingTerms.add(new PendingTerm(startFP));
+    endRun();
+    pendingTerms.add(new PendingTerm(Arrays.copyOf(runStartFPs, numRuns),
+                                     Arrays.copyOf(runDocBases, numRuns),
+                                     Arrays.copyOf(runDocCounts, numRuns)));
 
-    if (wroteTerm) {
-      out.endEncryption();
-    }
-    wroteTerm = false;
     termValue = null;
     docCount = 0;
+    numRuns = 0;
   }
 
   private final RAMOutputStream bytesWriter = new RAMOutputStream();
@@ -289,12 +446,17 @@ public final class SecureCipherPostingsWriter extends PostingsWriterBase {
 
     final int limit = pendingTerms.size() - start + count;
 
-    long lastStartFP = 0;
     for(int idx=limit-count; idx<limit; idx++) {
       PendingTerm term = pendingTerms.get(idx);
-//      bytesWriter.writeVLong(term.startFP - lastStartFP);
-//      lastStartFP = term.startFP;
-      bytesWriter.writeVLong(term.startFP);
+      final int numRuns = term.startFPs.length;
+      bytesWriter.writeVInt(numRuns);
+      for (int run = 0; run < numRuns; run++) {
+        bytesWriter.writeVLong(term.startFPs[run]);
+        bytesWriter.writeVInt(term.docBases[run]);
+        if (numRuns > 1) {
+          bytesWriter.writeVInt(term.docCounts[run]);
+        }
+      }
     }
 
     termsOut.writeVInt((int) bytesWriter.getFilePointer());
@@ -0,0 +1,213 @@
+package org.apache.lucene.codecs.secure;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.SecretKey;
+
+import org.apache.lucene.codecs.PostingsFormat;
+import org.apache.lucene.codecs.perfield.PerFieldPostingsFormat;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.util.NamedThreadFactory;
+import org.apache.lucene.util.ThreadInterruptedException;
+
+/**
+ * Decrypts the postings of the encrypted terms of a query in all segments in parallel,
+ * before the query is scored segment by segment.
+ * <p>
+ * Postings are decrypted on the thread that reads them, so a term query over many
+ * segments decrypts one segment after the other. The prefetcher instead reads the
+ * postings of every (segment, encrypted term) pair on a bounded executor, which leaves
+ * the decrypted pages in the {@link SecureCipherPageCache}; the search then reads them in
+ * docID order as usual, from the cache. Prefetching is therefore a no-op while the page
+ * cache is disabled, and only helps formats that go through it.
+ * <p>
+ * Fields whose postings format, as recorded in their segment, does not
+ * {@link SecurePostingsFormat#usesPageCache(FieldInfo) use the page cache} are skipped,
+ * since their decrypted postings would be thrown away. With {@link SecureCipherCodec}
+ * these are the fields that index freqs or positions, which
+ * {@link SecureCipherBlockPostingsFormat} decrypts block by block as they are read.
+ * <p>
+ * Terms whose postings fit in less than a page, and queries with a single such pair,
+ * are left to the search itself, since a task would cost more than it saves.
+ *
+ * @lucene.experimental
+ */
+public final class SecureCipherPrefetcher implements Closeable {
+  /** Terms with fewer documents are not prefetched: their postings take less than a page */
+  static final int MIN_DOC_FREQ = SecureCipherPageCache.PAGE_SIZE / 4;
+
+  private final ExecutorService executor;
+  private final boolean ownsExecutor;
+
+  /**
+   * Creates a prefetcher with its own pool of <code>threads</code> threads. Tasks that
+   * do not fit in its queue run on the calling thread, which bounds the backlog.
+   */
+  public SecureCipherPrefetcher(int threads) {
+    this(threads, new NamedThreadFactory("secure-prefetch"));
+  }
+
+  /** Like {@link #SecureCipherPrefetcher(int)}, with threads created by <code>threadFactory</code> */
+  public SecureCipherPrefetcher(int threads, ThreadFactory threadFactory) {
+    this(new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+        new ArrayBlockingQueue<Runnable>(4 * threads), threadFactory,
+        new ThreadPoolExecutor.CallerRunsPolicy()), true);
+  }
+
+  /** Creates a prefetcher that runs its tasks on <code>executor</code>, which it does not shut down */
+  public SecureCipherPrefetcher(ExecutorService executor) {
+    this(executor, false);
+  }
+
+  private SecureCipherPrefetcher(ExecutorService executor, boolean ownsExecutor) {
+    this.executor = executor;
+    this.ownsExecutor = ownsExecutor;
+  }
+
+  /** Prefetches the encrypted terms of <code>query</code>, which must be rewritten, in <code>leaves</code> */
+  public void prefetch(List<AtomicReaderContext> leaves, Query query) throws IOException {
+    if (SecureCipherPageCache.getDefault() == null || leaves.isEmpty()) {
+      return;
+    }
+    final Set<Term> terms = new HashSet<Term>();
+    try {
+      query.extractTerms(terms);
+    } catch (UnsupportedOperationException e) {
+      // a query that does not know its terms
+      return;
+    }
+    prefetch(leaves, terms);
+  }
+
+  /** Prefetches those of <code>terms</code> that are encrypted, in <code>leaves</code> */
+  public void prefetch(List<AtomicReaderContext> leaves, Set<Term> terms) throws IOException {
+    final List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+    for (AtomicReaderContext leaf : leaves) {
+      final AtomicReader reader = leaf.reader();
+      for (Term term : terms) {
+        final FieldInfo fieldInfo = reader.getFieldInfos().fieldInfo(term.field());
+        if (fieldInfo != null && fieldInfo.isEncrypted() && fieldInfo.isIndexed() && usesPageCache(fieldInfo)) {
+          tasks.add(new PrefetchTask(reader, term, SecureCodecMetrics.getCurrent(), SecureCipherUtil.getThreadKeys()));
+        }
+      }
+    }
+    if (tasks.size() < 2) {
+      return;
+    }
+    final List<Future<Void>> futures = new ArrayList<Future<Void>>(tasks.size());
+    for (Callable<Void> task : tasks) {
+      futures.add(executor.submit(task));
+    }
+    for (Future<Void> future : futures) {
+      try {
+        future.get();
+      } catch (InterruptedException e) {
+        throw new ThreadInterruptedException(e);
+      } catch (ExecutionException e) {
+        // the search reads the same postings and reports the error
+      }
+    }
+  }
+
+  /** Resolves the postings format the segment of <code>fieldInfo</code> was written with */
+  private static boolean usesPageCache(FieldInfo fieldInfo) {
+    final String formatName = fieldInfo.getAttribute(PerFieldPostingsFormat.PER_FIELD_FORMAT_KEY);
+    if (formatName == null) {
+      // no postings in this segment, or not written per field
+      return false;
+    }
+    final PostingsFormat format = PostingsFormat.forName(formatName);
+    return format instanceof SecurePostingsFormat && ((SecurePostingsFormat) format).usesPageCache(fieldInfo);
+  }
+
+  /** Reads the postings of one term in one segment, which decrypts them into the page cache */
+  private static final class PrefetchTask implements Callable<Void> {
+    private final AtomicReader reader;
+    private final Term term;
+    // the stages of the task count for the search that submitted it
+    private final SecureCodecMetrics metrics;
+    // and decrypt with the keys it sees
+    private final Map<String,SecretKey> threadKeys;
+
+    PrefetchTask(AtomicReader reader, Term term, SecureCodecMetrics metrics, Map<String,SecretKey> threadKeys) {
+      this.reader = reader;
+      this.term = term;
+      this.metrics = metrics;
+      this.threadKeys = threadKeys;
+    }
+
+    @Override
+    public Void call() throws IOException {
+      final SecureCodecMetrics previous = SecureCodecMetrics.setCurrent(metrics);
+      final Map<String,SecretKey> previousKeys = SecureCipherUtil.setThreadKeys(threadKeys);
+      try {
+        return prefetch();
+      } finally {
+        SecureCipherUtil.setThreadKeys(previousKeys);
+        SecureCodecMetrics.setCurrent(previous);
+      }
+    }
+
+    private Void prefetch() throws IOException {
+      final Terms terms = reader.terms(term.field());
+      if (terms == null) {
+        return null;
+      }
+      final TermsEnum termsEnum = terms.iterator(null);
+      if (!termsEnum.seekExact(term.bytes()) || termsEnum.docFreq() < MIN_DOC_FREQ) {
+        return null;
+      }
+      final DocsEnum docsEnum = termsEnum.docs(null, null, DocsEnum.FLAG_NONE);
+      while (docsEnum.nextDoc() != DocIdSetIterator.NO_MORE_DOCS) {
+      }
+      return null;
+    }
+  }
+
+  /** Shuts the pool down, if this prefetcher created it */
+  @Override
+  public void close() {
+    if (ownsExecutor) {
+      executor.shutdown();
+    }
+  }
+}
@@ -47,7 +47,18 @@ public class SecureCipherStoredFieldsFormat extends SecureStoredFieldsFormat {
   public SecureCipherStoredFieldsFormat(Codec codec) { this.codec = codec;}
 
   @Override
-  public SecureStoredFieldsReader fieldsReader(Directory directory, SegmentInfo si, FieldInfos fn, IOContext context) throws IOException {;
+  public SecureStoredFieldsReader fieldsReader(Directory directory, SegmentInfo si, FieldInfos fn, IOContext context) throws IOException {
+    return openReader(codec, directory, si, fn, context);
+  }
+
+  /** Opens the reader of the format that wrote the encrypted stored fields of <code>si</code> */
+  static SecureStoredFieldsReader openReader(Codec codec, Directory directory, SegmentInfo si, FieldInfos fn, IOContext context) throws IOException {
+    if (SecureCipherBlockStoredFieldsFormat.hasBlocks(directory, si)) {
+      return new SecureCipherBlockStoredFieldsReader(codec, directory, si, fn, context);
+    }
+    if (SecureCipherBinaryStoredFieldsFormat.hasBinaryFields(directory, si)) {
+      return new SecureCipherBinaryStoredFieldsReader(codec, directory, si, fn, context);
+    }
     return new SecureCipherStoredFieldsReader(codec, directory, si, fn, context);
   }
 
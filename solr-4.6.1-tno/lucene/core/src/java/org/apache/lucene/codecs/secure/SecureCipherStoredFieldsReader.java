@@ -33,26 +33,15 @@ import org.apache.lucene.util.ArrayUtil;
 import org.apache.lucene.util.BytesRef;
 import org.apache.lucene.util.CharsRef;
 import org.apache.lucene.util.IOUtils;
+import org.apache.lucene.util.RamUsageEstimator;
 import org.apache.lucene.util.StringHelper;
 import org.apache.lucene.util.UnicodeUtil;
 
 import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
 import javax.crypto.spec.IvParameterSpec;
 import java.io.IOException;
-
-import static org.apache.lucene.codecs.secure.SecureSimpleTextStoredFieldsWriter.DOC;
-import static org.apache.lucene.codecs.secure.SecureSimpleTextStoredFieldsWriter.END;
-import static org.apache.lucene.codecs.secure.SecureSimpleTextStoredFieldsWriter.FIELD;
-import static org.apache.lucene.codecs.secure.SecureSimpleTextStoredFieldsWriter.NAME;
-import static org.apache.lucene.codecs.secure.SecureSimpleTextStoredFieldsWriter.NUM;
-import static org.apache.lucene.codecs.secure.SecureSimpleTextStoredFieldsWriter.TYPE;
-import static org.apache.lucene.codecs.secure.SecureSimpleTextStoredFieldsWriter.TYPE_BINARY;
-import static org.apache.lucene.codecs.secure.SecureSimpleTextStoredFieldsWriter.TYPE_DOUBLE;
-import static org.apache.lucene.codecs.secure.SecureSimpleTextStoredFieldsWriter.TYPE_FLOAT;
-import static org.apache.lucene.codecs.secure.SecureSimpleTextStoredFieldsWriter.TYPE_INT;
-import static org.apache.lucene.codecs.secure.SecureSimpleTextStoredFieldsWriter.TYPE_LONG;
-import static org.apache.lucene.codecs.secure.SecureSimpleTextStoredFieldsWriter.TYPE_STRING;
-import static org.apache.lucene.codecs.secure.SecureSimpleTextStoredFieldsWriter.VALUE;
+import java.util.Arrays;
 
 //import  org.apache.lucene.codecs.simpletext.SimpleTextUtil;
 
@@ -69,32 +58,20 @@ public class SecureCipherStoredFieldsReader extends SecureStoredFieldsReader {
 //  private CharsRef scratchUTF16 = new CharsRef();
   private final FieldInfos fieldInfos;
 
-  private Cipher cipher = null;
+  // plaintext of the last decrypted field; readers are cloned per thread, so this is not shared
+  private byte[] decrypted = new byte[64];
 
   private StoredFieldsReader reader = null;
 
   public SecureCipherStoredFieldsReader(Codec codec, Directory directory, SegmentInfo si, FieldInfos fn, IOContext context) throws IOException {
     this.reader = codec.storedFieldsFormat().fieldsReader(directory, si, fn, context);
     this.fieldInfos = fn;
-
-    try {
-      cipher = Cipher.getInstance(SecureCipherStoredFieldsFormat.EncryptionAlgorithm);
-    }  catch (Exception ex) {
-        try {
-          reader.close();
-        } catch (Throwable t) {} // ensure we throw our original exception
-    }
   }
 
   // used by clone
   SecureCipherStoredFieldsReader(StoredFieldsReader reader, FieldInfos fieldInfos) {
     this.fieldInfos = fieldInfos;
     this.reader = reader;
-    try {
-      this.cipher = Cipher.getInstance(SecureCipherStoredFieldsFormat.EncryptionAlgorithm);
-    } catch (Exception ex) {
-      throw new Error(ex);
-    }
   }
 
   public StoredFieldsReader getStoredFieldsReader() { return reader; }
@@ -109,7 +86,11 @@ public class SecureCipherStoredFieldsReader extends SecureStoredFieldsReader {
     @Override
     public void binaryField(FieldInfo fieldInfo, byte[] value) throws IOException {
       if (fieldInfo.isEncrypted()) {
-        readField(value, fieldInfo, visitor);
+        if (visitor instanceof EncryptedStoredFieldVisitor) {
+          ((EncryptedStoredFieldVisitor) visitor).encryptedField(new EncryptedValue(fieldInfo, value));
+        } else {
+          decrypted = decryptField(value, fieldInfo, SecureCipherUtil.getKey(fieldInfo), visitor, decrypted);
+        }
       } else {
         visitor.binaryField(fieldInfo, value);
       }
@@ -151,49 +132,81 @@ public class SecureCipherStoredFieldsReader extends SecureStoredFieldsReader {
     reader.visitDocument(n, new SecureStoredFieldVisitor(visitor));
   }
   
-  private void readField(byte[] bytes, FieldInfo fieldInfo, StoredFieldVisitor visitor) throws IOException {
-    if (!SecureCipherUtil.hasKey(fieldInfo.name)) {
+  /** One encrypted value: IV followed by the ciphertext */
+  static final class EncryptedValue extends EncryptedStoredValue {
+    private final byte[] bytes;
+
+    EncryptedValue(FieldInfo fieldInfo, byte[] bytes) {
+      super(fieldInfo);
+      this.bytes = bytes;
+    }
+
+    @Override
+    public void decrypt(SecretKey key, StoredFieldVisitor visitor) throws IOException {
+      decryptField(bytes, getFieldInfo(), key, visitor, new byte[bytes.length]);
+    }
+
+    @Override
+    public long ramBytesUsed() {
+      return RamUsageEstimator.sizeOf(bytes) + RamUsageEstimator.NUM_BYTES_OBJECT_HEADER
+          + 2 * RamUsageEstimator.NUM_BYTES_OBJECT_REF;
+    }
+  }
+
+  /**
+   * Decrypts the value <code>bytes</code> (IV followed by the ciphertext) into
+   * <code>decrypted</code>, which is grown if needed and returned, and visits it. Values
+   * that cannot be decrypted, for lack of the right key, are visited as their encoded
+   * ciphertext.
+   */
+  static byte[] decryptField(byte[] bytes, FieldInfo fieldInfo, SecretKey key, StoredFieldVisitor visitor, byte[] decrypted) throws IOException {
+    if (key == null) {
       String value = SecureCipherUtil.encode(bytes, 0, bytes.length);
       visitor.stringField(fieldInfo, value);
-      return;
+      return decrypted;
     }
 
-    byte[] decryptedBytes = null;
+    // decrypt into the reused buffer, and parse type and value straight out of it
+    final long start = SecureCodecMetrics.start();
+    int length;
     try {
-      cipher.init(Cipher.DECRYPT_MODE, SecureCipherUtil.getKey(fieldInfo.name), new IvParameterSpec(bytes, 0, 16));
-      decryptedBytes = cipher.doFinal(bytes, 16, bytes.length - 16);
+      final Cipher cipher = SecureCipherPool.get(SecureCipherStoredFieldsFormat.EncryptionAlgorithm, key);
+      cipher.init(Cipher.DECRYPT_MODE, key, new IvParameterSpec(bytes, 0, 16));
+      decrypted = ArrayUtil.grow(decrypted, cipher.getOutputSize(bytes.length - 16));
+      length = cipher.doFinal(bytes, 16, bytes.length - 16, decrypted, 0);
     } catch (Exception ex) {
       String value = SecureCipherUtil.encode(bytes, 0, bytes.length);
       visitor.stringField(fieldInfo, value);
-      return;
+      return decrypted;
     }
+    SecureCodecMetrics.stop(SecureCodecMetrics.Stage.STORED_FIELD_DECRYPT, start);
 
-    assert decryptedBytes != null;
-    int type = decryptedBytes[0];
-    byte[] plainBytes = new byte[decryptedBytes.length-1];
-    System.arraycopy(decryptedBytes, 1, plainBytes, 0, decryptedBytes.length-1);
+    final byte[] b = decrypted;
+    final int type = b[0];
     if (type == SecureCipherStoredFieldsFormat.TYPE_BINARY) {
-      visitor.binaryField(fieldInfo, plainBytes);
-    } else {
-      if (type == SecureCipherStoredFieldsFormat.TYPE_STRING) {
-        String value = new String(plainBytes, IOUtils.CHARSET_UTF_8);
-        visitor.stringField(fieldInfo, value);
-      } else if (type == SecureCipherStoredFieldsFormat.TYPE_INT) {
-        int i = ((int)plainBytes[0]) << 24 | ((int)plainBytes[1]) << 16 | ((int)plainBytes[2]) << 8 | ((int)plainBytes[3]);
-        visitor.intField(fieldInfo, i);
-      } else if (type == SecureCipherStoredFieldsFormat.TYPE_LONG) {
-        long l = ((long)plainBytes[0]) << 56 | ((long)plainBytes[1]) << 48 | ((long)plainBytes[2]) << 40 | ((long)plainBytes[3]) << 32;
-        l |= ((long)plainBytes[5]) << 24 | ((long)plainBytes[6]) << 16 | ((long)plainBytes[7]) << 8 | ((long)plainBytes[8]);
-        visitor.longField(fieldInfo, l);
-      } else if (type == SecureCipherStoredFieldsFormat.TYPE_FLOAT) {
-        int i = ((int)plainBytes[0]) << 24 | ((int)plainBytes[1]) << 16 | ((int)plainBytes[2]) << 8 | ((int)plainBytes[3]);
-        visitor.floatField(fieldInfo, Float.intBitsToFloat(i));
-      } else if (type == SecureCipherStoredFieldsFormat.TYPE_DOUBLE) {
-        long l = ((long)plainBytes[0]) << 56 | ((long)plainBytes[1]) << 48 | ((long)plainBytes[2]) << 40 | ((long)plainBytes[3]) << 32;
-        l |= ((long)plainBytes[5]) << 24 | ((long)plainBytes[6]) << 16 | ((long)plainBytes[7]) << 8 | ((long)plainBytes[8]);
-        visitor.doubleField(fieldInfo, Double.longBitsToDouble(l));
-      }
+      // the visitor may hold on to the array, so it gets its own copy
+      visitor.binaryField(fieldInfo, Arrays.copyOfRange(b, 1, length));
+    } else if (type == SecureCipherStoredFieldsFormat.TYPE_STRING) {
+      visitor.stringField(fieldInfo, new String(b, 1, length - 1, IOUtils.CHARSET_UTF_8));
+    } else if (type == SecureCipherStoredFieldsFormat.TYPE_INT) {
+      visitor.intField(fieldInfo, readInt(b, 1));
+    } else if (type == SecureCipherStoredFieldsFormat.TYPE_LONG) {
+      visitor.longField(fieldInfo, readLong(b, 1));
+    } else if (type == SecureCipherStoredFieldsFormat.TYPE_FLOAT) {
+      visitor.floatField(fieldInfo, Float.intBitsToFloat(readInt(b, 1)));
+    } else if (type == SecureCipherStoredFieldsFormat.TYPE_DOUBLE) {
+      visitor.doubleField(fieldInfo, Double.longBitsToDouble(readLong(b, 1)));
     }
+    return decrypted;
+  }
+
+  static int readInt(byte[] b, int offset) {
+    return ((b[offset] & 0xFF) << 24) | ((b[offset + 1] & 0xFF) << 16)
+        | ((b[offset + 2] & 0xFF) << 8) | (b[offset + 3] & 0xFF);
+  }
+
+  static long readLong(byte[] b, int offset) {
+    return (((long) readInt(b, offset)) << 32) | (readInt(b, offset + 4) & 0xFFFFFFFFL);
   }
 
   @Override
@@ -68,16 +68,11 @@ import java.util.List;
  */
 public class SecureCipherStoredFieldsWriter extends SecureStoredFieldsWriter {
   private StoredFieldsWriter writer;
-  private Cipher cipher = null;
+  private final SegmentInfo segment;
 
   public SecureCipherStoredFieldsWriter(Codec codec, Directory directory, SegmentInfo segment, IOContext context) throws IOException {
     this.writer = codec.storedFieldsFormat().fieldsWriter(directory, segment, context);
-
-    try {
-      this.cipher = Cipher.getInstance(SecureCipherStoredFieldsFormat.EncryptionAlgorithm);
-    } catch (Exception ex) {
-      writer.abort();
-    }
+    this.segment = segment;
   }
 
   @Override
@@ -88,96 +83,101 @@ public class SecureCipherStoredFieldsWriter extends SecureStoredFieldsWriter {
 
   @Override
   public void writeField(FieldInfo info, IndexableField field) throws IOException {
-    if (!field.fieldType().encrypted()) {
+    // fields read back for a merge do not carry the encrypted flag of their type
+    if (!info.isEncrypted()) {
       writer.writeField(info, field);
     } else {
-      assert info.isEncrypted();
-      assert field.fieldType().encrypted();
-
-      int type = 0;
-      BytesRef bytes;
-      final Number n = field.numericValue();
-      if (n != null) {
-        int length = 0;
-        byte[] value = new byte[8];
-        if (n instanceof Byte || n instanceof Short || n instanceof Integer) {
-          type = SecureCipherStoredFieldsFormat.TYPE_INT;
-          length += 4;
-          int i = n.intValue();
-          value[0] = (byte)(i >> 24);
-          value[1] = (byte)(i >> 16);
-          value[2] = (byte)(i >> 8);
-          value[3] = (byte) i;
-        } else if (n instanceof Long) {
-          type = SecureCipherStoredFieldsFormat.TYPE_LONG;
-          length += 8;
-          long l = n.longValue();
-          value[0] = (byte)(l >> 56);
-          value[1] = (byte)(l >> 48);
-          value[2] = (byte)(l >> 40);
-          value[3] = (byte)(l >> 32);
-          value[4] = (byte)(l >> 24);
-          value[5] = (byte)(l >> 16);
-          value[6] = (byte)(l >> 8);
-          value[7] = (byte) l;
-        } else if (n instanceof Float) {
-          type = SecureCipherStoredFieldsFormat.TYPE_FLOAT;
-          length += 4;
-          int i = Float.floatToIntBits(n.floatValue());
-          value[0] = (byte)(i >> 24);
-          value[1] = (byte)(i >> 16);
-          value[2] = (byte)(i >> 8);
-          value[3] = (byte) i;
-        } else if (n instanceof Double) {
-          type = SecureCipherStoredFieldsFormat.TYPE_DOUBLE;
-          length += 8;
-          long l = Double.doubleToLongBits(n.doubleValue());
-          value[0] = (byte)(l >> 56);
-          value[1] = (byte)(l >> 48);
-          value[2] = (byte)(l >> 40);
-          value[3] = (byte)(l >> 32);
-          value[4] = (byte)(l >> 24);
-          value[5] = (byte)(l >> 16);
-          value[6] = (byte)(l >> 8);
-          value[7] = (byte) l;
-        } else {
-          throw new IllegalArgumentException("cannot store numeric type " + n.getClass());
-        }
-        bytes = new BytesRef(value, 0, length);
+      IndexableField encryptedField = new BinaryDocValuesField(field.name(), encryptValue(field, SecureCipherUtil.getWriteKey(segment, info)));
+      writer.writeField(info, encryptedField);
+    }
+  }
+
+  /**
+   * Encrypts the stored value of <code>field</code> under <code>key</code>: a fresh IV
+   * followed by the AES/CBC ciphertext of the type byte and the value.
+   */
+  static BytesRef encryptValue(IndexableField field, SecretKey key) {
+    int type = 0;
+    BytesRef bytes;
+    final Number n = field.numericValue();
+    if (n != null) {
+      int length = 0;
+      byte[] value = new byte[8];
+      if (n instanceof Byte || n instanceof Short || n instanceof Integer) {
+        type = SecureCipherStoredFieldsFormat.TYPE_INT;
+        length += 4;
+        int i = n.intValue();
+        value[0] = (byte)(i >> 24);
+        value[1] = (byte)(i >> 16);
+        value[2] = (byte)(i >> 8);
+        value[3] = (byte) i;
+      } else if (n instanceof Long) {
+        type = SecureCipherStoredFieldsFormat.TYPE_LONG;
+        length += 8;
+        long l = n.longValue();
+        value[0] = (byte)(l >> 56);
+        value[1] = (byte)(l >> 48);
+        value[2] = (byte)(l >> 40);
+        value[3] = (byte)(l >> 32);
+        value[4] = (byte)(l >> 24);
+        value[5] = (byte)(l >> 16);
+        value[6] = (byte)(l >> 8);
+        value[7] = (byte) l;
+      } else if (n instanceof Float) {
+        type = SecureCipherStoredFieldsFormat.TYPE_FLOAT;
+        length += 4;
+        int i = Float.floatToIntBits(n.floatValue());
+        value[0] = (byte)(i >> 24);
+        value[1] = (byte)(i >> 16);
+        value[2] = (byte)(i >> 8);
+        value[3] = (byte) i;
+      } else if (n instanceof Double) {
+        type = SecureCipherStoredFieldsFormat.TYPE_DOUBLE;
+        length += 8;
+        long l = Double.doubleToLongBits(n.doubleValue());
+        value[0] = (byte)(l >> 56);
+        value[1] = (byte)(l >> 48);
+        value[2] = (byte)(l >> 40);
+        value[3] = (byte)(l >> 32);
+        value[4] = (byte)(l >> 24);
+        value[5] = (byte)(l >> 16);
+        value[6] = (byte)(l >> 8);
+        value[7] = (byte) l;
       } else {
-        bytes = field.binaryValue();
-        if (bytes != null) {
-          type = SecureCipherStoredFieldsFormat.TYPE_BINARY;
-        } else if (field.stringValue() == null) {
-          throw new IllegalArgumentException("field " + field.name() + " is stored but does not have binaryValue, stringValue nor numericValue");
-        } else {
-          type = SecureCipherStoredFieldsFormat.TYPE_STRING;
-          String s = field.stringValue();
-          bytes = new BytesRef(10);
-          UnicodeUtil.UTF16toUTF8(s, 0, s.length(), bytes);
-        }
+        throw new IllegalArgumentException("cannot store numeric type " + n.getClass());
       }
-      assert bytes != null;
-      byte[] plainBytes = new byte[bytes.length + 1];
-      plainBytes[0] = (byte)type;
-      System.arraycopy(bytes.bytes, 0+bytes.offset, plainBytes, 1, bytes.length);
-      byte[] encryptedBytes = null;
-      int length = 0;
-      try {
-        SecretKey key = SecureCipherUtil.getKey(field.name());
-        cipher.init(Cipher.ENCRYPT_MODE, key);
-        byte[] iv = cipher.getIV();
-        encryptedBytes = new byte[iv.length+cipher.getOutputSize(plainBytes.length)];
-        System.arraycopy(iv, 0, encryptedBytes, 0, iv.length);
-        length = iv.length;
-        length += cipher.doFinal(plainBytes, 0, plainBytes.length, encryptedBytes, iv.length);
-      } catch (Exception ex) {
-        throw new Error(ex);
+      bytes = new BytesRef(value, 0, length);
+    } else {
+      bytes = field.binaryValue();
+      if (bytes != null) {
+        type = SecureCipherStoredFieldsFormat.TYPE_BINARY;
+      } else if (field.stringValue() == null) {
+        throw new IllegalArgumentException("field " + field.name() + " is stored but does not have binaryValue, stringValue nor numericValue");
+      } else {
+        type = SecureCipherStoredFieldsFormat.TYPE_STRING;
+        String s = field.stringValue();
+        bytes = new BytesRef(10);
+        UnicodeUtil.UTF16toUTF8(s, 0, s.length(), bytes);
       }
-
-      IndexableField encryptedField = new BinaryDocValuesField(field.name(), new BytesRef(encryptedBytes, 0, length));
-      writer.writeField(info, encryptedField);
     }
+    assert bytes != null;
+    byte[] plainBytes = new byte[bytes.length + 1];
+    plainBytes[0] = (byte)type;
+    System.arraycopy(bytes.bytes, 0+bytes.offset, plainBytes, 1, bytes.length);
+    byte[] encryptedBytes = null;
+    int length = 0;
+    try {
+      Cipher cipher = SecureCipherPool.get(SecureCipherStoredFieldsFormat.EncryptionAlgorithm, key);
+      cipher.init(Cipher.ENCRYPT_MODE, key);
+      byte[] iv = cipher.getIV();
+      encryptedBytes = new byte[iv.length+cipher.getOutputSize(plainBytes.length)];
+      System.arraycopy(iv, 0, encryptedBytes, 0, iv.length);
+      length = iv.length;
+      length += cipher.doFinal(plainBytes, 0, plainBytes.length, encryptedBytes, iv.length);
+    } catch (Exception ex) {
+      throw new Error(ex);
+    }
+    return new BytesRef(encryptedBytes, 0, length);
   }
 
   @Override
@@ -437,6 +437,16 @@ public class SecureCipherStoredFieldsWriter extends SecureStoredFieldsWriter {
 
   @Override
   public int merge(MergeState mergeState) throws IOException {
+    for (SegmentReader matchingReader : mergeState.matchingSegmentReaders) {
+      if (matchingReader == null || !(matchingReader.getFieldsReader() instanceof SecureCipherStoredFieldsReader)
+          || !hasWriteKeys(matchingReader)) {
+        // e.g. a segment written by SecureCipherBlockStoredFieldsFormat, or under an older
+        // key generation: the ciphertext cannot be copied as is, so decrypt and re-encrypt
+        // every document
+        return super.merge(mergeState);
+      }
+    }
+
     SegmentReader[] matchingSegmentReaders = mergeState.matchingSegmentReaders;
     SegmentReader[] wrappedSegmentReaders = new SegmentReader[matchingSegmentReaders.length];
     int idx = 0;
@@ -459,6 +469,20 @@ public class SecureCipherStoredFieldsWriter extends SecureStoredFieldsWriter {
     return retVal;
   }
 
+  /** Returns true if the encrypted fields of <code>reader</code> are encrypted with the keys this writer uses */
+  private boolean hasWriteKeys(SegmentReader reader) {
+    final int generation = SecureCipherUtil.getWriteKeyGeneration(segment);
+    for (FieldInfo fi : reader.getFieldInfos()) {
+      if (fi.isEncrypted()) {
+        final SecretKey key = SecureCipherUtil.getKey(fi);
+        if (key == null || !key.equals(SecureCipherUtil.getKey(fi.name, generation))) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
   @Override
   public void close() throws IOException { writer.close(); }
 
@@ -18,73 +18,242 @@ package org.apache.lucene.codecs.secure;
  */
 
 
-import org.apache.lucene.store.Directory;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.FieldInfos;
+import org.apache.lucene.index.SegmentInfo;
 import org.apache.lucene.util.BytesRef;
 
 //import org.slf4j.Logger;
 //import org.slf4j.LoggerFactory;
 
+import java.io.BufferedReader;
 import java.io.FileOutputStream;
-import java.util.HashMap;
 import java.io.FileInputStream;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.PrintStream;
 import java.io.IOException;
 
 import javax.crypto.KeyGenerator;
-import javax.crypto.Mac;
 import javax.crypto.SecretKey;
 import javax.crypto.spec.SecretKeySpec;
+import java.security.GeneralSecurityException;
 import java.security.InvalidKeyException;
 import java.security.SecureRandom;
-
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Static entry point to the keys of the secure codecs. Lookups are served by a shared,
+ * thread-safe {@link SecureCipherKeyRegistry}; this class only adds the identity encoding
+ * (field name, optionally followed by a term) and the persistence of the collection key.
+ * <p>
+ * The collection key can be {@link #rotateKey(SecretKey) rotated} without reindexing.
+ * Every segment is written under the key generation that is current when its first
+ * secure writer asks for a key, and records it in the {@link #KEY_GENERATION_ATTRIBUTE}
+ * attribute of its encrypted fields; readers look keys up by that generation, so that
+ * segments of the old and the new generation can be searched side by side while
+ * {@link org.apache.lucene.index.SecureKeyRotationMergePolicy} rewrites the old ones.
+ */
 public class SecureCipherUtil {
   //public static Logger log = LoggerFactory.getLogger(SecureCipherUtil.class);
 
-  private static final String EncryptionAlgorithm = "AES";
-  private static final String KeyDerivationAlgorithm = "HmacSHA256";
+  private static final String EncryptionAlgorithm = SecureCipherKeyRegistry.EncryptionAlgorithm;
+
+  private static final SecureCipherKeyRegistry registry = new SecureCipherKeyRegistry();
+
+  private static final List<KeyChangeListener> keyChangeListeners = new CopyOnWriteArrayList<KeyChangeListener>();
 
-  private static Mac mac;
-  private static KeyGenerator kg;
+  // keys of fields that only the current thread sees, see #setThreadKeys
+  private static final ThreadLocal<Map<String,SecretKey>> threadKeys = new ThreadLocal<Map<String,SecretKey>>();
 
-  private static HashMap<BytesRef,SecretKey> keys;
-  private static SecretKey key;
+  /** {@link FieldInfo} attribute with the key generation the field was encrypted under in a segment */
+  public static final String KEY_GENERATION_ATTRIBUTE = "SecureCipher.keyGeneration";
+
+  // the key generation of the segments being written, fixed by their first writer
+  private static final Map<SegmentInfo,Integer> writeGenerations =
+      Collections.synchronizedMap(new WeakHashMap<SegmentInfo,Integer>());
 
   private static final String FileName = "SecureCipherUtil.Keys.txt";
   private static PrintStream out;
   private static boolean fileKeys = true;
 
+  /**
+   * Notified when a key is removed or replaced by a different one, so that what was
+   * decrypted with it can be dropped.
+   */
+  public interface KeyChangeListener {
+    /** The key of <code>field</code>, or of one of its terms, changed; null if the master key changed. */
+    void keyChanged(String field);
+  }
+
+  public static void addKeyChangeListener(KeyChangeListener listener) {
+    keyChangeListeners.add(listener);
+  }
+
+  public static void removeKeyChangeListener(KeyChangeListener listener) {
+    keyChangeListeners.remove(listener);
+  }
+
+  private static void fireKeyChanged(String field) {
+    for (KeyChangeListener listener : keyChangeListeners) {
+      listener.keyChanged(field);
+    }
+  }
+
+  /** Returns the keys of fields that only this thread sees, or null if there are none */
+  public static Map<String,SecretKey> getThreadKeys() {
+    return threadKeys.get();
+  }
+
+  /**
+   * Makes <code>keys</code>, by field name, the keys of those fields for the lookups of this
+   * thread only, in place of the registered ones and for all key generations, null for none,
+   * and returns the previous ones, which the caller should restore when done. Unlike
+   * {@link #addKey(String, SecretKey)}, this neither changes the keys other threads see
+   * nor notifies the {@link KeyChangeListener}s, so what was decrypted with the registered
+   * keys stays cached.
+   */
+  public static Map<String,SecretKey> setThreadKeys(Map<String,SecretKey> keys) {
+    final Map<String,SecretKey> previous = threadKeys.get();
+    if (keys == null) {
+      threadKeys.remove();
+    } else {
+      threadKeys.set(keys);
+    }
+    return previous;
+  }
+
+  private static SecretKey getThreadKey(String field) {
+    final Map<String,SecretKey> keys = threadKeys.get();
+    return keys == null ? null : keys.get(field);
+  }
+
+  /** Returns the registry backing this class, e.g. to read its statistics */
+  public static SecureCipherKeyRegistry getRegistry() {
+    return registry;
+  }
+
   public static SecretKey generateKey() {
     try {
       new java.io.File(FileName).delete();
-      SecretKey key = null;
-      if (kg == null) kg = KeyGenerator.getInstance(EncryptionAlgorithm);
-      kg.init(new SecureRandom());
-      key = kg.generateKey();
+      SecretKey key = newKey();
       if (fileKeys) writeKey(null, key);
-      System.out.println();
-      System.out.println("DBG: SECURECIPHERUTIL: generated collection key");
-      System.out.println();
       return key;
     } catch (Exception ex) {
       throw new Error(ex.toString());
     }
   }
 
+  private static SecretKey newKey() throws GeneralSecurityException {
+    KeyGenerator kg = KeyGenerator.getInstance(EncryptionAlgorithm);
+    kg.init(new SecureRandom());
+    return kg.generateKey();
+  }
+
+  /** Returns the generation of the current collection key; 0 until it is first rotated. */
+  public static int getKeyGeneration() {
+    return registry.getKeyGeneration();
+  }
+
+  /**
+   * Rotates the collection key to a newly generated one, see {@link #rotateKey(SecretKey)}.
+   */
+  public static int rotateKey() throws IOException {
+    final SecretKey key;
+    try {
+      key = newKey();
+    } catch (GeneralSecurityException ex) {
+      throw new Error(ex.toString());
+    }
+    return rotateKey(key);
+  }
+
+  /**
+   * Makes <code>key</code> the collection key of the next key generation, which all
+   * segments written from now on are encrypted under, and returns that generation. The
+   * previous collection key stays available to read the segments written under it, until
+   * they are rewritten and its generation is {@link #removeKeyGeneration(int) removed}.
+   * Explicit keys of fields and terms are not affected.
+   */
+  public static synchronized int rotateKey(SecretKey key) throws IOException {
+    final int generation = registry.rotateMasterKey(key);
+    if (fileKeys) writeKeyGenerations();
+    return generation;
+  }
+
+  /**
+   * Forgets the collection key of an older <code>generation</code>; segments still
+   * written under it can not be decrypted any more.
+   */
+  public static synchronized void removeKeyGeneration(int generation) throws IOException {
+    registry.removeMasterKey(generation);
+    // pages decrypted with the key must not outlive it
+    SecureCipherPageCache.clearDefault();
+    if (fileKeys) writeKeyGenerations();
+    fireKeyChanged(null);
+  }
+
+  /** Returns the key generation <code>field</code> was encrypted under in its segment */
+  public static int getKeyGeneration(FieldInfo field) {
+    final String generation = field.getAttribute(KEY_GENERATION_ATTRIBUTE);
+    // segments written before the first rotation do not record it
+    return generation == null ? 0 : Integer.parseInt(generation);
+  }
+
+  /**
+   * Returns the key generation <code>segment</code> is written under: the current one
+   * when this is first called for the segment, so that all its writers agree even if the
+   * key is rotated while it is being written.
+   */
+  public static int getWriteKeyGeneration(SegmentInfo segment) {
+    synchronized (writeGenerations) {
+      Integer generation = writeGenerations.get(segment);
+      if (generation == null) {
+        generation = registry.getKeyGeneration();
+        writeGenerations.put(segment, generation);
+      }
+      return generation;
+    }
+  }
+
+  /**
+   * Returns the key to encrypt <code>field</code> with in <code>segment</code>, and
+   * records the key generation of the segment in the field. A field that records one
+   * already keeps it: DocValues updates write to a segment that was encrypted before.
+   */
+  public static SecretKey getWriteKey(SegmentInfo segment, FieldInfo field) {
+    if (field.getAttribute(KEY_GENERATION_ATTRIBUTE) != null) {
+      return getKey(field);
+    }
+    final int generation = getWriteKeyGeneration(segment);
+    field.putAttribute(KEY_GENERATION_ATTRIBUTE, Integer.toString(generation));
+    return getKey(field.name, generation);
+  }
+
+  /**
+   * Records the key generation of <code>segment</code> in all its encrypted fields that do
+   * not record one yet, because none of its writers encrypted data of them, e.g. when all
+   * their docs were deleted before a merge. Called before the field infos are written, so
+   * that the segment does not look like one written before generations were recorded.
+   */
+  public static void recordWriteKeyGeneration(SegmentInfo segment, FieldInfos fieldInfos) {
+    for (FieldInfo field : fieldInfos) {
+      if (field.isEncrypted() && field.getAttribute(KEY_GENERATION_ATTRIBUTE) == null) {
+        field.putAttribute(KEY_GENERATION_ATTRIBUTE, Integer.toString(getWriteKeyGeneration(segment)));
+      }
+    }
+  }
+
   public static SecretKey deriveKey(SecretKey masterKey, String field) {
-    SecretKey key = deriveKey(masterKey, field.getBytes());
-    System.out.println();
-    System.out.println("DBG: SECURECIPHERUTIL: derived key for field " + field);
-    System.out.println();
-    return key;
+    return registry.deriveKey(masterKey, new BytesRef(field.getBytes()));
   }
 
   public static SecretKey deriveKey(SecretKey masterKey, String field, BytesRef term) {
-    SecretKey key = deriveKey(masterKey, getFieldAndTerm(field, term));
-    System.out.println();
-    System.out.println("DBG: SECURECIPHERUTIL: derived key for term " + field + ":" + new String(term.bytes, term.offset, term.length));
-    System.out.println();
-    return key;
+    return registry.deriveKey(masterKey, new BytesRef(getFieldAndTerm(field, term)));
   }
 
   private static byte[] getFieldAndTerm(String field, BytesRef term) {
@@ -95,106 +264,113 @@ public class SecureCipherUtil {
     return fieldandterm;
   }
 
-  private static SecretKey deriveKey(SecretKey masterKey, byte[] identity) {
-    try {
-      if (mac == null) mac = Mac.getInstance(KeyDerivationAlgorithm);
-      mac.init(new SecretKeySpec(masterKey.getEncoded(), KeyDerivationAlgorithm));
-      SecretKeySpec derivedKey = new SecretKeySpec(mac.doFinal(identity), 0, 128/8, EncryptionAlgorithm);
-      addKey(new BytesRef(identity), derivedKey);
-      if (fileKeys) writeKey(identity, derivedKey);
-      return derivedKey;
-    }  catch (Exception ex) {
-      throw new Error(ex.toString());
-    }
-  }
-
   public static void addKey(SecretKey key) {
-    SecureCipherUtil.key = key;
-    System.out.println();
-    System.out.println("DBG: SECURECIPHERUTIL: added collection key");
-    System.out.println();
+    final SecretKey previous = registry.getMasterKey();
+    registry.setMasterKey(key);
+    if (previous != null && !previous.equals(key)) {
+      fireKeyChanged(null);
+    }
   }
 
   public static void addKey(String field, SecretKey key)
   {
-    addKey(new BytesRef(field.getBytes()), key);
-    System.out.println();
-    System.out.println("DBG: SECURECIPHERUTIL: added key for field " + field);
-    System.out.println();
+    final SecretKey previous = registry.addKey(new BytesRef(field.getBytes()), key);
+    // a first explicit key replaces the one derived from the master key, if any
+    if ((previous != null || registry.hasMasterKey()) && !key.equals(previous)) {
+      fireKeyChanged(field);
+    }
   }
 
   public static void addKey(String field, BytesRef term, SecretKey key)
   {
-    addKey(new BytesRef(getFieldAndTerm(field, term)), key);
-    System.out.println();
-    System.out.println("DBG: SECURECIPHERUTIL: added key for term " + field + ":" + new String(term.bytes, term.offset, term.length));
-    System.out.println();
-  }
-
-  private static void addKey(BytesRef identity, SecretKey key) {
-    if (keys == null) keys = new HashMap<BytesRef,SecretKey>();
-    keys.put(identity,key);
+    final SecretKey previous = registry.addKey(new BytesRef(getFieldAndTerm(field, term)), key);
+    // a first explicit key replaces the one derived from the master key, if any
+    if ((previous != null || registry.hasMasterKey()) && !key.equals(previous)) {
+      fireKeyChanged(field);
+    }
   }
 
   public static void deleteKey() {
     //SecureCipherUtil.key = null;
     //SecureCipherUtil.keys = null;
-    System.out.println();
-    System.out.println("DBG: SECURECIPHERUTIL: deleted all keys");
-    System.out.println();
   }
 
   public static void deleteKey(String field)
   {
-    BytesRef fieldBR = new BytesRef(field.getBytes());
-    if (keys != null && keys.containsKey(fieldBR))
-      keys.remove(fieldBR);
-    System.out.println();
-    System.out.println("DBG: SECURECIPHERUTIL: deleted key for field " + field);
-    System.out.println();
+    registry.removeKey(new BytesRef(field.getBytes()));
+    // pages decrypted with the key must not outlive it
+    SecureCipherPageCache.clearDefault();
+    fireKeyChanged(field);
   }
 
   public static void deleteKey(String field, BytesRef term)
   {
-    BytesRef fieldandterm = new BytesRef(getFieldAndTerm(field, term));
-    if (keys != null && keys.containsKey(fieldandterm))
-      keys.remove(fieldandterm);
-    System.out.println();
-    System.out.println("DBG: SECURECIPHERUTIL: deleted key for term " + field + ":" + new String(term.bytes, term.offset, term.length));
-    System.out.println();
+    registry.removeKey(new BytesRef(getFieldAndTerm(field, term)));
+    SecureCipherPageCache.clearDefault();
+    fireKeyChanged(field);
   }
 
   public static boolean hasKey() {
-    return key != null;
+    return registry.hasMasterKey();
   }
 
   public static boolean hasKey(String field)
   {
-    BytesRef fieldBR = new BytesRef(field.getBytes());
-    return hasKey() || keys != null && keys.containsKey(fieldBR);
+    return getThreadKey(field) != null || registry.hasKey(new BytesRef(field.getBytes()));
   }
 
   public static boolean hasKey(String field, BytesRef term)
   {
-    BytesRef fieldandterm = new BytesRef(getFieldAndTerm(field, term));
-    return hasKey() || keys != null && keys.containsKey(fieldandterm);
+    return registry.hasKey(new BytesRef(getFieldAndTerm(field, term)));
+  }
+
+  /** Returns true if the key of <code>field</code>, as written in its segment, is available */
+  public static boolean hasKey(FieldInfo field) {
+    return getThreadKey(field.name) != null || registry.hasKey(new BytesRef(field.name.getBytes()), getKeyGeneration(field));
   }
 
   public static SecretKey getKey() {
-    return SecureCipherUtil.key;
+    return registry.getMasterKey();
   }
 
-  public static SecretKey getKey(String field)  { return getKey(new BytesRef(field.getBytes())); }
+  public static SecretKey getKey(String field) {
+    final SecretKey threadKey = getThreadKey(field);
+    if (threadKey != null) {
+      return threadKey;
+    }
+    final long start = SecureCodecMetrics.start();
+    try {
+      return registry.getKey(new BytesRef(field.getBytes()));
+    } finally {
+      SecureCodecMetrics.stop(SecureCodecMetrics.Stage.KEY_LOOKUP, start);
+    }
+  }
 
-  public static SecretKey getKey(String field, BytesRef term) { return getKey(new BytesRef(getFieldAndTerm(field, term))); }
+  /** Returns the key of <code>field</code> of the key generation it was written under in its segment */
+  public static SecretKey getKey(FieldInfo field) {
+    return getKey(field.name, getKeyGeneration(field));
+  }
 
-  private static SecretKey getKey(BytesRef identity) {
-    if (keys != null && keys.containsKey(identity)) {
-      return keys.get(identity);
-    } else if (hasKey()) {
-      return deriveKey(key, identity.bytes);
-    } else {
-      return null;
+  /** Returns the key of <code>field</code> of key <code>generation</code> */
+  public static SecretKey getKey(String field, int generation) {
+    final SecretKey threadKey = getThreadKey(field);
+    if (threadKey != null) {
+      return threadKey;
+    }
+    final long start = SecureCodecMetrics.start();
+    try {
+      return registry.getKey(new BytesRef(field.getBytes()), generation);
+    } finally {
+      SecureCodecMetrics.stop(SecureCodecMetrics.Stage.KEY_LOOKUP, start);
+    }
+  }
+
+  public static SecretKey getKey(String field, BytesRef term) {
+    final long start = SecureCodecMetrics.start();
+    try {
+      return registry.getKey(new BytesRef(getFieldAndTerm(field, term)));
+    } finally {
+      SecureCodecMetrics.stop(SecureCodecMetrics.Stage.KEY_LOOKUP, start);
     }
   }
 
@@ -209,10 +385,53 @@ public class SecureCipherUtil {
 //    inputBytes = new byte[2];
 //    in.readBytes(inputBytes, 0, inputBytes.length);
     in.close();
+    readKeyGenerations();
     return spec;
   }
 
-  public static void writeKey(byte[] identity, SecretKey key) throws IOException {
+  /**
+   * Registers the collection keys of the generations that follow the current key in the
+   * key file, one <code>generation:key</code> line each, see {@link #writeKeyGenerations()}.
+   */
+  private static void readKeyGenerations() throws IOException {
+    BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(FileName), "US-ASCII"));
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        final int colon = line.indexOf(':');
+        if (colon <= 0) {
+          continue;
+        }
+        final int generation;
+        try {
+          generation = Integer.parseInt(line.substring(0, colon));
+        } catch (NumberFormatException ex) {
+          continue;
+        }
+        registry.addMasterKey(generation, new SecretKeySpec(decode(line.substring(colon + 1)), "AES"));
+      }
+    } finally {
+      reader.close();
+    }
+  }
+
+  /**
+   * Rewrites the key file with the current collection key first, as {@link #readKey()}
+   * expects it, followed by the keys of all generations that are still kept.
+   */
+  private static synchronized void writeKeyGenerations() throws IOException {
+    if (out != null) {
+      out.close();
+      out = null;
+    }
+    new java.io.File(FileName).delete();
+    writeKey(null, registry.getMasterKey());
+    for (int generation : registry.getKeyGenerations()) {
+      writeKey(Integer.toString(generation).getBytes("US-ASCII"), registry.getMasterKey(generation));
+    }
+  }
+
+  public static synchronized void writeKey(byte[] identity, SecretKey key) throws IOException {
 
     if (out == null) out = new PrintStream(new FileOutputStream(FileName, true));
     if (identity != null) out.write(identity, 0, identity.length);
@@ -69,10 +69,16 @@ public abstract class SecureCodec extends Codec {
   /** Encodes/decodes postings */
   public PostingsFormat postingsFormat() { throw new NotImplementedException(); }
 
+  /** Encodes/decodes the postings of the encrypted <code>field</code>; {@link #postingsFormat()} by default */
+  public PostingsFormat postingsFormat(FieldInfo field) { return postingsFormat(); }
+
   @Override
   /** Encodes/decodes docvalues */
   public final DocValuesFormat docValuesFormat() { throw new NotImplementedException(); }
 
+  /** Encodes/decodes the docvalues of encrypted fields */
+  public DocValuesFormat secureDocValuesFormat() { throw new NotImplementedException(); }
+
   @Override
   /** Encodes/decodes stored fields */
   public final StoredFieldsFormat storedFieldsFormat() { throw new NotImplementedException(); }
@@ -97,7 +103,6 @@ public abstract class SecureCodec extends Codec {
   /** Encodes/decodes live docs */
   public final LiveDocsFormat liveDocsFormat() { throw new NotImplementedException(); }
 
-  //private static SecureCodec defaultCodec = new SecureSimpleTextCodec();
   private static SecureCodec defaultCodec = new SecureCipherCodec();
 
   /** expert: returns the default secure codec.
@@ -0,0 +1,244 @@
+package org.apache.lucene.codecs.secure;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and latency histograms of the stages of the secure codec read path: key
+ * lookup, ciphertext read, decryption, postings decoding and stored field decryption.
+ * <p>
+ * The readers record every stage they go through with {@link #start()} and
+ * {@link #stop(Stage, long)}, into the metrics that are {@link #setCurrent current} for
+ * the thread, e.g. those of the Solr core or the request the thread is working for, and
+ * into their {@link #getParent() parents}. Stages of threads without current metrics,
+ * such as merges and plain Lucene users, go to the {@link #getGlobal() global} metrics.
+ * Recording costs two calls to {@link System#nanoTime()} and a few atomic increments per
+ * stage, and can be {@link #setEnabled turned off}.
+ * <p>
+ * Latencies are counted in buckets of powers of two nanoseconds, from which
+ * {@link Stats#percentile} estimates percentiles within a factor of two.
+ *
+ * @lucene.experimental
+ */
+public final class SecureCodecMetrics {
+
+  /** A stage of the read path */
+  public enum Stage {
+    /** Lookup of the key of a field in the key registry */
+    KEY_LOOKUP("keyLookup"),
+    /** Read of ciphertext from the index files */
+    CIPHERTEXT_READ("ciphertextRead"),
+    /** Decryption of postings, terms or DocValues */
+    DECRYPT("decrypt"),
+    /** Decoding of decrypted postings and their metadata */
+    POSTINGS_DECODE("postingsDecode"),
+    /** Decryption and decoding of a stored field */
+    STORED_FIELD_DECRYPT("storedFieldDecrypt");
+
+    private final String label;
+
+    private Stage(String label) {
+      this.label = label;
+    }
+
+    /** Name of the stage in statistics */
+    public String getLabel() {
+      return label;
+    }
+  }
+
+  /** Number of latency buckets; bucket i counts latencies in [2^i, 2^(i+1)) ns, the last one all longer ones */
+  public static final int NUM_BUCKETS = 40;
+
+  private static final int NUM_STAGES = Stage.values().length;
+  private static final SecureCodecMetrics GLOBAL = new SecureCodecMetrics();
+  private static final ThreadLocal<SecureCodecMetrics> CURRENT = new ThreadLocal<SecureCodecMetrics>();
+  private static volatile boolean enabled = true;
+
+  private final SecureCodecMetrics parent;
+  private final AtomicLongArray counts = new AtomicLongArray(NUM_STAGES);
+  private final AtomicLongArray nanos = new AtomicLongArray(NUM_STAGES);
+  private final AtomicLongArray buckets = new AtomicLongArray(NUM_STAGES * NUM_BUCKETS);
+
+  /** Creates metrics without a parent */
+  public SecureCodecMetrics() {
+    this(null);
+  }
+
+  /** Creates metrics that also record all their stages into <code>parent</code>, if not null */
+  public SecureCodecMetrics(SecureCodecMetrics parent) {
+    this.parent = parent;
+  }
+
+  /** Returns the metrics the stages of threads without current metrics are recorded into */
+  public static SecureCodecMetrics getGlobal() {
+    return GLOBAL;
+  }
+
+  /** Returns the metrics the stages of this thread are recorded into, or null for the global ones */
+  public static SecureCodecMetrics getCurrent() {
+    return CURRENT.get();
+  }
+
+  /**
+   * Makes <code>metrics</code> the ones the stages of this thread are recorded into, null
+   * for the global ones, and returns the previous ones, which the caller should restore
+   * when done.
+   */
+  public static SecureCodecMetrics setCurrent(SecureCodecMetrics metrics) {
+    final SecureCodecMetrics previous = CURRENT.get();
+    if (metrics == null) {
+      CURRENT.remove();
+    } else {
+      CURRENT.set(metrics);
+    }
+    return previous;
+  }
+
+  /** Turns recording on or off, for all threads */
+  public static void setEnabled(boolean enabled) {
+    SecureCodecMetrics.enabled = enabled;
+  }
+
+  /** Returns true if stages are recorded */
+  public static boolean isEnabled() {
+    return enabled;
+  }
+
+  /** Returns the start time of a stage, to pass to {@link #stop}, or 0 if recording is off */
+  public static long start() {
+    return enabled ? System.nanoTime() : 0L;
+  }
+
+  /** Records <code>stage</code>, started at <code>start</code>, into the metrics of this thread */
+  public static void stop(Stage stage, long start) {
+    if (start != 0L) {
+      record(stage, System.nanoTime() - start);
+    }
+  }
+
+  /** Records that <code>stage</code> took <code>elapsedNanos</code>, into the metrics of this thread */
+  public static void record(Stage stage, long elapsedNanos) {
+    SecureCodecMetrics metrics = CURRENT.get();
+    if (metrics == null) {
+      metrics = GLOBAL;
+    }
+    for (; metrics != null; metrics = metrics.parent) {
+      metrics.add(stage, elapsedNanos);
+    }
+  }
+
+  private void add(Stage stage, long elapsedNanos) {
+    final int s = stage.ordinal();
+    counts.incrementAndGet(s);
+    nanos.addAndGet(s, elapsedNanos);
+    buckets.incrementAndGet(s * NUM_BUCKETS + bucket(elapsedNanos));
+  }
+
+  static int bucket(long elapsedNanos) {
+    if (elapsedNanos <= 0) {
+      return 0;
+    }
+    return Math.min(NUM_BUCKETS - 1, 63 - Long.numberOfLeadingZeros(elapsedNanos));
+  }
+
+  /** Returns the metrics these record into as well, or null */
+  public SecureCodecMetrics getParent() {
+    return parent;
+  }
+
+  /** Returns a snapshot of the metrics of <code>stage</code> */
+  public Stats getStats(Stage stage) {
+    final int s = stage.ordinal();
+    final long[] histogram = new long[NUM_BUCKETS];
+    for (int i = 0; i < NUM_BUCKETS; i++) {
+      histogram[i] = buckets.get(s * NUM_BUCKETS + i);
+    }
+    return new Stats(stage, counts.get(s), nanos.get(s), histogram);
+  }
+
+  /** Clears all counters; concurrent stages may be partially counted */
+  public void reset() {
+    for (int i = 0; i < NUM_STAGES; i++) {
+      counts.set(i, 0);
+      nanos.set(i, 0);
+    }
+    for (int i = 0; i < buckets.length(); i++) {
+      buckets.set(i, 0);
+    }
+  }
+
+  /** Metrics of one stage at a point in time */
+  public static final class Stats {
+    /** The stage */
+    public final Stage stage;
+    /** Number of times the stage was gone through */
+    public final long count;
+    /** Total time spent in the stage, in nanoseconds */
+    public final long totalNanos;
+    private final long[] histogram;
+
+    Stats(Stage stage, long count, long totalNanos, long[] histogram) {
+      this.stage = stage;
+      this.count = count;
+      this.totalNanos = totalNanos;
+      this.histogram = histogram;
+    }
+
+    /** Returns the mean time of the stage in nanoseconds, 0 if it was never gone through */
+    public double meanNanos() {
+      return count == 0 ? 0d : (double) totalNanos / count;
+    }
+
+    /** Returns the number of stages that took [2^bucket, 2^(bucket+1)) nanoseconds */
+    public long getBucketCount(int bucket) {
+      return histogram[bucket];
+    }
+
+    /**
+     * Returns an upper bound of the <code>p</code>-th percentile, with <code>0 &lt; p &lt;= 100</code>,
+     * of the time of the stage in nanoseconds: the end of the bucket it falls in. Returns 0
+     * if the stage was never gone through.
+     */
+    public long percentile(double p) {
+      long total = 0;
+      for (long c : histogram) {
+        total += c;
+      }
+      if (total == 0) {
+        return 0L;
+      }
+      final long rank = (long) Math.ceil(total * p / 100d);
+      long seen = 0;
+      for (int i = 0; i < histogram.length; i++) {
+        seen += histogram[i];
+        if (seen >= rank) {
+          return i == NUM_BUCKETS - 1 ? Long.MAX_VALUE : (2L << i) - 1;
+        }
+      }
+      return Long.MAX_VALUE;
+    }
+
+    @Override
+    public String toString() {
+      return stage.getLabel() + ": count=" + count + " totalNanos=" + totalNanos
+          + " p50=" + percentile(50) + " p99=" + percentile(99);
+    }
+  }
+}
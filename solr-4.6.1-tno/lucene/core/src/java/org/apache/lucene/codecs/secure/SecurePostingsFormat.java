@@ -20,6 +20,7 @@ package org.apache.lucene.codecs.secure;
 import org.apache.lucene.codecs.FieldsConsumer;
 import org.apache.lucene.codecs.FieldsProducer;
 import org.apache.lucene.codecs.PostingsFormat;
+import org.apache.lucene.index.FieldInfo;
 import org.apache.lucene.index.SegmentReadState;
 import org.apache.lucene.index.SegmentWriteState;
 import org.apache.lucene.util.NamedSPILoader;
@@ -55,6 +56,25 @@ public abstract class SecurePostingsFormat extends PostingsFormat {
     super (name);
   }
 
+  /**
+   * Returns true if the postings of this format are decrypted through the
+   * {@link SecureCipherPageCache}, so that reading them ahead of a search, as
+   * {@link SecureCipherPrefetcher} does, leaves them decrypted for the search.
+   */
+  public boolean usesPageCache() {
+    return false;
+  }
+
+  /**
+   * Returns true if the postings of <code>field</code>, in a segment written by this
+   * format, are decrypted through the {@link SecureCipherPageCache}. Defaults to
+   * {@link #usesPageCache()}; formats that wrap another one, read from the segment,
+   * resolve it from the attributes of the field.
+   */
+  public boolean usesPageCache(FieldInfo field) {
+    return usesPageCache();
+  }
+
   @Override
   /** Writes a new segment */
   public abstract FieldsConsumer fieldsConsumer(SegmentWriteState state) throws IOException;
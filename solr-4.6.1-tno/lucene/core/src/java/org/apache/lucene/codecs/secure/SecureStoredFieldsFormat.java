@@ -33,7 +33,7 @@ public abstract class SecureStoredFieldsFormat {
   protected SecureStoredFieldsFormat() {
   }
 
-  /** Returns a {@link SecureSimpleTextStoredFieldsReader} to load encrypted stored
+  /** Returns a {@link SecureStoredFieldsReader} to load encrypted stored
    *  fields. */
   public abstract SecureStoredFieldsReader fieldsReader(Directory directory, SegmentInfo si, FieldInfos fn, IOContext context) throws IOException;
 
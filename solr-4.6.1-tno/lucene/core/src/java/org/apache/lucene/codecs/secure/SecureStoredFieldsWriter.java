@@ -60,6 +60,13 @@ public abstract class SecureStoredFieldsWriter extends StoredFieldsWriter {
   /** Called when a document and all its fields have been added. */
   public void finishDocument() throws IOException {}
 
+  /** Returns the bytes of documents this writer keeps in memory and has not written
+   *  yet. They are counted towards the RAM buffer of
+   *  {@link org.apache.lucene.index.IndexWriter}. The default returns 0. */
+  public long ramBytesUsed() {
+    return 0;
+  }
+
   @Override
   /** Writes a single encrypted stored field. */
   public abstract void writeField(FieldInfo info, IndexableField field) throws IOException;
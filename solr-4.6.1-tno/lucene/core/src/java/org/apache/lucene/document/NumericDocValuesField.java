@@ -44,6 +44,15 @@ public class NumericDocValuesField extends Field {
     TYPE.freeze();
   }
 
+  /**
+   * Type for numeric DocValues of an encrypted field.
+   */
+  public static final FieldType TYPE_ENCRYPTED = new FieldType(TYPE);
+  static {
+    TYPE_ENCRYPTED.setEncrypted(true);
+    TYPE_ENCRYPTED.freeze();
+  }
+
   /** 
    * Creates a new DocValues field with the specified 64-bit long value 
    * @param name field name
@@ -51,7 +60,18 @@ public class NumericDocValuesField extends Field {
    * @throws IllegalArgumentException if the field name is null
    */
   public NumericDocValuesField(String name, long value) {
-    super(name, TYPE);
+    this(name, value, false);
+  }
+
+  /** 
+   * Creates a new DocValues field with the specified 64-bit long value 
+   * @param name field name
+   * @param value 64-bit long value
+   * @param encrypted true if the field is encrypted
+   * @throws IllegalArgumentException if the field name is null
+   */
+  public NumericDocValuesField(String name, long value, boolean encrypted) {
+    super(name, encrypted ? TYPE_ENCRYPTED : TYPE);
     fieldsData = Long.valueOf(value);
   }
 }
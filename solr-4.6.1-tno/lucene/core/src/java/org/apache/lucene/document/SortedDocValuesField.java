@@ -47,6 +47,15 @@ public class SortedDocValuesField extends Field {
     TYPE.freeze();
   }
 
+  /**
+   * Type for sorted bytes DocValues of an encrypted field
+   */
+  public static final FieldType TYPE_ENCRYPTED = new FieldType(TYPE);
+  static {
+    TYPE_ENCRYPTED.setEncrypted(true);
+    TYPE_ENCRYPTED.freeze();
+  }
+
   /**
    * Create a new sorted DocValues field.
    * @param name field name
@@ -54,7 +63,18 @@ public class SortedDocValuesField extends Field {
    * @throws IllegalArgumentException if the field name is null
    */
   public SortedDocValuesField(String name, BytesRef bytes) {
-    super(name, TYPE);
+    this(name, bytes, false);
+  }
+
+  /**
+   * Create a new sorted DocValues field.
+   * @param name field name
+   * @param bytes binary content
+   * @param encrypted true if the field is encrypted
+   * @throws IllegalArgumentException if the field name is null
+   */
+  public SortedDocValuesField(String name, BytesRef bytes, boolean encrypted) {
+    super(name, encrypted ? TYPE_ENCRYPTED : TYPE);
     fieldsData = bytes;
   }
 }
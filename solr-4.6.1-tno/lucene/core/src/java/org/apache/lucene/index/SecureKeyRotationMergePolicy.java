@@ -0,0 +1,200 @@
+package org.apache.lucene.index;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import org.apache.lucene.codecs.secure.SecureCipherUtil;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.WeakHashMap;
+
+/** This {@link MergePolicy} rewrites, in the background, the segments whose encrypted
+  * fields were written under an older generation of the collection key, after the key
+  * was rotated with {@link SecureCipherUtil#rotateKey(javax.crypto.SecretKey)}.
+  * All other methods delegate to the base {@code MergePolicy} given to the constructor.
+  * <p>Every time the {@link IndexWriter} looks for merges, the merges of the base policy
+  * are complemented with merges of single segments of an older key generation, of which
+  * at most {@code maxRotationMerges} run at the same time, so that a rotation is spread
+  * over time instead of rewriting the whole index at once. Until it completes, readers
+  * decrypt every segment with the key generation it was written under. Rotation merges
+  * are merges like any other, so their writes can be throttled by wrapping the directory
+  * in a {@link org.apache.lucene.store.RateLimitedDirectoryWrapper}:
+  * <pre class="prettyprint lang-java">
+  *  RateLimitedDirectoryWrapper dir = new RateLimitedDirectoryWrapper(FSDirectory.open(path));
+  *  dir.setMaxWriteMBPerSec(20.0, IOContext.Context.MERGE);
+  *  IndexWriterConfig iwc = new IndexWriterConfig(Version.LUCENE_XX, analyzer);
+  *  iwc.setMergePolicy(new SecureKeyRotationMergePolicy(iwc.getMergePolicy()));
+  *  IndexWriter w = new IndexWriter(dir, iwc);
+  *  int generation = SecureCipherUtil.rotateKey(newKey);
+  *  w.maybeMerge();
+  * </pre>
+  * <p>Once {@link #isRotated(SegmentInfos)} returns true for the last commit, the keys of
+  * the older generations can be {@link SecureCipherUtil#removeKeyGeneration(int) removed}.
+  * @lucene.experimental
+  */
+public class SecureKeyRotationMergePolicy extends MergePolicy {
+
+  /** Default maximum number of rotation merges running at the same time */
+  public static final int DEFAULT_MAX_ROTATION_MERGES = 1;
+
+  /** Wrapped {@link MergePolicy}. */
+  protected final MergePolicy base;
+
+  private final int maxRotationMerges;
+
+  // oldest key generation of the encrypted fields of a segment, read from its field infos
+  private final Map<SegmentInfo,Integer> keyGenerations =
+      Collections.synchronizedMap(new WeakHashMap<SegmentInfo,Integer>());
+
+  /** Wraps a {@link TieredMergePolicy}, e.g. for Solr's <code>mergePolicy</code> configuration. */
+  public SecureKeyRotationMergePolicy() {
+    this(new TieredMergePolicy());
+  }
+
+  /** Wraps the given {@link MergePolicy}, with {@link #DEFAULT_MAX_ROTATION_MERGES}. */
+  public SecureKeyRotationMergePolicy(MergePolicy base) {
+    this(base, DEFAULT_MAX_ROTATION_MERGES);
+  }
+
+  /** Wraps the given {@link MergePolicy} and runs at most <code>maxRotationMerges</code>
+   * rotation merges at the same time. */
+  public SecureKeyRotationMergePolicy(MergePolicy base, int maxRotationMerges) {
+    if (maxRotationMerges < 1) {
+      throw new IllegalArgumentException("maxRotationMerges must be >= 1 (got " + maxRotationMerges + ")");
+    }
+    this.base = base;
+    this.maxRotationMerges = maxRotationMerges;
+  }
+
+  /** Returns the oldest key generation the encrypted fields of the given segment were
+   * written under, or {@link Integer#MAX_VALUE} if it has none. */
+  protected int getKeyGeneration(SegmentCommitInfo si) throws IOException {
+    Integer generation = keyGenerations.get(si.info);
+    if (generation == null) {
+      int oldest = Integer.MAX_VALUE;
+      for (FieldInfo fi : SegmentReader.readFieldInfos(si)) {
+        // every encrypted field records the generation of its segment, also without data;
+        // only segments written before generations were recorded have none, generation 0
+        if (fi.isEncrypted()) {
+          oldest = Math.min(oldest, SecureCipherUtil.getKeyGeneration(fi));
+        }
+      }
+      generation = oldest;
+      keyGenerations.put(si.info, generation);
+    }
+    return generation;
+  }
+
+  /** Returns if the given segment should be rewritten under the current key generation.
+   * The default implementation returns true if one of its encrypted fields was written
+   * under an older one. */
+  protected boolean shouldRotateSegment(SegmentCommitInfo si) throws IOException {
+    return getKeyGeneration(si) < SecureCipherUtil.getKeyGeneration();
+  }
+
+  /** Returns true if no segment of <code>segmentInfos</code> needs to be rewritten. */
+  public boolean isRotated(SegmentInfos segmentInfos) throws IOException {
+    for (final SegmentCommitInfo si : segmentInfos) {
+      if (shouldRotateSegment(si)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public void setIndexWriter(IndexWriter writer) {
+    super.setIndexWriter(writer);
+    base.setIndexWriter(writer);
+  }
+
+  @Override
+  public MergeSpecification findMerges(MergeTrigger mergeTrigger, SegmentInfos segmentInfos) throws IOException {
+    MergeSpecification spec = base.findMerges(mergeTrigger, segmentInfos);
+
+    final Collection<SegmentCommitInfo> merging = writer.get().getMergingSegments();
+    final Set<SegmentCommitInfo> taken = new HashSet<SegmentCommitInfo>(merging);
+    if (spec != null) {
+      for (final OneMerge om : spec.merges) {
+        taken.addAll(om.segments);
+      }
+    }
+    int running = 0;
+    for (final SegmentCommitInfo si : merging) {
+      if (shouldRotateSegment(si)) {
+        running++;
+      }
+    }
+
+    for (final SegmentCommitInfo si : segmentInfos) {
+      if (running >= maxRotationMerges) {
+        break;
+      }
+      if (!taken.contains(si) && shouldRotateSegment(si)) {
+        if (verbose()) {
+          message("findMerges: rotate key of segment " + si.info.name + " from generation " + getKeyGeneration(si));
+        }
+        if (spec == null) {
+          spec = new MergeSpecification();
+        }
+        // rewrites the segment under the current key generation
+        spec.add(new OneMerge(Collections.singletonList(si)));
+        running++;
+      }
+    }
+    return spec;
+  }
+
+  @Override
+  public MergeSpecification findForcedMerges(SegmentInfos segmentInfos, int maxSegmentCount, Map<SegmentCommitInfo,Boolean> segmentsToMerge) throws IOException {
+    return base.findForcedMerges(segmentInfos, maxSegmentCount, segmentsToMerge);
+  }
+
+  @Override
+  public MergeSpecification findForcedDeletesMerges(SegmentInfos segmentInfos) throws IOException {
+    return base.findForcedDeletesMerges(segmentInfos);
+  }
+
+  @Override
+  public boolean useCompoundFile(SegmentInfos segments, SegmentCommitInfo newSegment) throws IOException {
+    return base.useCompoundFile(segments, newSegment);
+  }
+
+  @Override
+  public void close() {
+    base.close();
+  }
+
+  @Override
+  public String toString() {
+    return "[" + getClass().getSimpleName() + "->" + base + "]";
+  }
+
+  private boolean verbose() {
+    final IndexWriter w = writer.get();
+    return w != null && w.infoStream.isEnabled("KRMP");
+  }
+
+  private void message(String message) {
+    writer.get().infoStream.message("KRMP", message);
+  }
+}
@@ -27,6 +27,7 @@ import org.apache.lucene.codecs.FieldsConsumer;
 import org.apache.lucene.codecs.DocValuesConsumer;
 import org.apache.lucene.codecs.StoredFieldsWriter;
 import org.apache.lucene.codecs.TermVectorsWriter;
+import org.apache.lucene.codecs.secure.SecureCipherUtil;
 import org.apache.lucene.codecs.secure.SecureCodec;
 import org.apache.lucene.index.FieldInfo.DocValuesType;
 import org.apache.lucene.store.Directory;
@@ -145,6 +146,7 @@ final class SegmentMerger {
     }
     
     // write the merged infos
+    SecureCipherUtil.recordWriteKeyGeneration(mergeState.segmentInfo, mergeState.fieldInfos);
     FieldInfosWriter fieldInfosWriter = codec.fieldInfosFormat().getFieldInfosWriter();
     fieldInfosWriter.write(directory, mergeState.segmentInfo.name, "", mergeState.fieldInfos, context);
 
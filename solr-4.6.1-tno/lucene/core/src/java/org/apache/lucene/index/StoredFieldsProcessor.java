@@ -39,6 +39,8 @@ final class StoredFieldsProcessor extends StoredFieldsConsumer {
   StoredFieldsWriter fieldsWriter;
   final Codec codec;
   int lastDocID;
+  // TNO: bytes of buffered documents of a secure fieldsWriter, counted in docWriter.bytesUsed
+  long bytesUsed;
 
   final DocumentsWriterPerThread docWriter;
   final DocumentsWriterPerThread.DocState docState;
@@ -73,8 +75,21 @@ final class StoredFieldsProcessor extends StoredFieldsConsumer {
     reset();
   }
 
+  /** TNO: counts the documents buffered by a secure fieldsWriter towards the RAM buffer */
+  private void updateBytesUsed() {
+    final long used = fieldsWriter instanceof SecureStoredFieldsWriter ? ((SecureStoredFieldsWriter) fieldsWriter).ramBytesUsed() : 0;
+    docWriter.bytesUsed.addAndGet(used - bytesUsed);
+    bytesUsed = used;
+  }
+
+  private void clearBytesUsed() {
+    docWriter.bytesUsed.addAndGet(-bytesUsed);
+    bytesUsed = 0;
+  }
+
   @Override
   public void flush(SegmentWriteState state) throws IOException {
+    clearBytesUsed();
     int numDocs = state.segmentInfo.getDocCount();
     if (numDocs > 0) {
       // It's possible that all documents seen in this segment
@@ -129,6 +144,7 @@ final class StoredFieldsProcessor extends StoredFieldsConsumer {
   @Override
   void abort() {
     reset();
+    clearBytesUsed();
 
     if (fieldsWriter != null) {
       fieldsWriter.abort();
@@ -174,6 +190,7 @@ final class StoredFieldsProcessor extends StoredFieldsConsumer {
       }
       fieldsWriter.finishDocument();
       lastDocID++;
+      updateBytesUsed();
     }
 //
 //    if (secureFieldsWriter != null && numSecureStoredFields > 0) {
@@ -32,6 +32,7 @@ import java.util.concurrent.ExecutorService;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
+import org.apache.lucene.codecs.secure.SecureCipherPrefetcher;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.index.AtomicReaderContext;
 import org.apache.lucene.index.DirectoryReader; // javadocs
@@ -105,6 +106,9 @@ public class IndexSearcher {
   /** The Similarity implementation used by this searcher. */
   private Similarity similarity = defaultSimilarity;
 
+  // TNO: decrypts the postings of encrypted terms of all leaves in parallel, or null
+  private volatile SecureCipherPrefetcher encryptedTermPrefetcher;
+
   /** Creates a searcher searching the provided index. */
   public IndexSearcher(IndexReader r) {
     this(r, null);
@@ -175,6 +179,24 @@ public class IndexSearcher {
   }
 
   
+  /**
+   * Expert: sets the prefetcher that decrypts the postings of the encrypted terms of a
+   * query in all searched leaves in parallel, before they are scored one after the other.
+   * The searcher does not close it. Null, the default, disables prefetching.
+   *
+   * @lucene.experimental
+   */
+  public void setEncryptedTermPrefetcher(SecureCipherPrefetcher prefetcher) {
+    this.encryptedTermPrefetcher = prefetcher;
+  }
+
+  /** Returns the prefetcher of encrypted terms, or null if there is none.
+   * @see #setEncryptedTermPrefetcher
+   * @lucene.experimental */
+  public SecureCipherPrefetcher getEncryptedTermPrefetcher() {
+    return encryptedTermPrefetcher;
+  }
+
   /** Return the {@link IndexReader} this searches. */
   public IndexReader getIndexReader() {
     return reader;
@@ -604,6 +626,11 @@ public class IndexSearcher {
   protected void search(List<AtomicReaderContext> leaves, Weight weight, Collector collector)
       throws IOException {
 
+    final SecureCipherPrefetcher prefetcher = encryptedTermPrefetcher;
+    if (prefetcher != null) {
+      prefetcher.prefetch(leaves, weight.getQuery());
+    }
+
     // TODO: should we make this
     // threaded...?  the Collector could be sync'd?
     // always use single thread:
@@ -19,6 +19,7 @@ package org.apache.lucene.search;
 
 import java.io.IOException;
 
+import org.apache.lucene.codecs.secure.SecureCipherPostingsReader;
 import org.apache.lucene.index.AtomicReaderContext;
 import org.apache.lucene.index.DocsEnum;
 import org.apache.lucene.index.Fields;
@@ -102,6 +103,10 @@ public class MultiTermQueryWrapperFilter<Q extends MultiTermQuery> extends Filte
     if (termsEnum.next() != null) {
       // fill into a FixedBitSet
       final FixedBitSet bitSet = new FixedBitSet(context.reader().maxDoc());
+      if (SecureCipherPostingsReader.addDocs(terms, termsEnum, acceptDocs, bitSet)) {
+        // encrypted postings, decrypted in one sweep over the postings file
+        return bitSet;
+      }
       DocsEnum docsEnum = null;
       do {
         // System.out.println("  iter termCount=" + termCount + " term=" +
@@ -0,0 +1,288 @@
+package org.apache.lucene.codecs.secure;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.crypto.KeyGenerator;
+
+import org.apache.lucene.analysis.MockAnalyzer;
+import org.apache.lucene.analysis.MockTokenizer;
+import org.apache.lucene.codecs.lucene46.Lucene46Codec;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.DocsAndPositionsEnum;
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.FieldInfo.IndexOptions;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.PhraseQuery;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.LuceneTestCase;
+
+/**
+ * Tests nextDoc/advance over block encrypted postings, and their freqs and positions
+ */
+public class TestSecureCipherBlockPostingsFormat extends LuceneTestCase {
+
+  private static final String FIELD = "secureBlockField";
+
+  public void testNextDocAndAdvance() throws Exception {
+    KeyGenerator kg = KeyGenerator.getInstance("AES");
+    kg.init(128);
+    SecureCipherUtil.addKey(FIELD, kg.generateKey());
+
+    // encrypted fields are routed to the default secure codec's postings format
+    SecureCodec savedCodec = SecureCodec.getDefault();
+    SecureCodec.setDefault(new SecureCipherCodec(new SecureCipherBlockPostingsFormat()));
+    try {
+      doTestNextDocAndAdvance();
+    } finally {
+      SecureCodec.setDefault(savedCodec);
+      SecureCipherUtil.deleteKey(FIELD);
+    }
+  }
+
+  public void testPositions() throws Exception {
+    KeyGenerator kg = KeyGenerator.getInstance("AES");
+    kg.init(128);
+    SecureCipherUtil.addKey(FIELD, kg.generateKey());
+
+    // the default codec writes fields with positions with the block format
+    SecureCodec savedCodec = SecureCodec.getDefault();
+    SecureCodec.setDefault(new SecureCipherCodec());
+    try {
+      doTestPositions();
+    } finally {
+      SecureCodec.setDefault(savedCodec);
+      SecureCipherUtil.deleteKey(FIELD);
+    }
+  }
+
+  private void doTestPositions() throws Exception {
+    Directory dir = newDirectory();
+    IndexWriterConfig iwc = newIndexWriterConfig(TEST_VERSION_CURRENT, new MockAnalyzer(random(), MockTokenizer.WHITESPACE, false));
+    iwc.setCodec(new Lucene46Codec());
+    // keeps the doc IDs in the order the documents were added
+    iwc.setMergePolicy(newLogMergePolicy());
+    IndexWriter iw = new IndexWriter(dir, iwc);
+
+    FieldType ft = new FieldType(TextField.TYPE_NOT_STORED);
+    ft.setOmitNorms(true);
+    ft.setEncrypted(true);
+    ft.freeze();
+
+    // a small vocabulary, so that terms have several blocks of docs and repeat within docs
+    final int numWords = 8;
+    final int numDocs = atLeast(3 * SecureCipherBlockPostingsFormat.BLOCK_SIZE);
+    final int[][] docs = new int[numDocs][];
+    for (int i = 0; i < numDocs; i++) {
+      docs[i] = new int[1 + random().nextInt(20)];
+      StringBuilder text = new StringBuilder();
+      for (int j = 0; j < docs[i].length; j++) {
+        docs[i][j] = random().nextInt(numWords);
+        text.append(" w").append(docs[i][j]);
+      }
+      Document doc = new Document();
+      doc.add(new Field(FIELD, text.toString(), ft));
+      iw.addDocument(doc);
+      if (random().nextInt(200) == 0) {
+        iw.commit();
+      }
+    }
+    iw.forceMerge(1);
+    iw.close();
+
+    DirectoryReader r = DirectoryReader.open(dir);
+    AtomicReader ar = getOnlySegmentReader(r);
+    for (int word = 0; word < numWords; word++) {
+      TermsEnum te = ar.terms(FIELD).iterator(null);
+      if (!te.seekExact(new BytesRef("w" + word))) {
+        continue;
+      }
+      DocsAndPositionsEnum dpe = null;
+      for (int iter = 0; iter < 3; iter++) {
+        dpe = te.docsAndPositions(null, dpe);
+        assertNotNull(dpe);
+        int doc = -1;
+        while (true) {
+          // nextDoc or advance, and read all, some or none of the positions
+          int expectedDoc = doc + 1;
+          if (random().nextBoolean()) {
+            expectedDoc += random().nextInt(2 * SecureCipherBlockPostingsFormat.BLOCK_SIZE);
+            doc = dpe.advance(expectedDoc);
+          } else {
+            doc = dpe.nextDoc();
+          }
+          while (expectedDoc < numDocs && freq(docs[expectedDoc], word) == 0) {
+            expectedDoc++;
+          }
+          if (expectedDoc >= numDocs) {
+            assertEquals(DocIdSetIterator.NO_MORE_DOCS, doc);
+            break;
+          }
+          assertEquals(expectedDoc, doc);
+          assertEquals(freq(docs[doc], word), dpe.freq());
+          final int numPositions = random().nextInt(3) == 0 ? random().nextInt(dpe.freq() + 1) : dpe.freq();
+          int position = -1;
+          for (int i = 0; i < numPositions; i++) {
+            do {
+              position++;
+            } while (docs[doc][position] != word);
+            assertEquals(position, dpe.nextPosition());
+            assertEquals(-1, dpe.startOffset());
+          }
+        }
+      }
+    }
+
+    // phrase queries against a brute force count
+    IndexSearcher searcher = newSearcher(r);
+    for (int iter = 0; iter < 10; iter++) {
+      final int first = random().nextInt(numWords);
+      final int second = random().nextInt(numWords);
+      int expected = 0;
+      for (int[] words : docs) {
+        for (int j = 0; j + 1 < words.length; j++) {
+          if (words[j] == first && words[j + 1] == second) {
+            expected++;
+            break;
+          }
+        }
+      }
+      PhraseQuery pq = new PhraseQuery();
+      pq.add(new Term(FIELD, "w" + first));
+      pq.add(new Term(FIELD, "w" + second));
+      assertEquals(pq.toString(), expected, searcher.search(pq, 1).totalHits);
+    }
+
+    r.close();
+    dir.close();
+  }
+
+  private static int freq(int[] words, int word) {
+    int freq = 0;
+    for (int w : words) {
+      if (w == word) {
+        freq++;
+      }
+    }
+    return freq;
+  }
+
+  private void doTestNextDocAndAdvance() throws Exception {
+    Directory dir = newDirectory();
+    IndexWriterConfig iwc = newIndexWriterConfig(TEST_VERSION_CURRENT, new MockAnalyzer(random()));
+    iwc.setCodec(new Lucene46Codec());
+    // keeps the doc IDs in the order the documents were added
+    iwc.setMergePolicy(newLogMergePolicy());
+    IndexWriter iw = new IndexWriter(dir, iwc);
+
+    FieldType ft = new FieldType(StringField.TYPE_NOT_STORED);
+    ft.setIndexOptions(IndexOptions.DOCS_ONLY);
+    ft.setEncrypted(true);
+    ft.freeze();
+
+    // "all" is in every doc, "mod7" every 7th doc, "few" in a handful of docs
+    final int numDocs = atLeast(3 * SecureCipherBlockPostingsFormat.BLOCK_SIZE);
+    List<Integer> mod7 = new ArrayList<Integer>();
+    List<Integer> few = new ArrayList<Integer>();
+    List<Integer> all = new ArrayList<Integer>();
+    for (int i = 0; i < numDocs; i++) {
+      Document doc = new Document();
+      doc.add(new Field(FIELD, "all", ft));
+      all.add(i);
+      if (i % 7 == 0) {
+        doc.add(new Field(FIELD, "mod7", ft));
+        mod7.add(i);
+      }
+      if (i % 97 == 3) {
+        doc.add(new Field(FIELD, "few", ft));
+        few.add(i);
+      }
+      iw.addDocument(doc);
+    }
+    iw.forceMerge(1);
+    iw.close();
+
+    DirectoryReader r = DirectoryReader.open(dir);
+    AtomicReader ar = getOnlySegmentReader(r);
+    assertPostings(ar, "all", all);
+    assertPostings(ar, "mod7", mod7);
+    assertPostings(ar, "few", few);
+
+    r.close();
+    dir.close();
+  }
+
+  private void assertPostings(AtomicReader ar, String term, List<Integer> expected) throws Exception {
+    TermsEnum te = ar.terms(FIELD).iterator(null);
+    assertTrue(te.seekExact(new BytesRef(term)));
+    assertEquals(expected.size(), te.docFreq());
+
+    // nextDoc
+    DocsEnum de = te.docs(null, null, DocsEnum.FLAG_NONE);
+    for (int doc : expected) {
+      assertEquals(doc, de.nextDoc());
+    }
+    assertEquals(DocIdSetIterator.NO_MORE_DOCS, de.nextDoc());
+
+    // random advance, mixed with nextDoc
+    for (int iter = 0; iter < 10; iter++) {
+      de = te.docs(null, de, DocsEnum.FLAG_NONE);
+      int upto = -1;
+      while (true) {
+        int target = upto + 1 + random().nextInt(3 * SecureCipherBlockPostingsFormat.BLOCK_SIZE);
+        int expectedDoc = DocIdSetIterator.NO_MORE_DOCS;
+        for (int doc : expected) {
+          if (doc >= target) {
+            expectedDoc = doc;
+            break;
+          }
+        }
+        assertEquals(expectedDoc, de.advance(target));
+        if (expectedDoc == DocIdSetIterator.NO_MORE_DOCS) {
+          break;
+        }
+        upto = expectedDoc;
+        if (random().nextBoolean()) {
+          int next = expected.indexOf(upto) + 1;
+          int expectedNext = next < expected.size() ? expected.get(next) : DocIdSetIterator.NO_MORE_DOCS;
+          assertEquals(expectedNext, de.nextDoc());
+          if (expectedNext == DocIdSetIterator.NO_MORE_DOCS) {
+            break;
+          }
+          upto = expectedNext;
+        }
+      }
+    }
+
+    assertEquals(expected.size(), ar.docFreq(new Term(FIELD, term)));
+  }
+}
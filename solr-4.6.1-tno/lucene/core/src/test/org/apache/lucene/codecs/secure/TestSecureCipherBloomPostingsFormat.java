@@ -0,0 +1,191 @@
+package org.apache.lucene.codecs.secure;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Arrays;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.lucene.analysis.MockAnalyzer;
+import org.apache.lucene.codecs.lucene46.Lucene46Codec;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LogDocMergePolicy;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.LuceneTestCase;
+
+/**
+ * Tests that the Bloom filters over encrypted terms answer misses without false
+ * negatives, before and after a merge, and step aside when the key of the field changes
+ */
+public class TestSecureCipherBloomPostingsFormat extends LuceneTestCase {
+  private static final String FIELD = "secureBloomField";
+
+  public void testBloomFilter() throws Exception {
+    KeyGenerator kg = KeyGenerator.getInstance("AES");
+    kg.init(128);
+    SecureCipherUtil.addKey(FIELD, kg.generateKey());
+    SecureCodec savedCodec = SecureCodec.getDefault();
+    SecureCodec.setDefault(new SecureCipherCodec());
+    Directory dir = newDirectory();
+    try {
+      doTestBloomFilter(dir, kg);
+      dir.close();
+    } finally {
+      SecureCodec.setDefault(savedCodec);
+      SecureCipherUtil.deleteKey(FIELD);
+    }
+  }
+
+  /** Terms are hashed under HMAC(key, "bloom"), by a hasher kept per thread and key */
+  public void testHasher() throws Exception {
+    KeyGenerator kg = KeyGenerator.getInstance("AES");
+    kg.init(128);
+    final SecretKey key = kg.generateKey();
+    final BytesRef term = new BytesRef(term(42));
+
+    Mac mac = Mac.getInstance(SecureCipherBloomPostingsFormat.HASH_ALGORITHM);
+    mac.init(new SecretKeySpec(key.getEncoded(), SecureCipherBloomPostingsFormat.HASH_ALGORITHM));
+    final byte[] unkeyed = mac.doFinal(Arrays.copyOfRange(term.bytes, term.offset, term.offset + term.length));
+    mac.init(new SecretKeySpec(mac.doFinal("bloom".getBytes("US-ASCII")), SecureCipherBloomPostingsFormat.HASH_ALGORITHM));
+    final byte[] expected = mac.doFinal(Arrays.copyOfRange(term.bytes, term.offset, term.offset + term.length));
+
+    final SecureCipherBloomPostingsFormat.TermHasher hasher = SecureCipherBloomPostingsFormat.TermHasher.get(key);
+    hasher.hash(term);
+    assertEquals(SecureCipherStoredFieldsReader.readLong(expected, 0), hasher.h1());
+    assertEquals(SecureCipherStoredFieldsReader.readLong(expected, 8), hasher.h2());
+    assertFalse(SecureCipherStoredFieldsReader.readLong(unkeyed, 0) == hasher.h1());
+
+    // the same hasher for the same key on the same thread, until a key changes
+    assertSame(hasher, SecureCipherBloomPostingsFormat.TermHasher.get(key));
+    assertNotSame(hasher, SecureCipherBloomPostingsFormat.TermHasher.get(kg.generateKey()));
+    final SecureCipherBloomPostingsFormat.TermHasher[] other = new SecureCipherBloomPostingsFormat.TermHasher[1];
+    Thread thread = new Thread() {
+      @Override
+      public void run() {
+        other[0] = SecureCipherBloomPostingsFormat.TermHasher.get(key);
+      }
+    };
+    thread.start();
+    thread.join();
+    assertNotNull(other[0]);
+    assertNotSame(hasher, other[0]);
+    SecureCipherUtil.deleteKey(FIELD);
+    assertNotSame(hasher, SecureCipherBloomPostingsFormat.TermHasher.get(key));
+  }
+
+  private static String term(int i) {
+    return "term" + i;
+  }
+
+  private void doTestBloomFilter(Directory dir, KeyGenerator kg) throws Exception {
+    IndexWriterConfig iwc = newIndexWriterConfig(TEST_VERSION_CURRENT, new MockAnalyzer(random()));
+    iwc.setCodec(new Lucene46Codec());
+    // one segment per commit, and no merges of the three before forceMerge
+    iwc.setMaxBufferedDocs(IndexWriterConfig.DISABLE_AUTO_FLUSH);
+    iwc.setRAMBufferSizeMB(IndexWriterConfig.DEFAULT_RAM_BUFFER_SIZE_MB);
+    iwc.setMergePolicy(new LogDocMergePolicy());
+    IndexWriter iw = new IndexWriter(dir, iwc);
+
+    FieldType ft = new FieldType(StringField.TYPE_NOT_STORED);
+    ft.setEncrypted(true);
+    ft.freeze();
+
+    // every segment holds its own range of terms
+    final int numSegments = 3;
+    final int termsPerSegment = atLeast(200);
+    for (int s = 0; s < numSegments; s++) {
+      for (int i = s * termsPerSegment; i < (s + 1) * termsPerSegment; i++) {
+        Document doc = new Document();
+        doc.add(new Field(FIELD, term(i), ft));
+        iw.addDocument(doc);
+      }
+      iw.commit();
+    }
+
+    DirectoryReader r = DirectoryReader.open(iw, true);
+    assertEquals(numSegments, r.leaves().size());
+    final int numTerms = numSegments * termsPerSegment;
+    int falsePositives = 0;
+    for (AtomicReaderContext context : r.leaves()) {
+      final Terms terms = context.reader().terms(FIELD);
+      assertTrue(terms instanceof SecureCipherBloomPostingsFormat.BloomTerms);
+      final SecureCipherBloomPostingsFormat.Filter filter = ((SecureCipherBloomPostingsFormat.BloomTerms) terms).filter;
+      final SecureCipherBloomPostingsFormat.TermHasher hasher = new SecureCipherBloomPostingsFormat.TermHasher(SecureCipherUtil.getKey(FIELD));
+      final TermsEnum te = terms.iterator(null);
+      assertTrue(te instanceof SecureCipherBloomPostingsFormat.BloomTermsEnum);
+      int found = 0;
+      for (int i = 0; i < numTerms; i++) {
+        final BytesRef term = new BytesRef(term(i));
+        hasher.hash(term);
+        if (te.seekExact(term)) {
+          // no false negatives
+          assertTrue(filter.mayContain(hasher));
+          found++;
+        } else if (filter.mayContain(hasher)) {
+          falsePositives++;
+        }
+      }
+      assertEquals(termsPerSegment, found);
+    }
+    // about 1% at 10 bits per term
+    assertTrue("falsePositives=" + falsePositives, falsePositives < numSegments * (numTerms - termsPerSegment) / 20);
+    assertHits(r, numTerms);
+    r.close();
+
+    iw.forceMerge(1);
+    iw.close();
+    r = DirectoryReader.open(dir);
+    final AtomicReader ar = getOnlySegmentReader(r);
+    assertTrue(ar.terms(FIELD) instanceof SecureCipherBloomPostingsFormat.BloomTerms);
+    assertHits(r, numTerms);
+
+    // with another key the filter can not tell, and is not used
+    final SecretKey key = SecureCipherUtil.getKey(FIELD);
+    SecureCipherUtil.addKey(FIELD, kg.generateKey());
+    assertFalse(ar.terms(FIELD).iterator(null) instanceof SecureCipherBloomPostingsFormat.BloomTermsEnum);
+    SecureCipherUtil.addKey(FIELD, key);
+    assertTrue(ar.terms(FIELD).iterator(null) instanceof SecureCipherBloomPostingsFormat.BloomTermsEnum);
+    assertHits(r, numTerms);
+    r.close();
+  }
+
+  private void assertHits(DirectoryReader r, int numTerms) throws Exception {
+    IndexSearcher searcher = newSearcher(r);
+    for (int iter = 0; iter < 50; iter++) {
+      final int i = random().nextInt(2 * numTerms);
+      assertEquals(i < numTerms ? 1 : 0, searcher.search(new TermQuery(new Term(FIELD, term(i))), 1).totalHits);
+    }
+  }
+}
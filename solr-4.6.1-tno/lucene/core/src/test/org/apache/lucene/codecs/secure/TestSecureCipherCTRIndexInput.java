@@ -0,0 +1,144 @@
+package org.apache.lucene.codecs.secure;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.store.IndexOutput;
+import org.apache.lucene.util.LuceneTestCase;
+
+/**
+ * Tests random access reads over AES/CTR encrypted regions
+ */
+public class TestSecureCipherCTRIndexInput extends LuceneTestCase {
+
+  public void testSeekAndClone() throws Exception {
+    KeyGenerator kg = KeyGenerator.getInstance("AES");
+    kg.init(128);
+    SecretKey key = kg.generateKey();
+
+    // a few regions of random sizes, some spanning many pages
+    final int numRegions = atLeast(5);
+    byte[][] plain = new byte[numRegions][];
+    long[] regionFP = new long[numRegions];
+    long[] dataFP = new long[numRegions];
+
+    Directory dir = newDirectory();
+    SecureCipherIndexOutput out = new SecureCipherIndexOutput(dir.createOutput("test.enc", IOContext.DEFAULT));
+    out.writeInt(42);
+    for (int r = 0; r < numRegions; r++) {
+      plain[r] = new byte[random().nextInt(5 * SecureCipherCTRIndexInput.PAGE_SIZE)];
+      random().nextBytes(plain[r]);
+      regionFP[r] = out.getFilePointer();
+      out.startEncryption(key);
+      dataFP[r] = out.getFilePointer();
+      out.writeBytes(plain[r], 0, plain[r].length);
+      out.endEncryption();
+    }
+    out.writeInt(43);
+    out.close();
+
+    IndexInput raw = dir.openInput("test.enc", IOContext.DEFAULT);
+    SecureCipherIndexInput in = new SecureCipherIndexInput(raw, true);
+    assertEquals(42, in.readInt());
+    IndexInput secureIn = null;
+    for (int r = 0; r < numRegions; r++) {
+      in.seek(regionFP[r]);
+      secureIn = in.startDecryption(key, secureIn);
+      assertEquals(dataFP[r], secureIn.getFilePointer());
+      assertEquals(dataFP[r] + plain[r].length, secureIn.length());
+
+      // sequential
+      byte[] read = new byte[plain[r].length];
+      secureIn.readBytes(read, 0, read.length);
+      assertArrayEquals(plain[r], read);
+      assertEquals(dataFP[r] + plain[r].length, secureIn.getFilePointer());
+
+      if (plain[r].length == 0) {
+        continue;
+      }
+
+      // random seeks, and clones that must not lose their position
+      for (int iter = 0; iter < 50; iter++) {
+        int pos = random().nextInt(plain[r].length);
+        secureIn.seek(dataFP[r] + pos);
+        assertEquals(plain[r][pos], secureIn.readByte());
+        IndexInput clone = secureIn.clone();
+        assertEquals(secureIn.getFilePointer(), clone.getFilePointer());
+        int len = random().nextInt(plain[r].length - pos);
+        byte[] slice = new byte[len];
+        clone.readBytes(slice, 0, len);
+        for (int i = 0; i < len; i++) {
+          assertEquals(plain[r][pos + 1 + i], slice[i]);
+        }
+      }
+    }
+    in.seek(in.length() - 4);
+    assertEquals(43, in.readInt());
+    in.close();
+    dir.close();
+  }
+
+  public void testStreamingWrites() throws Exception {
+    KeyGenerator kg = KeyGenerator.getInstance("AES");
+    kg.init(128);
+    SecretKey key = kg.generateKey();
+
+    // ints and vInts straddling page boundaries, and a patch within the unflushed page
+    final int numValues = atLeast(5000);
+    Directory dir = newDirectory();
+    SecureCipherIndexOutput out = new SecureCipherIndexOutput(dir.createOutput("test.enc", IOContext.DEFAULT));
+    out.startEncryption(key);
+    final long dataFP = out.getFilePointer();
+    for (int i = 0; i < numValues; i++) {
+      out.writeInt(i);
+      out.writeVInt(i * 31);
+    }
+    final long patchFP = out.getFilePointer();
+    out.writeInt(-1);
+    out.writeLong(Long.MAX_VALUE);
+    out.seek(patchFP);
+    out.writeInt(numValues);
+    out.seek(patchFP + 12);
+    try {
+      out.seek(dataFP);
+      fail("seek into an already flushed page must fail");
+    } catch (RuntimeException expected) {
+      // expected
+    }
+    out.endEncryption();
+    out.close();
+
+    IndexInput in = new SecureCipherIndexInput(dir.openInput("test.enc", IOContext.DEFAULT), true);
+    IndexInput secureIn = ((SecureCipherIndexInput) in).startDecryption(key, null);
+    assertEquals(dataFP, secureIn.getFilePointer());
+    for (int i = 0; i < numValues; i++) {
+      assertEquals(i, secureIn.readInt());
+      assertEquals(i * 31, secureIn.readVInt());
+    }
+    assertEquals(numValues, secureIn.readInt());
+    assertEquals(Long.MAX_VALUE, secureIn.readLong());
+    assertEquals(secureIn.length(), secureIn.getFilePointer());
+    in.close();
+    dir.close();
+  }
+}
@@ -0,0 +1,295 @@
+package org.apache.lucene.codecs.secure;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+
+import org.apache.lucene.analysis.MockAnalyzer;
+import org.apache.lucene.codecs.lucene46.Lucene46Codec;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.NumericDocValuesField;
+import org.apache.lucene.document.SortedDocValuesField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.NumericDocValues;
+import org.apache.lucene.index.SlowCompositeReaderWrapper;
+import org.apache.lucene.index.SortedDocValues;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.util.Bits;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.LuceneTestCase;
+
+/**
+ * Tests that encrypted DocValues read back the values that were written, also after a
+ * merge, can be sorted on, and are not written in the clear
+ */
+public class TestSecureCipherDocValuesFormat extends LuceneTestCase {
+  private static final String NUMERIC = "secureNumeric";
+  private static final String SORTED = "secureSorted";
+
+  public void testEncryptedDocValues() throws Exception {
+    KeyGenerator kg = KeyGenerator.getInstance("AES");
+    kg.init(128);
+    SecureCipherUtil.addKey(NUMERIC, kg.generateKey());
+    SecureCipherUtil.addKey(SORTED, kg.generateKey());
+    SecureCodec savedCodec = SecureCodec.getDefault();
+    SecureCodec.setDefault(new SecureCipherCodec());
+    Directory dir = newDirectory();
+    try {
+      doTestEncryptedDocValues(dir);
+      dir.close();
+    } finally {
+      SecureCodec.setDefault(savedCodec);
+      SecureCipherUtil.deleteKey(NUMERIC);
+      SecureCipherUtil.deleteKey(SORTED);
+    }
+  }
+
+  public void testThreadKeysDoNotShareCachedBlocks() throws Exception {
+    KeyGenerator kg = KeyGenerator.getInstance("AES");
+    kg.init(128);
+    final Map<String,SecretKey> keys = new HashMap<String,SecretKey>();
+    keys.put(NUMERIC, kg.generateKey());
+    keys.put(SORTED, kg.generateKey());
+    SecureCipherUtil.addKey(NUMERIC, keys.get(NUMERIC));
+    SecureCipherUtil.addKey(SORTED, keys.get(SORTED));
+    SecureCodec savedCodec = SecureCodec.getDefault();
+    SecureCodec.setDefault(new SecureCipherCodec());
+    final SecretKey masterKey = SecureCipherUtil.getKey();
+    Directory dir = newDirectory();
+    try {
+      final int numDocs = atLeast(100);
+      IndexWriterConfig iwc = newIndexWriterConfig(TEST_VERSION_CURRENT, new MockAnalyzer(random()));
+      iwc.setCodec(new Lucene46Codec());
+      iwc.setMergePolicy(newLogMergePolicy());
+      IndexWriter iw = new IndexWriter(dir, iwc);
+      for (int i = 0; i < numDocs; i++) {
+        Document doc = new Document();
+        doc.add(new NumericDocValuesField(NUMERIC, i, true));
+        doc.add(new SortedDocValuesField(SORTED, new BytesRef(term(i)), true));
+        iw.addDocument(doc);
+      }
+      iw.forceMerge(1);
+      iw.close();
+
+      // from now on the keys are only given to this thread, as the warming queries do
+      SecureCipherUtil.deleteKey(NUMERIC);
+      SecureCipherUtil.deleteKey(SORTED);
+      if (masterKey != null) {
+        SecureCipherUtil.getRegistry().setMasterKey(null);
+      }
+      DirectoryReader r = DirectoryReader.open(dir);
+      final AtomicReader reader = SlowCompositeReaderWrapper.wrap(r);
+      try {
+        Map<String,SecretKey> previous = SecureCipherUtil.setThreadKeys(keys);
+        try {
+          NumericDocValues numericValues = reader.getNumericDocValues(NUMERIC);
+          SortedDocValues sortedValues = reader.getSortedDocValues(SORTED);
+          BytesRef scratch = new BytesRef();
+          for (int doc = 0; doc < numDocs; doc++) {
+            assertEquals(doc, numericValues.get(doc));
+            assertTrue(reader.getDocsWithField(NUMERIC).get(doc));
+            assertEquals(doc, sortedValues.getOrd(doc));
+            sortedValues.lookupOrd(doc, scratch);
+            assertEquals(term(doc), scratch.utf8ToString());
+          }
+        } finally {
+          SecureCipherUtil.setThreadKeys(previous);
+        }
+
+        // the blocks decrypted above are not handed to threads without the keys
+        final List<Throwable> failures = new ArrayList<Throwable>();
+        Thread thread = new Thread() {
+          @Override
+          public void run() {
+            try {
+              assertKeyless(reader);
+            } catch (Throwable t) {
+              failures.add(t);
+            }
+          }
+        };
+        thread.start();
+        thread.join();
+        if (!failures.isEmpty()) {
+          throw new AssertionError(failures.get(0));
+        }
+        assertKeyless(reader);
+      } finally {
+        r.close();
+      }
+      // CheckIndex needs the keys
+      Map<String,SecretKey> previous = SecureCipherUtil.setThreadKeys(keys);
+      try {
+        dir.close();
+      } finally {
+        SecureCipherUtil.setThreadKeys(previous);
+      }
+    } finally {
+      if (masterKey != null) {
+        SecureCipherUtil.getRegistry().setMasterKey(masterKey);
+      }
+      SecureCodec.setDefault(savedCodec);
+      SecureCipherUtil.deleteKey(NUMERIC);
+      SecureCipherUtil.deleteKey(SORTED);
+    }
+  }
+
+  private static void assertKeyless(AtomicReader reader) throws Exception {
+    assertNull(SecureCipherUtil.getThreadKeys());
+    try {
+      reader.getNumericDocValues(NUMERIC).get(0);
+      fail("read a cached numeric value without its key");
+    } catch (IllegalStateException expected) {
+    }
+    try {
+      reader.getDocsWithField(NUMERIC).get(0);
+      fail("read a cached missing bit without its key");
+    } catch (IllegalStateException expected) {
+    }
+    try {
+      reader.getSortedDocValues(SORTED).getOrd(0);
+      fail("read a cached ord without its key");
+    } catch (IllegalStateException expected) {
+    }
+    try {
+      reader.getSortedDocValues(SORTED).lookupOrd(0, new BytesRef());
+      fail("read a cached term without its key");
+    } catch (IllegalStateException expected) {
+    }
+  }
+
+  private static String term(int i) {
+    return String.format("secret%04d", i);
+  }
+
+  private void doTestEncryptedDocValues(Directory dir) throws Exception {
+    // more than a block of each kind
+    final int numDocs = SecureCipherDocValuesFormat.NUMERIC_BLOCK_SIZE + atLeast(500);
+    final int numTerms = 3 * SecureCipherDocValuesFormat.TERMS_BLOCK_SIZE;
+    final long[] numerics = new long[numDocs];
+    final int[] ords = new int[numDocs];
+
+    IndexWriterConfig iwc = newIndexWriterConfig(TEST_VERSION_CURRENT, new MockAnalyzer(random()));
+    iwc.setCodec(new Lucene46Codec());
+    // keeps the doc IDs in the order the documents were added
+    iwc.setMergePolicy(newLogMergePolicy());
+    IndexWriter iw = new IndexWriter(dir, iwc);
+    for (int i = 0; i < numDocs; i++) {
+      Document doc = new Document();
+      doc.add(new StringField("id", Integer.toString(i), Field.Store.NO));
+      // a few documents without a value
+      if (i % 37 == 0) {
+        numerics[i] = 0;
+        ords[i] = -1;
+      } else {
+        numerics[i] = random().nextBoolean() ? random().nextLong() : random().nextInt(1000) - 500;
+        ords[i] = random().nextInt(numTerms);
+        doc.add(new NumericDocValuesField(NUMERIC, numerics[i], true));
+        doc.add(new SortedDocValuesField(SORTED, new BytesRef(term(ords[i])), true));
+      }
+      iw.addDocument(doc);
+      if (random().nextInt(1000) == 0) {
+        iw.commit();
+      }
+    }
+    iw.forceMerge(1);
+    iw.close();
+
+    // the values are not written in the clear
+    for (String file : dir.listAll()) {
+      if (file.endsWith(SecureCipherDocValuesFormat.DATA_EXTENSION)) {
+        assertFalse(file, contains(dir, file, "secret".getBytes("UTF-8")));
+      }
+    }
+
+    DirectoryReader r = DirectoryReader.open(dir);
+    AtomicReader reader = SlowCompositeReaderWrapper.wrap(r);
+    NumericDocValues numericValues = reader.getNumericDocValues(NUMERIC);
+    Bits numericDocsWithField = reader.getDocsWithField(NUMERIC);
+    SortedDocValues sortedValues = reader.getSortedDocValues(SORTED);
+    assertEquals(numTerms, sortedValues.getValueCount());
+    BytesRef scratch = new BytesRef();
+    for (int doc = 0; doc < numDocs; doc++) {
+      assertEquals(numerics[doc], numericValues.get(doc));
+      assertEquals(ords[doc] != -1, numericDocsWithField.get(doc));
+      assertEquals(ords[doc], sortedValues.getOrd(doc));
+      if (ords[doc] != -1) {
+        sortedValues.lookupOrd(ords[doc], scratch);
+        assertEquals(term(ords[doc]), scratch.utf8ToString());
+      }
+    }
+    assertEquals(-1, sortedValues.lookupTerm(new BytesRef("a")));
+
+    IndexSearcher searcher = newSearcher(r);
+    TopDocs hits = searcher.search(new MatchAllDocsQuery(), null, numDocs, new Sort(new SortField(NUMERIC, SortField.Type.LONG)));
+    for (int i = 1; i < hits.scoreDocs.length; i++) {
+      assertTrue(numerics[hits.scoreDocs[i - 1].doc] <= numerics[hits.scoreDocs[i].doc]);
+    }
+
+    // without the key, nothing can be decrypted any more
+    SecretKey key = SecureCipherUtil.getKey(NUMERIC);
+    SecureCipherUtil.deleteKey(NUMERIC);
+    try {
+      numericValues.get(1);
+      fail("read an encrypted value without its key");
+    } catch (IllegalStateException expected) {
+    }
+    // and with it again, the values are back; CheckIndex needs it too
+    SecureCipherUtil.addKey(NUMERIC, key);
+    assertEquals(numerics[1], numericValues.get(1));
+    r.close();
+  }
+
+  private static boolean contains(Directory dir, String file, byte[] pattern) throws Exception {
+    IndexInput in = dir.openInput(file, IOContext.READONCE);
+    try {
+      byte[] bytes = new byte[(int) in.length()];
+      in.readBytes(bytes, 0, bytes.length);
+      outer:
+      for (int i = 0; i + pattern.length <= bytes.length; i++) {
+        for (int j = 0; j < pattern.length; j++) {
+          if (bytes[i + j] != pattern[j]) {
+            continue outer;
+          }
+        }
+        return true;
+      }
+      return false;
+    } finally {
+      in.close();
+    }
+  }
+}
@@ -0,0 +1,179 @@
+package org.apache.lucene.codecs.secure;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.crypto.KeyGenerator;
+
+import org.apache.lucene.codecs.Codec;
+import org.apache.lucene.codecs.PostingsConsumer;
+import org.apache.lucene.codecs.TermStats;
+import org.apache.lucene.codecs.TermsConsumer;
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.FieldInfo.IndexOptions;
+import org.apache.lucene.index.FieldInfos;
+import org.apache.lucene.index.SegmentInfo;
+import org.apache.lucene.index.SegmentReadState;
+import org.apache.lucene.index.SegmentWriteState;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.Constants;
+import org.apache.lucene.util.IOUtils;
+import org.apache.lucene.util.LuceneTestCase;
+
+/**
+ * Tests that the terms FST persisted at flush time is loaded back, and that fields can
+ * be loaded concurrently
+ */
+public class TestSecureCipherFieldsReader extends LuceneTestCase {
+  private static final int NUM_FIELDS = 3;
+  private static final int MAX_DOC = 100;
+
+  private static String field(int f) {
+    return "secureField" + f;
+  }
+
+  public void testConcurrentLoads() throws Exception {
+    KeyGenerator kg = KeyGenerator.getInstance("AES");
+    kg.init(128);
+    FieldInfo[] infos = new FieldInfo[NUM_FIELDS];
+    for (int f = 0; f < NUM_FIELDS; f++) {
+      SecureCipherUtil.addKey(field(f), kg.generateKey());
+      infos[f] = new FieldInfo(field(f), true, true, f, false, true, false, IndexOptions.DOCS_ONLY, null, null, null);
+    }
+    Directory dir = newDirectory();
+    try {
+      doTestConcurrentLoads(dir, new FieldInfos(infos));
+      dir.close();
+    } finally {
+      for (int f = 0; f < NUM_FIELDS; f++) {
+        SecureCipherUtil.deleteKey(field(f));
+      }
+    }
+  }
+
+  private void doTestConcurrentLoads(Directory dir, FieldInfos fieldInfos) throws Exception {
+    SegmentInfo si = new SegmentInfo(dir, Constants.LUCENE_MAIN_VERSION, "_0", MAX_DOC, false, Codec.getDefault(), null);
+
+    // term -> docs, for each field; zero padded terms sort like their bytes
+    final List<TreeMap<String,List<Integer>>> postings = new ArrayList<TreeMap<String,List<Integer>>>();
+    final int numTerms = atLeast(50);
+    for (int f = 0; f < NUM_FIELDS; f++) {
+      TreeMap<String,List<Integer>> terms = new TreeMap<String,List<Integer>>();
+      for (int t = 0; t < numTerms; t++) {
+        List<Integer> docs = new ArrayList<Integer>();
+        for (int doc = random().nextInt(5); doc < MAX_DOC; doc += 1 + random().nextInt(20)) {
+          docs.add(doc);
+        }
+        terms.put(String.format("t%05d", random().nextInt(100000)), docs);
+      }
+      postings.add(terms);
+    }
+
+    SecureCipherFieldsWriter writer = new SecureCipherFieldsWriter(
+        new SegmentWriteState(null, dir, si, fieldInfos, 32, null, newIOContext(random())));
+    for (int f = 0; f < NUM_FIELDS; f++) {
+      TermsConsumer termsConsumer = writer.addField(fieldInfos.fieldInfo(field(f)));
+      long sumDocFreq = 0;
+      for (Map.Entry<String,List<Integer>> entry : postings.get(f).entrySet()) {
+        BytesRef term = new BytesRef(entry.getKey().getBytes("UTF-8"));
+        PostingsConsumer postingsConsumer = termsConsumer.startTerm(term);
+        for (int doc : entry.getValue()) {
+          postingsConsumer.startDoc(doc, -1);
+          postingsConsumer.finishDoc();
+        }
+        termsConsumer.finishTerm(term, new TermStats(entry.getValue().size(), -1));
+        sumDocFreq += entry.getValue().size();
+      }
+      termsConsumer.finish(-1, sumDocFreq, MAX_DOC);
+    }
+    writer.close();
+
+    final SecureCipherFieldsReader reader = new SecureCipherFieldsReader(
+        new SegmentReadState(dir, si, fieldInfos, newIOContext(random()), 1));
+    try {
+      // all threads ask for all fields at once, in different orders
+      final int numThreads = 2 + random().nextInt(3);
+      final CountDownLatch start = new CountDownLatch(1);
+      final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+      final Terms[][] loaded = new Terms[numThreads][NUM_FIELDS];
+      Thread[] threads = new Thread[numThreads];
+      for (int i = 0; i < numThreads; i++) {
+        final int thread = i;
+        threads[i] = new Thread() {
+          @Override
+          public void run() {
+            try {
+              start.await();
+              for (int j = 0; j < NUM_FIELDS; j++) {
+                int f = (thread + j) % NUM_FIELDS;
+                loaded[thread][f] = reader.terms(field(f));
+                checkTerms(loaded[thread][f], postings.get(f));
+              }
+            } catch (Throwable t) {
+              failure.compareAndSet(null, t);
+            }
+          }
+        };
+        threads[i].start();
+      }
+      start.countDown();
+      for (Thread thread : threads) {
+        thread.join();
+      }
+      if (failure.get() != null) {
+        throw new AssertionError(failure.get());
+      }
+      // each field is loaded once
+      for (int i = 1; i < numThreads; i++) {
+        for (int f = 0; f < NUM_FIELDS; f++) {
+          assertSame(loaded[0][f], loaded[i][f]);
+        }
+      }
+      assertNull(reader.terms("missing"));
+    } finally {
+      IOUtils.close(reader);
+    }
+  }
+
+  private static void checkTerms(Terms terms, TreeMap<String,List<Integer>> expected) throws Exception {
+    assertNotNull(terms);
+    assertEquals(expected.size(), terms.size());
+    TermsEnum termsEnum = terms.iterator(null);
+    for (Map.Entry<String,List<Integer>> entry : expected.entrySet()) {
+      assertTrue(termsEnum.seekExact(new BytesRef(entry.getKey())));
+      assertEquals(entry.getValue().size(), termsEnum.docFreq());
+      DocsEnum docsEnum = termsEnum.docs(null, null, DocsEnum.FLAG_NONE);
+      for (int doc : entry.getValue()) {
+        assertEquals(doc, docsEnum.nextDoc());
+      }
+      assertEquals(DocIdSetIterator.NO_MORE_DOCS, docsEnum.nextDoc());
+    }
+    assertFalse(termsEnum.seekExact(new BytesRef("u")));
+  }
+}
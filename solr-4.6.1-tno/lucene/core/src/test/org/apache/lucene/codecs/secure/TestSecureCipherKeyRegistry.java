@@ -0,0 +1,129 @@
+package org.apache.lucene.codecs.secure;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.LuceneTestCase;
+
+/**
+ * Tests lookups, derivation and eviction of {@link SecureCipherKeyRegistry}
+ */
+public class TestSecureCipherKeyRegistry extends LuceneTestCase {
+
+  private static SecretKey newKey() throws Exception {
+    KeyGenerator kg = KeyGenerator.getInstance("AES");
+    kg.init(128);
+    return kg.generateKey();
+  }
+
+  public void testExplicitAndDerivedKeys() throws Exception {
+    SecureCipherKeyRegistry registry = new SecureCipherKeyRegistry();
+    BytesRef field = new BytesRef("field");
+    assertFalse(registry.hasKey(field));
+    assertNull(registry.getKey(field));
+
+    SecretKey master = newKey();
+    registry.setMasterKey(master);
+    assertTrue(registry.hasKey(field));
+    SecretKey derived = registry.getKey(field);
+    assertEquals(derived, registry.deriveKey(master, field));
+    assertSame(derived, registry.getKey(field));
+    assertEquals(1, registry.getStats().misses);
+    assertEquals(1, registry.getStats().hits);
+
+    // explicit keys win over derived keys
+    SecretKey explicit = newKey();
+    registry.addKey(field, explicit);
+    assertSame(explicit, registry.getKey(field));
+    registry.removeKey(field);
+    assertEquals(derived, registry.getKey(field));
+
+    // a new master key invalidates the derived keys
+    SecretKey master2 = newKey();
+    registry.setMasterKey(master2);
+    assertEquals(registry.deriveKey(master2, field), registry.getKey(field));
+    assertFalse(derived.equals(registry.getKey(field)));
+  }
+
+  public void testEviction() throws Exception {
+    final int maxDerivedKeys = 1 + random().nextInt(20);
+    SecureCipherKeyRegistry registry = new SecureCipherKeyRegistry(maxDerivedKeys);
+    SecretKey master = newKey();
+    registry.setMasterKey(master);
+    final int numKeys = maxDerivedKeys + atLeast(20);
+    for (int i = 0; i < numKeys; i++) {
+      BytesRef identity = new BytesRef("field" + i);
+      assertEquals(registry.deriveKey(master, identity), registry.getKey(identity));
+      assertTrue(registry.derivedKeyCount() <= maxDerivedKeys);
+    }
+    assertEquals(numKeys - maxDerivedKeys, registry.getStats().evictions);
+  }
+
+  public void testConcurrentLookups() throws Exception {
+    final SecureCipherKeyRegistry registry = new SecureCipherKeyRegistry(8);
+    final SecretKey master = newKey();
+    registry.setMasterKey(master);
+    final int numIdentities = 16;
+    final SecretKey[] expected = new SecretKey[numIdentities];
+    for (int i = 0; i < numIdentities; i++) {
+      expected[i] = registry.deriveKey(master, new BytesRef("field" + i));
+    }
+
+    final int numThreads = 2 + random().nextInt(4);
+    final int iters = atLeast(500);
+    final CountDownLatch start = new CountDownLatch(1);
+    final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    Thread[] threads = new Thread[numThreads];
+    for (int t = 0; t < numThreads; t++) {
+      final long seed = random().nextLong();
+      threads[t] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            Random r = new Random(seed);
+            start.await();
+            for (int i = 0; i < iters; i++) {
+              int id = r.nextInt(numIdentities);
+              assertEquals(expected[id], registry.getKey(new BytesRef("field" + id)));
+            }
+          } catch (Throwable t) {
+            failure.compareAndSet(null, t);
+          }
+        }
+      };
+      threads[t].start();
+    }
+    start.countDown();
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    if (failure.get() != null) {
+      throw new RuntimeException(failure.get());
+    }
+    assertTrue(registry.derivedKeyCount() <= numIdentities);
+    SecureCipherKeyRegistry.Stats stats = registry.getStats();
+    assertEquals((long) numThreads * iters, stats.hits + stats.misses);
+  }
+}
@@ -0,0 +1,261 @@
+package org.apache.lucene.codecs.secure;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+
+import org.apache.lucene.analysis.MockAnalyzer;
+import org.apache.lucene.codecs.lucene46.Lucene46Codec;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.FieldInfo.IndexOptions;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LogDocMergePolicy;
+import org.apache.lucene.index.SecureKeyRotationMergePolicy;
+import org.apache.lucene.index.SegmentInfos;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.RateLimitedDirectoryWrapper;
+import org.apache.lucene.util.LuceneTestCase;
+import org.apache.lucene.util._TestUtil;
+
+/**
+ * Tests that segments written under an older generation of the master key stay searchable
+ * after the key is rotated, and are rewritten under the new one by
+ * {@link SecureKeyRotationMergePolicy}
+ */
+public class TestSecureCipherKeyRotation extends LuceneTestCase {
+  // fields without an explicit key, whose keys are derived from the master key
+  private static final String FIELD = "secureRotationField";
+  private static final String STORED = "secureRotationStored";
+
+  private KeyGenerator kg;
+  private SecretKey savedMasterKey;
+  private SecureCodec savedCodec;
+
+  @Override
+  public void setUp() throws Exception {
+    super.setUp();
+    kg = KeyGenerator.getInstance("AES");
+    kg.init(128);
+    savedMasterKey = SecureCipherUtil.getRegistry().getMasterKey();
+    savedCodec = SecureCodec.getDefault();
+    SecureCodec.setDefault(new SecureCipherCodec(new SecureCipherBloomPostingsFormat(new SecureCipherPostingsFormat()), random().nextBoolean()));
+    SecureCipherUtil.getRegistry().clear();
+    SecureCipherUtil.getRegistry().setMasterKey(kg.generateKey());
+  }
+
+  @Override
+  public void tearDown() throws Exception {
+    SecureCodec.setDefault(savedCodec);
+    SecureCipherUtil.getRegistry().clear();
+    if (savedMasterKey != null) {
+      SecureCipherUtil.getRegistry().setMasterKey(savedMasterKey);
+    }
+    super.tearDown();
+  }
+
+  public void testKeyRotation() throws Exception {
+    RateLimitedDirectoryWrapper dir = new RateLimitedDirectoryWrapper(newDirectory());
+    // rotation merges are throttled like all merges
+    dir.setMaxWriteMBPerSec(100.0, IOContext.Context.MERGE);
+    doTestKeyRotation(dir);
+    dir.close();
+  }
+
+  /** A segment whose encrypted data was all deleted is rewritten once, also across writers */
+  public void testRotatedWithoutEncryptedData() throws Exception {
+    Directory dir = newDirectory();
+    IndexWriter iw = new IndexWriter(dir, newWriterConfig(new SecureKeyRotationMergePolicy(new LogDocMergePolicy())));
+    // only one doc has encrypted data, stored only, so that no postings of it are merged
+    for (int i = 0; i < 10; i++) {
+      Document doc = new Document();
+      doc.add(new StringField("id", Integer.toString(i), Field.Store.YES));
+      if (i == 0) {
+        doc.add(new Field(STORED, "value" + i, storedType()));
+      }
+      iw.addDocument(doc);
+    }
+    iw.commit();
+    iw.deleteDocuments(new Term("id", "0"));
+    iw.commit();
+
+    SecureCipherUtil.getRegistry().rotateMasterKey(kg.generateKey());
+    SecureKeyRotationMergePolicy mp = (SecureKeyRotationMergePolicy) iw.getConfig().getMergePolicy();
+    iw.maybeMerge();
+    iw.waitForMerges();
+    iw.commit();
+    SegmentInfos infos = new SegmentInfos();
+    infos.read(dir);
+    assertEquals(1, infos.size());
+    assertTrue(mp.isRotated(infos));
+    iw.close();
+
+    // a new writer, whose policy only knows what the segment records, leaves it alone
+    mp = new SecureKeyRotationMergePolicy(new LogDocMergePolicy());
+    iw = new IndexWriter(dir, newWriterConfig(mp));
+    infos = new SegmentInfos();
+    infos.read(dir);
+    final String segment = infos.info(0).info.name;
+    assertTrue(mp.isRotated(infos));
+    iw.maybeMerge();
+    iw.waitForMerges();
+    iw.commit();
+    infos = new SegmentInfos();
+    infos.read(dir);
+    assertEquals(segment, infos.info(0).info.name);
+    iw.close();
+
+    DirectoryReader r = DirectoryReader.open(dir);
+    final FieldInfo fieldInfo = getOnlySegmentReader(r).getFieldInfos().fieldInfo(STORED);
+    assertEquals(1, SecureCipherUtil.getKeyGeneration(fieldInfo));
+    assertEquals(9, r.numDocs());
+    r.close();
+    dir.close();
+  }
+
+  private IndexWriterConfig newWriterConfig(SecureKeyRotationMergePolicy mp) {
+    IndexWriterConfig iwc = newIndexWriterConfig(TEST_VERSION_CURRENT, new MockAnalyzer(random()));
+    iwc.setCodec(new Lucene46Codec());
+    iwc.setMaxBufferedDocs(IndexWriterConfig.DISABLE_AUTO_FLUSH);
+    iwc.setRAMBufferSizeMB(IndexWriterConfig.DEFAULT_RAM_BUFFER_SIZE_MB);
+    iwc.setMergePolicy(mp);
+    return iwc;
+  }
+
+  private static FieldType storedType() {
+    FieldType stored = new FieldType(StringField.TYPE_STORED);
+    stored.setIndexed(false);
+    stored.setEncrypted(true);
+    stored.freeze();
+    return stored;
+  }
+
+  private void addDocuments(IndexWriter iw, int from, int to) throws Exception {
+    FieldType indexed = new FieldType(StringField.TYPE_NOT_STORED);
+    indexed.setIndexOptions(IndexOptions.DOCS_ONLY);
+    indexed.setEncrypted(true);
+    indexed.freeze();
+    FieldType stored = storedType();
+    for (int i = from; i < to; i++) {
+      Document doc = new Document();
+      doc.add(new Field(FIELD, "id" + i, indexed));
+      doc.add(new Field(FIELD, "t" + (i % 3), indexed));
+      doc.add(new Field(STORED, "value" + i, stored));
+      iw.addDocument(doc);
+    }
+    iw.commit();
+  }
+
+  private void doTestKeyRotation(RateLimitedDirectoryWrapper dir) throws Exception {
+    // the base policy leaves the few segments alone, only the rotation merges them
+    final SecureKeyRotationMergePolicy mp = new SecureKeyRotationMergePolicy(new LogDocMergePolicy(), _TestUtil.nextInt(random(), 1, 3));
+    IndexWriter iw = new IndexWriter(dir, newWriterConfig(mp));
+
+    final int numSegments = _TestUtil.nextInt(random(), 2, 5);
+    final int docsPerSegment = atLeast(20);
+    for (int s = 0; s < numSegments; s++) {
+      addDocuments(iw, s * docsPerSegment, (s + 1) * docsPerSegment);
+    }
+    SegmentInfos infos = new SegmentInfos();
+    infos.read(dir);
+    assertTrue(mp.isRotated(infos));
+
+    // rotate, and write one more segment under the new key
+    final int generation = SecureCipherUtil.getRegistry().rotateMasterKey(kg.generateKey());
+    assertEquals(1, generation);
+    assertEquals(generation, SecureCipherUtil.getKeyGeneration());
+    final int numDocs = (numSegments + 1) * docsPerSegment;
+    addDocuments(iw, numSegments * docsPerSegment, numDocs);
+
+    // both generations can be searched side by side
+    DirectoryReader r = DirectoryReader.open(dir);
+    assertEquals(numSegments + 1, r.leaves().size());
+    int numOld = 0;
+    for (AtomicReaderContext context : r.leaves()) {
+      if (getKeyGeneration(context.reader()) == 0) {
+        numOld++;
+      } else {
+        assertEquals(generation, getKeyGeneration(context.reader()));
+      }
+    }
+    assertEquals(numSegments, numOld);
+    assertSearchable(r, numDocs);
+    r.close();
+    infos = new SegmentInfos();
+    infos.read(dir);
+    assertFalse(mp.isRotated(infos));
+
+    // the merge policy rewrites the old segments, a few at a time
+    for (int iter = 0; iter < 10 * numSegments && !mp.isRotated(infos); iter++) {
+      iw.maybeMerge();
+      iw.waitForMerges();
+      iw.commit();
+      infos = new SegmentInfos();
+      infos.read(dir);
+    }
+    assertTrue(mp.isRotated(infos));
+    iw.close();
+
+    // without the old master key, every segment can still be read
+    SecureCipherUtil.getRegistry().removeMasterKey(0);
+    r = DirectoryReader.open(dir);
+    for (AtomicReaderContext context : r.leaves()) {
+      assertEquals(generation, getKeyGeneration(context.reader()));
+    }
+    assertSearchable(r, numDocs);
+    r.close();
+
+    try {
+      SecureCipherUtil.getRegistry().removeMasterKey(generation);
+      fail("removed the current key generation");
+    } catch (IllegalArgumentException expected) {
+    }
+  }
+
+  private static int getKeyGeneration(AtomicReader reader) {
+    final FieldInfo fieldInfo = reader.getFieldInfos().fieldInfo(FIELD);
+    assertNotNull(fieldInfo.getAttribute(SecureCipherUtil.KEY_GENERATION_ATTRIBUTE));
+    assertEquals(SecureCipherUtil.getKeyGeneration(fieldInfo),
+        SecureCipherUtil.getKeyGeneration(reader.getFieldInfos().fieldInfo(STORED)));
+    return SecureCipherUtil.getKeyGeneration(fieldInfo);
+  }
+
+  private void assertSearchable(DirectoryReader r, int numDocs) throws Exception {
+    IndexSearcher searcher = newSearcher(r);
+    assertEquals((numDocs + 2) / 3, searcher.search(new TermQuery(new Term(FIELD, "t0")), 1).totalHits);
+    for (int iter = 0; iter < 20; iter++) {
+      final int i = random().nextInt(numDocs);
+      TopDocs hits = searcher.search(new TermQuery(new Term(FIELD, "id" + i)), 1);
+      assertEquals(1, hits.totalHits);
+      assertEquals("value" + i, searcher.doc(hits.scoreDocs[0].doc).get(STORED));
+    }
+  }
+}
@@ -0,0 +1,171 @@
+package org.apache.lucene.codecs.secure;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.Arrays;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.util.LuceneTestCase;
+
+/**
+ * Tests the cache of decrypted pages, on its own and behind encrypted regions
+ */
+public class TestSecureCipherPageCache extends LuceneTestCase {
+  private static final int PAGE_SIZE = SecureCipherPageCache.PAGE_SIZE;
+
+  private static SecretKey newKey() throws Exception {
+    KeyGenerator kg = KeyGenerator.getInstance("AES");
+    kg.init(128);
+    return kg.generateKey();
+  }
+
+  private static byte[] page(int length, int seed) {
+    byte[] page = new byte[PAGE_SIZE];
+    for (int i = 0; i < length; i++) {
+      page[i] = (byte) (seed + i);
+    }
+    return page;
+  }
+
+  public void testGetPut() throws Exception {
+    SecretKey key = newKey();
+    SecureCipherPageCache cache = new SecureCipherPageCache(16 * PAGE_SIZE, 2);
+    byte[] read = new byte[PAGE_SIZE];
+    assertEquals(-1, cache.get(1, 0, 0, key, read));
+
+    cache.put(1, 0, 0, key, page(PAGE_SIZE, 3), PAGE_SIZE);
+    cache.put(1, 0, 1, key, page(10, 5), 10);
+    assertEquals(PAGE_SIZE, cache.get(1, 0, 0, key, read));
+    assertArrayEquals(page(PAGE_SIZE, 3), read);
+    assertEquals(10, cache.get(1, 0, 1, key, read));
+    for (int i = 0; i < 10; i++) {
+      assertEquals((byte) (5 + i), read[i]);
+    }
+    // other files and regions do not see the pages
+    assertEquals(-1, cache.get(2, 0, 0, key, read));
+    assertEquals(-1, cache.get(1, 16, 0, key, read));
+
+    SecureCipherPageCache.Stats stats = cache.getStats();
+    assertEquals(2, stats.hits);
+    assertEquals(3, stats.misses);
+    assertEquals(2, stats.inserts);
+    assertEquals(2, stats.pages);
+
+    cache.clear();
+    assertEquals(-1, cache.get(1, 0, 0, key, read));
+    assertEquals(0, cache.getStats().pages);
+  }
+
+  public void testKeysDoNotSharePages() throws Exception {
+    SecretKey key = newKey();
+    SecureCipherPageCache cache = new SecureCipherPageCache(4 * PAGE_SIZE);
+    cache.put(1, 0, 0, key, page(100, 0), 100);
+    byte[] read = new byte[PAGE_SIZE];
+    assertEquals(-1, cache.get(1, 0, 0, newKey(), read));
+    // an equal key, like a key derived again, does
+    assertEquals(100, cache.get(1, 0, 0, new SecretKeySpec(key.getEncoded(), "AES"), read));
+  }
+
+  public void testEviction() throws Exception {
+    SecretKey key = newKey();
+    // a single segment, for a predictable LRU order
+    SecureCipherPageCache cache = new SecureCipherPageCache(4 * PAGE_SIZE, 1);
+    assertEquals(4 * PAGE_SIZE, cache.getMaxBytes());
+    byte[] read = new byte[PAGE_SIZE];
+    for (int i = 0; i < 4; i++) {
+      cache.put(1, 0, i, key, page(PAGE_SIZE, i), PAGE_SIZE);
+    }
+    // page 0 becomes the most recently used, so page 1 is evicted first
+    assertEquals(PAGE_SIZE, cache.get(1, 0, 0, key, read));
+    cache.put(1, 0, 4, key, page(PAGE_SIZE, 4), PAGE_SIZE);
+    assertEquals(-1, cache.get(1, 0, 1, key, read));
+    for (int i : new int[] { 0, 2, 3, 4 }) {
+      assertEquals(PAGE_SIZE, cache.get(1, 0, i, key, read));
+      assertArrayEquals(page(PAGE_SIZE, i), read);
+    }
+    SecureCipherPageCache.Stats stats = cache.getStats();
+    assertEquals(1, stats.evictions);
+    assertEquals(4, stats.pages);
+  }
+
+  /** Reads through the cache must return the same bytes as reads that decrypt */
+  public void testCachedReads() throws Exception {
+    SecretKey key = newKey();
+    final int numRegions = atLeast(3);
+    byte[][] plain = new byte[numRegions][];
+    long[] regionFP = new long[numRegions];
+    long[] dataFP = new long[numRegions];
+
+    Directory dir = newDirectory();
+    SecureCipherIndexOutput out = new SecureCipherIndexOutput(dir.createOutput("test.enc", IOContext.DEFAULT));
+    for (int r = 0; r < numRegions; r++) {
+      plain[r] = new byte[1 + random().nextInt(5 * PAGE_SIZE)];
+      random().nextBytes(plain[r]);
+      regionFP[r] = out.getFilePointer();
+      out.startEncryption(key);
+      dataFP[r] = out.getFilePointer();
+      out.writeBytes(plain[r], 0, plain[r].length);
+      out.endEncryption();
+    }
+    out.close();
+
+    SecureCipherPageCache saved = SecureCipherPageCache.getDefault();
+    // small enough for some pages to be evicted
+    SecureCipherPageCache cache = new SecureCipherPageCache(4 * PAGE_SIZE, 2);
+    SecureCipherPageCache.setDefault(cache);
+    try {
+      IndexInput raw = dir.openInput("test.enc", IOContext.DEFAULT);
+      SecureCipherIndexInput in = new SecureCipherIndexInput(raw, true, SecureCipherPageCache.newFileId());
+      IndexInput secureIn = null;
+      for (int iter = 0; iter < 3; iter++) {
+        for (int r = 0; r < numRegions; r++) {
+          in.seek(regionFP[r]);
+          secureIn = in.startDecryption(key, secureIn);
+          assertEquals(dataFP[r] + plain[r].length, secureIn.length());
+          byte[] read = new byte[plain[r].length];
+          secureIn.readBytes(read, 0, read.length);
+          assertArrayEquals(plain[r], read);
+
+          for (int i = 0; i < 20; i++) {
+            int pos = random().nextInt(plain[r].length);
+            secureIn.seek(dataFP[r] + pos);
+            assertEquals(plain[r][pos], secureIn.readByte());
+          }
+        }
+      }
+      assertTrue(cache.getStats().hits > 0);
+
+      // a different key never gets the plaintext of the cached pages
+      in.seek(regionFP[0]);
+      IndexInput other = in.startDecryption(newKey());
+      byte[] read = new byte[plain[0].length];
+      other.readBytes(read, 0, read.length);
+      assertFalse(Arrays.equals(plain[0], read));
+      in.close();
+    } finally {
+      SecureCipherPageCache.setDefault(saved);
+      dir.close();
+    }
+  }
+}
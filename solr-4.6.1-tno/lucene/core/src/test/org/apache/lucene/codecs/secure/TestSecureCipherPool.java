@@ -0,0 +1,82 @@
+package org.apache.lucene.codecs.secure;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+
+import org.apache.lucene.util.LuceneTestCase;
+
+public class TestSecureCipherPool extends LuceneTestCase {
+  private static final String ALGORITHM = "AES/CTR/NoPadding";
+
+  public void testSameCipherPerThread() throws Exception {
+    final SecretKey key = newKey();
+    final Cipher cipher = SecureCipherPool.get(ALGORITHM, key);
+    assertSame(cipher, SecureCipherPool.get(ALGORITHM, key));
+    assertNotSame(cipher, SecureCipherPool.get(ALGORITHM, newKey()));
+
+    final AtomicReference<Cipher> other = new AtomicReference<Cipher>();
+    Thread thread = new Thread() {
+      @Override
+      public void run() {
+        try {
+          other.set(SecureCipherPool.get(ALGORITHM, key));
+        } catch (Exception e) {
+          throw new RuntimeException(e);
+        }
+      }
+    };
+    thread.start();
+    thread.join();
+    assertNotNull(other.get());
+    assertNotSame(cipher, other.get());
+  }
+
+  public void testKeyChangeEmptiesAllThreads() throws Exception {
+    final SecretKey key = newKey();
+    final Cipher cipher = SecureCipherPool.get(ALGORITHM, key);
+
+    // another thread removes a key while this one holds ciphers
+    final String field = "securePoolField" + random().nextInt(1000);
+    Thread thread = new Thread() {
+      @Override
+      public void run() {
+        try {
+          SecureCipherUtil.addKey(field, newKey());
+          SecureCipherUtil.deleteKey(field);
+        } catch (Exception e) {
+          throw new RuntimeException(e);
+        }
+      }
+    };
+    thread.start();
+    thread.join();
+
+    assertNotSame(cipher, SecureCipherPool.get(ALGORITHM, key));
+  }
+
+  private static SecretKey newKey() throws Exception {
+    KeyGenerator kg = KeyGenerator.getInstance("AES");
+    kg.init(128);
+    return kg.generateKey();
+  }
+}
@@ -0,0 +1,209 @@
+package org.apache.lucene.codecs.secure;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.crypto.KeyGenerator;
+
+import org.apache.lucene.analysis.MockAnalyzer;
+import org.apache.lucene.codecs.lucene46.Lucene46Codec;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.Field.Store;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.FieldInfo.IndexOptions;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.LogDocMergePolicy;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.PrefixFilter;
+import org.apache.lucene.search.TermRangeFilter;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.FixedBitSet;
+import org.apache.lucene.util.LuceneTestCase;
+import org.apache.lucene.util._TestUtil;
+
+/**
+ * Tests merges of encrypted postings, which copy the runs of segments without deletions,
+ * and the multi-term filters that decrypt the runs of all their terms in one sweep
+ */
+public class TestSecureCipherPostingsFormat extends LuceneTestCase {
+
+  private static final String FIELD = "secureField";
+  private static final int NUM_TERMS = 3;
+
+  public void testMergeWithoutDeletions() throws Exception {
+    doTestMerge(false);
+  }
+
+  public void testMergeWithDeletions() throws Exception {
+    doTestMerge(true);
+  }
+
+  private void doTestMerge(boolean deletes) throws Exception {
+    KeyGenerator kg = KeyGenerator.getInstance("AES");
+    kg.init(128);
+    SecureCipherUtil.addKey(FIELD, kg.generateKey());
+
+    SecureCodec savedCodec = SecureCodec.getDefault();
+    SecureCodec.setDefault(new SecureCipherCodec());
+    SecureCipherPageCache savedCache = SecureCipherPageCache.getDefault();
+    if (random().nextBoolean()) {
+      // reads, and the merges that decrypt, then go through a small page cache
+      SecureCipherPageCache.setDefault(new SecureCipherPageCache(_TestUtil.nextInt(random(), 1, 64) * SecureCipherPageCache.PAGE_SIZE));
+    }
+    try {
+      doTestMerge(newDirectory(), deletes);
+    } finally {
+      SecureCodec.setDefault(savedCodec);
+      SecureCipherPageCache.setDefault(savedCache);
+      SecureCipherUtil.deleteKey(FIELD);
+    }
+  }
+
+  private IndexWriter newWriter(Directory dir, boolean merge) throws Exception {
+    IndexWriterConfig iwc = newIndexWriterConfig(TEST_VERSION_CURRENT, new MockAnalyzer(random()));
+    iwc.setCodec(new Lucene46Codec());
+    // enough documents per segment for the frequent terms to be copied
+    iwc.setMaxBufferedDocs(_TestUtil.nextInt(random(), 4, 6) * SecureCipherPostingsWriter.MIN_COPY_RUN_DOCS);
+    // keep documents in order so that runs are copied in document order
+    iwc.setMergePolicy(merge ? new LogDocMergePolicy() : NoMergePolicy.NO_COMPOUND_FILES);
+    return new IndexWriter(dir, iwc);
+  }
+
+  private void doTestMerge(Directory dir, boolean deletes) throws Exception {
+    FieldType ft = new FieldType(StringField.TYPE_NOT_STORED);
+    ft.setIndexOptions(IndexOptions.DOCS_ONLY);
+    ft.setEncrypted(true);
+    ft.freeze();
+
+    // two rounds of flushes and merges, so that the second merge copies runs that were
+    // already copied by the first one
+    final int numDocs = atLeast(12 * SecureCipherPostingsWriter.MIN_COPY_RUN_DOCS);
+    for (int round = 0; round < 2; round++) {
+      IndexWriter iw = newWriter(dir, false);
+      final int from = round == 0 ? 0 : numDocs / 2;
+      final int to = round == 0 ? numDocs / 2 : numDocs;
+      for (int i = from; i < to; i++) {
+        Document doc = new Document();
+        doc.add(new StoredField("id", i));
+        doc.add(new StringField("del", i % 5 == 0 && i < numDocs / 4 ? "yes" : "no", Store.NO));
+        // a few frequent terms, whose postings are copied, and a unique one, which is not
+        doc.add(new Field(FIELD, "t" + (i % NUM_TERMS), ft));
+        doc.add(new Field(FIELD, "u" + i, ft));
+        iw.addDocument(doc);
+      }
+      iw.close();
+
+      iw = newWriter(dir, true);
+      if (deletes && round == 1) {
+        // only the first segment has deletions
+        iw.deleteDocuments(new Term("del", "yes"));
+      }
+      iw.forceMerge(1);
+      iw.close();
+    }
+
+    DirectoryReader r = DirectoryReader.open(dir);
+    AtomicReader ar = getOnlySegmentReader(r);
+    List<List<Integer>> expected = new ArrayList<List<Integer>>();
+    for (int t = 0; t < NUM_TERMS; t++) {
+      expected.add(new ArrayList<Integer>());
+    }
+    for (int docID = 0; docID < ar.maxDoc(); docID++) {
+      final int i = ar.document(docID).getField("id").numericValue().intValue();
+      assertFalse(deletes && i % 5 == 0 && i < numDocs / 4);
+      expected.get(i % NUM_TERMS).add(docID);
+      assertPostings(ar, "u" + i, docID);
+    }
+    assertEquals(deletes ? numDocs - (numDocs / 4 + 4) / 5 : numDocs, ar.maxDoc());
+
+    TermsEnum te = ar.terms(FIELD).iterator(null);
+    for (int t = 0; t < NUM_TERMS; t++) {
+      assertTrue(te.seekExact(new BytesRef("t" + t)));
+      assertEquals(expected.get(t).size(), te.docFreq());
+      DocsEnum de = te.docs(null, null, DocsEnum.FLAG_NONE);
+      for (int doc : expected.get(t)) {
+        assertEquals(doc, de.nextDoc());
+      }
+      assertEquals(DocIdSetIterator.NO_MORE_DOCS, de.nextDoc());
+      if (!deletes) {
+        // the postings of every flushed segment were copied as a run
+        assertTrue(((SecureCipherPostingsReader.SecureCipherDocsEnum) de).numRuns() > 1);
+      }
+    }
+    assertEquals(ar.maxDoc(), ar.terms(FIELD).getDocCount());
+
+    // multi-term filters decrypt the postings of all their terms in one sweep
+    assertFilter(ar, new PrefixFilter(new Term(FIELD, "t")), "t", "t\uffff");
+    final String prefix = "u" + random().nextInt(10);
+    assertFilter(ar, new PrefixFilter(new Term(FIELD, prefix)), prefix, prefix + "\uffff");
+    final String upper = "u" + random().nextInt(numDocs);
+    assertFilter(ar, TermRangeFilter.newStringRange(FIELD, "t1", upper, true, true), "t1", upper);
+
+    r.close();
+    dir.close();
+  }
+
+  /** Checks the docs of <code>filter</code> against those of the terms from <code>lower</code>
+   *  to <code>upper</code>, read one by one */
+  private void assertFilter(AtomicReader ar, Filter filter, String lower, String upper) throws Exception {
+    FixedBitSet expected = new FixedBitSet(ar.maxDoc());
+    TermsEnum te = ar.terms(FIELD).iterator(null);
+    BytesRef term;
+    while ((term = te.next()) != null) {
+      final String text = term.utf8ToString();
+      if (text.compareTo(lower) >= 0 && text.compareTo(upper) <= 0) {
+        DocsEnum de = te.docs(null, null, DocsEnum.FLAG_NONE);
+        int doc;
+        while ((doc = de.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+          expected.set(doc);
+        }
+      }
+    }
+    DocIdSet actual = filter.getDocIdSet(ar.getContext(), ar.getLiveDocs());
+    if (actual == null) {
+      // no term in the range has a live doc, e.g. a prefix whose docs were all deleted
+      assertEquals(0, expected.cardinality());
+      return;
+    }
+    assertTrue(actual instanceof FixedBitSet);
+    assertEquals(expected, actual);
+  }
+
+  private void assertPostings(AtomicReader ar, String term, int expected) throws Exception {
+    TermsEnum te = ar.terms(FIELD).iterator(null);
+    assertTrue(te.seekExact(new BytesRef(term)));
+    assertEquals(1, te.docFreq());
+    DocsEnum de = te.docs(null, null, DocsEnum.FLAG_NONE);
+    assertEquals(expected, de.nextDoc());
+    assertEquals(DocIdSetIterator.NO_MORE_DOCS, de.nextDoc());
+  }
+}
@@ -0,0 +1,209 @@
+package org.apache.lucene.codecs.secure;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.KeyGenerator;
+
+import org.apache.lucene.analysis.MockAnalyzer;
+import org.apache.lucene.codecs.lucene46.Lucene46Codec;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.TextField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.FieldInfo.IndexOptions;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TopDocs;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.LuceneTestCase;
+import org.apache.lucene.util.NamedThreadFactory;
+
+/**
+ * Tests that searches with encrypted terms prefetched in parallel return the same hits,
+ * and read the prefetched postings from the page cache
+ */
+public class TestSecureCipherPrefetcher extends LuceneTestCase {
+  private static final String FIELD = "secureField";
+  private static final String POSITIONS_FIELD = "securePositionsField";
+
+  public void testPrefetchedSearch() throws Exception {
+    KeyGenerator kg = KeyGenerator.getInstance("AES");
+    kg.init(128);
+    SecureCipherUtil.addKey(FIELD, kg.generateKey());
+    SecureCodec savedCodec = SecureCodec.getDefault();
+    SecureCodec.setDefault(new SecureCipherCodec());
+    SecureCipherPageCache savedCache = SecureCipherPageCache.getDefault();
+    ExecutorService executor = Executors.newFixedThreadPool(2, new NamedThreadFactory("TestSecureCipherPrefetcher"));
+    try {
+      doTestPrefetchedSearch(newDirectory(), new SecureCipherPrefetcher(executor));
+    } finally {
+      executor.shutdown();
+      executor.awaitTermination(1, TimeUnit.MINUTES);
+      SecureCodec.setDefault(savedCodec);
+      SecureCipherPageCache.setDefault(savedCache);
+      SecureCipherUtil.deleteKey(FIELD);
+    }
+  }
+
+  private void doTestPrefetchedSearch(Directory dir, SecureCipherPrefetcher prefetcher) throws Exception {
+    FieldType ft = new FieldType(StringField.TYPE_NOT_STORED);
+    ft.setIndexOptions(IndexOptions.DOCS_ONLY);
+    ft.setEncrypted(true);
+    ft.freeze();
+
+    // several segments, whose frequent terms take more than a page
+    final int numSegments = 3;
+    final int docsPerSegment = 2 * SecureCipherPrefetcher.MIN_DOC_FREQ;
+    IndexWriterConfig iwc = newIndexWriterConfig(TEST_VERSION_CURRENT, new MockAnalyzer(random()));
+    iwc.setCodec(new Lucene46Codec());
+    iwc.setMaxBufferedDocs(docsPerSegment);
+    iwc.setMergePolicy(NoMergePolicy.NO_COMPOUND_FILES);
+    IndexWriter iw = new IndexWriter(dir, iwc);
+    for (int i = 0; i < numSegments * docsPerSegment; i++) {
+      Document doc = new Document();
+      doc.add(new Field(FIELD, "all", ft));
+      doc.add(new Field(FIELD, i % 2 == 0 ? "even" : "odd", ft));
+      doc.add(new StringField("plain", "p" + (i % 7), Field.Store.NO));
+      iw.addDocument(doc);
+    }
+    iw.close();
+
+    DirectoryReader r = DirectoryReader.open(dir);
+    assertEquals(numSegments, r.leaves().size());
+    IndexSearcher searcher = new IndexSearcher(r);
+
+    BooleanQuery bq = new BooleanQuery();
+    bq.add(new TermQuery(new Term(FIELD, "all")), Occur.MUST);
+    bq.add(new TermQuery(new Term(FIELD, "even")), Occur.MUST);
+    bq.add(new TermQuery(new Term("plain", "p3")), Occur.MUST_NOT);
+    Query[] queries = { new TermQuery(new Term(FIELD, "odd")), bq, new TermQuery(new Term("plain", "p1")) };
+
+    SecureCipherPageCache.setDefault(null);
+    TopDocs[] expected = new TopDocs[queries.length];
+    for (int i = 0; i < queries.length; i++) {
+      expected[i] = searcher.search(queries[i], r.maxDoc());
+    }
+
+    SecureCipherPageCache cache = new SecureCipherPageCache(1024 * SecureCipherPageCache.PAGE_SIZE);
+    SecureCipherPageCache.setDefault(cache);
+    searcher.setEncryptedTermPrefetcher(prefetcher);
+    for (int i = 0; i < queries.length; i++) {
+      assertSameHits(expected[i], searcher.search(queries[i], r.maxDoc()));
+    }
+    SecureCipherPageCache.Stats stats = cache.getStats();
+    assertTrue(stats.inserts > 0);
+    // the search read the pages the prefetcher decrypted
+    assertTrue(stats.hits > 0);
+
+    r.close();
+    dir.close();
+  }
+
+  /** Fields with freqs or positions are read by the block format, which has no page cache */
+  public void testSkipsBlockPostings() throws Exception {
+    KeyGenerator kg = KeyGenerator.getInstance("AES");
+    kg.init(128);
+    SecureCipherUtil.addKey(FIELD, kg.generateKey());
+    SecureCipherUtil.addKey(POSITIONS_FIELD, kg.generateKey());
+    SecureCodec savedCodec = SecureCodec.getDefault();
+    SecureCodec.setDefault(new SecureCipherCodec());
+    SecureCipherPageCache savedCache = SecureCipherPageCache.getDefault();
+    SecureCipherPageCache.setDefault(new SecureCipherPageCache(1024 * SecureCipherPageCache.PAGE_SIZE));
+    final AtomicInteger submitted = new AtomicInteger();
+    ExecutorService executor = new ThreadPoolExecutor(2, 2, 0L, TimeUnit.MILLISECONDS,
+        new LinkedBlockingQueue<Runnable>(), new NamedThreadFactory("TestSecureCipherPrefetcher")) {
+      @Override
+      public void execute(Runnable command) {
+        submitted.incrementAndGet();
+        super.execute(command);
+      }
+    };
+    Directory dir = newDirectory();
+    try {
+      FieldType docsOnly = new FieldType(StringField.TYPE_NOT_STORED);
+      docsOnly.setIndexOptions(IndexOptions.DOCS_ONLY);
+      docsOnly.setEncrypted(true);
+      docsOnly.freeze();
+      FieldType positions = new FieldType(TextField.TYPE_NOT_STORED);
+      positions.setEncrypted(true);
+      positions.freeze();
+
+      final int numSegments = 3;
+      final int docsPerSegment = 2 * SecureCipherPrefetcher.MIN_DOC_FREQ;
+      IndexWriterConfig iwc = newIndexWriterConfig(TEST_VERSION_CURRENT, new MockAnalyzer(random()));
+      iwc.setCodec(new Lucene46Codec());
+      iwc.setMaxBufferedDocs(docsPerSegment);
+      iwc.setMergePolicy(NoMergePolicy.NO_COMPOUND_FILES);
+      IndexWriter iw = new IndexWriter(dir, iwc);
+      for (int i = 0; i < numSegments * docsPerSegment; i++) {
+        Document doc = new Document();
+        doc.add(new Field(FIELD, "all", docsOnly));
+        doc.add(new Field(POSITIONS_FIELD, "all", positions));
+        iw.addDocument(doc);
+      }
+      iw.close();
+
+      DirectoryReader r = DirectoryReader.open(dir);
+      assertEquals(numSegments, r.leaves().size());
+      // the formats are those of the segments, not those the codec would write now
+      SecureCodec.setDefault(new SecureCipherCodec(new SecureCipherBlockPostingsFormat()));
+      SecureCipherPrefetcher prefetcher = new SecureCipherPrefetcher(executor);
+      prefetcher.prefetch(r.leaves(), new TermQuery(new Term(POSITIONS_FIELD, "all")));
+      assertEquals(0, submitted.get());
+      prefetcher.prefetch(r.leaves(), new TermQuery(new Term(FIELD, "all")));
+      assertEquals(numSegments, submitted.get());
+      r.close();
+    } finally {
+      dir.close();
+      executor.shutdown();
+      executor.awaitTermination(1, TimeUnit.MINUTES);
+      SecureCodec.setDefault(savedCodec);
+      SecureCipherPageCache.setDefault(savedCache);
+      SecureCipherUtil.deleteKey(FIELD);
+      SecureCipherUtil.deleteKey(POSITIONS_FIELD);
+    }
+  }
+
+  private static void assertSameHits(TopDocs expected, TopDocs actual) {
+    assertEquals(expected.totalHits, actual.totalHits);
+    assertEquals(expected.scoreDocs.length, actual.scoreDocs.length);
+    for (int i = 0; i < expected.scoreDocs.length; i++) {
+      ScoreDoc e = expected.scoreDocs[i];
+      ScoreDoc a = actual.scoreDocs[i];
+      assertEquals(e.doc, a.doc);
+      assertEquals(e.score, a.score, 0f);
+    }
+  }
+}
@@ -0,0 +1,394 @@
+package org.apache.lucene.codecs.secure;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.KeyGenerator;
+
+import org.apache.lucene.analysis.MockAnalyzer;
+import org.apache.lucene.codecs.lucene46.Lucene46Codec;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.DocumentStoredFieldVisitor;
+import org.apache.lucene.document.DoubleField;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.IntField;
+import org.apache.lucene.document.LongField;
+import org.apache.lucene.document.StoredField;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.document.Field.Store;
+import org.apache.lucene.document.FloatField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.FieldInfos;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.NoMergePolicy;
+import org.apache.lucene.index.SegmentInfo;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.IOContext;
+import org.apache.lucene.store.IndexInput;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.Constants;
+import org.apache.lucene.util.LuceneTestCase;
+import org.apache.lucene.util.NamedThreadFactory;
+import org.apache.lucene.util._TestUtil;
+
+/**
+ * Tests that encrypted stored fields of every type round trip
+ */
+public class TestSecureCipherStoredFieldsFormat extends LuceneTestCase {
+
+  private static final String[] FIELDS = { "sstring", "sbinary", "sint", "slong", "sfloat", "sdouble" };
+  // starts every stored string, long and distinctive enough not to occur in the files by chance
+  private static final String MARKER = "plaintext-stored-value-marker";
+
+  public void testRoundTrip() throws Exception {
+    doTestRoundTrip(new SecureCipherCodec(), new SecureCipherCodec());
+  }
+
+  public void testBlockRoundTrip() throws Exception {
+    SecureCipherCodec block = new SecureCipherCodec(new SecureCipherPostingsFormat(), true);
+    doTestRoundTrip(block, block);
+  }
+
+  /** Chunks encrypted when the segment is flushed, on a pool, read by either format */
+  public void testDeferredRoundTrip() throws Exception {
+    ExecutorService executor = Executors.newFixedThreadPool(_TestUtil.nextInt(random(), 1, 4), new NamedThreadFactory("TestSecureCipherStoredFieldsFormat"));
+    try {
+      SecureCipherCodec deferred = new SecureCipherCodec(new SecureCipherPostingsFormat(), executor);
+      doTestRoundTrip(deferred, random().nextBoolean() ? deferred : new SecureCipherCodec());
+    } finally {
+      executor.shutdown();
+      assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+    }
+  }
+
+  /** Chunks waiting for the flush of their segment fill the RAM buffer of IndexWriter */
+  public void testDeferredChunksCountTowardsRAMBuffer() throws Exception {
+    KeyGenerator kg = KeyGenerator.getInstance("AES");
+    kg.init(128);
+    SecureCipherUtil.addKey("sbinary", kg.generateKey());
+    ExecutorService executor = Executors.newFixedThreadPool(2, new NamedThreadFactory("TestSecureCipherStoredFieldsFormat"));
+    SecureCodec savedCodec = SecureCodec.getDefault();
+    try {
+      SecureCodec.setDefault(new SecureCipherCodec(new SecureCipherPostingsFormat(), executor));
+      Directory dir = newDirectory();
+      IndexWriterConfig iwc = newIndexWriterConfig(TEST_VERSION_CURRENT, new MockAnalyzer(random()));
+      iwc.setCodec(new Lucene46Codec());
+      iwc.setMaxBufferedDocs(IndexWriterConfig.DISABLE_AUTO_FLUSH);
+      iwc.setRAMBufferSizeMB(1);
+      iwc.setMergePolicy(NoMergePolicy.NO_COMPOUND_FILES);
+      IndexWriter iw = new IndexWriter(dir, iwc);
+      // about 4 MB of incompressible values, far below MAX_PENDING_BYTES; the documents
+      // themselves take almost nothing of the RAM buffer
+      final byte[] value = new byte[SecureCipherBlockStoredFieldsFormat.CHUNK_SIZE];
+      for (int i = 0; i < 256; i++) {
+        random().nextBytes(value);
+        Document doc = new Document();
+        doc.add(new Field("sbinary", value, encrypted(StoredField.TYPE)));
+        iw.addDocument(doc);
+      }
+      iw.close();
+      DirectoryReader reader = DirectoryReader.open(dir);
+      assertEquals(256, reader.numDocs());
+      assertTrue("segments: " + reader.leaves().size(), reader.leaves().size() >= 3);
+      reader.close();
+      dir.close();
+    } finally {
+      SecureCodec.setDefault(savedCodec);
+      executor.shutdown();
+      assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+      SecureCipherUtil.deleteKey("sbinary");
+    }
+  }
+
+  public void testBinaryRoundTrip() throws Exception {
+    SecureCipherCodec binary = new SecureCipherCodec(new SecureCipherPostingsFormat(), SecureCipherCodec.StoredFields.BINARY);
+    doTestRoundTrip(binary, binary);
+  }
+
+  /** Segments of two formats in one index, merged by the second one */
+  public void testMixedFormats() throws Exception {
+    List<SecureCipherCodec.StoredFields> formats = new ArrayList<SecureCipherCodec.StoredFields>();
+    Collections.addAll(formats, SecureCipherCodec.StoredFields.values());
+    Collections.shuffle(formats, random());
+    doTestRoundTrip(new SecureCipherCodec(new SecureCipherPostingsFormat(), formats.get(0)),
+        new SecureCipherCodec(new SecureCipherPostingsFormat(), formats.get(1)));
+  }
+
+  private void doTestRoundTrip(SecureCodec first, SecureCodec second) throws Exception {
+    KeyGenerator kg = KeyGenerator.getInstance("AES");
+    kg.init(128);
+    for (String field : FIELDS) {
+      SecureCipherUtil.addKey(field, kg.generateKey());
+    }
+
+    SecureCodec savedCodec = SecureCodec.getDefault();
+    try {
+      doTestRoundTrip(newDirectory(), first, second);
+    } finally {
+      SecureCodec.setDefault(savedCodec);
+      for (String field : FIELDS) {
+        SecureCipherUtil.deleteKey(field);
+      }
+    }
+  }
+
+  /** Collects the encrypted values of the encrypted fields, and fails on anything decrypted */
+  private static class EncryptedCollector extends EncryptedStoredFieldVisitor {
+    final List<EncryptedStoredValue> values = new ArrayList<EncryptedStoredValue>();
+
+    @Override
+    public void encryptedField(EncryptedStoredValue value) {
+      assertTrue(value.getFieldInfo().isEncrypted());
+      values.add(value);
+    }
+
+    @Override
+    public void stringField(FieldInfo fieldInfo, String value) {
+      fail("got plaintext of " + fieldInfo.name);
+    }
+
+    @Override
+    public void binaryField(FieldInfo fieldInfo, byte[] value) {
+      fail("got plaintext of " + fieldInfo.name);
+    }
+
+    @Override
+    public Status needsField(FieldInfo fieldInfo) {
+      return fieldInfo.isEncrypted() ? Status.YES : Status.NO;
+    }
+  }
+
+  private static FieldType encrypted(FieldType type) {
+    FieldType ft = new FieldType(type);
+    ft.setStored(true);
+    ft.setEncrypted(true);
+    ft.freeze();
+    return ft;
+  }
+
+  private void doTestRoundTrip(Directory dir, SecureCodec first, SecureCodec second) throws Exception {
+    // enough documents for several chunks of the block format
+    final int numDocs = atLeast(3 * SecureCipherBlockStoredFieldsFormat.MAX_DOCS_PER_CHUNK);
+    String[] strings = new String[numDocs];
+    byte[][] binaries = new byte[numDocs][];
+    int[] ints = new int[numDocs];
+    long[] longs = new long[numDocs];
+    float[] floats = new float[numDocs];
+    double[] doubles = new double[numDocs];
+    for (int i = 0; i < numDocs; i++) {
+      // large enough values for chunks to also be cut by size
+      strings[i] = _TestUtil.randomUnicodeString(random(), 1000);
+      binaries[i] = new byte[random().nextInt(100)];
+      random().nextBytes(binaries[i]);
+      // include negative values and bytes >= 0x80
+      ints[i] = random().nextInt();
+      longs[i] = random().nextLong();
+      floats[i] = random().nextFloat() - 0.5f;
+      doubles[i] = random().nextDouble() - 0.5;
+    }
+
+    // the first half of the documents with the first codec, the rest with the second one
+    for (int half = 0; half < 2; half++) {
+      SecureCodec.setDefault(half == 0 ? first : second);
+      IndexWriterConfig iwc = newIndexWriterConfig(TEST_VERSION_CURRENT, new MockAnalyzer(random()));
+      iwc.setCodec(new Lucene46Codec());
+      iwc.setMaxBufferedDocs(_TestUtil.nextInt(random(), 50, 500));
+      IndexWriter iw = new IndexWriter(dir, iwc);
+      final int from = half == 0 ? 0 : numDocs / 2;
+      final int to = half == 0 ? numDocs / 2 : numDocs;
+      for (int i = from; i < to; i++) {
+        Document doc = new Document();
+        doc.add(new StoredField("id", i));
+        doc.add(new StringField("mod3", Integer.toString(i % 3), Store.NO));
+        // some documents do not have all fields
+        if (i % 5 != 1) {
+          doc.add(new Field("sstring", strings[i], encrypted(StoredField.TYPE)));
+        }
+        if (i % 7 != 2) {
+          doc.add(new Field("sbinary", binaries[i], encrypted(StoredField.TYPE)));
+        }
+        doc.add(new IntField("sint", ints[i], encrypted(IntField.TYPE_STORED)));
+        doc.add(new LongField("slong", longs[i], encrypted(LongField.TYPE_STORED)));
+        doc.add(new FloatField("sfloat", floats[i], encrypted(FloatField.TYPE_STORED)));
+        doc.add(new DoubleField("sdouble", doubles[i], encrypted(DoubleField.TYPE_STORED)));
+        iw.addDocument(doc);
+      }
+      if (half == 1) {
+        iw.deleteDocuments(new Term("mod3", "0"));
+        iw.forceMerge(1);
+      }
+      iw.close();
+    }
+
+    DirectoryReader r = DirectoryReader.open(dir);
+    assertEquals(numDocs - (numDocs + 2) / 3, r.numDocs());
+    // the merged segment was written, and is read, by the format of the second codec
+    assertEquals(readerClass(second), getOnlySegmentReader(r).getFieldsReader().getClass());
+    for (int docID = 0; docID < r.maxDoc(); docID++) {
+      Document doc = r.document(docID);
+      final int i = doc.getField("id").numericValue().intValue();
+      assertTrue(i % 3 != 0);
+      assertEquals(i % 5 != 1 ? strings[i] : null, doc.get("sstring"));
+      assertEquals(i % 7 != 2 ? new BytesRef(binaries[i]) : null, doc.getBinaryValue("sbinary"));
+      assertEquals(ints[i], doc.getField("sint").numericValue().intValue());
+      assertEquals(longs[i], doc.getField("slong").numericValue().longValue());
+      assertEquals(floats[i], doc.getField("sfloat").numericValue().floatValue(), 0f);
+      assertEquals(doubles[i], doc.getField("sdouble").numericValue().doubleValue(), 0d);
+
+      // the same values, read still encrypted and decrypted afterwards
+      EncryptedCollector collector = new EncryptedCollector();
+      r.document(docID, collector);
+      DocumentStoredFieldVisitor decrypted = new DocumentStoredFieldVisitor();
+      for (EncryptedStoredValue value : collector.values) {
+        value.decrypt(SecureCipherUtil.getKey(value.getFieldInfo().name), decrypted);
+      }
+      Document later = decrypted.getDocument();
+      assertEquals(i % 5 != 1 ? strings[i] : null, later.get("sstring"));
+      assertEquals(i % 7 != 2 ? new BytesRef(binaries[i]) : null, later.getBinaryValue("sbinary"));
+      assertEquals(ints[i], later.getField("sint").numericValue().intValue());
+      assertEquals(doubles[i], later.getField("sdouble").numericValue().doubleValue(), 0d);
+    }
+    r.close();
+    dir.close();
+  }
+
+  private static Class<?> readerClass(SecureCodec codec) {
+    final SecureStoredFieldsFormat format = codec.secureStoredFieldsFormat(new Lucene46Codec());
+    if (format instanceof SecureCipherBinaryStoredFieldsFormat) {
+      return SecureCipherBinaryStoredFieldsReader.class;
+    } else if (format instanceof SecureCipherBlockStoredFieldsFormat) {
+      return SecureCipherBlockStoredFieldsReader.class;
+    }
+    return SecureCipherStoredFieldsReader.class;
+  }
+
+  /** The binary format, written and read through its own writer and reader */
+  public void testBinaryFormat() throws Exception {
+    KeyGenerator kg = KeyGenerator.getInstance("AES");
+    kg.init(128);
+    SecureCipherUtil.addKey("sstring", kg.generateKey());
+    SecureCipherUtil.addKey("slong", kg.generateKey());
+    try {
+      doTestBinaryFormat(newDirectory());
+    } finally {
+      SecureCipherUtil.deleteKey("sstring");
+      SecureCipherUtil.deleteKey("slong");
+    }
+  }
+
+  private void doTestBinaryFormat(Directory dir) throws Exception {
+    final FieldInfo plain = new FieldInfo("id", false, false, 0, false, false, false, null, null, null, null);
+    final FieldInfo string = new FieldInfo("sstring", true, false, 1, false, false, false, null, null, null, null);
+    final FieldInfo lng = new FieldInfo("slong", true, false, 2, false, false, false, null, null, null, null);
+    final FieldInfos fieldInfos = new FieldInfos(new FieldInfo[] { plain, string, lng });
+
+    final int numDocs = atLeast(500);
+    String[] strings = new String[numDocs];
+    long[] longs = new long[numDocs];
+    SecureCipherBinaryStoredFieldsFormat format = new SecureCipherBinaryStoredFieldsFormat(new Lucene46Codec());
+    SecureStoredFieldsWriter writer = format.fieldsWriter(dir, newSegmentInfo(dir, numDocs), IOContext.DEFAULT);
+    for (int i = 0; i < numDocs; i++) {
+      strings[i] = MARKER + _TestUtil.randomUnicodeString(random(), 50);
+      longs[i] = random().nextLong();
+      // the non encrypted field is written by the wrapped codec
+      final boolean hasString = i % 3 != 0;
+      writer.startDocument(hasString ? 3 : 2);
+      writer.writeField(plain, new StoredField("id", i));
+      if (hasString) {
+        writer.writeField(string, new StoredField("sstring", strings[i]));
+      }
+      writer.writeField(lng, new StoredField("slong", longs[i]));
+      writer.finishDocument();
+    }
+    writer.finish(fieldInfos, numDocs);
+    writer.close();
+
+    // the values are not written in the clear
+    for (String file : dir.listAll()) {
+      assertFalse(file, contains(dir, file, MARKER.getBytes("US-ASCII")));
+    }
+
+    SecureStoredFieldsReader reader = format.fieldsReader(dir, newSegmentInfo(dir, numDocs), fieldInfos, IOContext.DEFAULT);
+    // random order, to exercise the seek through the index
+    List<Integer> docs = new ArrayList<Integer>();
+    for (int i = 0; i < numDocs; i++) {
+      docs.add(i);
+    }
+    Collections.shuffle(docs, random());
+    for (int i : docs) {
+      DocumentStoredFieldVisitor visitor = new DocumentStoredFieldVisitor();
+      reader.visitDocument(i, visitor);
+      Document doc = visitor.getDocument();
+      assertEquals(i, doc.getField("id").numericValue().intValue());
+      assertEquals(i % 3 != 0 ? strings[i] : null, doc.get("sstring"));
+      assertEquals(longs[i], doc.getField("slong").numericValue().longValue());
+    }
+
+    // fields that are not needed are skipped
+    DocumentStoredFieldVisitor onlyLong = new DocumentStoredFieldVisitor("slong");
+    reader.visitDocument(1, onlyLong);
+    assertNull(onlyLong.getDocument().get("sstring"));
+    assertEquals(longs[1], onlyLong.getDocument().getField("slong").numericValue().longValue());
+
+    // still encrypted, and decrypted afterwards
+    EncryptedCollector collector = new EncryptedCollector();
+    reader.clone().visitDocument(2, collector);
+    assertEquals(2, collector.values.size());
+    DocumentStoredFieldVisitor decrypted = new DocumentStoredFieldVisitor();
+    for (EncryptedStoredValue value : collector.values) {
+      value.decrypt(SecureCipherUtil.getKey(value.getFieldInfo().name), decrypted);
+    }
+    assertEquals(strings[2], decrypted.getDocument().get("sstring"));
+    reader.close();
+    dir.close();
+  }
+
+  private static SegmentInfo newSegmentInfo(Directory dir, int numDocs) {
+    return new SegmentInfo(dir, Constants.LUCENE_MAIN_VERSION, "_0", numDocs, false, new Lucene46Codec(), null);
+  }
+
+  private static boolean contains(Directory dir, String file, byte[] pattern) throws Exception {
+    IndexInput in = dir.openInput(file, IOContext.READONCE);
+    try {
+      byte[] bytes = new byte[(int) in.length()];
+      in.readBytes(bytes, 0, bytes.length);
+      outer:
+      for (int i = 0; i + pattern.length <= bytes.length; i++) {
+        for (int j = 0; j < pattern.length; j++) {
+          if (bytes[i + j] != pattern[j]) {
+            continue outer;
+          }
+        }
+        return true;
+      }
+      return false;
+    } finally {
+      in.close();
+    }
+  }
+}
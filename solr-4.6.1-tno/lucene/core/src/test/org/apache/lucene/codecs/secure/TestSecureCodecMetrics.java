@@ -0,0 +1,127 @@
+package org.apache.lucene.codecs.secure;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import javax.crypto.KeyGenerator;
+
+import org.apache.lucene.analysis.MockAnalyzer;
+import org.apache.lucene.codecs.lucene46.Lucene46Codec;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.Field;
+import org.apache.lucene.document.FieldType;
+import org.apache.lucene.document.StringField;
+import org.apache.lucene.index.DirectoryReader;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.lucene.index.IndexWriterConfig;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.store.Directory;
+import org.apache.lucene.util.LuceneTestCase;
+
+/**
+ * Tests that the stages of the secure read path are recorded into the metrics of the
+ * thread and their parents
+ */
+public class TestSecureCodecMetrics extends LuceneTestCase {
+  private static final String FIELD = "secureMetricsField";
+
+  public void testRecord() {
+    SecureCodecMetrics parent = new SecureCodecMetrics();
+    SecureCodecMetrics child = new SecureCodecMetrics(parent);
+    SecureCodecMetrics previous = SecureCodecMetrics.setCurrent(child);
+    try {
+      SecureCodecMetrics.record(SecureCodecMetrics.Stage.DECRYPT, 1000);
+      SecureCodecMetrics.record(SecureCodecMetrics.Stage.DECRYPT, 3000);
+      SecureCodecMetrics.record(SecureCodecMetrics.Stage.DECRYPT, 1L << 20);
+    } finally {
+      SecureCodecMetrics.setCurrent(previous);
+    }
+    for (SecureCodecMetrics metrics : new SecureCodecMetrics[] {parent, child}) {
+      SecureCodecMetrics.Stats stats = metrics.getStats(SecureCodecMetrics.Stage.DECRYPT);
+      assertEquals(3, stats.count);
+      assertEquals(4000 + (1L << 20), stats.totalNanos);
+      assertEquals(1, stats.getBucketCount(9));
+      assertEquals(1, stats.getBucketCount(11));
+      assertEquals(1, stats.getBucketCount(20));
+      // within a factor of two
+      assertEquals(4095, stats.percentile(50));
+      assertEquals((1L << 21) - 1, stats.percentile(99));
+      assertEquals(0, metrics.getStats(SecureCodecMetrics.Stage.KEY_LOOKUP).count);
+    }
+    child.reset();
+    assertEquals(0, child.getStats(SecureCodecMetrics.Stage.DECRYPT).count);
+    assertEquals(0, child.getStats(SecureCodecMetrics.Stage.DECRYPT).percentile(99));
+    assertEquals(3, parent.getStats(SecureCodecMetrics.Stage.DECRYPT).count);
+  }
+
+  public void testSearchIsRecorded() throws Exception {
+    KeyGenerator kg = KeyGenerator.getInstance("AES");
+    kg.init(128);
+    SecureCipherUtil.addKey(FIELD, kg.generateKey());
+    SecureCodec savedCodec = SecureCodec.getDefault();
+    SecureCodec.setDefault(new SecureCipherCodec());
+    Directory dir = newDirectory();
+    try {
+      IndexWriterConfig iwc = newIndexWriterConfig(TEST_VERSION_CURRENT, new MockAnalyzer(random()));
+      iwc.setCodec(new Lucene46Codec());
+      IndexWriter iw = new IndexWriter(dir, iwc);
+      FieldType ft = new FieldType(StringField.TYPE_STORED);
+      ft.setEncrypted(true);
+      ft.freeze();
+      for (int i = 0; i < 100; i++) {
+        Document doc = new Document();
+        doc.add(new Field(FIELD, "value" + (i % 10), ft));
+        iw.addDocument(doc);
+      }
+      iw.close();
+
+      DirectoryReader r = DirectoryReader.open(dir);
+      IndexSearcher searcher = new IndexSearcher(r);
+      SecureCodecMetrics metrics = new SecureCodecMetrics();
+      SecureCodecMetrics previous = SecureCodecMetrics.setCurrent(metrics);
+      try {
+        assertEquals(10, searcher.search(new TermQuery(new Term(FIELD, "value3")), 10).totalHits);
+        assertEquals("value3", searcher.doc(searcher.search(new TermQuery(new Term(FIELD, "value3")), 1).scoreDocs[0].doc).get(FIELD));
+      } finally {
+        SecureCodecMetrics.setCurrent(previous);
+      }
+      assertTrue(metrics.getStats(SecureCodecMetrics.Stage.KEY_LOOKUP).count > 0);
+      assertTrue(metrics.getStats(SecureCodecMetrics.Stage.CIPHERTEXT_READ).count > 0);
+      assertTrue(metrics.getStats(SecureCodecMetrics.Stage.DECRYPT).count > 0);
+      assertEquals(1, metrics.getStats(SecureCodecMetrics.Stage.STORED_FIELD_DECRYPT).count);
+
+      // nothing is recorded while turned off
+      SecureCodecMetrics.setEnabled(false);
+      SecureCodecMetrics.setCurrent(metrics);
+      try {
+        metrics.reset();
+        searcher.search(new TermQuery(new Term(FIELD, "value4")), 10);
+      } finally {
+        SecureCodecMetrics.setCurrent(previous);
+        SecureCodecMetrics.setEnabled(true);
+      }
+      assertEquals(0, metrics.getStats(SecureCodecMetrics.Stage.DECRYPT).count);
+      r.close();
+      dir.close();
+    } finally {
+      SecureCodec.setDefault(savedCodec);
+      SecureCipherUtil.deleteKey(FIELD);
+    }
+  }
+}
@@ -0,0 +1,244 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.solr.core;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import javax.crypto.SecretKey;
+
+import org.apache.lucene.codecs.secure.SecureCipherUtil;
+import org.apache.lucene.search.Query;
+import org.apache.solr.common.params.CommonParams;
+import org.apache.solr.common.params.EventParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.request.LocalSolrQueryRequest;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.request.SolrRequestInfo;
+import org.apache.solr.response.ResultContext;
+import org.apache.solr.response.SolrQueryResponse;
+import org.apache.solr.schema.IndexSchema;
+import org.apache.solr.search.DocIterator;
+import org.apache.solr.search.DocList;
+import org.apache.solr.search.KeyScopedQuery;
+import org.apache.solr.search.SolrIndexSearcher;
+
+/**
+ * Warms new searchers of a core with encrypted fields, using keys that are only ever
+ * held in memory.
+ * <p>
+ * The warming queries of solrconfig.xml run without keys, so they do nothing useful for
+ * encrypted fields, and key material must not be written to the configuration. Instead,
+ * a trusted caller in the same JVM registers warming queries at runtime together with the
+ * keys they need, see {@link SolrCore#getEncryptedFieldWarmer()}. On every new searcher,
+ * and on the first one, each registered query is run with its keys, like
+ * {@link QuerySenderListener} runs the configured ones: this decrypts the postings pages
+ * of its encrypted terms into the page cache, and fills the key scoped filterCache,
+ * queryResultCache and documentCache entries and the facet counts of encrypted fields
+ * for those keys.
+ * <p>
+ * Autowarming uses the registered keys too: an entry of the old searcher scoped by the
+ * keys of encrypted fields (see {@link KeyScopedQuery}) is regenerated with the keys of
+ * the first registered query that produces the same scope, and dropped if there is none,
+ * as it could not be computed again.
+ * <p>
+ * A warming query sees its keys through {@link SecureCipherUtil#setThreadKeys}: only on the
+ * thread that runs it, and on the threads it hands work to, in place of the registered
+ * keys. The keys registered with {@link SecureCipherUtil} are never changed, so requests
+ * running meanwhile keep decrypting, and scoping their cache entries, with the keys they
+ * see, and nothing that was decrypted or cached for them is evicted. The entries the
+ * warming queries fill are scoped by their keys, and are used by requests that pass the
+ * same keys. Registrations are never persisted, and are lost when the core is reloaded
+ * or closed.
+ */
+public class EncryptedFieldWarmer implements SolrEventListener {
+  private final SolrCore core;
+
+  /** A registered warming query and the keys it runs with */
+  private static final class Entry {
+    final NamedList<Object> params;
+    final Map<String,SecretKey> keys;
+
+    Entry(NamedList<Object> params, Map<String,SecretKey> keys) {
+      this.params = params;
+      this.keys = keys;
+    }
+  }
+
+  private final Map<String,Entry> entries = new LinkedHashMap<String,Entry>();
+
+  /** Runs the regeneration of a cache entry, see {@link #regenerate} */
+  public interface Regeneration {
+    void run() throws IOException;
+  }
+
+  public EncryptedFieldWarmer(SolrCore core) {
+    this.core = core;
+  }
+
+  /**
+   * Registers a warming query under <code>name</code>, replacing the one registered under
+   * that name before if any. <code>params</code> are the request parameters, as in the
+   * <code>queries</code> of a {@link QuerySenderListener}, and <code>keys</code> the keys
+   * of the encrypted fields it needs, by field name.
+   */
+  public void register(String name, NamedList<Object> params, Map<String,SecretKey> keys) {
+    if (name == null || params == null || keys == null) {
+      throw new IllegalArgumentException("name, params and keys are required");
+    }
+    for (Map.Entry<String,SecretKey> key : keys.entrySet()) {
+      if (key.getKey() == null || key.getValue() == null) {
+        throw new IllegalArgumentException("missing field or key in warming query " + name);
+      }
+    }
+    final Entry entry = new Entry(params.clone(),
+        Collections.unmodifiableMap(new HashMap<String,SecretKey>(keys)));
+    synchronized (entries) {
+      entries.put(name, entry);
+    }
+  }
+
+  /** Removes the warming query registered under <code>name</code>; returns false if there is none */
+  public boolean unregister(String name) {
+    synchronized (entries) {
+      return entries.remove(name) != null;
+    }
+  }
+
+  /** Removes all warming queries */
+  public void clear() {
+    synchronized (entries) {
+      entries.clear();
+    }
+  }
+
+  /** Returns the names of the registered warming queries */
+  public Set<String> getNames() {
+    synchronized (entries) {
+      return new TreeSet<String>(entries.keySet());
+    }
+  }
+
+  private List<Map.Entry<String,Entry>> snapshot() {
+    synchronized (entries) {
+      return new ArrayList<Map.Entry<String,Entry>>(entries.entrySet());
+    }
+  }
+
+  /**
+   * Runs <code>regeneration</code> of the entry cached under <code>key</code>, restricted
+   * by <code>filters</code>, with the keys of the first registered query that scope it the
+   * same way. Returns false, without running it, if no registered query does.
+   */
+  public boolean regenerate(KeyScopedQuery key, List<Query> filters, IndexSchema schema, Regeneration regeneration) throws IOException {
+    for (Map.Entry<String,Entry> e : snapshot()) {
+      final Entry entry = e.getValue();
+      if (key.isScopedBy(entry.keys, filters, schema)) {
+        final Map<String,SecretKey> previous = SecureCipherUtil.setThreadKeys(entry.keys);
+        try {
+          regeneration.run();
+        } finally {
+          SecureCipherUtil.setThreadKeys(previous);
+        }
+        return true;
+      }
+    }
+    return false;
+  }
+
+  @Override
+  public void init(NamedList args) {
+  }
+
+  @Override
+  public void postCommit() {
+  }
+
+  @Override
+  public void postSoftCommit() {
+  }
+
+  @Override
+  public void newSearcher(SolrIndexSearcher newSearcher, SolrIndexSearcher currentSearcher) {
+    final List<Map.Entry<String,Entry>> warming = snapshot();
+    if (warming.isEmpty()) {
+      return;
+    }
+    log.info("EncryptedFieldWarmer sending " + warming.size() + " requests to " + newSearcher);
+    for (Map.Entry<String,Entry> e : warming) {
+      final Map<String,SecretKey> previous = SecureCipherUtil.setThreadKeys(e.getValue().keys);
+      try {
+        warm(newSearcher, currentSearcher, e.getValue().params);
+      } catch (Exception ex) {
+        // the keys are left out of the message; continue with the other requests
+        log.warn("EncryptedFieldWarmer: warming query " + e.getKey() + " failed", ex);
+      } finally {
+        SecureCipherUtil.setThreadKeys(previous);
+      }
+    }
+    log.info("EncryptedFieldWarmer done.");
+  }
+
+  private void warm(final SolrIndexSearcher newSearcher, SolrIndexSearcher currentSearcher, NamedList<Object> nlst) throws IOException {
+    final NamedList<Object> params = new NamedList<Object>();
+    params.addAll(nlst);
+    params.add(EventParams.EVENT, currentSearcher == null ? EventParams.FIRST_SEARCHER : EventParams.NEW_SEARCHER);
+    if (params.get("distrib") == null) {
+      params.add("distrib", false);
+    }
+    SolrQueryRequest req = new LocalSolrQueryRequest(core, params) {
+      @Override public SolrIndexSearcher getSearcher() { return newSearcher; }
+      @Override public void close() { }
+    };
+    try {
+      SolrQueryResponse rsp = new SolrQueryResponse();
+      SolrRequestInfo.setRequestInfo(new SolrRequestInfo(req, rsp));
+      core.execute(core.getRequestHandler(req.getParams().get(CommonParams.QT)), req, rsp);
+
+      // load the documents too, for the documentCache
+      NamedList values = rsp.getValues();
+      for (int i = 0; i < values.size(); i++) {
+        Object o = values.getVal(i);
+        if (o instanceof ResultContext) {
+          o = ((ResultContext) o).docs;
+        }
+        if (o instanceof DocList) {
+          for (DocIterator iter = ((DocList) o).iterator(); iter.hasNext();) {
+            newSearcher.doc(iter.nextDoc());
+          }
+        }
+      }
+    } finally {
+      req.close();
+      SolrRequestInfo.clearRequestInfo();
+    }
+  }
+
+  @Override
+  public String toString() {
+    // the keys are left out
+    return getClass().getName() + getNames();
+  }
+}
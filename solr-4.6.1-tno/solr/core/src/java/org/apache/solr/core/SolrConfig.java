@@ -39,6 +39,7 @@ import org.apache.solr.update.processor.UpdateRequestProcessorChain;
 import org.apache.solr.spelling.QueryConverter;
 import org.apache.lucene.search.BooleanQuery;
 import org.apache.lucene.index.IndexDeletionPolicy;
+import org.apache.lucene.codecs.secure.SecureCipherPageCache;
 import org.apache.lucene.util.Version;
 
 import org.slf4j.Logger;
@@ -185,6 +186,10 @@ public class SolrConfig extends Config {
     queryResultWindowSize = Math.max(1, getInt("query/queryResultWindowSize", 1));
     queryResultMaxDocsCached = getInt("query/queryResultMaxDocsCached", Integer.MAX_VALUE);
     enableLazyFieldLoading = getBool("query/enableLazyFieldLoading", false);
+    keyScopedCaching = getBool("query/keyScopedCaching", false);
+    secureCipherPageCacheMaxSizeMB = getInt("query/secureCipherPageCache/@maxSizeMB", 0);
+    secureCipherPageCacheSegments = getInt("query/secureCipherPageCache/@segments", SecureCipherPageCache.DEFAULT_SEGMENTS);
+    encryptedTermPrefetchThreads = getInt("query/encryptedTermPrefetch/@threads", 0);
 
     
     filterCacheConfig = CacheConfig.getConfig(this, "query/filterCache");
@@ -342,6 +347,13 @@ public class SolrConfig extends Config {
   public final int queryResultWindowSize;
   public final int queryResultMaxDocsCached;
   public final boolean enableLazyFieldLoading;
+  // TNO: enables the filterCache and queryResultCache on schemas with encrypted fields
+  public final boolean keyScopedCaching;
+  // off-heap cache of decrypted postings pages, JVM wide; 0 if not configured
+  public final int secureCipherPageCacheMaxSizeMB;
+  public final int secureCipherPageCacheSegments;
+  // TNO: threads decrypting the postings of encrypted terms ahead of the search; 0 if disabled
+  public final int encryptedTermPrefetchThreads;
   public final boolean nrtMode;
   // DocSet
   public final float hashSetInverseLoadFactor;
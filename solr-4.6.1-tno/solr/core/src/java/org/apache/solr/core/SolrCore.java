@@ -19,6 +19,8 @@ package org.apache.solr.core;
 
 import org.apache.commons.io.IOUtils;
 import org.apache.lucene.codecs.Codec;
+import org.apache.lucene.codecs.secure.SecureCipherPrefetcher;
+import org.apache.lucene.codecs.secure.SecureCodecMetrics;
 import org.apache.lucene.index.AtomicReaderContext;
 import org.apache.lucene.index.DirectoryReader;
 import org.apache.lucene.index.IndexDeletionPolicy;
@@ -69,6 +71,8 @@ import org.apache.solr.schema.IndexSchemaFactory;
 import org.apache.solr.schema.SimilarityFactory;
 import org.apache.solr.search.QParserPlugin;
 import org.apache.solr.search.SolrFieldCacheMBean;
+import org.apache.solr.search.SolrSecureCipherPageCacheMBean;
+import org.apache.solr.search.SolrSecureCodecMetricsMBean;
 import org.apache.solr.search.SolrIndexSearcher;
 import org.apache.solr.search.ValueSourceParser;
 import org.apache.solr.update.DefaultSolrCoreState;
@@ -196,6 +200,21 @@ public final class SolrCore implements SolrInfoMBean {
     return solrConfig.getResourceName();
   }
 
+  /** Returns the warmer that runs the warming queries registered with their keys, see {@link EncryptedFieldWarmer} */
+  public EncryptedFieldWarmer getEncryptedFieldWarmer() {
+    return encryptedFieldWarmer;
+  }
+
+  /** Returns the metrics of the secure codec read path of the requests of this core */
+  public SecureCodecMetrics getSecureCodecMetrics() {
+    return secureCodecMetrics;
+  }
+
+  /** Returns the prefetcher of encrypted terms shared by the searchers of this core, or null if disabled */
+  public SecureCipherPrefetcher getEncryptedTermPrefetcher() {
+    return encryptedTermPrefetcher;
+  }
+
   /**
    * Gets the configuration object used by this core instance.
    */
@@ -646,6 +665,7 @@ public final class SolrCore implements SolrInfoMBean {
     this.updateProcessorChains = null;
     this.infoRegistry = null;
     this.codec = null;
+    this.encryptedTermPrefetcher = null;
 
     solrCoreState = null;
   }
@@ -713,6 +733,21 @@ public final class SolrCore implements SolrInfoMBean {
     }
 
     infoRegistry.put("fieldCache", new SolrFieldCacheMBean());
+    if (config.secureCipherPageCacheMaxSizeMB > 0) {
+      SolrSecureCipherPageCacheMBean.ensureCache(config.secureCipherPageCacheMaxSizeMB * 1024L * 1024L,
+          config.secureCipherPageCacheSegments);
+    }
+    infoRegistry.put("secureCipherPageCache", new SolrSecureCipherPageCacheMBean());
+    infoRegistry.put("secureCodecMetrics", new SolrSecureCodecMetricsMBean(secureCodecMetrics));
+    if (config.encryptedTermPrefetchThreads > 0) {
+      if (config.secureCipherPageCacheMaxSizeMB <= 0) {
+        log.warn("encryptedTermPrefetch has no effect without a secureCipherPageCache");
+      }
+      encryptedTermPrefetcher = new SecureCipherPrefetcher(config.encryptedTermPrefetchThreads,
+          new DefaultSolrThreadFactory("encryptedTermPrefetch"));
+    } else {
+      encryptedTermPrefetcher = null;
+    }
 
     if (schema==null) {
       schema = IndexSchemaFactory.buildIndexSchema(IndexSchema.DEFAULT_SCHEMA_FILE, config);
@@ -735,6 +770,9 @@ public final class SolrCore implements SolrInfoMBean {
     try {
       
       initListeners();
+      // TNO: after the configured listeners, so the keyless warming queries go first
+      firstSearcherListeners.add(encryptedFieldWarmer);
+      newSearcherListeners.add(encryptedFieldWarmer);
       
       if (delPolicy == null) {
         initDeletionPolicy();
@@ -1027,6 +1065,11 @@ public final class SolrCore implements SolrInfoMBean {
       SolrException.log(log, e);
     }
 
+    if (encryptedTermPrefetcher != null) {
+      encryptedTermPrefetcher.close();
+    }
+    encryptedFieldWarmer.clear();
+
     try {
       // Since we waited for the searcherExecutor to shut down,
       // there should be no more searchers warming in the background
@@ -1260,6 +1303,12 @@ public final class SolrCore implements SolrInfoMBean {
 
   final ExecutorService searcherExecutor = Executors.newSingleThreadExecutor(
       new DefaultSolrThreadFactory("searcherExecutor"));
+  // TNO: shared by the searchers of this core, null if disabled
+  private final SecureCipherPrefetcher encryptedTermPrefetcher;
+  // TNO: warming queries registered at runtime together with their keys, never persisted
+  private final EncryptedFieldWarmer encryptedFieldWarmer = new EncryptedFieldWarmer(this);
+  // TNO: the secure codec stages of the requests of this core
+  private final SecureCodecMetrics secureCodecMetrics = new SecureCodecMetrics();
   private int onDeckSearchers;  // number of searchers preparing
   // Lock ordering: one can acquire the openSearcherLock and then the searcherLock, but not vice-versa.
   private Object searcherLock = new Object();  // the sync object for the searcher
@@ -1856,7 +1905,13 @@ public final class SolrCore implements SolrInfoMBean {
     // if (req.getParams().getBool(ShardParams.IS_SHARD,false) && !(handler instanceof SearchHandler))
     //   throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,"isShard is only acceptable with search handlers");
 
-    handler.handleRequest(req,rsp);
+    // the secure codec stages of the request count for this core
+    SecureCodecMetrics previousMetrics = SecureCodecMetrics.setCurrent(secureCodecMetrics);
+    try {
+      handler.handleRequest(req,rsp);
+    } finally {
+      SecureCodecMetrics.setCurrent(previousMetrics);
+    }
 
     postDecorateResponse(handler, req, rsp);
 
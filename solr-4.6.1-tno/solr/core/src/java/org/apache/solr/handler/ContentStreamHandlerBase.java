@@ -18,6 +18,8 @@ package org.apache.solr.handler;
 
 //TNO
 import org.apache.lucene.codecs.secure.SecureCipherUtil;
+import org.apache.lucene.index.IndexWriter;
+import org.apache.solr.util.RefCounted;
 
 import org.apache.solr.common.SolrException;
 import org.apache.solr.common.params.SolrParams;
@@ -60,6 +62,15 @@ public abstract class ContentStreamHandlerBase extends RequestHandlerBase {
   // TNO
   private static SecretKey collectionKey = null;
 
+  /**
+   * Request parameter that rotates the collection key before the request is handled.
+   * Segments written under the previous key stay searchable, and are rewritten in the
+   * background if the index is configured with
+   * {@link org.apache.lucene.index.SecureKeyRotationMergePolicy}; the
+   * <code>maxWriteMBPerSecMerge</code> of the directory factory throttles them.
+   */
+  public static final String ROTATE_KEY = "rotateKey";
+
   @Override
   public void handleRequestBody(SolrQueryRequest req, SolrQueryResponse rsp) throws Exception {
     SolrParams params = req.getParams();
@@ -77,6 +88,9 @@ public abstract class ContentStreamHandlerBase extends RequestHandlerBase {
       } catch (Exception ex) { }
       if (collectionKey == null) collectionKey = SecureCipherUtil.generateKey();
       SecureCipherUtil.addKey(collectionKey);
+      if (params.getBool(ROTATE_KEY, false)) {
+        rotateKey(req, rsp);
+      }
 
       Iterable<ContentStream> streams = req.getContentStreams();
       if (streams == null) {
@@ -103,5 +117,20 @@ public abstract class ContentStreamHandlerBase extends RequestHandlerBase {
     }
   }
 
+  // TNO
+  private static void rotateKey(SolrQueryRequest req, SolrQueryResponse rsp) throws Exception {
+    final int generation = SecureCipherUtil.rotateKey();
+    collectionKey = SecureCipherUtil.getKey();
+    log.info("Rotated the collection key to generation " + generation);
+    rsp.add("keyGeneration", generation);
+    // let the merge policy start on the segments of the older generations
+    final RefCounted<IndexWriter> iw = req.getCore().getSolrCoreState().getIndexWriter(req.getCore());
+    try {
+      iw.get().maybeMerge();
+    } finally {
+      iw.decref();
+    }
+  }
+
   protected abstract ContentStreamLoader newLoader(SolrQueryRequest req, UpdateRequestProcessor processor);
 }
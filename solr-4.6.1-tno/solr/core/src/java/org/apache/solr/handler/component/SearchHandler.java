@@ -21,7 +21,9 @@ import org.apache.solr.common.SolrException;
 import org.apache.solr.common.params.CommonParams;
 import org.apache.solr.common.params.ModifiableSolrParams;
 import org.apache.solr.common.params.ShardParams;
+import org.apache.solr.common.util.NamedList;
 import org.apache.solr.util.RTimer;
+import org.apache.solr.search.SolrSecureCodecMetricsMBean;
 import org.apache.solr.core.CloseHook;
 import org.apache.solr.core.PluginInfo;
 import org.apache.solr.core.SolrCore;
@@ -31,6 +33,7 @@ import org.apache.solr.response.SolrQueryResponse;
 import org.apache.solr.util.SolrPluginUtils;
 import org.apache.solr.util.plugin.PluginInfoInitialized;
 import org.apache.solr.util.plugin.SolrCoreAware;
+import org.apache.lucene.codecs.secure.SecureCodecMetrics;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -181,6 +184,16 @@ public class SearchHandler extends RequestHandlerBase implements SolrCoreAware ,
     ShardHandler shardHandler1 = shardHandlerFactory.getShardHandler();
     shardHandler1.checkDistributed(rb);
 
+    // the secure codec stages of this request, for the timing debug info; they count for
+    // the core as well. On errors, SolrCore.execute restores the metrics of the thread.
+    SecureCodecMetrics codecMetrics = null;
+    SecureCodecMetrics previousMetrics = null;
+    if (timer != null && rb.isDebugTimings() && !rb.isDistrib) {
+      previousMetrics = SecureCodecMetrics.getCurrent();
+      codecMetrics = new SecureCodecMetrics(previousMetrics != null ? previousMetrics : SecureCodecMetrics.getGlobal());
+      SecureCodecMetrics.setCurrent(codecMetrics);
+    }
+
     if (timer == null) {
       // non-debugging prepare phase
       for( SearchComponent c : components ) {
@@ -218,10 +231,17 @@ public class SearchHandler extends RequestHandlerBase implements SolrCoreAware ,
         }
         subt.stop();
         timer.stop();
+        if (codecMetrics != null) {
+          SecureCodecMetrics.setCurrent(previousMetrics);
+        }
 
         // add the timing info
         if (rb.isDebugTimings()) {
-          rb.addDebugInfo("timing", timer.asNamedList() );
+          NamedList<Object> timing = timer.asNamedList();
+          if (codecMetrics != null) {
+            timing.add("secureCodec", SolrSecureCodecMetricsMBean.toNamedList(codecMetrics, false));
+          }
+          rb.addDebugInfo("timing", timing);
         }
       }
 
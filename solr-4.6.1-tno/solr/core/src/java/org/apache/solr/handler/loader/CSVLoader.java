@@ -19,6 +19,7 @@ package org.apache.solr.handler.loader;
 
 import org.apache.solr.request.SolrQueryRequest;
 import org.apache.solr.response.SolrQueryResponse;
+import org.apache.solr.common.SolrException;
 import org.apache.solr.common.SolrInputDocument;
 import org.apache.solr.common.util.ContentStream;
 import org.apache.solr.update.processor.UpdateRequestProcessor;
@@ -28,7 +29,14 @@ public class CSVLoader extends ContentStreamLoader {
   @Override
   public void load(SolrQueryRequest req, SolrQueryResponse rsp,
       ContentStream stream, UpdateRequestProcessor processor) throws Exception {
-    new SingleThreadedCSVLoader(req,processor).load(req, rsp, stream, processor);
+    int threads = req.getParams().getInt(CSVLoaderBase.THREADS, 1);
+    if (threads < 1) {
+      throw new SolrException(SolrException.ErrorCode.BAD_REQUEST, "CSVLoader: threads must be >= 1, got " + threads);
+    }
+    CSVLoaderBase loader = threads > 1
+        ? new PipelinedCSVLoader(req, processor, threads)
+        : new SingleThreadedCSVLoader(req, processor);
+    loader.load(req, rsp, stream, processor);
   }
 }
 
@@ -55,6 +55,7 @@ abstract class CSVLoaderBase extends ContentStreamLoader {
   public static final String LITERALS_PREFIX = "literal.";
   public static final String ROW_ID = "rowid";
   public static final String ROW_ID_OFFSET = "rowidOffset";
+  public static final String THREADS = "threads";
 
   private static Pattern colonSplit = Pattern.compile(":");
   private static Pattern commaSplit = Pattern.compile(",");
@@ -345,24 +346,7 @@ abstract class CSVLoaderBase extends ContentStreamLoader {
         prepareFields();
       }
 
-      // read the rest of the CSV file
-      for(;;) {
-        int line = parser.getLineNumber();  // for error reporting in MT mode
-        String[] vals = null;
-        try {
-          vals = parser.getLine();
-        } catch (IOException e) {
-          //Catch the exception and rethrow it with more line information
-         input_err("can't read line: " + line, null, line, e);
-        }
-        if (vals==null) break;
-
-        if (vals.length != fieldnames.length) {
-          input_err("expected "+fieldnames.length+" values but got "+vals.length, vals, line);
-        }
-
-        addDoc(line,vals);
-      }
+      readLines(parser);
     } finally{
       if (reader != null) {
         IOUtils.closeQuietly(reader);
@@ -370,11 +354,40 @@ abstract class CSVLoaderBase extends ContentStreamLoader {
     }
   }
 
+  /** read the lines after the header, and call addDoc for each of them in order */
+  void readLines(CSVParser parser) throws IOException {
+    // read the rest of the CSV file
+    for(;;) {
+      int line = parser.getLineNumber();  // for error reporting in MT mode
+      String[] vals = null;
+      try {
+        vals = parser.getLine();
+      } catch (IOException e) {
+        //Catch the exception and rethrow it with more line information
+       input_err("can't read line: " + line, null, line, e);
+      }
+      if (vals==null) break;
+
+      if (vals.length != fieldnames.length) {
+        input_err("expected "+fieldnames.length+" values but got "+vals.length, vals, line);
+      }
+
+      addDoc(line,vals);
+    }
+  }
+
   /** called for each line of values (document) */
   abstract void addDoc(int line, String[] vals) throws IOException;
 
-  /** this must be MT safe... may be called concurrently from multiple threads. */
+  /** build the document of a line, and add it through the processor */
   void doAdd(int line, String[] vals, SolrInputDocument doc, AddUpdateCommand template) throws IOException {
+    buildDoc(line, vals, doc);
+    template.solrDoc = doc;
+    processor.processAdd(template);
+  }
+
+  /** this must be MT safe... may be called concurrently from multiple threads. */
+  void buildDoc(int line, String[] vals, SolrInputDocument doc) {
     // the line number is passed for error reporting in MT mode as well as for optional rowId.
     // first, create the lucene document
     for (int i=0; i<vals.length; i++) {
@@ -391,7 +404,5 @@ abstract class CSVLoaderBase extends ContentStreamLoader {
     if (rowId != null){
       doc.addField(rowId, line + rowIdOffset);
     }
-    template.solrDoc = doc;
-    processor.processAdd(template);
   }
 }
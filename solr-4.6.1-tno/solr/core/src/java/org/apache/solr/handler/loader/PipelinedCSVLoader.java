@@ -0,0 +1,234 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.handler.loader;
+
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.common.SolrException;
+import org.apache.solr.common.SolrInputDocument;
+import org.apache.solr.internal.csv.CSVParser;
+import org.apache.solr.update.processor.UpdateRequestProcessor;
+import org.apache.solr.util.DefaultSolrThreadFactory;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Loads CSV in a pipeline, for <code>threads</code> &gt; 1: a reader thread parses the
+ * lines, a pool of <code>threads</code> workers (at most one per processor) turns batches
+ * of lines into documents, and the request thread hands the documents to the update
+ * processor chain in the order of the input.
+ * <p>
+ * Documents are therefore added exactly as by {@link SingleThreadedCSVLoader}: with the
+ * same rowid, in the same order, and an error stops the load after all documents of the
+ * lines before it were added, with the same message and line number. The processor
+ * chain is only ever called from the request thread.
+ */
+class PipelinedCSVLoader extends CSVLoaderBase {
+  /** Number of lines a worker turns into documents at once */
+  static final int BATCH_SIZE = 100;
+
+  private static final Future<Batch> END = new FutureTask<Batch>(new Runnable() {
+    @Override
+    public void run() {
+    }
+  }, null);
+
+  /** The documents built from a batch of lines, up to the line that failed if any */
+  private static final class Batch {
+    final SolrInputDocument[] docs;
+    final int size;
+    final Throwable error;
+
+    Batch(SolrInputDocument[] docs, int size, Throwable error) {
+      this.docs = docs;
+      this.size = size;
+      this.error = error;
+    }
+  }
+
+  private final int threads;
+  private ExecutorService workers;
+  // the batches of documents, in the order of the input; bounds the lines read ahead
+  private BlockingQueue<Future<Batch>> batches;
+  private volatile boolean cancelled;
+
+  // the batch being read, only used by the reader thread
+  private int[] batchLines;
+  private String[][] batchVals;
+  private int batchSize;
+
+  PipelinedCSVLoader(SolrQueryRequest req, UpdateRequestProcessor processor, int threads) {
+    super(req, processor);
+    // more workers than processors convert no faster, each one holds batches of lines
+    this.threads = Math.min(threads, Runtime.getRuntime().availableProcessors());
+  }
+
+  @Override
+  void readLines(final CSVParser parser) throws IOException {
+    workers = Executors.newFixedThreadPool(threads, new DefaultSolrThreadFactory("csvLoader"));
+    batches = new ArrayBlockingQueue<Future<Batch>>(2 * threads);
+    newBatch();
+    ExecutorService reader = Executors.newSingleThreadExecutor(new DefaultSolrThreadFactory("csvReader"));
+    try {
+      reader.execute(new Runnable() {
+        @Override
+        public void run() {
+          read(parser);
+        }
+      });
+
+      for (;;) {
+        Future<Batch> future = batches.take();
+        if (future == END) break;
+        Batch batch = get(future);
+        for (int i = 0; i < batch.size; i++) {
+          templateAdd.clear();
+          templateAdd.solrDoc = batch.docs[i];
+          processor.processAdd(templateAdd);
+        }
+        if (batch.error != null) {
+          rethrow(batch.error);
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException(errHeader + " interrupted");
+    } finally {
+      // on errors, stop the reader before the input is closed
+      cancelled = true;
+      reader.shutdownNow();
+      workers.shutdownNow();
+      try {
+        reader.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    }
+  }
+
+  /** Parses the input on the reader thread, and queues its batches, an error or the end */
+  private void read(CSVParser parser) {
+    try {
+      super.readLines(parser);
+      if (batchSize > 0) {
+        submitBatch();
+      }
+      batches.put(END);
+    } catch (InterruptedException e) {
+      // cancelled
+    } catch (Throwable t) {
+      if (!cancelled) {
+        try {
+          // the lines before the failed one are added first, as on a single thread
+          if (batchSize > 0) {
+            submitBatch();
+          }
+          batches.put(failed(t));
+        } catch (InterruptedException e) {
+          // cancelled
+        }
+      }
+    }
+  }
+
+  @Override
+  void addDoc(int line, String[] vals) throws IOException {
+    if (cancelled) {
+      throw new InterruptedIOException(errHeader + " cancelled");
+    }
+    batchLines[batchSize] = line;
+    batchVals[batchSize] = vals;
+    if (++batchSize == BATCH_SIZE) {
+      try {
+        submitBatch();
+      } catch (InterruptedException e) {
+        throw new InterruptedIOException(errHeader + " cancelled");
+      }
+      newBatch();
+    }
+  }
+
+  private void newBatch() {
+    batchLines = new int[BATCH_SIZE];
+    batchVals = new String[BATCH_SIZE][];
+    batchSize = 0;
+  }
+
+  private void submitBatch() throws InterruptedException {
+    final int[] lines = batchLines;
+    final String[][] vals = batchVals;
+    final int size = batchSize;
+    batches.put(workers.submit(new Callable<Batch>() {
+      @Override
+      public Batch call() {
+        SolrInputDocument[] docs = new SolrInputDocument[size];
+        for (int i = 0; i < size; i++) {
+          docs[i] = new SolrInputDocument();
+          try {
+            buildDoc(lines[i], vals[i], docs[i]);
+          } catch (Throwable t) {
+            // the documents before it are still added
+            return new Batch(docs, i, t);
+          }
+        }
+        return new Batch(docs, size, null);
+      }
+    }));
+  }
+
+  /** A batch that fails with <code>t</code>, to report an error after the batches before it */
+  private static Future<Batch> failed(Throwable t) {
+    FutureTask<Batch> future = new FutureTask<Batch>(new Runnable() {
+      @Override
+      public void run() {
+      }
+    }, new Batch(new SolrInputDocument[0], 0, t));
+    future.run();
+    return future;
+  }
+
+  /** Waits for a batch */
+  private Batch get(Future<Batch> batch) throws IOException, InterruptedException {
+    try {
+      return batch.get();
+    } catch (ExecutionException e) {
+      rethrow(e.getCause());
+      return null;
+    }
+  }
+
+  /** Rethrows the error of a batch as it was thrown */
+  private void rethrow(Throwable t) throws IOException {
+    if (t instanceof IOException) {
+      throw (IOException) t;
+    } else if (t instanceof RuntimeException) {
+      throw (RuntimeException) t;
+    } else if (t instanceof Error) {
+      throw (Error) t;
+    }
+    throw new SolrException(SolrException.ErrorCode.SERVER_ERROR, errHeader, t);
+  }
+}
@@ -0,0 +1,406 @@
+package org.apache.solr.request;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.crypto.SecretKey;
+
+import org.apache.lucene.codecs.secure.SecureCipherUtil;
+import org.apache.lucene.index.AtomicReader;
+import org.apache.lucene.index.AtomicReaderContext;
+import org.apache.lucene.index.DocsEnum;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.SegmentReader;
+import org.apache.lucene.index.Terms;
+import org.apache.lucene.index.TermsEnum;
+import org.apache.lucene.search.DocIdSet;
+import org.apache.lucene.search.DocIdSetIterator;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.util.ArrayUtil;
+import org.apache.lucene.util.BytesRef;
+import org.apache.lucene.util.CharsRef;
+import org.apache.lucene.util.UnicodeUtil;
+import org.apache.solr.common.params.FacetParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.schema.FieldType;
+import org.apache.solr.schema.SchemaField;
+import org.apache.solr.search.DocSet;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.util.BoundedTreeSet;
+
+/**
+ * Computes term facets for encrypted fields, which can not use the FieldCache.
+ * <p>
+ * The enum method would intersect the decrypted postings of every term with the base
+ * docset, so every request decrypts the whole field again. Instead, the first request
+ * un-inverts the field of each segment into doc -&gt; ordinals arrays, decrypting its
+ * postings once, and later requests count from those arrays. Per-segment counts are
+ * then merged in term order, much like PerSegmentSingleValuedFaceting does.
+ * <p>
+ * {@link SimpleFacets} counts encrypted fields here whatever the facet.method, unless it
+ * resolves to enum, e.g. <code>facet.method=enum</code>: fc and fcs would put the decrypted
+ * terms in the FieldCache, which is not scoped by key.
+ * <p>
+ * Un-inverted segments are keyed by segment core, field and key, so they are shared by
+ * all searchers that have the segment open. They are dropped when the segment is closed
+ * and when the key of the field is removed or replaced, so the decrypted terms are not
+ * held longer than the key itself.
+ */
+public class EncryptedFieldFacets {
+  private EncryptedFieldFacets() {}
+
+  private static final ConcurrentHashMap<CacheKey,SegmentOrds> cache = new ConcurrentHashMap<CacheKey,SegmentOrds>();
+  // segment cores whose close already evicts their entries
+  private static final ConcurrentHashMap<Object,Boolean> listenedCores = new ConcurrentHashMap<Object,Boolean>();
+
+  static {
+    SecureCipherUtil.addKeyChangeListener(new SecureCipherUtil.KeyChangeListener() {
+      @Override
+      public void keyChanged(String field) {
+        evictField(field);
+      }
+    });
+  }
+
+  /** Returns true if the facets of <code>sf</code> can be counted by this class */
+  public static boolean canCount(SchemaField sf) {
+    return sf.encrypted() && sf.indexed() && !sf.hasDocValues() && SecureCipherUtil.getKey(sf.getName()) != null;
+  }
+
+  public static NamedList<Integer> getCounts(SolrIndexSearcher searcher, DocSet docs, String fieldName, int offset, int limit, int mincount, boolean missing, String sort, String prefix) throws IOException {
+    SchemaField schemaField = searcher.getSchema().getField(fieldName);
+    FieldType ft = schemaField.getType();
+    NamedList<Integer> res = new NamedList<Integer>();
+
+    final SecretKey key = SecureCipherUtil.getKey(fieldName);
+    final BytesRef prefixRef = prefix == null || prefix.length() == 0 ? null : new BytesRef(prefix);
+
+    // count per segment, within the prefix range of each
+    final Filter filter = docs.getTopFilter();
+    final List<SegmentCounts> segments = new ArrayList<SegmentCounts>();
+    int missingCount = 0;
+    for (AtomicReaderContext leaf : searcher.getTopReaderContext().leaves()) {
+      SegmentOrds ords = getSegmentOrds(leaf.reader(), fieldName, key);
+      DocIdSet dis = filter.getDocIdSet(leaf, null); // solr docsets already exclude any deleted docs
+      DocIdSetIterator disi = dis == null ? null : dis.iterator();
+      SegmentCounts counts = new SegmentCounts(ords, prefixRef);
+      if (disi != null) {
+        missingCount += counts.accum(disi);
+      }
+      if (counts.ord < counts.endOrd) {
+        segments.add(counts);
+      }
+    }
+
+    if (docs.size() >= mincount) {
+      final CharsRef charsRef = new CharsRef(10);
+      final TermMerger merger = new TermMerger(segments);
+      int off = offset;
+      int lim = limit >= 0 ? limit : Integer.MAX_VALUE;
+
+      if (sort.equals(FacetParams.FACET_SORT_COUNT) || sort.equals(FacetParams.FACET_SORT_COUNT_LEGACY)) {
+        int maxsize = limit > 0 ? offset + limit : Integer.MAX_VALUE - 1;
+        BoundedTreeSet<SimpleFacets.CountPair<BytesRef,Integer>> queue = new BoundedTreeSet<SimpleFacets.CountPair<BytesRef,Integer>>(maxsize);
+        int min = mincount - 1;  // the smallest value in the top 'N' values
+        while (merger.next()) {
+          int c = merger.count;
+          if (c > min) {
+            // terms come in index order, so a term with the same count as the smallest
+            // one in a full queue would sort after it anyway
+            queue.add(new SimpleFacets.CountPair<BytesRef,Integer>(BytesRef.deepCopyOf(merger.term), c));
+            if (queue.size() >= maxsize) min = queue.last().val;
+          }
+        }
+        for (SimpleFacets.CountPair<BytesRef,Integer> p : queue) {
+          if (--off >= 0) continue;
+          if (--lim < 0) break;
+          ft.indexedToReadable(p.key, charsRef);
+          res.add(charsRef.toString(), p.val);
+        }
+      } else {
+        // add results in index order
+        while (merger.next()) {
+          int c = merger.count;
+          if (c < mincount || --off >= 0) continue;
+          if (--lim < 0) break;
+          ft.indexedToReadable(merger.term, charsRef);
+          res.add(charsRef.toString(), c);
+        }
+      }
+    }
+
+    if (missing) {
+      res.add(null, missingCount);
+    }
+    return res;
+  }
+
+  /** Returns the un-inverted <code>field</code> of <code>reader</code> for <code>key</code>, building it if needed */
+  static SegmentOrds getSegmentOrds(AtomicReader reader, String field, SecretKey key) throws IOException {
+    final Object coreKey = reader.getCoreCacheKey();
+    final CacheKey cacheKey = new CacheKey(coreKey, field, key);
+    SegmentOrds ords = cache.get(cacheKey);
+    if (ords == null) {
+      listenForClose(reader, coreKey);
+      SegmentOrds created = new SegmentOrds();
+      ords = cache.putIfAbsent(cacheKey, created);
+      if (ords == null) {
+        ords = created;
+      }
+    }
+    // only one thread builds a segment, the others wait for it
+    synchronized (ords) {
+      if (!ords.built) {
+        ords.build(reader, field);
+      }
+    }
+    return ords;
+  }
+
+  private static void listenForClose(AtomicReader reader, final Object coreKey) {
+    if (listenedCores.putIfAbsent(coreKey, Boolean.TRUE) != null) {
+      return;
+    }
+    if (reader instanceof SegmentReader) {
+      ((SegmentReader) reader).addCoreClosedListener(new SegmentReader.CoreClosedListener() {
+        @Override
+        public void onClose(Object ownerCoreCacheKey) {
+          evictCore(coreKey);
+        }
+      });
+    } else {
+      reader.addReaderClosedListener(new IndexReader.ReaderClosedListener() {
+        @Override
+        public void onClose(IndexReader closed) {
+          evictCore(coreKey);
+        }
+      });
+    }
+  }
+
+  private static void evictCore(Object coreKey) {
+    for (Iterator<CacheKey> it = cache.keySet().iterator(); it.hasNext();) {
+      if (it.next().coreKey == coreKey) {
+        it.remove();
+      }
+    }
+    listenedCores.remove(coreKey);
+  }
+
+  /** Drops the segments un-inverted for <code>field</code>, or for all fields if null */
+  static void evictField(String field) {
+    for (Iterator<CacheKey> it = cache.keySet().iterator(); it.hasNext();) {
+      CacheKey cacheKey = it.next();
+      if (field == null || cacheKey.field.equals(field)) {
+        it.remove();
+      }
+    }
+  }
+
+  /** Returns the number of un-inverted segments held, for all fields and keys */
+  static int size() {
+    return cache.size();
+  }
+
+  private static final class CacheKey {
+    final Object coreKey;
+    final String field;
+    final SecretKey key;
+
+    CacheKey(Object coreKey, String field, SecretKey key) {
+      this.coreKey = coreKey;
+      this.field = field;
+      this.key = key;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      if (!(o instanceof CacheKey)) return false;
+      CacheKey other = (CacheKey) o;
+      return coreKey == other.coreKey && field.equals(other.field) && key.equals(other.key);
+    }
+
+    @Override
+    public int hashCode() {
+      return (System.identityHashCode(coreKey) * 31 + field.hashCode()) * 31 + key.hashCode();
+    }
+  }
+
+  /**
+   * The un-inverted field of one segment: its terms in index order, and for each
+   * document the ordinals of its terms, in <code>ords[docStarts[doc]..docStarts[doc+1]-1]</code>.
+   */
+  static final class SegmentOrds {
+    boolean built;
+    BytesRef[] terms;
+    int[] docStarts;
+    int[] ords;
+
+    void build(AtomicReader reader, String field) throws IOException {
+      final int maxDoc = reader.maxDoc();
+      final int[] docStarts = new int[maxDoc + 1];
+      final List<BytesRef> terms = new ArrayList<BytesRef>();
+      // postings in term order: the docs of term i are termDocs[termStarts[i]..termStarts[i+1]-1]
+      int[] termStarts = new int[1];
+      int[] termDocs = new int[0];
+      int numPostings = 0;
+
+      final Terms fieldTerms = reader.terms(field);
+      if (fieldTerms != null) {
+        final TermsEnum termsEnum = fieldTerms.iterator(null);
+        DocsEnum docsEnum = null;
+        BytesRef term;
+        while ((term = termsEnum.next()) != null) {
+          // deleted docs are kept, the docsets to count are already free of them
+          docsEnum = termsEnum.docs(null, docsEnum, DocsEnum.FLAG_NONE);
+          int doc;
+          while ((doc = docsEnum.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+            termDocs = ArrayUtil.grow(termDocs, numPostings + 1);
+            termDocs[numPostings++] = doc;
+            docStarts[doc + 1]++;
+          }
+          terms.add(BytesRef.deepCopyOf(term));
+          termStarts = ArrayUtil.grow(termStarts, terms.size() + 1);
+          termStarts[terms.size()] = numPostings;
+        }
+      }
+
+      // transpose to doc order; ordinals of a doc end up sorted since terms are visited in order
+      for (int doc = 0; doc < maxDoc; doc++) {
+        docStarts[doc + 1] += docStarts[doc];
+      }
+      final int[] ords = new int[numPostings];
+      final int[] next = new int[maxDoc];
+      System.arraycopy(docStarts, 0, next, 0, maxDoc);
+      for (int ord = 0; ord < terms.size(); ord++) {
+        for (int i = termStarts[ord]; i < termStarts[ord + 1]; i++) {
+          ords[next[termDocs[i]]++] = ord;
+        }
+      }
+
+      this.terms = terms.toArray(new BytesRef[terms.size()]);
+      this.docStarts = docStarts;
+      this.ords = ords;
+      this.built = true;
+    }
+
+    /** Returns the first ordinal whose term is &gt;= <code>target</code> */
+    int ceil(BytesRef target) {
+      int low = 0;
+      int high = terms.length;
+      while (low < high) {
+        int mid = (low + high) >>> 1;
+        if (terms[mid].compareTo(target) < 0) {
+          low = mid + 1;
+        } else {
+          high = mid;
+        }
+      }
+      return low;
+    }
+  }
+
+  /** The counts of one segment, and a cursor over its terms in the prefix range */
+  static final class SegmentCounts {
+    final SegmentOrds segment;
+    final int[] counts;
+    int ord;
+    final int endOrd;
+
+    SegmentCounts(SegmentOrds segment, BytesRef prefix) {
+      this.segment = segment;
+      if (prefix == null) {
+        ord = 0;
+        endOrd = segment.terms.length;
+      } else {
+        ord = segment.ceil(prefix);
+        BytesRef end = BytesRef.deepCopyOf(prefix);
+        end.append(UnicodeUtil.BIG_TERM);
+        endOrd = segment.ceil(end);
+      }
+      counts = new int[segment.terms.length];
+    }
+
+    /** Counts the ordinals of the docs of <code>disi</code>; returns the number of docs without any */
+    int accum(DocIdSetIterator disi) throws IOException {
+      final int[] docStarts = segment.docStarts;
+      final int[] ords = segment.ords;
+      int missing = 0;
+      int doc;
+      while ((doc = disi.nextDoc()) != DocIdSetIterator.NO_MORE_DOCS) {
+        final int end = docStarts[doc + 1];
+        int i = docStarts[doc];
+        if (i == end) {
+          missing++;
+        }
+        for (; i < end; i++) {
+          counts[ords[i]]++;
+        }
+      }
+      return missing;
+    }
+
+    BytesRef term() {
+      return segment.terms[ord];
+    }
+  }
+
+  /** Merges the terms of the segments in index order, summing their counts */
+  static final class TermMerger {
+    private final PriorityQueue<SegmentCounts> queue;
+    BytesRef term;
+    int count;
+
+    TermMerger(List<SegmentCounts> segments) {
+      queue = new PriorityQueue<SegmentCounts>(Math.max(1, segments.size()), new Comparator<SegmentCounts>() {
+        @Override
+        public int compare(SegmentCounts a, SegmentCounts b) {
+          return a.term().compareTo(b.term());
+        }
+      });
+      queue.addAll(segments);
+    }
+
+    boolean next() {
+      SegmentCounts top = queue.poll();
+      if (top == null) {
+        return false;
+      }
+      term = top.term();
+      count = 0;
+      while (true) {
+        count += top.counts[top.ord];
+        if (++top.ord < top.endOrd) {
+          queue.add(top);
+        }
+        SegmentCounts peek = queue.peek();
+        if (peek == null || !peek.term().bytesEquals(term)) {
+          return true;
+        }
+        top = queue.poll();
+      }
+    }
+  }
+}
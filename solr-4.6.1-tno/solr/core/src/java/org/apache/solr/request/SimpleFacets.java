@@ -17,6 +17,7 @@
 
 package org.apache.solr.request;
 
+import org.apache.lucene.codecs.secure.SecureCipherUtil;
 import org.apache.lucene.index.AtomicReader;
 import org.apache.lucene.index.DocsEnum;
 import org.apache.lucene.index.Fields;
@@ -100,6 +101,8 @@ import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
+import javax.crypto.SecretKey;
+
 /**
  * A class that generates simple Facet information for a request.
  *
@@ -416,6 +419,12 @@ public class SimpleFacets {
 
     if (params.getFieldBool(field, GroupParams.GROUP_FACET, false)) {
       counts = getGroupedCounts(searcher, base, field, multiToken, offset,limit, mincount, missing, sort, prefix);
+    } else if (EncryptedFieldFacets.canCount(sf) && TrieField.getMainValuePrefix(ft) == null
+        && method != FacetMethod.ENUM) {
+      // encrypted fields can not use the FieldCache, which is not scoped by key, so fc and fcs
+      // count them here; enum, e.g. an explicit facet.method=enum, is honored though it
+      // decrypts every term again
+      counts = EncryptedFieldFacets.getCounts(searcher, base, field, offset, limit, mincount, missing, sort, prefix);
     } else {
       assert method != null;
       switch (method) {
@@ -551,9 +560,12 @@ public class SimpleFacets {
         final String workerKey = key;
         final String workerFacetValue = facetValue;
         final DocSet workerBase = this.docs;
+        // keys the request only sees on its own thread, e.g. those of an EncryptedFieldWarmer
+        final Map<String,SecretKey> workerKeys = SecureCipherUtil.getThreadKeys();
         Callable<NamedList> callable = new Callable<NamedList>() {
           @Override
           public NamedList call() throws Exception {
+            final Map<String,SecretKey> previousKeys = SecureCipherUtil.setThreadKeys(workerKeys);
             try {
               NamedList<Object> result = new SimpleOrderedMap<Object>();
               if(termList != null) {
@@ -568,6 +580,7 @@ public class SimpleFacets {
               throw new SolrException(ErrorCode.SERVER_ERROR,
                                       "Exception during facet.field: " + workerFacetValue, e.getCause());
             } finally {
+              SecureCipherUtil.setThreadKeys(previousKeys);
               semaphore.release();
             }
           }
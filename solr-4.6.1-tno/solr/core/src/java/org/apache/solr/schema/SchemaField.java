@@ -192,9 +192,9 @@ public final class SchemaField extends FieldProperties {
                               "can not use FieldCache on multivalued field: " 
                               + getName());
     }
-    if ( encrypted() ) {
+    if ( encrypted() && !hasDocValues() ) {
       throw new SolrException(SolrException.ErrorCode.BAD_REQUEST,
-          "can not use FieldCache on encrypted field: "
+          "can not use FieldCache on encrypted field without doc values: "
               + getName());
     }
   }
@@ -236,16 +236,19 @@ public final class SchemaField extends FieldProperties {
     //
 
     if (on(trueProps,ENCRYPTED)) {
-      int pp = (STORE_TERMVECTORS | STORE_TERMPOSITIONS | STORE_TERMOFFSETS | STORE_OFFSETS | MULTIVALUED | DOC_VALUES);
+      int pp = (STORE_TERMVECTORS | STORE_TERMPOSITIONS | STORE_TERMOFFSETS | STORE_OFFSETS | MULTIVALUED);
       if (on(pp,trueProps)) {
         throw new RuntimeException("SchemaField: " + name + " conflicting encrypted field options:" + props);
       }
       p &= ~pp;
-      pp = (OMIT_NORMS | OMIT_TF_POSITIONS | OMIT_POSITIONS);
+      pp = OMIT_NORMS;
       if (on(pp,falseProps)) {
         throw new RuntimeException("SchemaField: " + name + " conflicting 'false' field options for encrypted field:" + props);
       }
       p |= pp;
+      // freqs and positions are only indexed when asked for explicitly, e.g. for phrase
+      // queries; the secure codec then writes them with SecureCipherBlockPostingsFormat
+      p |= (OMIT_TF_POSITIONS | OMIT_POSITIONS) & ~falseProps;
     }
 
     if (on(falseProps,STORED)) {
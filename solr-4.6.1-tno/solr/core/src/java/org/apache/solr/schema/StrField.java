@@ -49,7 +49,7 @@ public class StrField extends PrimitiveFieldType {
       if (field.multiValued()) {
         fields.add(new SortedSetDocValuesField(field.getName(), bytes));
       } else {
-        fields.add(new SortedDocValuesField(field.getName(), bytes));
+        fields.add(new SortedDocValuesField(field.getName(), bytes, field.encrypted()));
       }
       return fields;
     } else {
@@ -642,7 +642,7 @@ public class TrieField extends PrimitiveFieldType {
           assert field.numericValue() instanceof Double;
           bits = Double.doubleToLongBits(field.numericValue().doubleValue());
         }
-        fields.add(new NumericDocValuesField(sf.getName(), bits));
+        fields.add(new NumericDocValuesField(sf.getName(), bits, sf.encrypted()));
       }
       
       return fields;
@@ -0,0 +1,307 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.solr.search;
+
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+import javax.crypto.SecretKey;
+
+import org.apache.lucene.codecs.secure.SecureCipherKeyRegistry;
+import org.apache.lucene.codecs.secure.SecureCipherUtil;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.ConstantScoreQuery;
+import org.apache.lucene.search.DisjunctionMaxQuery;
+import org.apache.lucene.search.Filter;
+import org.apache.lucene.search.FilteredQuery;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.MultiPhraseQuery;
+import org.apache.lucene.search.MultiTermQuery;
+import org.apache.lucene.search.PhraseQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.QueryWrapperFilter;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.spans.SpanQuery;
+import org.apache.lucene.util.IOUtils;
+import org.apache.solr.schema.IndexSchema;
+import org.apache.solr.schema.SchemaField;
+
+/**
+ * Cache key for a query on encrypted fields: the query, together with a fingerprint of
+ * the keys of the encrypted fields it touches.
+ * <p>
+ * The DocSet or DocList of a query on an encrypted field depends on the key the field
+ * was decrypted with: a caller holding another key (or none) must not be handed the
+ * result computed with the right one. Keys supplied with the <code>Keys</code> request
+ * parameter are registered with {@link SecureCipherUtil}, and the fingerprint is a SHA-256
+ * digest of the names and key material of the encrypted fields as seen by the looking up
+ * thread, that is its {@link SecureCipherUtil#setThreadKeys thread keys} if any, else the
+ * registered ones. Readers decrypt every segment with the key of the generation it was
+ * written under, so the digest covers the key of each generation that still has a
+ * collection key, not only the current one: rotating the collection key or removing an
+ * old generation changes the scope, while an explicit key, which all generations share,
+ * counts once. Entries of queries that only touch plaintext fields are not scoped and are shared
+ * by all callers, while entries of queries on encrypted fields are only found again by
+ * callers whose key set for those fields is the same.
+ * <p>
+ * Queries of a type that cannot be inspected for the fields they touch (function
+ * queries, joins, ...) are not cached at all. Searchers over a schema without
+ * {@link #hasEncryptedFields(IndexSchema) encrypted fields} need not scope their keys.
+ * <p>
+ * This query is only a cache key and must not be executed; {@link #getWrappedQuery()}
+ * returns the query to run.
+ */
+public final class KeyScopedQuery extends Query {
+  private static final String DIGEST_ALGORITHM = "SHA-256";
+  private static final byte[] NO_KEY = new byte[0];
+
+  private final Query q;
+  private final byte[] fingerprint;
+  private final int hc;
+
+  private KeyScopedQuery(Query q, byte[] fingerprint) {
+    this.q = q;
+    this.fingerprint = fingerprint;
+    this.hc = q.hashCode() * 31 + Arrays.hashCode(fingerprint);
+  }
+
+  public Query getWrappedQuery() {
+    return q;
+  }
+
+  /** Returns the query to run for a cache key, which may or may not be scoped. */
+  public static Query unwrap(Query query) {
+    return query instanceof KeyScopedQuery ? ((KeyScopedQuery) query).q : query;
+  }
+
+  /** Returns true if <code>schema</code> has encrypted fields, dynamic ones included. */
+  public static boolean hasEncryptedFields(IndexSchema schema) {
+    for (SchemaField field : schema.getFields().values()) {
+      if (field.encrypted()) return true;
+    }
+    for (SchemaField field : schema.getDynamicFieldPrototypes()) {
+      if (field.encrypted()) return true;
+    }
+    return false;
+  }
+
+  /**
+   * Returns the cache key for <code>query</code>: the query itself if it touches no
+   * encrypted field, a KeyScopedQuery if it does, and null if it must not be cached.
+   */
+  public static Query scope(Query query, IndexSchema schema) {
+    return scope(query, null, schema);
+  }
+
+  /**
+   * Returns the cache key for the results of <code>query</code> restricted by
+   * <code>filters</code>: the query is scoped by the keys of the encrypted fields
+   * touched by the query or any of the filters. Returns null if the result must not be cached.
+   */
+  public static Query scope(Query query, List<Query> filters, IndexSchema schema) {
+    final Set<String> fields = new TreeSet<String>();
+    if (!collectEncryptedFields(query, schema, fields)) {
+      return null;
+    }
+    if (filters != null) {
+      for (Query filter : filters) {
+        if (!collectEncryptedFields(filter, schema, fields)) {
+          return null;
+        }
+      }
+    }
+    if (fields.isEmpty()) {
+      return query;
+    }
+    return new KeyScopedQuery(query, fingerprint(fields, null));
+  }
+
+  /**
+   * Returns true if this key was scoped, together with <code>filters</code>, by the keys
+   * in <code>keys</code>: the keys the result can be computed again with, e.g. when
+   * autowarming a cache while the caller's keys are no longer registered.
+   */
+  public boolean isScopedBy(Map<String,SecretKey> keys, List<Query> filters, IndexSchema schema) {
+    final Set<String> fields = new TreeSet<String>();
+    collectEncryptedFields(q, schema, fields);
+    if (filters != null) {
+      for (Query filter : filters) {
+        collectEncryptedFields(filter, schema, fields);
+      }
+    }
+    return Arrays.equals(fingerprint, fingerprint(fields, keys));
+  }
+
+  /**
+   * Digest of the names and keys of <code>fields</code>, in sorted order: the keys in
+   * <code>keys</code>, which apply to all key generations, or those currently seen by this
+   * thread if it is null. Each field contributes its key of the current generation followed
+   * by those of the older generations that differ from the previous one, i.e. the keys
+   * {@link SecureCipherUtil#getKey(org.apache.lucene.index.FieldInfo)} hands to readers.
+   */
+  private static byte[] fingerprint(Set<String> fields, Map<String,SecretKey> keys) {
+    final MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance(DIGEST_ALGORITHM);
+    } catch (NoSuchAlgorithmException e) {
+      throw new IllegalStateException("cannot create " + DIGEST_ALGORITHM, e);
+    }
+    final SecureCipherKeyRegistry registry = SecureCipherUtil.getRegistry();
+    final int current = registry.getKeyGeneration();
+    final int[] generations = registry.getKeyGenerations();
+    for (String field : fields) {
+      final byte[] name = field.getBytes(IOUtils.CHARSET_UTF_8);
+      // lengths keep the encoding unambiguous
+      digest.update(intBytes(name.length));
+      digest.update(name);
+      SecretKey previous;
+      if (keys != null) {
+        previous = keys.get(field);
+      } else {
+        previous = SecureCipherUtil.hasKey(field) ? SecureCipherUtil.getKey(field) : null;
+      }
+      update(digest, previous);
+      if (keys != null) {
+        continue;
+      }
+      for (int generation : generations) {
+        if (generation == current) {
+          continue;
+        }
+        final SecretKey key = SecureCipherUtil.getKey(field, generation);
+        if (key != null && !key.equals(previous)) {
+          update(digest, key);
+          previous = key;
+        }
+      }
+    }
+    return digest.digest();
+  }
+
+  private static void update(MessageDigest digest, SecretKey key) {
+    final byte[] material = key == null ? NO_KEY : key.getEncoded();
+    digest.update(intBytes(material.length));
+    digest.update(material);
+  }
+
+  private static byte[] intBytes(int i) {
+    return new byte[] { (byte) (i >>> 24), (byte) (i >>> 16), (byte) (i >>> 8), (byte) i };
+  }
+
+  /**
+   * Adds the encrypted fields that <code>query</code> touches to <code>fields</code>.
+   * Returns false if the query is of a type whose fields are not known.
+   */
+  static boolean collectEncryptedFields(Query query, IndexSchema schema, Set<String> fields) {
+    if (query == null || query instanceof MatchAllDocsQuery) {
+      return true;
+    } else if (query instanceof TermQuery) {
+      addIfEncrypted(((TermQuery) query).getTerm().field(), schema, fields);
+    } else if (query instanceof MultiTermQuery) {
+      addIfEncrypted(((MultiTermQuery) query).getField(), schema, fields);
+    } else if (query instanceof SpanQuery) {
+      addIfEncrypted(((SpanQuery) query).getField(), schema, fields);
+    } else if (query instanceof PhraseQuery) {
+      for (Term term : ((PhraseQuery) query).getTerms()) {
+        addIfEncrypted(term.field(), schema, fields);
+      }
+    } else if (query instanceof MultiPhraseQuery) {
+      for (Term[] terms : ((MultiPhraseQuery) query).getTermArrays()) {
+        for (Term term : terms) {
+          addIfEncrypted(term.field(), schema, fields);
+        }
+      }
+    } else if (query instanceof BooleanQuery) {
+      for (BooleanClause clause : ((BooleanQuery) query).clauses()) {
+        if (!collectEncryptedFields(clause.getQuery(), schema, fields)) return false;
+      }
+    } else if (query instanceof DisjunctionMaxQuery) {
+      for (Query disjunct : ((DisjunctionMaxQuery) query).getDisjuncts()) {
+        if (!collectEncryptedFields(disjunct, schema, fields)) return false;
+      }
+    } else if (query instanceof WrappedQuery) {
+      return collectEncryptedFields(((WrappedQuery) query).getWrappedQuery(), schema, fields);
+    } else if (query instanceof KeyScopedQuery) {
+      return collectEncryptedFields(((KeyScopedQuery) query).q, schema, fields);
+    } else if (query instanceof ConstantScoreQuery) {
+      final ConstantScoreQuery csq = (ConstantScoreQuery) query;
+      return csq.getQuery() != null
+          ? collectEncryptedFields(csq.getQuery(), schema, fields)
+          : collectEncryptedFields(csq.getFilter(), schema, fields);
+    } else if (query instanceof FilteredQuery) {
+      final FilteredQuery fq = (FilteredQuery) query;
+      return collectEncryptedFields(fq.getQuery(), schema, fields)
+          && collectEncryptedFields(fq.getFilter(), schema, fields);
+    } else {
+      return false;
+    }
+    return true;
+  }
+
+  private static boolean collectEncryptedFields(Filter filter, IndexSchema schema, Set<String> fields) {
+    if (filter instanceof QueryWrapperFilter) {
+      return collectEncryptedFields(((QueryWrapperFilter) filter).getQuery(), schema, fields);
+    }
+    return false;
+  }
+
+  private static void addIfEncrypted(String field, IndexSchema schema, Set<String> fields) {
+    final SchemaField sf = field == null ? null : schema.getFieldOrNull(field);
+    if (sf != null && sf.encrypted()) {
+      fields.add(field);
+    }
+  }
+
+  @Override
+  public Query rewrite(IndexReader reader) throws IOException {
+    return q.rewrite(reader);
+  }
+
+  @Override
+  public void extractTerms(Set<Term> terms) {
+    q.extractTerms(terms);
+  }
+
+  @Override
+  public int hashCode() {
+    return hc;
+  }
+
+  @Override
+  public boolean equals(Object o) {
+    if (o == this) return true;
+    if (!(o instanceof KeyScopedQuery)) return false;
+    final KeyScopedQuery other = (KeyScopedQuery) o;
+    return hc == other.hc && Arrays.equals(fingerprint, other.fingerprint) && q.equals(other.q);
+  }
+
+  @Override
+  public String toString(String field) {
+    // the fingerprint is left out: it identifies key material
+    return "KeyScoped(" + q.toString(field) + ")";
+  }
+}
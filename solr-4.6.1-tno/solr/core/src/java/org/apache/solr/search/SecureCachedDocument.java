@@ -0,0 +1,179 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.solr.search;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Set;
+
+import org.apache.lucene.codecs.secure.EncryptedStoredFieldVisitor;
+import org.apache.lucene.codecs.secure.EncryptedStoredValue;
+import org.apache.lucene.codecs.secure.SecureCipherUtil;
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.DocumentStoredFieldVisitor;
+import org.apache.lucene.index.FieldInfo;
+import org.apache.lucene.index.IndexReader;
+import org.apache.lucene.index.IndexableField;
+import org.apache.lucene.index.StoredFieldVisitor;
+import org.apache.lucene.util.ArrayUtil;
+
+/**
+ * documentCache entry of a schema with encrypted fields: the plaintext stored fields of
+ * a document, and its encrypted stored fields still encrypted.
+ * <p>
+ * Nothing in an entry depends on the key of the caller, so entries are shared by all
+ * requests. The encrypted fields a request asks for are decrypted with the keys in use
+ * by that request, into a new {@link Document} that is not cached. Repeated reads of a
+ * document therefore skip the disk and the decompression of the stored fields, and
+ * only pay for decrypting the encrypted fields they return.
+ * <p>
+ * The position of each encrypted field among the plaintext ones is kept, so that the
+ * fields are returned in the order they were stored, as by an uncached read.
+ */
+final class SecureCachedDocument {
+  /** The plaintext stored fields */
+  final Document plain;
+  /** The encrypted stored fields, in the order they were read */
+  final List<EncryptedStoredValue> encrypted;
+  /** The number of plaintext fields stored before each encrypted field */
+  final int[] positions;
+  /** False if the stored fields format decrypted an encrypted field itself */
+  final boolean cacheable;
+
+  private SecureCachedDocument(Document plain, List<EncryptedStoredValue> encrypted, int[] positions, boolean cacheable) {
+    this.plain = plain;
+    this.encrypted = encrypted;
+    this.positions = positions;
+    this.cacheable = cacheable;
+  }
+
+  /** Collects plaintext fields into a Document, and encrypted fields as they are */
+  private static final class Loader extends EncryptedStoredFieldVisitor {
+    final DocumentStoredFieldVisitor plain = new DocumentStoredFieldVisitor();
+    final List<EncryptedStoredValue> encrypted = new ArrayList<EncryptedStoredValue>(4);
+    int[] positions = new int[4];
+    boolean cacheable = true;
+
+    @Override
+    public void encryptedField(EncryptedStoredValue value) {
+      positions = ArrayUtil.grow(positions, encrypted.size() + 1);
+      positions[encrypted.size()] = plain.getDocument().getFields().size();
+      encrypted.add(value);
+    }
+
+    // a format without support for encrypted visitors hands out decrypted values: such a
+    // document must not be cached, since it holds the plaintext of encrypted fields
+
+    @Override
+    public void binaryField(FieldInfo fieldInfo, byte[] value) throws IOException {
+      cacheable &= !fieldInfo.isEncrypted();
+      plain.binaryField(fieldInfo, value);
+    }
+
+    @Override
+    public void stringField(FieldInfo fieldInfo, String value) throws IOException {
+      cacheable &= !fieldInfo.isEncrypted();
+      plain.stringField(fieldInfo, value);
+    }
+
+    @Override
+    public void intField(FieldInfo fieldInfo, int value) {
+      cacheable &= !fieldInfo.isEncrypted();
+      plain.intField(fieldInfo, value);
+    }
+
+    @Override
+    public void longField(FieldInfo fieldInfo, long value) {
+      cacheable &= !fieldInfo.isEncrypted();
+      plain.longField(fieldInfo, value);
+    }
+
+    @Override
+    public void floatField(FieldInfo fieldInfo, float value) {
+      cacheable &= !fieldInfo.isEncrypted();
+      plain.floatField(fieldInfo, value);
+    }
+
+    @Override
+    public void doubleField(FieldInfo fieldInfo, double value) {
+      cacheable &= !fieldInfo.isEncrypted();
+      plain.doubleField(fieldInfo, value);
+    }
+
+    @Override
+    public Status needsField(FieldInfo fieldInfo) {
+      return Status.YES;
+    }
+  }
+
+  /** Reads all stored fields of document <code>docID</code>, leaving encrypted fields encrypted */
+  static SecureCachedDocument load(IndexReader reader, int docID) throws IOException {
+    final Loader loader = new Loader();
+    reader.document(docID, loader);
+    return new SecureCachedDocument(loader.plain.getDocument(), loader.encrypted,
+        Arrays.copyOf(loader.positions, loader.encrypted.size()), loader.cacheable);
+  }
+
+  /**
+   * Returns a new Document with the plaintext fields and the encrypted fields in
+   * <code>fields</code>, or all of them if it is null, decrypted with the keys in use.
+   */
+  Document decrypt(Set<String> fields) throws IOException {
+    if (encrypted.isEmpty()) {
+      return plain;
+    }
+    final DocumentStoredFieldVisitor visitor = new DocumentStoredFieldVisitor();
+    final Document doc = visitor.getDocument();
+    final List<IndexableField> plainFields = plain.getFields();
+    int next = 0;
+    for (int i = 0; i <= plainFields.size(); i++) {
+      // the encrypted fields stored before the i-th plaintext field
+      for (; next < encrypted.size() && positions[next] == i; next++) {
+        final EncryptedStoredValue value = encrypted.get(next);
+        if (fields == null || fields.contains(value.getFieldInfo().name)) {
+          value.decrypt(SecureCipherUtil.getKey(value.getFieldInfo()), visitor);
+        }
+      }
+      if (i < plainFields.size()) {
+        doc.add(plainFields.get(i));
+      }
+    }
+    return doc;
+  }
+
+  /**
+   * Decrypts the <code>index</code>-th encrypted field with the key in use and visits it,
+   * if <code>visitor</code> needs it. Returns false if the visitor asked to stop.
+   */
+  boolean visitEncrypted(int index, StoredFieldVisitor visitor) throws IOException {
+    final EncryptedStoredValue value = encrypted.get(index);
+    final FieldInfo info = value.getFieldInfo();
+    switch (visitor.needsField(info)) {
+      case YES:
+        value.decrypt(SecureCipherUtil.getKey(info), visitor);
+        break;
+      case NO:
+        break;
+      case STOP:
+        return false;
+    }
+    return true;
+  }
+}
@@ -92,6 +92,7 @@ import org.apache.solr.common.util.NamedList;
 import org.apache.solr.common.util.SimpleOrderedMap;
 import org.apache.solr.core.DirectoryFactory;
 import org.apache.solr.core.DirectoryFactory.DirContext;
+import org.apache.solr.core.EncryptedFieldWarmer;
 import org.apache.solr.core.SolrConfig;
 import org.apache.solr.core.SolrCore;
 import org.apache.solr.core.SolrInfoMBean;
@@ -141,9 +142,13 @@ public class SolrIndexSearcher extends IndexSearcher implements Closeable,SolrIn
   public final boolean enableLazyFieldLoading;
   
   private final boolean cachingEnabled;
+  // TNO: cache keys of queries on encrypted fields are scoped by the keys in use
+  private final boolean scopeCacheKeys;
   private final SolrCache<Query,DocSet> filterCache;
   private final SolrCache<QueryResultKey,DocList> queryResultCache;
   private final SolrCache<Integer,Document> documentCache;
+  // TNO: documentCache of a schema with encrypted fields, whose entries keep those fields encrypted
+  private final SolrCache<Integer,SecureCachedDocument> secureDocumentCache;
   private final SolrCache<String,UnInvertedField> fieldValueCache;
 
   private final LuceneQueryOptimizer optimizer;
@@ -221,21 +226,40 @@ public class SolrIndexSearcher extends IndexSearcher implements Closeable,SolrIn
     enableLazyFieldLoading = solrConfig.enableLazyFieldLoading;
     
 	// TNO
-    //cachingEnabled=enableCache;
-    cachingEnabled=false;
-    log.info("TNO: setting cachingEnabled to false.");
+    // Cached DocSets and DocLists of queries on encrypted fields would leak across callers
+    // with different keys, so caching stays off unless keyScopedCaching is enabled: the
+    // filterCache and queryResultCache then scope their keys by the keys of the encrypted
+    // fields (see KeyScopedQuery). The documentCache holds the encrypted stored fields
+    // still encrypted, and decrypts them per request (see SecureCachedDocument). The other
+    // caches hold values that are not keyed by a query and stay off.
+    scopeCacheKeys = KeyScopedQuery.hasEncryptedFields(schema);
+    if (scopeCacheKeys) {
+      setEncryptedTermPrefetcher(core.getEncryptedTermPrefetcher());
+    }
+    cachingEnabled = enableCache && (solrConfig.keyScopedCaching || !scopeCacheKeys);
+    if (!cachingEnabled && enableCache) {
+      log.info("TNO: setting cachingEnabled to false.");
+    }
     if (cachingEnabled) {
       ArrayList<SolrCache> clist = new ArrayList<SolrCache>();
-      fieldValueCache = solrConfig.fieldValueCacheConfig==null ? null : solrConfig.fieldValueCacheConfig.newInstance();
-      if (fieldValueCache!=null) clist.add(fieldValueCache);
       filterCache= solrConfig.filterCacheConfig==null ? null : solrConfig.filterCacheConfig.newInstance();
       if (filterCache!=null) clist.add(filterCache);
       queryResultCache = solrConfig.queryResultCacheConfig==null ? null : solrConfig.queryResultCacheConfig.newInstance();
       if (queryResultCache!=null) clist.add(queryResultCache);
-      documentCache = solrConfig.documentCacheConfig==null ? null : solrConfig.documentCacheConfig.newInstance();
-      if (documentCache!=null) clist.add(documentCache);
+      if (!scopeCacheKeys) {
+        fieldValueCache = solrConfig.fieldValueCacheConfig==null ? null : solrConfig.fieldValueCacheConfig.newInstance();
+        if (fieldValueCache!=null) clist.add(fieldValueCache);
+        documentCache = solrConfig.documentCacheConfig==null ? null : solrConfig.documentCacheConfig.newInstance();
+        if (documentCache!=null) clist.add(documentCache);
+        secureDocumentCache = null;
+      } else {
+        fieldValueCache = null;
+        documentCache = null;
+        secureDocumentCache = solrConfig.documentCacheConfig==null ? null : solrConfig.documentCacheConfig.newInstance();
+        if (secureDocumentCache!=null) clist.add(secureDocumentCache);
+      }
 
-      if (solrConfig.userCacheConfigs == null) {
+      if (solrConfig.userCacheConfigs == null || scopeCacheKeys) {
         cacheMap = noGenericCaches;
       } else {
         cacheMap = new HashMap<String,SolrCache>(solrConfig.userCacheConfigs.length);
@@ -254,6 +278,7 @@ public class SolrIndexSearcher extends IndexSearcher implements Closeable,SolrIn
       filterCache=null;
       queryResultCache=null;
       documentCache=null;
+      secureDocumentCache=null;
       fieldValueCache=null;
       cacheMap = noGenericCaches;
       cacheList= noCaches;
@@ -427,8 +452,20 @@ public class SolrIndexSearcher extends IndexSearcher implements Closeable,SolrIn
       solrConfig.filterCacheConfig.setRegenerator(
               new CacheRegenerator() {
                 @Override
-                public boolean regenerateItem(SolrIndexSearcher newSearcher, SolrCache newCache, SolrCache oldCache, Object oldKey, Object oldVal) throws IOException {
-                  newSearcher.cacheDocSet((Query)oldKey, null, false);
+                public boolean regenerateItem(final SolrIndexSearcher newSearcher, SolrCache newCache, SolrCache oldCache, Object oldKey, Object oldVal) throws IOException {
+                  final Query query = KeyScopedQuery.unwrap((Query)oldKey);
+                  if (oldKey instanceof KeyScopedQuery) {
+                    // only the registered warming keys can compute a scoped entry again
+                    newSearcher.getCore().getEncryptedFieldWarmer().regenerate((KeyScopedQuery)oldKey, null, newSearcher.getSchema(),
+                        new EncryptedFieldWarmer.Regeneration() {
+                          @Override
+                          public void run() throws IOException {
+                            newSearcher.cacheDocSet(query, null, false);
+                          }
+                        });
+                    return true;
+                  }
+                  newSearcher.cacheDocSet(query, null, false);
                   return true;
                 }
               }
@@ -440,7 +477,7 @@ public class SolrIndexSearcher extends IndexSearcher implements Closeable,SolrIn
       solrConfig.queryResultCacheConfig.setRegenerator(
               new CacheRegenerator() {
                 @Override
-                public boolean regenerateItem(SolrIndexSearcher newSearcher, SolrCache newCache, SolrCache oldCache, Object oldKey, Object oldVal) throws IOException {
+                public boolean regenerateItem(final SolrIndexSearcher newSearcher, SolrCache newCache, SolrCache oldCache, Object oldKey, Object oldVal) throws IOException {
                   QueryResultKey key = (QueryResultKey)oldKey;
                   int nDocs=1;
                   // request 1 doc and let caching round up to the next window size...
@@ -457,14 +494,25 @@ public class SolrIndexSearcher extends IndexSearcher implements Closeable,SolrIn
                   }
 
                   int flags=NO_CHECK_QCACHE | key.nc_flags;
-                  QueryCommand qc = new QueryCommand();
-                  qc.setQuery(key.query)
+                  final QueryCommand qc = new QueryCommand();
+                  qc.setQuery(KeyScopedQuery.unwrap(key.query))
                     .setFilterList(key.filters)
                     .setSort(key.sort)
                     .setLen(nDocs)
                     .setSupersetMaxDoc(nDocs)
                     .setFlags(flags);
-                  QueryResult qr = new QueryResult();
+                  final QueryResult qr = new QueryResult();
+                  if (key.query instanceof KeyScopedQuery) {
+                    // only the registered warming keys can compute a scoped entry again
+                    newSearcher.getCore().getEncryptedFieldWarmer().regenerate((KeyScopedQuery)key.query, key.filters, newSearcher.getSchema(),
+                        new EncryptedFieldWarmer.Regeneration() {
+                          @Override
+                          public void run() throws IOException {
+                            newSearcher.getDocListC(qr,qc);
+                          }
+                        });
+                    return true;
+                  }
                   newSearcher.getDocListC(qr,qc);
                   return true;
                 }
@@ -601,43 +649,84 @@ public class SolrIndexSearcher extends IndexSearcher implements Closeable,SolrIn
         return;
       }
     }
+    if (secureDocumentCache != null) {
+      SecureCachedDocument cached = secureDocumentCache.get(n);
+      if (cached != null) {
+        visitFromCached(cached, visitor);
+        return;
+      }
+    }
     getIndexReader().document(n, visitor);
   }
   
-  /** Executes a stored field visitor against a hit from the document cache */
-  private void visitFromCached(Document document, StoredFieldVisitor visitor) throws IOException {
+  /**
+   * Executes a stored field visitor against a hit from the document cache.
+   * Returns false if the visitor asked to stop.
+   */
+  private boolean visitFromCached(Document document, StoredFieldVisitor visitor) throws IOException {
     for (IndexableField f : document) {
-      FieldInfo info = fieldInfos.fieldInfo(f.name());
-      switch(visitor.needsField(info)) {
-        case YES:
-          if (f.binaryValue() != null) {
-            BytesRef binaryValue = f.binaryValue();
-            byte copy[] = new byte[binaryValue.length];
-            System.arraycopy(binaryValue.bytes, binaryValue.offset, copy, 0, copy.length);
-            visitor.binaryField(info, copy);
-          } else if (f.numericValue() != null) {
-            Number numericValue = f.numericValue();
-            if (numericValue instanceof Double) {
-              visitor.doubleField(info, numericValue.doubleValue());
-            } else if (numericValue instanceof Integer) {
-              visitor.intField(info, numericValue.intValue());
-            } else if (numericValue instanceof Float) {
-              visitor.floatField(info, numericValue.floatValue());
-            } else if (numericValue instanceof Long) {
-              visitor.longField(info, numericValue.longValue());
-            } else {
-              throw new AssertionError();
-            }
+      if (!visitFromCached(f, visitor)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * TNO: executes a stored field visitor against a hit from the documentCache of a schema
+   * with encrypted fields, visiting the fields in the order they were stored. Returns
+   * false if the visitor asked to stop.
+   */
+  private boolean visitFromCached(SecureCachedDocument document, StoredFieldVisitor visitor) throws IOException {
+    final List<IndexableField> plain = document.plain.getFields();
+    int next = 0;
+    for (int i = 0; i <= plain.size(); i++) {
+      // the encrypted fields stored before the i-th plaintext field
+      for (; next < document.encrypted.size() && document.positions[next] == i; next++) {
+        if (!document.visitEncrypted(next, visitor)) {
+          return false;
+        }
+      }
+      if (i < plain.size() && !visitFromCached(plain.get(i), visitor)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Executes a stored field visitor against one field of a cached document. */
+  private boolean visitFromCached(IndexableField f, StoredFieldVisitor visitor) throws IOException {
+    FieldInfo info = fieldInfos.fieldInfo(f.name());
+    switch(visitor.needsField(info)) {
+      case YES:
+        if (f.binaryValue() != null) {
+          BytesRef binaryValue = f.binaryValue();
+          byte copy[] = new byte[binaryValue.length];
+          System.arraycopy(binaryValue.bytes, binaryValue.offset, copy, 0, copy.length);
+          visitor.binaryField(info, copy);
+        } else if (f.numericValue() != null) {
+          Number numericValue = f.numericValue();
+          if (numericValue instanceof Double) {
+            visitor.doubleField(info, numericValue.doubleValue());
+          } else if (numericValue instanceof Integer) {
+            visitor.intField(info, numericValue.intValue());
+          } else if (numericValue instanceof Float) {
+            visitor.floatField(info, numericValue.floatValue());
+          } else if (numericValue instanceof Long) {
+            visitor.longField(info, numericValue.longValue());
           } else {
-            visitor.stringField(info, f.stringValue());
+            throw new AssertionError();
           }
-          break;
-        case NO:
-          break;
-        case STOP:
-          return;
-      }
+        } else {
+          visitor.stringField(info, f.stringValue());
+        }
+        return true;
+      case NO:
+        return true;
+      case STOP:
+        return false;
     }
+    return true;
   }
 
   /**
@@ -656,6 +745,21 @@ public class SolrIndexSearcher extends IndexSearcher implements Closeable,SolrIn
       if (d!=null) return d;
     }
 
+    // TNO: all stored fields are cached, and the requested encrypted ones are decrypted
+    // with the keys of this request
+    if (secureDocumentCache != null) {
+      SecureCachedDocument cached = secureDocumentCache.get(i);
+      if (cached == null) {
+        cached = SecureCachedDocument.load(getIndexReader(), i);
+        if (!cached.cacheable) {
+          // the stored fields format decrypted the encrypted fields already
+          return cached.plain;
+        }
+        secureDocumentCache.put(i, cached);
+      }
+      return cached.decrypt(fields);
+    }
+
     if(!enableLazyFieldLoading || fields == null) {
       d = getIndexReader().document(i);
     } else {
@@ -777,8 +881,9 @@ public class SolrIndexSearcher extends IndexSearcher implements Closeable,SolrIn
     // Even if the cache is null, still compute the DocSet as it may serve to warm the Lucene
     // or OS disk cache.
     if (optionalAnswer != null) {
-      if (filterCache!=null) {
-        filterCache.put(query,optionalAnswer);
+      Query key = filterCacheKey(query);
+      if (key!=null) {
+        filterCache.put(key,optionalAnswer);
       }
       return;
     }
@@ -815,9 +920,10 @@ public class SolrIndexSearcher extends IndexSearcher implements Closeable,SolrIn
     // get back the same reference, we know it's positive.
     Query absQ = QueryUtils.getAbs(query);
     boolean positive = query==absQ;
+    Query key = filterCacheKey(absQ);
 
-    if (filterCache != null) {
-      DocSet absAnswer = filterCache.get(absQ);
+    if (key != null) {
+      DocSet absAnswer = filterCache.get(key);
       if (absAnswer!=null) {
         if (positive) return absAnswer;
         else return getPositiveDocSet(matchAllDocsQuery).andNot(absAnswer);
@@ -827,9 +933,9 @@ public class SolrIndexSearcher extends IndexSearcher implements Closeable,SolrIn
     DocSet absAnswer = getDocSetNC(absQ, null);
     DocSet answer = positive ? absAnswer : getPositiveDocSet(matchAllDocsQuery).andNot(absAnswer);
 
-    if (filterCache != null) {
+    if (key != null) {
       // cache negative queries as positive
-      filterCache.put(absQ, absAnswer);
+      filterCache.put(key, absAnswer);
     }
 
     return answer;
@@ -838,16 +944,27 @@ public class SolrIndexSearcher extends IndexSearcher implements Closeable,SolrIn
   // only handle positive (non negative) queries
   DocSet getPositiveDocSet(Query q) throws IOException {
     DocSet answer;
-    if (filterCache != null) {
-      answer = filterCache.get(q);
+    Query key = filterCacheKey(q);
+    if (key != null) {
+      answer = filterCache.get(key);
       if (answer!=null) return answer;
     }
     answer = getDocSetNC(q,null);
-    if (filterCache != null) filterCache.put(
-        q,answer);
+    if (key != null) filterCache.put(
+        key,answer);
     return answer;
   }
 
+  /**
+   * Returns the filterCache key of a query: the query itself, or the query scoped by
+   * the keys of the encrypted fields it touches. Returns null if there is no filterCache
+   * or if the DocSet of the query must not be cached.
+   */
+  private Query filterCacheKey(Query q) {
+    if (filterCache == null) return null;
+    return scopeCacheKeys ? KeyScopedQuery.scope(q, schema) : q;
+  }
+
   private static Query matchAllDocsQuery = new MatchAllDocsQuery();
 
 
@@ -1072,10 +1189,13 @@ public class SolrIndexSearcher extends IndexSearcher implements Closeable,SolrIn
   public DocSet getDocSet(DocsEnumState deState) throws IOException {
     int largestPossible = deState.termsEnum.docFreq();
     boolean useCache = filterCache != null && largestPossible >= deState.minSetSizeCached;
-    TermQuery key = null;
+    Query key = null;
 
     if (useCache) {
-      key = new TermQuery(new Term(deState.fieldName, BytesRef.deepCopyOf(deState.termsEnum.term())));
+      key = filterCacheKey(new TermQuery(new Term(deState.fieldName, BytesRef.deepCopyOf(deState.termsEnum.term()))));
+      useCache = key != null;
+    }
+    if (useCache) {
       DocSet result = filterCache.get(key);
       if (result != null) return result;
     }
@@ -1191,11 +1311,12 @@ public class SolrIndexSearcher extends IndexSearcher implements Closeable,SolrIn
     boolean positive = absQ==query;
 
     DocSet first;
-    if (filterCache != null) {
-      first = filterCache.get(absQ);
+    Query key = filterCacheKey(absQ);
+    if (key != null) {
+      first = filterCache.get(key);
       if (first==null) {
         first = getDocSetNC(absQ,null);
-        filterCache.put(absQ,first);
+        filterCache.put(key,first);
       }
       return positive ? first.intersection(filter) : filter.andNot(first);
     }
@@ -1303,8 +1424,11 @@ public class SolrIndexSearcher extends IndexSearcher implements Closeable,SolrIn
     {
         // all of the current flags can be reused during warming,
         // so set all of them on the cache key.
-        key = new QueryResultKey(q, cmd.getFilterList(), cmd.getSort(), flags);
-        if ((flags & NO_CHECK_QCACHE)==0) {
+        Query scoped = scopeCacheKeys ? KeyScopedQuery.scope(q, cmd.getFilterList(), schema) : q;
+        if (scoped != null) {
+          key = new QueryResultKey(scoped, cmd.getFilterList(), cmd.getSort(), flags);
+        }
+        if (key != null && (flags & NO_CHECK_QCACHE)==0) {
           superset = queryResultCache.get(key);
 
           if (superset != null) {
@@ -1393,7 +1517,8 @@ public class SolrIndexSearcher extends IndexSearcher implements Closeable,SolrIn
         // the base query and all filters.
         DocSet qDocSet = getDocListAndSetNC(qr,cmd);
         // cache the docSet matching the query w/o filtering
-        if (qDocSet!=null && filterCache!=null && !qr.isPartialResults()) filterCache.put(cmd.getQuery(),qDocSet);
+        Query qKey = filterCacheKey(cmd.getQuery());
+        if (qDocSet!=null && qKey!=null && !qr.isPartialResults()) filterCache.put(qKey,qDocSet);
       } else {
         getDocListNC(qr,cmd);
         //Parameters: cmd.getQuery(),theFilt,cmd.getSort(),0,supersetMaxDoc,cmd.getFlags(),cmd.getTimeAllowed(),responseHeader);
@@ -0,0 +1,94 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.search;
+
+import java.net.URL;
+
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.core.SolrInfoMBean;
+
+import org.apache.lucene.codecs.secure.SecureCipherPageCache;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A SolrInfoMBean that provides introspection of the Lucene {@link SecureCipherPageCache},
+ * the off-heap cache of decrypted postings pages. This is <b>NOT</b> a cache that is
+ * managed by Solr: it is shared by all cores of the JVM, and configured with
+ * <code>&lt;secureCipherPageCache maxSizeMB="..." segments="..."/&gt;</code> in the
+ * <code>&lt;query&gt;</code> section of solrconfig.xml.
+ */
+public class SolrSecureCipherPageCacheMBean implements SolrInfoMBean {
+  private static final Logger log = LoggerFactory.getLogger(SolrSecureCipherPageCacheMBean.class);
+
+  /**
+   * Installs a page cache of at least <code>maxBytes</code> bytes, unless one is installed
+   * already. Since the cache is JVM wide, the largest size configured by any core wins.
+   */
+  public static synchronized void ensureCache(long maxBytes, int segments) {
+    SecureCipherPageCache cache = SecureCipherPageCache.getDefault();
+    if (cache == null || cache.getMaxBytes() < maxBytes) {
+      log.info("Creating secure cipher page cache of " + maxBytes + " bytes in " + segments + " segments");
+      SecureCipherPageCache.setDefault(new SecureCipherPageCache(maxBytes, segments));
+    }
+  }
+
+  @Override
+  public String getName() { return this.getClass().getName(); }
+  @Override
+  public String getVersion() { return SolrCore.version; }
+  @Override
+  public String getDescription() {
+    return "Provides introspection of the Lucene cache of decrypted postings pages, "
+      +    "this is **NOT** a cache that is managed by Solr.";
+  }
+  @Override
+  public Category getCategory() { return Category.CACHE; }
+  @Override
+  public String getSource() {
+    return null;
+  }
+  @Override
+  public URL[] getDocs() {
+    return null;
+  }
+  @Override
+  public NamedList<Object> getStatistics() {
+    NamedList<Object> stats = new SimpleOrderedMap<Object>();
+    SecureCipherPageCache cache = SecureCipherPageCache.getDefault();
+    stats.add("enabled", cache != null);
+    if (cache != null) {
+      SecureCipherPageCache.Stats s = cache.getStats();
+      stats.add("maxSizeBytes", s.maxBytes);
+      stats.add("segments", cache.getNumSegments());
+      stats.add("pages", s.pages);
+      stats.add("sizeBytes", (long) s.pages * SecureCipherPageCache.PAGE_SIZE);
+      stats.add("lookups", s.hits + s.misses);
+      stats.add("hits", s.hits);
+      stats.add("hitratio", s.hitRatio());
+      stats.add("misses", s.misses);
+      stats.add("inserts", s.inserts);
+      stats.add("evictions", s.evictions);
+    }
+    return stats;
+  }
+
+}
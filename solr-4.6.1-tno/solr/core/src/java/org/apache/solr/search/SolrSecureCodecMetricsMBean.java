@@ -0,0 +1,90 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.solr.search;
+
+import java.net.URL;
+
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.common.util.SimpleOrderedMap;
+
+import org.apache.solr.core.SolrCore;
+import org.apache.solr.core.SolrInfoMBean;
+
+import org.apache.lucene.codecs.secure.SecureCodecMetrics;
+
+/**
+ * A SolrInfoMBean that provides the {@link SecureCodecMetrics} of a core: how often and
+ * how long the requests of the core spent looking up keys, reading ciphertext,
+ * decrypting, decoding postings and decrypting stored fields. Merges and warming are not
+ * attributed to a core, and count for the JVM wide metrics only.
+ */
+public class SolrSecureCodecMetricsMBean implements SolrInfoMBean {
+  private final SecureCodecMetrics metrics;
+
+  public SolrSecureCodecMetricsMBean(SecureCodecMetrics metrics) {
+    this.metrics = metrics;
+  }
+
+  /**
+   * Returns, for each stage, the number of times it was gone through and the time spent
+   * in it, in milliseconds, and with <code>percentiles</code> the median and 99th
+   * percentile of its time in microseconds.
+   */
+  public static NamedList<Object> toNamedList(SecureCodecMetrics metrics, boolean percentiles) {
+    NamedList<Object> list = new SimpleOrderedMap<Object>();
+    for (SecureCodecMetrics.Stage stage : SecureCodecMetrics.Stage.values()) {
+      SecureCodecMetrics.Stats s = metrics.getStats(stage);
+      NamedList<Object> stats = new SimpleOrderedMap<Object>();
+      stats.add("count", s.count);
+      stats.add("time", s.totalNanos / 1000000d);
+      if (percentiles) {
+        stats.add("p50Us", s.percentile(50) / 1000d);
+        stats.add("p99Us", s.percentile(99) / 1000d);
+      }
+      list.add(stage.getLabel(), stats);
+    }
+    return list;
+  }
+
+  @Override
+  public String getName() { return this.getClass().getName(); }
+  @Override
+  public String getVersion() { return SolrCore.version; }
+  @Override
+  public String getDescription() {
+    return "Counters and timings of the stages of the secure codec read path";
+  }
+  @Override
+  public Category getCategory() { return Category.OTHER; }
+  @Override
+  public String getSource() {
+    return null;
+  }
+  @Override
+  public URL[] getDocs() {
+    return null;
+  }
+  @Override
+  public NamedList<Object> getStatistics() {
+    NamedList<Object> stats = new SimpleOrderedMap<Object>();
+    stats.add("enabled", SecureCodecMetrics.isEnabled());
+    stats.add("core", toNamedList(metrics, true));
+    stats.add("global", toNamedList(SecureCodecMetrics.getGlobal(), true));
+    return stats;
+  }
+
+}
@@ -115,7 +115,7 @@ public class RTimer {
     return asNamedList().toString();
   }
 
-  public NamedList asNamedList() {
+  public NamedList<Object> asNamedList() {
     NamedList<Object> m = new SimpleOrderedMap<Object>();
     m.add( "time", time );
     if( children.size() > 0 ) {
@@ -0,0 +1,248 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.solr.core;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+
+import org.apache.lucene.codecs.secure.SecureCipherUtil;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.search.TermQuery;
+import org.apache.solr.SolrTestCaseJ4;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.handler.RequestHandlerBase;
+import org.apache.solr.request.SolrQueryRequest;
+import org.apache.solr.response.SolrQueryResponse;
+import org.apache.solr.search.KeyScopedQuery;
+import org.apache.solr.search.SolrCache;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.apache.solr.util.RefCounted;
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests that warming queries see their keys on the warming thread only, so that requests
+ * running at the same time keep the registered keys and nothing is evicted by warming.
+ */
+public class TestEncryptedFieldWarmer extends SolrTestCaseJ4 {
+
+  // both encrypted; the warming queries have a stale key of SECRET and the only key of OTHER
+  private static final String SECRET = "secret_s";
+  private static final String OTHER = "other_s";
+
+  @BeforeClass
+  public static void beforeClass() throws Exception {
+    initCore("solrconfig-encrypted.xml", "schema-encrypted.xml");
+  }
+
+  @Override
+  @After
+  public void tearDown() throws Exception {
+    h.getCore().getEncryptedFieldWarmer().clear();
+    SecureCipherUtil.deleteKey(SECRET);
+    SecureCipherUtil.deleteKey(OTHER);
+    super.tearDown();
+  }
+
+  private static SecretKey newKey() throws Exception {
+    KeyGenerator kg = KeyGenerator.getInstance("AES");
+    kg.init(128);
+    return kg.generateKey();
+  }
+
+  /** Checks the keys of the warming thread and runs a request under the live keys on another thread */
+  private static class ConcurrentQueryHandler extends RequestHandlerBase {
+    final Map<String,SecretKey> warmingKeys;
+    final SecretKey liveKey;
+    final List<Throwable> failures = new ArrayList<Throwable>();
+    final AtomicBoolean ran = new AtomicBoolean();
+
+    ConcurrentQueryHandler(Map<String,SecretKey> warmingKeys, SecretKey liveKey) {
+      this.warmingKeys = warmingKeys;
+      this.liveKey = liveKey;
+    }
+
+    @Override
+    public void handleRequestBody(SolrQueryRequest req, SolrQueryResponse rsp) throws Exception {
+      ran.set(true);
+      try {
+        assertSame(warmingKeys.get(SECRET), SecureCipherUtil.getKey(SECRET));
+        assertSame(warmingKeys.get(OTHER), SecureCipherUtil.getKey(OTHER));
+      } catch (Throwable t) {
+        failures.add(t);
+      }
+      Thread thread = new Thread() {
+        @Override
+        public void run() {
+          try {
+            assertNull(SecureCipherUtil.getThreadKeys());
+            assertSame(liveKey, SecureCipherUtil.getKey(SECRET));
+            assertQ(req("q", SECRET + ":s1"), "//result[@numFound='7']");
+          } catch (Throwable t) {
+            synchronized (failures) {
+              failures.add(t);
+            }
+          }
+        }
+      };
+      thread.start();
+      thread.join();
+    }
+
+    @Override
+    public String getDescription() {
+      return "runs a request under the live keys while warming";
+    }
+
+    @Override
+    public String getSource() {
+      return null;
+    }
+  }
+
+  private static long stat(SolrCache cache, String name) {
+    return ((Number) cache.getStatistics().get(name)).longValue();
+  }
+
+  private static NamedList<Object> warmingParams(String... nameValues) {
+    NamedList<Object> params = new NamedList<Object>();
+    for (int i = 0; i < nameValues.length; i += 2) {
+      params.add(nameValues[i], nameValues[i + 1]);
+    }
+    return params;
+  }
+
+  @Test
+  public void testWarmingKeysOnWarmingThreadOnly() throws Exception {
+    final SecretKey liveKey = newKey();
+    final SecretKey otherKey = newKey();
+    SecureCipherUtil.addKey(SECRET, liveKey);
+    SecureCipherUtil.addKey(OTHER, otherKey);
+    for (int i = 0; i < 20; i++) {
+      assertU(adoc("id", Integer.toString(i), SECRET, "s" + (i % 3), OTHER, "o" + (i % 2)));
+    }
+    assertU(commit());
+    // from now on only the warming queries have the key OTHER was indexed with
+    SecureCipherUtil.deleteKey(OTHER);
+    final SecretKey liveOtherKey = SecureCipherUtil.getKey(OTHER);
+    assertNotSame(otherKey, liveOtherKey);
+
+    final Map<String,SecretKey> warmingKeys = new HashMap<String,SecretKey>();
+    warmingKeys.put(SECRET, newKey());
+    warmingKeys.put(OTHER, otherKey);
+    final String[] warmingQuery = new String[] {"q", "*:*", "fq", OTHER + ":o1", "facet", "true", "facet.field", OTHER};
+    ConcurrentQueryHandler handler = new ConcurrentQueryHandler(warmingKeys, liveKey);
+    h.getCore().registerRequestHandler("/concurrent", handler);
+    EncryptedFieldWarmer warmer = h.getCore().getEncryptedFieldWarmer();
+    warmer.register("facets", warmingParams(warmingQuery), warmingKeys);
+    warmer.register("concurrent", warmingParams("qt", "/concurrent"), warmingKeys);
+
+    final List<String> changed = new ArrayList<String>();
+    SecureCipherUtil.KeyChangeListener listener = new SecureCipherUtil.KeyChangeListener() {
+      @Override
+      public void keyChanged(String field) {
+        synchronized (changed) {
+          changed.add(field);
+        }
+      }
+    };
+    SecureCipherUtil.addKeyChangeListener(listener);
+    RefCounted<SolrIndexSearcher> searcher = h.getCore().getSearcher();
+    try {
+      warmer.newSearcher(searcher.get(), null);
+    } finally {
+      searcher.decref();
+      SecureCipherUtil.removeKeyChangeListener(listener);
+    }
+
+    // the request under the live keys ran while warming and was not affected by it
+    assertTrue(handler.ran.get());
+    if (!handler.failures.isEmpty()) {
+      throw new AssertionError(handler.failures.get(0));
+    }
+    // warming neither changed the registered keys nor evicted anything
+    assertTrue(changed.toString(), changed.isEmpty());
+    assertNull(SecureCipherUtil.getThreadKeys());
+    assertSame(liveKey, SecureCipherUtil.getKey(SECRET));
+    assertSame(liveOtherKey, SecureCipherUtil.getKey(OTHER));
+
+    // the warmed entries are used by a request with the warming keys
+    SolrCache filterCache = (SolrCache) h.getCore().getInfoRegistry().get("filterCache");
+    SolrCache queryResultCache = (SolrCache) h.getCore().getInfoRegistry().get("queryResultCache");
+    final long filterHits = stat(filterCache, "hits");
+    final long resultHits = stat(queryResultCache, "hits");
+    final long resultInserts = stat(queryResultCache, "inserts");
+    Map<String,SecretKey> previous = SecureCipherUtil.setThreadKeys(warmingKeys);
+    try {
+      assertQ(req(warmingQuery),
+          "//result[@numFound='10']",
+          "//lst[@name='" + OTHER + "']/int[@name='o1'][.='10']");
+    } finally {
+      SecureCipherUtil.setThreadKeys(previous);
+    }
+    assertTrue(stat(filterCache, "hits") > filterHits);
+    assertTrue(stat(queryResultCache, "hits") > resultHits);
+    assertEquals(resultInserts, stat(queryResultCache, "inserts"));
+  }
+
+  @Test
+  public void testRegenerateWithWarmingKeys() throws Exception {
+    final SecretKey liveKey = newKey();
+    SecureCipherUtil.addKey(OTHER, liveKey);
+    final Map<String,SecretKey> warmingKeys = new HashMap<String,SecretKey>();
+    warmingKeys.put(OTHER, newKey());
+    EncryptedFieldWarmer warmer = h.getCore().getEncryptedFieldWarmer();
+    warmer.register("other", warmingParams("q", OTHER + ":o1"), warmingKeys);
+
+    final TermQuery query = new TermQuery(new Term(OTHER, "o1"));
+    final KeyScopedQuery live = (KeyScopedQuery) KeyScopedQuery.scope(query, h.getCore().getLatestSchema());
+    final AtomicBoolean ran = new AtomicBoolean();
+    assertFalse(warmer.regenerate(live, null, h.getCore().getLatestSchema(), new EncryptedFieldWarmer.Regeneration() {
+      @Override
+      public void run() {
+        ran.set(true);
+      }
+    }));
+    assertFalse(ran.get());
+
+    Map<String,SecretKey> previous = SecureCipherUtil.setThreadKeys(warmingKeys);
+    final KeyScopedQuery warmed;
+    try {
+      warmed = (KeyScopedQuery) KeyScopedQuery.scope(query, h.getCore().getLatestSchema());
+    } finally {
+      SecureCipherUtil.setThreadKeys(previous);
+    }
+    assertTrue(warmer.regenerate(warmed, null, h.getCore().getLatestSchema(), new EncryptedFieldWarmer.Regeneration() {
+      @Override
+      public void run() {
+        ran.set(true);
+        assertSame(warmingKeys.get(OTHER), SecureCipherUtil.getKey(OTHER));
+      }
+    }));
+    assertTrue(ran.get());
+    assertSame(liveKey, SecureCipherUtil.getKey(OTHER));
+    assertNull(SecureCipherUtil.getThreadKeys());
+  }
+}
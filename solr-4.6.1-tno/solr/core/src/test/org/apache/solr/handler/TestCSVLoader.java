@@ -19,6 +19,7 @@ package org.apache.solr.handler;
 
 import org.apache.lucene.util._TestUtil;
 import org.apache.solr.SolrTestCaseJ4;
+import org.apache.solr.common.SolrException;
 import org.apache.solr.request.LocalSolrQueryRequest;
 import org.apache.solr.common.params.CommonParams;
 import org.apache.solr.common.util.ContentStream;
@@ -130,6 +131,76 @@ public class TestCSVLoader extends SolrTestCaseJ4 {
     assertQ(req("rowid_i:10000"),"//*[@numFound='0']");
   }
 
+  @Test
+  public void testCSVLoadThreads() throws Exception {
+    // more lines than fit in a batch, and a partial batch at the end
+    int numDocs = 307;
+    StringBuilder sb = new StringBuilder("id,str_s\n");
+    for (int i = 0; i < numDocs; i++) {
+      sb.append(1000 + i).append(",val").append(i).append('\n');
+    }
+    makeFile(sb.toString());
+    loadLocal("threads", "4", "rowid", "rowid_i", "literal.name", "lit");
+    assertU(commit());
+    assertQ(req("*:*"),"//*[@numFound='" + numDocs + "']");
+    assertQ(req("name:lit"),"//*[@numFound='" + numDocs + "']");
+    // rowids are the line numbers, as when loading on a single thread
+    assertQ(req("rowid_i:1"),"//str[@name='id'][.='1000']");
+    assertQ(req("rowid_i:" + numDocs),"//str[@name='id'][.='" + (1000 + numDocs - 1) + "']");
+    assertQ(req("id:1205"),"//arr[@name='str_s']/str[.='val205']");
+
+    // a bad line is reported with its line number, after the lines before it were added
+    cleanup();
+    sb = new StringBuilder("id,str_s\n");
+    for (int i = 0; i < numDocs; i++) {
+      sb.append(1000 + i).append(i == 250 ? "" : ",val" + i).append('\n');
+    }
+    makeFile(sb.toString());
+    ignoreException("expected 2 values but got 1");
+    try {
+      loadLocal("threads", "4");
+      fail("loaded a line with a missing value");
+    } catch (SolrException e) {
+      assertTrue(e.getMessage(), e.getMessage().contains("line=251"));
+    }
+    unIgnoreException("expected 2 values but got 1");
+    assertU(commit());
+    assertQ(req("*:*"),"//*[@numFound='250']");
+
+    // so is a line whose document cannot be built, here a split value that does not parse
+    cleanup();
+    sb = new StringBuilder("id,str_s\n");
+    for (int i = 0; i < numDocs; i++) {
+      sb.append(1000 + i).append(i == 250 ? ",'unterminated" : ",val" + i).append('\n');
+    }
+    makeFile(sb.toString());
+    ignoreException("encapsulated token");
+    try {
+      loadLocal("threads", "4", "f.str_s.split", "true", "f.str_s.encapsulator", "'");
+      fail("loaded a value that does not split");
+    } catch (SolrException e) {
+      assertEquals(SolrException.ErrorCode.BAD_REQUEST.code, e.code());
+    }
+    unIgnoreException("encapsulated token");
+    assertU(commit());
+    assertQ(req("*:*"),"//*[@numFound='250']");
+
+    // more workers than processors are not started, fewer than one thread is rejected
+    cleanup();
+    makeFile("id\n100\n101\n102");
+    loadLocal("threads", Integer.toString(Integer.MAX_VALUE));
+    assertU(commit());
+    assertQ(req("*:*"),"//*[@numFound='3']");
+    ignoreException("threads must be >= 1");
+    try {
+      loadLocal("threads", "0");
+      fail("loaded with no threads");
+    } catch (SolrException e) {
+      assertEquals(SolrException.ErrorCode.BAD_REQUEST.code, e.code());
+    }
+    unIgnoreException("threads must be >= 1");
+  }
+
   @Test
   public void testCommitFalse() throws Exception {
     makeFile("id\n100\n101\n102");
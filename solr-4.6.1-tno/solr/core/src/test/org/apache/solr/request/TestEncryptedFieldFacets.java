@@ -0,0 +1,144 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.solr.request;
+
+import java.util.Random;
+
+import javax.crypto.KeyGenerator;
+
+import org.apache.lucene.codecs.secure.SecureCipherUtil;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.TermRangeQuery;
+import org.apache.solr.SolrTestCaseJ4;
+import org.apache.solr.common.params.FacetParams;
+import org.apache.solr.common.params.ModifiableSolrParams;
+import org.apache.solr.common.util.NamedList;
+import org.apache.solr.search.DocSet;
+import org.apache.solr.search.SolrIndexSearcher;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests the facet counts of encrypted fields against those of a plaintext field with the
+ * same values, counted by the enum and fc methods.
+ */
+public class TestEncryptedFieldFacets extends SolrTestCaseJ4 {
+
+  private static final String SECRET = "secret_s";
+  private static final String PLAIN = "plain_s";
+  private static final String[] PREFIXES = new String[] {null, "", "a", "b1", "c", "z"};
+
+  private static int numDocs;
+
+  @BeforeClass
+  public static void beforeClass() throws Exception {
+    initCore("solrconfig-encrypted.xml", "schema-encrypted.xml");
+    // values with shared prefixes, and documents without a value, spread over several segments
+    final Random random = random();
+    numDocs = atLeast(200);
+    for (int i = 0; i < numDocs; i++) {
+      if (random.nextInt(5) == 0) {
+        assertU(adoc("id", Integer.toString(i)));
+      } else {
+        final String value = (char) ('a' + random.nextInt(3)) + Integer.toString(random.nextInt(8));
+        assertU(adoc("id", Integer.toString(i), SECRET, value, PLAIN, value));
+      }
+      if (random.nextInt(50) == 0) {
+        assertU(commit());
+      }
+    }
+    assertU(commit());
+  }
+
+  private static NamedList<Integer> counts(SolrQueryRequest req, DocSet base, String field, String method) throws Exception {
+    final ModifiableSolrParams params = new ModifiableSolrParams(req.getParams());
+    if (method != null) {
+      params.set(FacetParams.FACET_METHOD, method);
+    }
+    return new SimpleFacets(req, base, params).getTermCounts(field);
+  }
+
+  @Test
+  public void testCountsMatchEnumAndFc() throws Exception {
+    final int iters = atLeast(50);
+    for (int iter = 0; iter < iters; iter++) {
+      final ModifiableSolrParams params = new ModifiableSolrParams();
+      params.set(FacetParams.FACET_OFFSET, random().nextInt(5));
+      params.set(FacetParams.FACET_LIMIT, random().nextInt(12) - 1);
+      params.set(FacetParams.FACET_MINCOUNT, random().nextInt(4));
+      params.set(FacetParams.FACET_MISSING, random().nextBoolean());
+      params.set(FacetParams.FACET_SORT, random().nextBoolean() ? FacetParams.FACET_SORT_COUNT : FacetParams.FACET_SORT_INDEX);
+      final String prefix = PREFIXES[random().nextInt(PREFIXES.length)];
+      if (prefix != null) {
+        params.set(FacetParams.FACET_PREFIX, prefix);
+      }
+
+      SolrQueryRequest req = req(params);
+      try {
+        // all documents, or a range of ids
+        final SolrIndexSearcher searcher = req.getSearcher();
+        final String lower = Integer.toString(random().nextInt(numDocs));
+        final DocSet base = random().nextInt(3) == 0
+            ? searcher.getDocSet(new MatchAllDocsQuery())
+            : searcher.getDocSet(TermRangeQuery.newStringRange("id", lower, null, true, true));
+
+        final NamedList<Integer> expected = counts(req, base, PLAIN, FacetParams.FACET_METHOD_enum);
+        assertEquals(params.toString(), expected, counts(req, base, PLAIN, FacetParams.FACET_METHOD_fc));
+        // fc and the default count encrypted fields un-inverted, enum is honored
+        assertEquals(params.toString(), expected, counts(req, base, SECRET, null));
+        assertEquals(params.toString(), expected, counts(req, base, SECRET, FacetParams.FACET_METHOD_fc));
+        assertEquals(params.toString(), expected, counts(req, base, SECRET, FacetParams.FACET_METHOD_enum));
+      } finally {
+        req.close();
+      }
+    }
+  }
+
+  @Test
+  public void testKeyChangeEvictsCounts() throws Exception {
+    EncryptedFieldFacets.evictField(null);
+    SolrQueryRequest req = req();
+    final NamedList<Integer> before;
+    try {
+      before = counts(req, req.getSearcher().getDocSet(new MatchAllDocsQuery()), SECRET, null);
+    } finally {
+      req.close();
+    }
+    assertTrue(EncryptedFieldFacets.size() > 0);
+
+    KeyGenerator kg = KeyGenerator.getInstance("AES");
+    kg.init(128);
+    SecureCipherUtil.addKey(SECRET, kg.generateKey());
+    try {
+      // nothing un-inverted with the key it replaced is held any more
+      assertEquals(0, EncryptedFieldFacets.size());
+    } finally {
+      SecureCipherUtil.deleteKey(SECRET);
+    }
+    assertEquals(0, EncryptedFieldFacets.size());
+
+    // and the field is un-inverted again with the key it was indexed with
+    req = req();
+    try {
+      assertEquals(before, counts(req, req.getSearcher().getDocSet(new MatchAllDocsQuery()), SECRET, null));
+    } finally {
+      req.close();
+    }
+    assertTrue(EncryptedFieldFacets.size() > 0);
+  }
+}
@@ -0,0 +1,259 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.solr.search;
+
+import java.util.Collections;
+import java.util.Map;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+
+import org.apache.lucene.codecs.secure.SecureCipherUtil;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.queries.function.FunctionQuery;
+import org.apache.lucene.queries.function.valuesource.ConstValueSource;
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.TermQuery;
+import org.apache.solr.SolrTestCaseJ4;
+import org.apache.solr.schema.IndexSchema;
+import org.junit.After;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests the cache keys of queries on encrypted fields, and that the filterCache and the
+ * queryResultCache only share the entries of such queries between callers with the same keys.
+ */
+public class TestKeyScopedQuery extends SolrTestCaseJ4 {
+
+  private static final String SECRET = "secret_s";
+  private static final String OTHER = "other_s";
+  private static final String PLAIN = "plain_s";
+  // a main query that bypasses the queryResultCache, so that every request looks its filters up
+  private static final String ALL = "{!cache=false}id:[* TO *]";
+
+  @BeforeClass
+  public static void beforeClass() throws Exception {
+    initCore("solrconfig-encrypted.xml", "schema-encrypted.xml");
+  }
+
+  @Override
+  @After
+  public void tearDown() throws Exception {
+    clearIndex();
+    assertU(commit());
+    SecureCipherUtil.deleteKey(SECRET);
+    SecureCipherUtil.deleteKey(OTHER);
+    super.tearDown();
+  }
+
+  private static SecretKey newKey() throws Exception {
+    KeyGenerator kg = KeyGenerator.getInstance("AES");
+    kg.init(128);
+    return kg.generateKey();
+  }
+
+  /** Returns the cache key of <code>query</code> as seen by a thread with <code>keys</code> */
+  private static Query scope(Query query, Map<String,SecretKey> keys) {
+    final Map<String,SecretKey> previous = SecureCipherUtil.setThreadKeys(keys);
+    try {
+      return KeyScopedQuery.scope(query, h.getCore().getLatestSchema());
+    } finally {
+      SecureCipherUtil.setThreadKeys(previous);
+    }
+  }
+
+  private static long stat(String cache, String name) {
+    return ((Number) ((SolrCache) h.getCore().getInfoRegistry().get(cache)).getStatistics().get(name)).longValue();
+  }
+
+  /** Runs <code>params</code> as seen by a thread with <code>keys</code>, and checks the xpaths */
+  private static void assertQueryWithKeys(Map<String,SecretKey> keys, String[] params, String... tests) {
+    final Map<String,SecretKey> previous = SecureCipherUtil.setThreadKeys(keys);
+    try {
+      assertQ(req(params), tests);
+    } finally {
+      SecureCipherUtil.setThreadKeys(previous);
+    }
+  }
+
+  @Test
+  public void testScope() throws Exception {
+    final IndexSchema schema = h.getCore().getLatestSchema();
+    final SecretKey key = newKey();
+    final Map<String,SecretKey> keys = Collections.singletonMap(SECRET, key);
+
+    // plaintext queries are their own cache key
+    final Query plain = new TermQuery(new Term(PLAIN, "p1"));
+    assertSame(plain, scope(plain, keys));
+    assertSame(plain, scope(plain, Collections.singletonMap(SECRET, newKey())));
+
+    // queries on encrypted fields are scoped by the keys of those fields only
+    final Query secret = new TermQuery(new Term(SECRET, "s1"));
+    final Query scoped = scope(secret, keys);
+    assertTrue(scoped instanceof KeyScopedQuery);
+    assertSame(secret, KeyScopedQuery.unwrap(scoped));
+    assertEquals(scoped, scope(secret, Collections.singletonMap(SECRET, key)));
+    assertEquals(scoped.hashCode(), scope(secret, Collections.singletonMap(SECRET, key)).hashCode());
+    assertFalse(scoped.equals(scope(secret, Collections.singletonMap(SECRET, newKey()))));
+    assertTrue(((KeyScopedQuery) scoped).isScopedBy(keys, null, schema));
+    assertFalse(((KeyScopedQuery) scoped).isScopedBy(Collections.singletonMap(SECRET, newKey()), null, schema));
+
+    BooleanQuery mixed = new BooleanQuery();
+    mixed.add(plain, Occur.MUST);
+    mixed.add(secret, Occur.SHOULD);
+    assertTrue(scope(mixed, keys) instanceof KeyScopedQuery);
+    assertFalse(scope(mixed, keys).equals(scoped));
+
+    // the fields of function queries are unknown, so they are not cached at all
+    final Query function = new FunctionQuery(new ConstValueSource(1));
+    assertNull(scope(function, keys));
+    mixed.add(function, Occur.SHOULD);
+    assertNull(scope(mixed, keys));
+    assertNull(KeyScopedQuery.scope(plain, Collections.singletonList(function), schema));
+  }
+
+  @Test
+  public void testScopeCoversAllKeyGenerations() throws Exception {
+    // the collection key is registered by the update handler
+    assertU(adoc("id", "0", PLAIN, "p0"));
+    assertU(commit());
+    final SecretKey master = SecureCipherUtil.getKey();
+    assertNotNull(master);
+    final int generation = SecureCipherUtil.getKeyGeneration();
+    final Query secret = new TermQuery(new Term(SECRET, "s1"));
+    final IndexSchema schema = h.getCore().getLatestSchema();
+
+    final Query before = KeyScopedQuery.scope(secret, schema);
+    SecureCipherUtil.rotateKey(newKey());
+    try {
+      final Query rotated = KeyScopedQuery.scope(secret, schema);
+      assertFalse(before.equals(rotated));
+      // segments written under the removed generation can no longer be read
+      SecureCipherUtil.removeKeyGeneration(generation);
+      assertFalse(rotated.equals(KeyScopedQuery.scope(secret, schema)));
+
+      // an explicit key is used for all generations
+      SecureCipherUtil.addKey(SECRET, newKey());
+      final Query explicit = KeyScopedQuery.scope(secret, schema);
+      SecureCipherUtil.getRegistry().addMasterKey(generation, master);
+      assertEquals(explicit, KeyScopedQuery.scope(secret, schema));
+    } finally {
+      // keeps the segments of the older generation readable
+      SecureCipherUtil.getRegistry().addMasterKey(generation, master);
+    }
+  }
+
+  @Test
+  public void testFilterCache() throws Exception {
+    final SecretKey key = newKey();
+    SecureCipherUtil.addKey(OTHER, key);
+    for (int i = 0; i < 20; i++) {
+      assertU(adoc("id", Integer.toString(i), OTHER, "o" + (i % 2), PLAIN, "p" + (i % 3)));
+    }
+    assertU(commit());
+    final Map<String,SecretKey> registered = Collections.singletonMap(OTHER, key);
+    final Map<String,SecretKey> firstKeys = Collections.singletonMap(SECRET, newKey());
+    final Map<String,SecretKey> secondKeys = Collections.singletonMap(SECRET, newKey());
+
+    // the same key, registered or seen by the thread only, finds the same entry
+    long inserts = stat("filterCache", "inserts");
+    long hits = stat("filterCache", "hits");
+    assertQ(req("q", ALL, "fq", OTHER + ":o1"), "//result[@numFound='10']");
+    assertEquals(inserts + 1, stat("filterCache", "inserts"));
+    assertQueryWithKeys(registered, new String[] {"q", ALL, "fq", OTHER + ":o1"}, "//result[@numFound='10']");
+    assertEquals(inserts + 1, stat("filterCache", "inserts"));
+    assertEquals(hits + 1, stat("filterCache", "hits"));
+
+    // the same query under other keys gets an entry of its own (no document has SECRET,
+    // so there is nothing to decrypt with the wrong key)
+    final String[] secret = new String[] {"q", ALL, "fq", SECRET + ":s1"};
+    inserts = stat("filterCache", "inserts");
+    hits = stat("filterCache", "hits");
+    assertQueryWithKeys(firstKeys, secret, "//result[@numFound='0']");
+    assertQueryWithKeys(secondKeys, secret, "//result[@numFound='0']");
+    assertEquals(inserts + 2, stat("filterCache", "inserts"));
+    assertEquals(hits, stat("filterCache", "hits"));
+    assertQueryWithKeys(firstKeys, secret, "//result[@numFound='0']");
+    assertQueryWithKeys(secondKeys, secret, "//result[@numFound='0']");
+    assertEquals(inserts + 2, stat("filterCache", "inserts"));
+    assertEquals(hits + 2, stat("filterCache", "hits"));
+
+    // plaintext filters are shared whatever the keys
+    final String[] plain = new String[] {"q", ALL, "fq", PLAIN + ":p1"};
+    inserts = stat("filterCache", "inserts");
+    hits = stat("filterCache", "hits");
+    assertQueryWithKeys(firstKeys, plain, "//result[@numFound='7']");
+    assertQueryWithKeys(secondKeys, plain, "//result[@numFound='7']");
+    assertEquals(inserts + 1, stat("filterCache", "inserts"));
+    assertEquals(hits + 1, stat("filterCache", "hits"));
+
+    // filters whose fields cannot be inspected are not cached
+    final long lookups = stat("filterCache", "lookups");
+    inserts = stat("filterCache", "inserts");
+    assertQ(req("q", ALL, "fq", "{!func}1"), "//result[@numFound='20']");
+    assertQ(req("q", ALL, "fq", "{!func}1"), "//result[@numFound='20']");
+    assertEquals(lookups, stat("filterCache", "lookups"));
+    assertEquals(inserts, stat("filterCache", "inserts"));
+  }
+
+  @Test
+  public void testQueryResultCache() throws Exception {
+    for (int i = 0; i < 20; i++) {
+      assertU(adoc("id", Integer.toString(i), PLAIN, "p" + (i % 3)));
+    }
+    assertU(commit());
+    final Map<String,SecretKey> firstKeys = Collections.singletonMap(SECRET, newKey());
+    final Map<String,SecretKey> secondKeys = Collections.singletonMap(SECRET, newKey());
+
+    // queries, or filters, on encrypted fields get an entry per key
+    for (String[] params : new String[][] {
+        {"q", SECRET + ":s1"},
+        {"q", PLAIN + ":p1", "fq", SECRET + ":[* TO *]"}}) {
+      long inserts = stat("queryResultCache", "inserts");
+      long hits = stat("queryResultCache", "hits");
+      assertQueryWithKeys(firstKeys, params, "//result[@numFound='0']");
+      assertQueryWithKeys(secondKeys, params, "//result[@numFound='0']");
+      assertEquals(inserts + 2, stat("queryResultCache", "inserts"));
+      assertEquals(hits, stat("queryResultCache", "hits"));
+      assertQueryWithKeys(secondKeys, params, "//result[@numFound='0']");
+      assertEquals(inserts + 2, stat("queryResultCache", "inserts"));
+      assertEquals(hits + 1, stat("queryResultCache", "hits"));
+    }
+
+    // plaintext queries share theirs
+    final String[] plain = new String[] {"q", PLAIN + ":p1"};
+    long inserts = stat("queryResultCache", "inserts");
+    long hits = stat("queryResultCache", "hits");
+    assertQueryWithKeys(firstKeys, plain, "//result[@numFound='7']");
+    assertQueryWithKeys(secondKeys, plain, "//result[@numFound='7']");
+    assertEquals(inserts + 1, stat("queryResultCache", "inserts"));
+    assertEquals(hits + 1, stat("queryResultCache", "hits"));
+
+    // and queries whose fields cannot be inspected are not cached
+    final long lookups = stat("queryResultCache", "lookups");
+    inserts = stat("queryResultCache", "inserts");
+    assertQ(req("q", "{!func}1"), "//result[@numFound='20']");
+    assertQ(req("q", "{!func}1"), "//result[@numFound='20']");
+    assertQ(req("q", PLAIN + ":p1", "fq", "{!func}1"), "//result[@numFound='7']");
+    assertEquals(lookups, stat("queryResultCache", "lookups"));
+    assertEquals(inserts, stat("queryResultCache", "inserts"));
+  }
+}
@@ -0,0 +1,76 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package org.apache.solr.search;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.lucene.document.Document;
+import org.apache.lucene.document.DocumentStoredFieldVisitor;
+import org.apache.lucene.index.IndexableField;
+import org.apache.solr.SolrTestCaseJ4;
+import org.apache.solr.util.RefCounted;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+/**
+ * Tests that documents read through the documentCache of a schema with encrypted fields
+ * have their fields in the order they were stored, as documents read without it.
+ */
+public class TestSecureCachedDocument extends SolrTestCaseJ4 {
+
+  @BeforeClass
+  public static void beforeClass() throws Exception {
+    initCore("solrconfig-encrypted.xml", "schema-encrypted.xml");
+  }
+
+  private static List<String> fields(Document doc) {
+    final List<String> fields = new ArrayList<String>();
+    for (IndexableField field : doc) {
+      fields.add(field.name() + "=" + field.stringValue());
+    }
+    return fields;
+  }
+
+  @Test
+  public void testFieldOrder() throws Exception {
+    // encrypted fields first, last, and between plaintext fields
+    assertU(adoc("secret_s", "s0", "id", "0", "other_s", "o0", "plain_s", "p0"));
+    assertU(adoc("id", "1", "secret_s", "s1", "plain_s", "p1", "other_s", "o1"));
+    assertU(adoc("plain_s", "p2", "id", "2", "secret_s", "s2"));
+    assertU(commit());
+
+    RefCounted<SolrIndexSearcher> ref = h.getCore().getSearcher();
+    try {
+      final SolrIndexSearcher searcher = ref.get();
+      for (int docID = 0; docID < searcher.maxDoc(); docID++) {
+        final List<String> uncached = fields(searcher.getIndexReader().document(docID));
+        final String id = searcher.getIndexReader().document(docID).get("id");
+        assertTrue(uncached.toString(), uncached.contains("secret_s=s" + id));
+        // loaded into the documentCache, and read from it
+        assertEquals(uncached, fields(searcher.doc(docID)));
+        assertEquals(uncached, fields(searcher.doc(docID)));
+        DocumentStoredFieldVisitor visitor = new DocumentStoredFieldVisitor();
+        searcher.doc(docID, visitor);
+        assertEquals(uncached, fields(visitor.getDocument()));
+      }
+    } finally {
+      ref.decref();
+    }
+  }
+}